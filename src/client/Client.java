@@ -4,6 +4,8 @@ import client.service.*;
 import client.view.LoginPage;
 import global.Global;
 import server.serveice.Wrapper;
+import util.ServerBusyException;
+import util.WireCodec;
 
 import javafx.application.Application;
 import javafx.stage.Stage;
@@ -16,6 +18,7 @@ import java.util.concurrent.BlockingQueue;
 
 public class Client extends Application {
     private static boolean isConnected = false; // 是否连接成功
+    private static final int MAX_BUSY_RETRIES = 5; // 服务器繁忙时的最大重试次数
 
     // 接收信息线程
     private ChatReceiver chatReceiver;
@@ -54,12 +57,30 @@ public class Client extends Application {
         messageQueue = new ArrayBlockingQueue<>(40);
         // 连接服务器 创建 clientSocket
         try {
-            // 使用无参构造，然后 connect，可以更好地控制超时和避免 Invalid Argument 问题
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(Global.LOCAL_HOST, Global.SERVER_PORT), 5000);
-
-            chatSender = new ChatSender(socket, messageQueue);
-            chatReceiver = new ChatReceiver(socket, messageQueue);
+            Socket socket;
+            WireCodec codec;
+            int attempt = 0;
+            while (true) {
+                // 使用无参构造，然后 connect，可以更好地控制超时和避免 Invalid Argument 问题
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(Global.LOCAL_HOST, Global.SERVER_PORT), 5000);
+                try {
+                    // 握手：协商消息编解码器，之后收发线程都使用同一个编解码器实例（各自只用其中一个方向）
+                    codec = WireCodec.clientHandshake(socket);
+                    break;
+                } catch (ServerBusyException e) {
+                    // 服务器繁忙：按服务端建议的时间等待后重试
+                    socket.close();
+                    if (++attempt >= MAX_BUSY_RETRIES) {
+                        throw e;
+                    }
+                    System.out.println(e.getMessage());
+                    Thread.sleep(e.getRetryAfterMillis());
+                }
+            }
+
+            chatSender = new ChatSender(socket, messageQueue, codec);
+            chatReceiver = new ChatReceiver(socket, messageQueue, codec);
 
             chatSender.start();
             chatReceiver.start();
@@ -68,6 +89,9 @@ public class Client extends Application {
             isConnected = false;
             System.err.println("连接服务器失败: " + e.getMessage());
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            isConnected = false;
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -6,11 +6,13 @@ import server.data.GroupData;
 import server.data.UserData;
 import server.serveice.Wrapper;
 import util.MsgUtil;
+import util.WireCodec;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import javafx.application.Platform;
@@ -29,21 +31,24 @@ import javafx.application.Platform;
 public class ChatReceiver extends Thread {
     // 客户端本地Socket，用于与服务端通信
     private final Socket localSocket;
-    ObjectInputStream ois;
+    DataInputStream in;
+    // 握手协商出的编解码器（接收线程只使用其解码方向）
+    private final WireCodec codec;
     private static boolean isRunning;
 
     /**
      * 构造函数
      * <p>
      * 初始化接收线程，绑定到已连接的客户端Socket。
-     * 创建对象输入流，用于从Socket读取服务端消息。
+     * 输入流在线程启动后创建，用于从Socket按帧读取服务端消息。
      *
      * @param localSocket  已连接的客户端Socket
      * @param messageQueue 消息处理队列
-     * @throws IOException 如果获取输入流失败
+     * @param codec        握手协商出的编解码器
      */
-    public ChatReceiver(Socket localSocket, BlockingQueue<Wrapper> messageQueue) {
+    public ChatReceiver(Socket localSocket, BlockingQueue<Wrapper> messageQueue, WireCodec codec) {
         this.localSocket = localSocket;
+        this.codec = codec;
         isRunning = true;
     }
 
@@ -54,7 +59,7 @@ public class ChatReceiver extends Thread {
     public void run() {
 
         try {
-            ois = new ObjectInputStream(localSocket.getInputStream());
+            in = new DataInputStream(new BufferedInputStream(localSocket.getInputStream()));
         } catch (IOException e) {
             System.out.println("ChatReceiver 获取输入流失败，线程退出: " + e.getMessage());
             isRunning = false;
@@ -63,27 +68,26 @@ public class ChatReceiver extends Thread {
 
         while (isRunning) {
             try {
-                // 阻塞式读取服务端发送的 Wrapper 对象
-                Object obj = ois.readObject();
-                if (obj instanceof Wrapper) {
-                    Wrapper message = (Wrapper) obj;
-                    System.out.println("收到消息：" + message.getOperation());
-                    // 所有对 Observable 数据的修改，建议在 JavaFX 线程执行，或者依靠 Observable 自身的线程安全实现
-                    // 为了保险，统一用 Platform.runLater 包裹数据更新操作
-                    Platform.runLater(() -> handleMessage(message));
+                // 阻塞式读取服务端发送的一帧并解码为 Wrapper 对象
+                Wrapper message = codec.read(in);
+                // 心跳直接在接收线程回应，不需要经过界面线程
+                if (message.getOperation() == Global.OPT_PING) {
+                    // 发送队列已满时丢弃这次回复：队列里的消息发出后同样会刷新服务端记录的活跃时间
+                    ChatSender.offerMsg(new Wrapper(null, LocalData.get().getId(), null, Global.OPT_PONG));
+                    continue;
                 }
+                System.out.println("收到消息：" + message.getOperation());
+                // 所有对 Observable 数据的修改，建议在 JavaFX 线程执行，或者依靠 Observable 自身的线程安全实现
+                // 为了保险，统一用 Platform.runLater 包裹数据更新操作
+                Platform.runLater(() -> handleMessage(message));
             }
-            // 捕获 IO 异常（如连接中断）
+            // 捕获 IO 异常（如连接中断、帧格式错误）
             catch (IOException e) {
                 System.out.println("ChatReceiver 连接中断: " + e.getMessage());
                 isRunning = false;
                 LocalData.get().addSystemMessage("服务器连接中断");
                 break;
             }
-            // 捕获反序列化异常
-            catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            }
         }
     }
 
@@ -271,8 +275,8 @@ public class ChatReceiver extends Thread {
                 EventBus.getInstance().publish("FRIEND_REFUSED", "对方拒绝了你的好友请求");
                 break;
 
-            case Global.OPT_INIT_CHAT:
-                handleChatInit(msg);
+            case Global.OPT_HISTORY_PAGE_RESULT:
+                handleHistoryPage(msg);
                 break;
 
             case Global.OPT_INIT_USER:
@@ -285,6 +289,11 @@ public class ChatReceiver extends Thread {
 
             case Global.SERVER_MESSAGE:
                 LocalData.get().addSystemMessage((String) msg.getData());
+                break;
+
+            case Global.OPT_REQUEST_REJECTED:
+                LocalData.get().addSystemMessage((String) msg.getData());
+                break;
         }
     }
 
@@ -318,12 +327,21 @@ public class ChatReceiver extends Thread {
     }
 
     /**
-     * 处理群聊初始化消息
+     * 处理一页聊天历史：登录时的第一页和向上翻页的结果都插到已有消息之前，并记下下一次翻页的游标
      */
-    @SuppressWarnings("unchecked")
-    private void handleChatInit(Wrapper msg) {
-        List<String> chatHistory = (List<String>) msg.getData();
-        LocalData.get().addChatMsg(msg.getGroupId(), chatHistory);
+    private void handleHistoryPage(Wrapper msg) {
+        String[] page = (String[]) msg.getData();
+        String groupId = msg.getGroupId();
+        long cursor;
+        try {
+            cursor = Long.parseLong(page[0]);
+        } catch (RuntimeException e) {
+            System.err.println("无效的聊天历史分页: " + groupId);
+            LocalData.get().finishHistoryLoading(groupId, 0);
+            return;
+        }
+        LocalData.get().prependChatMsg(groupId, Arrays.asList(page).subList(1, page.length));
+        LocalData.get().finishHistoryLoading(groupId, cursor);
     }
 
     /**
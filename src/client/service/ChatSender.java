@@ -1,9 +1,12 @@
 package client.service;
 
 import server.serveice.Wrapper;
+import util.WireCodec;
+import util.WriteBatcher;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.concurrent.BlockingQueue;
@@ -16,8 +19,17 @@ public class ChatSender extends Thread {
         messageQueue.add(msg);
     }
 
-    private ObjectOutputStream oos;
+    /**
+     * 尝试放入发送队列，队列已满时放弃并返回 false（用于心跳回复这类可以丢弃的消息）
+     */
+    public static boolean offerMsg(Wrapper msg) {
+        return messageQueue.offer(msg);
+    }
+
+    private DataOutputStream out;
     private final Socket clientSocket;
+    // 握手协商出的编解码器（发送线程只使用其编码方向）
+    private final WireCodec codec;
 
     private static boolean isRunning;
 
@@ -25,9 +37,10 @@ public class ChatSender extends Thread {
         isRunning = false;
     }
 
-    public ChatSender(Socket clientSocket, BlockingQueue<Wrapper> messageQueue) {
+    public ChatSender(Socket clientSocket, BlockingQueue<Wrapper> messageQueue, WireCodec codec) {
         ChatSender.messageQueue = messageQueue;
         this.clientSocket = clientSocket;
+        this.codec = codec;
         isRunning = true;
     }
 
@@ -35,17 +48,24 @@ public class ChatSender extends Thread {
     public void run() {
 
         try {
-            oos = new ObjectOutputStream(clientSocket.getOutputStream());
+            out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
+        // 连续发送时合并 flush，队列空闲时立即 flush
+        WriteBatcher batcher = new WriteBatcher();
         Wrapper msg = null;
         while (isRunning) {
             try {
                 msg = messageQueue.take();
-                oos.writeObject(msg);
-                oos.flush();
+                long created = System.nanoTime();
+                int before = out.size();
+                codec.write(out, msg);
+                if (batcher.add(out.size() - before, created, messageQueue.isEmpty())) {
+                    out.flush();
+                    batcher.reset();
+                }
                 System.out.println("信息已发出：" + msg.getOperation());
             } catch (InterruptedException e) {
                 System.out.println(LocalData.get().getId() + ": 消息队列被中断");
@@ -6,8 +6,11 @@ import javafx.collections.ObservableMap;
 import server.data.GroupData;
 import server.data.UserData;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 // 这个类用于存储本地的数据，便于之后的UI更新操作。
 public class LocalData {
@@ -36,6 +39,11 @@ public class LocalData {
     // 系统消息/日志列表 (UI 可以绑定这个来显示弹窗)
     private ObservableList<String> systemMessages;
 
+    // 聊天历史翻页游标：key：群聊id value：本地最早一条消息的序号，0 表示没有更早的消息
+    private final Map<String, Long> historyCursorMap = new HashMap<>();
+    // 正在等待历史分页回复的群聊，避免重复请求
+    private final Set<String> historyLoadingSet = new HashSet<>();
+
     private LocalData() {
         // 使用 FXCollections.synchronizedObservableMap 保证线程安全，或者在更新时注意线程
         // 这里为了简单，我们假设更新都在 Platform.runLater 中进行，或者使用普通 ObservableMap 但在更新时切换线程
@@ -107,6 +115,33 @@ public class LocalData {
         groupChatMap.get(groupId).add(message);
     }
 
+    // 在已有消息之前插入一页历史消息
+    public void prependChatMsg(String groupId, List<String> messages) {
+        if (!groupChatMap.containsKey(groupId)) {
+            groupChatMap.put(groupId, FXCollections.observableArrayList());
+        }
+        groupChatMap.get(groupId).addAll(0, messages);
+    }
+
+    /**
+     * 开始请求某个群聊更早的一页历史
+     *
+     * @return 翻页游标，没有更早的消息、游标未知或已经在请求中时返回 -1
+     */
+    public synchronized long beginHistoryLoading(String groupId) {
+        Long cursor = historyCursorMap.get(groupId);
+        if (cursor == null || cursor <= 0 || !historyLoadingSet.add(groupId)) {
+            return -1;
+        }
+        return cursor;
+    }
+
+    // 收到历史分页回复：更新游标并结束请求
+    public synchronized void finishHistoryLoading(String groupId, long cursor) {
+        historyCursorMap.put(groupId, cursor);
+        historyLoadingSet.remove(groupId);
+    }
+
     public ObservableList<String> getChatMsg(String groupId) {
         if (groupChatMap.containsKey(groupId)) {
             return groupChatMap.get(groupId);
@@ -137,6 +172,10 @@ public class LocalData {
         if (groupChatMap.containsKey(groupId)) {
             groupChatMap.remove(groupId);
         }
+        synchronized (this) {
+            historyCursorMap.remove(groupId);
+            historyLoadingSet.remove(groupId);
+        }
     }
 
     public String getUserName(String userId) {
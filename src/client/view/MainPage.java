@@ -12,8 +12,11 @@ import javafx.collections.ListChangeListener;
 import javafx.collections.MapChangeListener;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.input.ScrollEvent;
 import javafx.stage.Stage;
 
 import java.io.IOException;
@@ -84,6 +87,58 @@ public class MainPage {
 
         // 4. 注册 EventBus 监听器 (替代旧的系统消息监听)
         registerEventListeners();
+
+        // 5. 聊天记录滚动到顶部时请求更早的一页历史
+        messageListView.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            if (newSkin != null) {
+                Platform.runLater(this::watchMessageScrollBar);
+            }
+        });
+        // 消息不足一屏时没有滚动条，向上滚动滚轮同样触发翻页
+        messageListView.addEventFilter(ScrollEvent.SCROLL, e -> {
+            if (e.getDeltaY() > 0 && isMessageListAtTop()) {
+                requestOlderHistory();
+            }
+        });
+    }
+
+    private ScrollBar findMessageScrollBar() {
+        for (Node node : messageListView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                return (ScrollBar) node;
+            }
+        }
+        return null;
+    }
+
+    private void watchMessageScrollBar() {
+        ScrollBar scrollBar = findMessageScrollBar();
+        if (scrollBar == null) {
+            return;
+        }
+        scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue.doubleValue() <= scrollBar.getMin() && oldValue.doubleValue() > newValue.doubleValue()) {
+                requestOlderHistory();
+            }
+        });
+    }
+
+    private boolean isMessageListAtTop() {
+        ScrollBar scrollBar = findMessageScrollBar();
+        return scrollBar == null || !scrollBar.isVisible() || scrollBar.getValue() <= scrollBar.getMin();
+    }
+
+    // 向服务端请求当前聊天更早的一页历史，没有更早的消息或已在请求中时不发送
+    private void requestOlderHistory() {
+        String groupId = LocalData.get().getCurrentChatId();
+        if (groupId == null || groupId.isEmpty()) {
+            return;
+        }
+        long cursor = LocalData.get().beginHistoryLoading(groupId);
+        if (cursor > 0) {
+            ChatSender.addMsg(Wrapper.historyPageRequest(LocalData.get().getId(), groupId, cursor,
+                    Global.HISTORY_PAGE_SIZE));
+        }
     }
 
     private void registerEventListeners() {
@@ -148,8 +203,15 @@ public class MainPage {
         messageListView.setItems(LocalData.get().getChatMsg(groupId));
         messageListView.scrollTo(messageListView.getItems().size() - 1);
 
-        // 监听当前聊天记录的变化，自动滚动
+        // 监听当前聊天记录的变化：新消息滚动到底部，插到前面的历史页保持当前看到的位置
         LocalData.get().getChatMsg(groupId).addListener((ListChangeListener<String>) c -> {
+            while (c.next()) {
+                if (c.wasAdded() && c.getFrom() == 0 && c.getTo() < c.getList().size()) {
+                    int added = c.getAddedSize();
+                    Platform.runLater(() -> messageListView.scrollTo(added));
+                    return;
+                }
+            }
             Platform.runLater(() -> messageListView.scrollTo(messageListView.getItems().size() - 1));
         });
     }
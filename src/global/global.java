@@ -77,9 +77,18 @@ public class Global {
     public static final int OPT_INIT_USER_DETAIL = 94; // 初始化：用户详细信息
     public static final int OPT_UPDATE_USER_DETAIL = 95; // 更新：用户详细信息
 
+    // 聊天历史分页：游标是会话内消息的序号，客户端用已有的最早一条消息的序号向前翻页
+    public static final int OPT_HISTORY_PAGE = 96; // 请求：获取一页聊天历史（data: [游标, 条数]，取序号小于游标的最后若干条）
+    public static final int OPT_HISTORY_PAGE_RESULT = 97; // 回复：一页聊天历史（data: [本页第一条的序号, 消息...]，序号为 0 表示没有更早的消息）
+    public static final int OPT_CHAT_SEARCH = 98; // 请求：搜索群聊的聊天记录（data: [关键词, 条数]）
+    public static final int OPT_CHAT_SEARCH_RESULT = 99; // 回复：搜索结果，按相关度从高到低（data: [序号, 消息, 序号, 消息...]）
+
     // ------ 系统控制 ------
+    public static final int OPT_PING = 100; // 心跳：探测对端是否存活
+    public static final int OPT_PONG = 101; // 心跳：回应 OPT_PING
     public static final int OPT_EXIT = 999; // 服务器关闭通知
     public static final int OPT_QUEST_WRONG = 404; // 请求错误
+    public static final int OPT_REQUEST_REJECTED = 405; // 请求被拒绝：服务器繁忙
 
     // ====================== 3. 响应提示信息 (MSG) ======================
     // 配合结果码，客户端直接展示给用户
@@ -89,10 +98,12 @@ public class Global {
     public static final String MSG_PWD_ERROR = "登录失败：密码与账户不匹配";
     public static final String MSG_UNKNOWN_OPT = "请求失败：未知的操作类型";
     public static final String MSG_DATA_ERROR = "请求失败：数据格式错误";
+    public static final String MSG_SERVER_BUSY = "请求失败：服务器繁忙，请稍后重试";
 
     // ====================== 4. 聊天应用配置 ======================
     public static final int MAX_MSG_SEND_GAP = 10; // 消息最大发送事件间隔/秒
     public static final int DISCONNECT_TIMEOUT = 30; // 断开连接超时时间/秒
+    public static final int HISTORY_PAGE_SIZE = 50; // 向上翻页时每次请求的历史消息条数
 
     public static final String DEFAULT_GROUP_ID = "group_default"; // 默认群ID
     public static final String CHAT_MSG_PREFIX = "【系统消息】"; // 系统消息前缀
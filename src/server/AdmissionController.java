@@ -0,0 +1,208 @@
+package server;
+
+import util.WireCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接准入控制，位于 accept 之后、创建会话资源之前。
+ * <p>
+ * 两道检查：同时在线的连接数上限，以及每个 IP 的新建连接速率（令牌桶）。
+ * 被拒绝的连接不会创建消息队列和线程，而是在一个很小的专用线程池里收下客户端的 HELLO，
+ * 回复“服务器繁忙 + 建议重试时间”后关闭，客户端据此退避重试。
+ * 登录高峰时超出容量的客户端得到明确的答复，而不是停在半初始化的连接上。
+ */
+public class AdmissionController {
+    // 令牌桶长时间未使用后清理
+    private static final long BUCKET_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // 拒绝时等待客户端 HELLO 的最长时间
+    private static final int REJECT_READ_TIMEOUT_MILLIS = 1000;
+
+    private final int maxSessions;
+    private final double ipRate;
+    private final int ipBurst;
+    private final int retryAfterMillis;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    // 只有 accept 线程会修改令牌桶，使用并发表是为了控制台可以同时读取
+    private final Map<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private long lastSweep = System.nanoTime();
+
+    // 统计
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedFull = new AtomicLong();
+    private final AtomicLong rejectedRate = new AtomicLong();
+
+    // 回复繁忙的线程池：线程和队列都很小，再满时直接关闭连接
+    private final ThreadPoolExecutor rejectPool = new ThreadPoolExecutor(
+            1, 2, 30L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(64),
+            r -> {
+                Thread t = new Thread(r, "admission-reject");
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 使用配置创建。连接数上限未配置时取决于实际使用的线程模型，由调用方在线程池建好之后告知
+     *
+     * @param platformThreads 连接是否由有上限的平台线程池处理
+     */
+    public AdmissionController(boolean platformThreads) {
+        this(ServerConfig.ADMISSION_MAX_SESSIONS > 0 ? ServerConfig.ADMISSION_MAX_SESSIONS
+                        : platformThreads ? ServerConfig.ADMISSION_PLATFORM_MAX_SESSIONS
+                        : ServerConfig.ADMISSION_SCALABLE_MAX_SESSIONS,
+                ServerConfig.ADMISSION_IP_RATE, ServerConfig.ADMISSION_IP_BURST,
+                ServerConfig.ADMISSION_RETRY_AFTER_MILLIS);
+    }
+
+    public AdmissionController(int maxSessions, double ipRate, int ipBurst, int retryAfterMillis) {
+        this.maxSessions = maxSessions;
+        this.ipRate = ipRate;
+        this.ipBurst = ipBurst;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * 尝试接纳一个新连接，只由 accept 线程调用。
+     * 接纳成功时占用一个连接名额，连接关闭时必须调用 {@link #release()}；
+     * 拒绝时已安排回复繁忙并关闭套接字，调用方不需要再处理。
+     *
+     * @return 是否接纳
+     */
+    public boolean tryAdmit(Socket socket) {
+        long now = System.nanoTime();
+        sweepIdleBuckets(now);
+
+        InetAddress address = socket.getInetAddress();
+        // 速率不大于 0 时不限制单个 IP
+        long waitMillis = ipRate <= 0 ? 0 : buckets
+                .computeIfAbsent(address, a -> new TokenBucket(ipBurst, now))
+                .tryAcquire(now, ipRate, ipBurst);
+        if (waitMillis > 0) {
+            rejectedRate.incrementAndGet();
+            System.out.println("连接过于频繁，拒绝: " + address);
+            reject(socket, (int) Math.min(Integer.MAX_VALUE, waitMillis));
+            return false;
+        }
+
+        int current;
+        do {
+            current = sessions.get();
+            if (current >= maxSessions) {
+                rejectedFull.incrementAndGet();
+                System.out.println("连接数已满(" + current + ")，拒绝: " + address);
+                // 加上随机抖动，避免被拒绝的客户端在同一时刻一起重试
+                reject(socket, retryAfterMillis + ThreadLocalRandom.current().nextInt(retryAfterMillis + 1));
+                return false;
+            }
+        } while (!sessions.compareAndSet(current, current + 1));
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 释放一个连接名额
+     */
+    public void release() {
+        sessions.decrementAndGet();
+    }
+
+    public int getSessionCount() {
+        return sessions.get();
+    }
+
+    /**
+     * 准入统计，供服务端控制台查看
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("sessions", sessions.get());
+        status.put("maxSessions", maxSessions);
+        status.put("admitted", admitted.get());
+        status.put("rejectedFull", rejectedFull.get());
+        status.put("rejectedRate", rejectedRate.get());
+        status.put("trackedAddresses", buckets.size());
+        status.put("pendingRejects", rejectPool.getQueue().size());
+        return status;
+    }
+
+    public void shutdown() {
+        rejectPool.shutdownNow();
+    }
+
+    // 收下客户端的 HELLO 再回复，避免对端数据未读就关闭导致连接被重置、客户端收不到回复
+    private void reject(Socket socket, int retryAfter) {
+        try {
+            rejectPool.execute(() -> {
+                try {
+                    socket.setSoTimeout(REJECT_READ_TIMEOUT_MILLIS);
+                    InputStream in = socket.getInputStream();
+                    int read = 0;
+                    while (read < WireCodec.HELLO_SIZE && in.read() >= 0) {
+                        read++;
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(WireCodec.busyReply(retryAfter));
+                    out.flush();
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    // 客户端已断开或超时，直接关闭
+                } finally {
+                    closeQuietly(socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void sweepIdleBuckets(long now) {
+        if (now - lastSweep < BUCKET_IDLE_NANOS) {
+            return;
+        }
+        lastSweep = now;
+        buckets.values().removeIf(bucket -> now - bucket.lastRefill > BUCKET_IDLE_NANOS);
+    }
+
+    // 令牌桶：每秒补充 rate 个令牌，最多积攒 burst 个，每个新连接消耗一个
+    private static final class TokenBucket {
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        /**
+         * @return 0 表示获取成功，否则为需要等待的毫秒数
+         */
+        long tryAcquire(long now, double rate, int burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1000));
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package server;
 
 import server.data.ServerData;
+import server.serveice.HeartbeatMonitor;
+import server.serveice.OutboundStats;
 import util.FileUtil;
 
 import java.util.Scanner;
@@ -14,18 +16,25 @@ public class Server {
         ServerMainThread serverThread = new ServerMainThread();
         serverThread.start();
 
-        //启动定时任务：保存服务器数据
+        //启动定时任务：定期写检查点（完整快照），两次检查点之间的修改由日志保存
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, r -> {
             Thread t = new Thread(r);
             t.setDaemon(true); // 设置为守护线程
             return t;
         });
 
-        // 每隔半小时执行一次
+        // 默认每隔二十分钟执行一次
         scheduler.scheduleAtFixedRate(() -> {
             System.out.println("保存数据中");
             FileUtil.saveServerData();
-        }, 1200, 1200, TimeUnit.SECONDS);
+        }, ServerConfig.CHECKPOINT_INTERVAL_SECONDS, ServerConfig.CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        // 定期整理聊天记录：按保留策略删除旧段，把旧段压缩归档
+        if (ServerConfig.CHATLOG_COMPACT_INTERVAL_SECONDS > 0) {
+            scheduler.scheduleWithFixedDelay(() -> ServerData.getInstance().getChatStore().compact(),
+                    ServerConfig.CHATLOG_COMPACT_INTERVAL_SECONDS, ServerConfig.CHATLOG_COMPACT_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
 
         Scanner sc = new Scanner(System.in);
         while (ServerMainThread.isRunning()) {
@@ -54,6 +63,34 @@ public class Server {
                     System.out.println("=======阻塞队列状态=======");
                     System.out.println(ServerMainThread.getBlockingQueueStatus());
                     break;
+                case "admissionStatus":
+                    System.out.println("=======连接准入统计=======");
+                    System.out.println(ServerMainThread.getAdmissionStatus());
+                    break;
+                case "heartbeatStatus":
+                    System.out.println("=======心跳检测统计=======");
+                    System.out.println(HeartbeatMonitor.getStatus());
+                    break;
+                case "outboundStatus":
+                    System.out.println("=======出站写出统计=======");
+                    System.out.println(OutboundStats.getStatus());
+                    break;
+                case "outboundStatusReset":
+                    OutboundStats.reset();
+                    System.out.println("出站写出统计已清空");
+                    break;
+                case "journalStatus":
+                    System.out.println("=======数据日志状态=======");
+                    System.out.println(ServerData.getInstance().getJournalStatus());
+                    break;
+                case "chatLogStatus":
+                    System.out.println("=======聊天记录存储状态=======");
+                    System.out.println(ServerData.getInstance().getChatStore().getStatus());
+                    break;
+                case "chatLogCompact":
+                    ServerData.getInstance().getChatStore().compact();
+                    System.out.println(ServerData.getInstance().getChatStore().getStatus());
+                    break;
                 default:
                     System.out.println("无效指令");
             }
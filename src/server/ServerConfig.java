@@ -0,0 +1,169 @@
+package server;
+
+import util.WireCodec;
+import util.WriteBatcher;
+
+/**
+ * 服务端运行参数
+ * 与 Global 中的协议常量不同，这里的参数只影响服务端自身的运行方式，
+ * 可以在启动时通过 -Dlocalchat.xxx=value 覆盖，客户端不需要保持一致。
+ */
+public final class ServerConfig {
+    private ServerConfig() {
+    }
+
+    // ====================== 1. 传输模式 ======================
+    // classic：每个连接一个接收线程 + 一个处理线程
+    public static final String MODE_CLASSIC = "classic";
+    // nio：少量 Selector 事件循环线程复用所有连接，业务处理交给固定大小的工作线程池
+    public static final String MODE_NIO = "nio";
+    // virtual：与 classic 相同的阻塞模型，但接收/处理循环运行在虚拟线程上（需要 JDK 21+）
+    public static final String MODE_VIRTUAL = "virtual";
+
+    // 当前使用的传输模式
+    public static final String TRANSPORT_MODE = System.getProperty("localchat.transport", MODE_CLASSIC);
+
+    // 握手时优先选用的编解码器：binary（紧凑二进制）/ serial（Java 序列化）。
+    // 默认 binary，客户端不支持时拒绝连接；设为 serial 时才接受 Java 序列化（会反序列化客户端数据，只在可信网络中使用）
+    public static final int WIRE_CODEC = "serial".equals(System.getProperty("localchat.codec"))
+            ? WireCodec.CODEC_SERIAL : WireCodec.CODEC_BINARY;
+
+    // 是否允许与支持压缩的客户端协商按帧压缩
+    public static final boolean COMPRESS_ENABLED = !"false".equals(System.getProperty("localchat.compress"));
+    // 帧体达到多少字节才压缩，聊天消息这类小帧保持原样
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger("localchat.compress.threshold", 1024);
+
+    // ====================== 2. NIO 模式参数 ======================
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // 事件循环线程数（每个线程一个 Selector）
+    public static final int NIO_EVENT_LOOPS = Integer.getInteger("localchat.nio.loops", Math.max(1, CPU_COUNT / 2));
+    // 业务处理线程数
+    public static final int NIO_WORKER_THREADS = Integer.getInteger("localchat.nio.workers", Math.max(2, CPU_COUNT * 2));
+    // 单个连接读缓冲区的初始大小（字节），收到更大的帧时会按需扩容
+    public static final int NIO_READ_BUFFER_SIZE = Integer.getInteger("localchat.nio.readBuffer", 16 * 1024);
+
+    // ====================== 3. 连接准入 ======================
+    // 同时在线的最大连接数；0 表示按运行时实际使用的线程模型决定（virtual 模式在不支持虚拟线程的 JDK 上会回退到平台线程池）
+    public static final int ADMISSION_MAX_SESSIONS = Integer.getInteger("localchat.admission.maxSessions", 0);
+    // 使用平台线程池时的默认上限：受线程池上限 200（每个连接占用三个池各一个线程）约束
+    public static final int ADMISSION_PLATFORM_MAX_SESSIONS = 190;
+    // 使用虚拟线程或 NIO 时的默认上限
+    public static final int ADMISSION_SCALABLE_MAX_SESSIONS = 10000;
+    // 单个 IP 每秒允许新建的连接数
+    public static final double ADMISSION_IP_RATE =
+            Double.parseDouble(System.getProperty("localchat.admission.ipRate", "5"));
+    // 单个 IP 允许的突发连接数
+    public static final int ADMISSION_IP_BURST = Integer.getInteger("localchat.admission.ipBurst", 20);
+    // 连接数已满时建议客户端等待的基础时间（毫秒），实际值会加上最多同样长度的随机抖动，避免客户端同时重试
+    public static final int ADMISSION_RETRY_AFTER_MILLIS = Integer.getInteger("localchat.admission.retryAfterMillis", 3000);
+
+    // ====================== 4. 入站队列 ======================
+    // 入站队列满时的处理策略：阻塞读取，直到处理线程腾出空间
+    public static final String INBOUND_BLOCK = "block";
+    // 入站队列满时的处理策略：拒绝请求并回复 OPT_REQUEST_REJECTED
+    public static final String INBOUND_REJECT = "reject";
+    // 入站队列满时的处理策略：直接丢弃
+    public static final String INBOUND_DROP = "drop";
+
+    // 每个连接的入站队列容量（已读取、等待处理的请求数）
+    public static final int INBOUND_QUEUE_CAPACITY = Integer.getInteger("localchat.inbound.capacity", 40);
+    // 未单独配置的操作码使用的策略
+    public static final String INBOUND_DEFAULT_POLICY = System.getProperty("localchat.inbound.defaultPolicy", INBOUND_BLOCK);
+    // 按操作码配置的策略，格式：操作码:策略,操作码:策略，例如 8:reject,81:reject
+    public static final String INBOUND_POLICY = System.getProperty("localchat.inbound.policy", "");
+
+    // ====================== 5. 出站队列 ======================
+    // 出站溢出策略：丢弃最旧的消息
+    public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+    // 出站溢出策略：断开消费过慢的客户端
+    public static final String OVERFLOW_DISCONNECT = "disconnect";
+    // 出站溢出策略：超出部分暂存到磁盘，客户端追上后按顺序补发
+    public static final String OVERFLOW_SPILL = "spill";
+
+    // 每个会话内存中最多排队的待发送消息数
+    public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("localchat.outbound.capacity", 1024);
+    // 出站队列满时的处理策略
+    public static final String OUTBOUND_OVERFLOW_POLICY =
+            System.getProperty("localchat.outbound.overflow", OVERFLOW_DROP_OLDEST);
+    // spill 策略下单个会话暂存文件的最大字节数，超过后断开该客户端
+    public static final long OUTBOUND_SPILL_LIMIT = Long.getLong("localchat.outbound.spillLimit", 64L * 1024 * 1024);
+
+    // ====================== 6. 写合并 ======================
+    // 是否合并写出：关闭后每条消息单独 flush，便于对比吞吐和延迟
+    public static final boolean FLUSH_COALESCE =
+            !"false".equals(System.getProperty("localchat.flush.coalesce"));
+    // 一批最多累计的字节数
+    public static final int FLUSH_MAX_BYTES = Integer.getInteger("localchat.flush.maxBytes", 32 * 1024);
+    // 一批中第一条消息最多等待的时间（微秒）
+    public static final long FLUSH_MAX_DELAY_MICROS = Long.getLong("localchat.flush.maxDelayMicros", 2000L);
+
+    /**
+     * 按配置创建写合并策略
+     */
+    public static WriteBatcher newWriteBatcher() {
+        return FLUSH_COALESCE
+                ? new WriteBatcher(FLUSH_MAX_BYTES, FLUSH_MAX_DELAY_MICROS * 1000L)
+                : new WriteBatcher(0, 0L);
+    }
+
+    // ====================== 7. 心跳 ======================
+    // 连接空闲多久（秒）后服务端发送 OPT_PING，0 表示关闭心跳检测
+    public static final int HEARTBEAT_INTERVAL_SECONDS = Integer.getInteger("localchat.heartbeat.interval", 30);
+    // 连接多久（秒）没有收到任何数据（包括 OPT_PONG）后判定为断开并清理
+    public static final int HEARTBEAT_TIMEOUT_SECONDS = Integer.getInteger("localchat.heartbeat.timeout", 90);
+
+    // ====================== 8. 数据持久化 ======================
+    public static final String STORAGE_FILE = "file";
+    public static final String STORAGE_MEMORY = "memory";
+    // 存储方式：file（快照 + 日志 + 聊天记录文件）、memory（全部只保存在内存中，用于测试和基准）
+    public static final String STORAGE_MODE = System.getProperty("localchat.storage", STORAGE_FILE);
+    // 两次检查点（写完整快照）之间的间隔（秒）
+    public static final int CHECKPOINT_INTERVAL_SECONDS = Integer.getInteger("localchat.checkpoint.interval", 1200);
+    // 当前日志段超过多少字节时提前在后台写检查点
+    public static final long JOURNAL_CHECKPOINT_BYTES = Long.getLong("localchat.journal.checkpointBytes", 16L * 1024 * 1024);
+    // 每次组提交是否 fsync，关闭后只保证写入操作系统缓存（进程崩溃不丢，断电可能丢）
+    public static final boolean JOURNAL_FSYNC = !"false".equals(System.getProperty("localchat.journal.fsync"));
+    // 快照每块的记录数，加载和写出时按块并行编解码
+    public static final int SNAPSHOT_CHUNK_RECORDS = Integer.getInteger("localchat.snapshot.chunkRecords", 4096);
+    // 并行编解码快照的线程数
+    public static final int SNAPSHOT_THREADS = Integer.getInteger("localchat.snapshot.threads",
+            Runtime.getRuntime().availableProcessors());
+    // 启动后是否在后台低优先级线程中解码全部用户的扩展信息，关闭后只在第一次访问时解码
+    public static final boolean SNAPSHOT_BACKGROUND_HYDRATE =
+            !"false".equals(System.getProperty("localchat.snapshot.backgroundHydrate"));
+
+    // ====================== 9. 聊天记录存储 ======================
+    // 单个聊天记录段的大小上限（字节），超过后切换到新段
+    public static final long CHATLOG_SEGMENT_BYTES = Long.getLong("localchat.chatlog.segmentBytes", 8L * 1024 * 1024);
+    // 单个聊天记录段的时间上限（秒），超过后切换到新段
+    public static final long CHATLOG_SEGMENT_SECONDS = Long.getLong("localchat.chatlog.segmentSeconds", 24L * 3600);
+    // 刷盘策略：none（交给操作系统）、batch（每批写完后 fsync）、interval（按固定间隔 fsync）
+    public static final String CHATLOG_FSYNC = System.getProperty("localchat.chatlog.fsync", "interval");
+    // interval 策略的刷盘间隔（毫秒）
+    public static final long CHATLOG_FSYNC_INTERVAL_MILLIS = Long.getLong("localchat.chatlog.fsyncIntervalMillis", 1000L);
+    // 同时打开的聊天记录文件数上限，超过后关闭最久未写的会话
+    public static final int CHATLOG_MAX_OPEN_FILES = Integer.getInteger("localchat.chatlog.maxOpenFiles", 128);
+    // 等待写盘的聊天记录队列容量，队列满时转发线程等待
+    public static final int CHATLOG_QUEUE_CAPACITY = Integer.getInteger("localchat.chatlog.queueCapacity", 65536);
+    // 聊天记录稀疏索引的间隔（条），分页读取时定位后最多顺序跳过这么多行
+    public static final int CHATLOG_INDEX_INTERVAL = Integer.getInteger("localchat.chatlog.indexInterval", 64);
+    // 登录时每个群聊下发的历史消息条数（最新的若干条），0 表示全部下发
+    public static final int CHATLOG_INITIAL_HISTORY = Integer.getInteger("localchat.chatlog.initialHistory", 100);
+    // 客户端翻页请求单页条数的上限
+    public static final int CHATLOG_MAX_PAGE = Integer.getInteger("localchat.chatlog.maxPage", 200);
+    // 同时保持内存映射的已关闭聊天记录段数量上限，0 表示不使用映射
+    public static final int CHATLOG_MAPPED_SEGMENTS = Integer.getInteger("localchat.chatlog.mappedSegments", 256);
+    // 同时保持在内存中的会话搜索索引数量上限，超过后淘汰最久未搜索的会话
+    public static final int CHATLOG_SEARCH_INDEXES = Integer.getInteger("localchat.chatlog.searchIndexes", 32);
+    // 单次搜索返回的命中数上限
+    public static final int CHATLOG_SEARCH_MAX_HITS = Integer.getInteger("localchat.chatlog.searchMaxHits", 100);
+    // 后台整理聊天记录（保留策略与归档）的间隔（秒），0 表示不整理
+    public static final long CHATLOG_COMPACT_INTERVAL_SECONDS = Long.getLong("localchat.chatlog.compactInterval", 3600L);
+    // 聊天记录的最长保留时间（秒），超过的已关闭段被删除，0 表示永久保留
+    public static final long CHATLOG_RETENTION_SECONDS = Long.getLong("localchat.chatlog.retentionSeconds", 0L);
+    // 单个会话聊天记录的最大占用空间（字节），超过后删除最旧的已关闭段，0 表示不限制
+    public static final long CHATLOG_RETENTION_BYTES = Long.getLong("localchat.chatlog.retentionBytes", 0L);
+    // 已关闭段超过多久（秒）未修改后压缩为归档文件，0 表示不归档
+    public static final long CHATLOG_ARCHIVE_AFTER_SECONDS = Long.getLong("localchat.chatlog.archiveAfter", 7L * 24 * 3600);
+}
@@ -1,11 +1,16 @@
 package server;
 
+import server.data.ServerData;
 import server.serveice.*;
 import util.FileUtil;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -21,15 +26,49 @@ public class ServerMainThread extends Thread {
     private static ExecutorService chatThreadPool;
     // 线程池：用于接收客户端消息的线程池
     private static ExecutorService receiveThreadPool;
+    // 线程池：用于向客户端写出消息的线程池
+    private static ExecutorService sendThreadPool;
     // 用于存储每个客户端的消息队列
     private static ConcurrentHashMap<Socket, ArrayBlockingQueue<Wrapper>> msgQueues;
     
+    // 连接准入控制
+    private static AdmissionController admission;
+
+    // NIO 模式的事件循环
+    private static NioEventLoop[] eventLoops;
+    // 虚拟线程模式下的线程计数（虚拟线程执行器本身不提供线程数统计）
+    private static VirtualThreadStats chatThreadStats;
+    private static VirtualThreadStats receiveThreadStats;
+    private static VirtualThreadStats sendThreadStats;
+
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
 
     // 核心：启动服务、监听端口、循环接收客户端连接
     @Override
     public void run() {
-        System.out.println("加载本地数据成功");
+        // 先加载服务器数据（快照和日志重放），完成后再开始监听端口；用户扩展信息在加载完成后由后台线程解码
+        ServerData.getInstance();
+
+        // 初始化消息队列
+        msgQueues = new ConcurrentHashMap<>();
+
+        // 连接数上限按实际建好的线程模型决定：virtual 模式回退到平台线程池时同样受线程池上限约束
+        if (ServerConfig.MODE_NIO.equals(ServerConfig.TRANSPORT_MODE)) {
+            admission = new AdmissionController(false);
+            runNio();
+        } else if (ServerConfig.MODE_VIRTUAL.equals(ServerConfig.TRANSPORT_MODE) && initVirtualThreadPools()) {
+            admission = new AdmissionController(false);
+            runClassic();
+        } else {
+            initPlatformThreadPools();
+            admission = new AdmissionController(true);
+            runClassic();
+        }
+    }
+
+    // 初始化平台线程池：连接数受最大线程数限制
+    private void initPlatformThreadPools() {
         // 初始化推送信息线程池
         chatThreadPool = new ThreadPoolExecutor(
                 10, // 核心线程数
@@ -45,13 +84,42 @@ public class ServerMainThread extends Thread {
                 new SynchronousQueue<>(), // 直接提交队列
                 new ThreadPoolExecutor.AbortPolicy() // 拒绝策略
         );
-
-        // 初始化消息队列
-        msgQueues = new ConcurrentHashMap<>();
+        sendThreadPool = new ThreadPoolExecutor(
+                10, // 核心线程数
+                200, // 最大线程数
+                60L, TimeUnit.SECONDS, // 空闲线程存活时间
+                new SynchronousQueue<>(), // 直接提交队列
+                new ThreadPoolExecutor.AbortPolicy() // 拒绝策略
+        );
 
         // 初始化信息线程池成功
         System.out.println("初始化信息线程池成功");
+    }
+
+    /**
+     * 初始化虚拟线程执行器：每个任务一个虚拟线程，没有线程数上限。
+     * 项目以 Java 11 为编译目标，因此通过反射调用 JDK 21 的 Executors.newVirtualThreadPerTaskExecutor()，
+     * 运行在不支持虚拟线程的 JDK 上时返回 false，由调用方回退到平台线程池。
+     */
+    private boolean initVirtualThreadPools() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            chatThreadPool = (ExecutorService) factory.invoke(null);
+            receiveThreadPool = (ExecutorService) factory.invoke(null);
+            sendThreadPool = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("当前 JDK 不支持虚拟线程，回退到 classic 模式");
+            return false;
+        }
+        chatThreadStats = new VirtualThreadStats();
+        receiveThreadStats = new VirtualThreadStats();
+        sendThreadStats = new VirtualThreadStats();
+        System.out.println("初始化虚拟线程执行器成功");
+        return true;
+    }
 
+    // 阻塞模式：每个连接一个接收线程 + 一个处理线程 + 一个写出线程
+    private void runClassic() {
         try {
             // 尝试绑定端口
             serverSocket = new ServerSocket(Global.SERVER_PORT);
@@ -62,19 +130,106 @@ public class ServerMainThread extends Thread {
                     // 扫描端口，接收链接请求，如果有链接请求，则尝试链接
                     Socket clientSocket = serverSocket.accept();
                     System.out.println("有新的用户端连接: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+                    if (!admission.tryAdmit(clientSocket)) {
+                        continue;
+                    }
+                    startClassicSession(clientSocket);
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    System.err.println("处理客户端连接时发生错误: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("服务器启动失败: " + e.getMessage());
+            e.printStackTrace();
+            // 抛出运行时异常会导致线程退出
+            throw new RuntimeException("服务器启动失败", e);
+        }
+    }
 
-                    // 创建线程，处理客户端请求
-                    ArrayBlockingQueue<Wrapper> threadQueue = new ArrayBlockingQueue<>(40);
-                    msgQueues.put(clientSocket, threadQueue);
+    // 为已接纳的连接创建消息队列和三个线程，任何一步失败都释放已创建的资源
+    private void startClassicSession(Socket clientSocket) {
+        ArrayBlockingQueue<Wrapper> threadQueue = new ArrayBlockingQueue<>(ServerConfig.INBOUND_QUEUE_CAPACITY);
+        msgQueues.put(clientSocket, threadQueue);
 
-                    ClientChatThread clientChatThread = new ClientChatThread(clientSocket, threadQueue);
-                    chatThreadPool.execute(clientChatThread);
+        ClientChatThread clientChatThread;
+        ClientReceiveThread clientReceiveThread;
+        try {
+            clientChatThread = new ClientChatThread(clientSocket, threadQueue);
+            clientReceiveThread = new ClientReceiveThread(clientSocket, threadQueue, clientChatThread);
+        } catch (IOException e) {
+            System.err.println("创建会话失败: " + e.getMessage());
+            dropMsgQueue(clientSocket);
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+
+        try {
+            // 创建线程，处理客户端请求
+            chatThreadPool.execute(VirtualThreadStats.track(chatThreadStats, clientChatThread));
+
+            ClientSendThread clientSendThread = new ClientSendThread(clientChatThread);
+            sendThreadPool.execute(VirtualThreadStats.track(sendThreadStats, clientSendThread));
+
+            receiveThreadPool.execute(VirtualThreadStats.track(receiveThreadStats, clientReceiveThread));
+        } catch (RejectedExecutionException e) {
+            // 线程池已满：关闭会话会结束已经提交的线程，并释放消息队列和连接名额
+            System.err.println("线程池已满，关闭连接: " + clientSocket.getPort());
+            clientChatThread.closeClient();
+            return;
+        }
+        HeartbeatMonitor.watch(clientChatThread);
+        System.out.println("创建处理线程成功");
+    }
+
+    // NIO 模式：少量事件循环线程复用全部连接，业务处理交给固定大小的工作线程池
+    private void runNio() {
+        chatThreadPool = Executors.newFixedThreadPool(ServerConfig.NIO_WORKER_THREADS, r -> {
+            Thread t = new Thread(r, "nio-worker");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            eventLoops = new NioEventLoop[ServerConfig.NIO_EVENT_LOOPS];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop("nio-loop-" + i, chatThreadPool);
+                eventLoops[i].start();
+            }
+            System.out.println("初始化事件循环成功，事件循环数: " + eventLoops.length
+                    + "，工作线程数: " + ServerConfig.NIO_WORKER_THREADS);
+
+            // 尝试绑定端口
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(Global.SERVER_PORT));
+            System.out.println("服务器启动成功(NIO)，监听端口: " + Global.SERVER_PORT);
 
-                    ClientReceiveThread clientReceiveThread = new ClientReceiveThread(clientSocket, threadQueue);
-                    receiveThreadPool.execute(clientReceiveThread);
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    Socket clientSocket = channel.socket();
+                    System.out.println("有新的用户端连接: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+                    if (!admission.tryAdmit(clientSocket)) {
+                        continue;
+                    }
 
-                    System.out.println("创建处理线程成功");
+                    ArrayBlockingQueue<Wrapper> threadQueue = new ArrayBlockingQueue<>(ServerConfig.INBOUND_QUEUE_CAPACITY);
+                    msgQueues.put(clientSocket, threadQueue);
+
+                    // 轮询分配到各个事件循环
+                    eventLoops[next].register(channel, threadQueue);
+                    next = (next + 1) % eventLoops.length;
                 } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
                     System.err.println("处理客户端连接时发生错误: " + e.getMessage());
                     e.printStackTrace();
                 }
@@ -84,25 +239,29 @@ public class ServerMainThread extends Thread {
             e.printStackTrace();
             // 抛出运行时异常会导致线程退出
             throw new RuntimeException("服务器启动失败", e);
+        } finally {
+            if (eventLoops != null) {
+                for (NioEventLoop loop : eventLoops) {
+                    if (loop != null) {
+                        loop.shutdown();
+                    }
+                }
+            }
         }
     }
 
     // 关闭服务器
     public void shutdown() {
         FileUtil.saveServerData();
-        // 向所有用户发送服务器关闭信息。
-        if (msgQueues != null) {
-            Wrapper exitMsg = new Wrapper(Global.OPT_EXIT);
-            for (ArrayBlockingQueue<Wrapper> queue : msgQueues.values()) {
-                try {
-                    queue.put(exitMsg);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        ServerData.getInstance().getChatStore().close();
+        // 向所有在线用户发送服务器关闭信息：走出站队列，只入队不阻塞，由各会话的写出者发出
+        ClientSession.broadcastToOnline(new Wrapper(Global.OPT_EXIT));
 
         running = false;
+        if (admission != null) {
+            admission.shutdown();
+        }
+        HeartbeatMonitor.shutdown();
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 serverSocket.close();
@@ -110,6 +269,13 @@ public class ServerMainThread extends Thread {
                 e.printStackTrace();
             }
         }
+        if (serverChannel != null && serverChannel.isOpen()) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // 检查服务器是否运行
@@ -153,6 +319,13 @@ public class ServerMainThread extends Thread {
             status.put("queuedSubmissionCount", fjp.getQueuedSubmissionCount());
             status.put("stealCount", fjp.getStealCount());
         }
+        // 虚拟线程执行器
+        else if (chatThreadStats != null) {
+            status.put("type", "virtual");
+            chatThreadStats.fillStatus(status);
+            status.put("isShutdown", chatThreadPool.isShutdown());
+            status.put("isTerminated", chatThreadPool.isTerminated());
+        }
         // 其他类型的 ExecutorService
         else {
             // 使用反射尝试获取信息
@@ -167,6 +340,19 @@ public class ServerMainThread extends Thread {
     public static Map<String, Object> getReceiveThreadPoolStatus() {
         Map<String, Object> status = new HashMap<>();
 
+        // NIO 模式下没有接收线程池，接收由事件循环完成
+        if (eventLoops != null) {
+            status.put("type", "nio");
+            status.put("eventLoopCount", eventLoops.length);
+            int channelCount = 0;
+            for (int i = 0; i < eventLoops.length; i++) {
+                status.put("loop-" + i + ".channels", eventLoops[i].getChannelCount());
+                channelCount += eventLoops[i].getChannelCount();
+            }
+            status.put("channelCount", channelCount);
+            return status;
+        }
+
         if (receiveThreadPool == null) {
             status.put("error", "线程池未初始化");
             return status;
@@ -199,6 +385,13 @@ public class ServerMainThread extends Thread {
             status.put("queuedSubmissionCount", fjp.getQueuedSubmissionCount());
             status.put("stealCount", fjp.getStealCount());
         }
+        // 虚拟线程执行器
+        else if (receiveThreadStats != null) {
+            status.put("type", "virtual");
+            receiveThreadStats.fillStatus(status);
+            status.put("isShutdown", receiveThreadPool.isShutdown());
+            status.put("isTerminated", receiveThreadPool.isTerminated());
+        }
         // 其他类型的 ExecutorService
         else {
             // 使用反射尝试获取信息
@@ -209,6 +402,16 @@ public class ServerMainThread extends Thread {
         return status;
     }
 
+    // 连接准入统计
+    public static Map<String, Object> getAdmissionStatus() {
+        if (admission == null) {
+            Map<String, Object> status = new HashMap<>();
+            status.put("error", "准入控制未初始化");
+            return status;
+        }
+        return admission.getStatus();
+    }
+
     // 检查阻塞队列状态
     public static List<String> getBlockingQueueStatus() {
         List<String> queueStatus = new ArrayList<>();
@@ -221,12 +424,15 @@ public class ServerMainThread extends Thread {
         msgQueues.forEach(
                 (key, value) -> queueStatus.add(key + ": " + value.size()));
 
+        // 各在线用户的入站拒绝/丢弃计数与出站队列深度
+        queueStatus.addAll(ClientSession.getSessionQueueStatus());
+
         return queueStatus;
     }
 
     /**
-     * 用于删除不需要的阻塞队列
-     * 这里只能ClientChatThread调用
+     * 用于删除不需要的阻塞队列，同时释放连接名额
+     * 这里只能在会话关闭时调用
      *
      * @param socket 对应的客户端的socket
      */
@@ -235,8 +441,9 @@ public class ServerMainThread extends Thread {
             System.out.println("意外：主线程为初始化的情况下调用了dropMsgQueue");
             return;
         }
-        if (msgQueues.containsKey(socket)) {
-            msgQueues.remove(socket);
+        // 消息队列与连接名额一一对应，删除队列时一并释放名额
+        if (msgQueues.remove(socket) != null) {
+            admission.release();
         } else {
             System.out.println("意外：尝试删除不存在的阻塞队列");
         }
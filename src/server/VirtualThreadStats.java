@@ -0,0 +1,48 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 虚拟线程计数器
+ * 虚拟线程执行器不像 ThreadPoolExecutor 那样提供 getPoolSize() 等统计接口，
+ * 因此在提交任务时包装一层，自行统计当前存活、累计创建和已结束的虚拟线程数。
+ */
+class VirtualThreadStats {
+    // 当前正在运行的虚拟线程数
+    private final AtomicInteger activeCount = new AtomicInteger();
+    // 历史最大并发数
+    private final AtomicInteger largestCount = new AtomicInteger();
+    // 累计创建的虚拟线程数
+    private final AtomicLong startedCount = new AtomicLong();
+    // 已结束的虚拟线程数
+    private final AtomicLong completedCount = new AtomicLong();
+
+    /**
+     * 包装任务以统计线程数，stats 为 null 时（非虚拟线程模式）原样返回
+     */
+    static Runnable track(VirtualThreadStats stats, Runnable task) {
+        if (stats == null) {
+            return task;
+        }
+        return () -> {
+            int active = stats.activeCount.incrementAndGet();
+            stats.startedCount.incrementAndGet();
+            stats.largestCount.accumulateAndGet(active, Math::max);
+            try {
+                task.run();
+            } finally {
+                stats.activeCount.decrementAndGet();
+                stats.completedCount.incrementAndGet();
+            }
+        };
+    }
+
+    void fillStatus(Map<String, Object> status) {
+        status.put("activeCount", activeCount.get());
+        status.put("largestPoolSize", largestCount.get());
+        status.put("taskCount", startedCount.get());
+        status.put("completedTaskCount", completedCount.get());
+    }
+}
@@ -0,0 +1,208 @@
+package server.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 聊天记录冷归档文件
+ * <p>
+ * 已关闭且足够旧的段压缩成归档文件（.arc），替换原来的 .log 和 .idx。内容按块压缩，每块是若干条完整的记录，
+ * 文件末尾有一张块表，读取时二分查找块表，只解压与请求范围相交的块：
+ * <pre>
+ * 块... | 块表：每块 long 第一条记录的序号 + long 块在文件中的位置 | int 块数 | int MAGIC
+ * </pre>
+ * 块内容是 Deflate 压缩后的原始行（每行以换行结尾），块的压缩长度由下一块的位置（或块表位置）得出。
+ */
+final class ChatArchive {
+    static final String ARCHIVE_SUFFIX = ".arc";
+    private static final int MAGIC = 0x4C434152; // "LCAR"
+    private static final int TABLE_ENTRY_SIZE = 16;
+    private static final int TRAILER_SIZE = 8;
+    // 每块原始内容的目标大小，块越大压缩率越高，读取单条记录需要解压的数据也越多
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private ChatArchive() {
+    }
+
+    /**
+     * 把一个已关闭段的数据压缩写入归档文件（末尾不完整的半行丢弃）并刷盘
+     *
+     * @return 归档中的记录数
+     */
+    static long write(byte[] data, long start, Path archive) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        long[] table = new long[16];
+        int blocks = 0;
+        long seq = start;
+        long position = 0;
+        byte[] buffer = new byte[BLOCK_BYTES];
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int lastNewline = data.length - 1;
+            while (lastNewline >= 0 && data[lastNewline] != '\n') {
+                lastNewline--;
+            }
+            int blockStart = 0;
+            int lines = 0;
+            for (int i = 0; i <= lastNewline; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                lines++;
+                if (i + 1 - blockStart < BLOCK_BYTES && i != lastNewline) {
+                    continue;
+                }
+                // 一块凑够目标大小（或到了最后一条完整记录）：压缩写出
+                if (blocks * 2 + 2 > table.length) {
+                    table = Arrays.copyOf(table, table.length * 2);
+                }
+                table[blocks * 2] = seq;
+                table[blocks * 2 + 1] = position;
+                blocks++;
+                deflater.reset();
+                deflater.setInput(data, blockStart, i + 1 - blockStart);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    position += writeFully(channel, ByteBuffer.wrap(buffer, 0, n));
+                }
+                seq += lines;
+                lines = 0;
+                blockStart = i + 1;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(blocks * TABLE_ENTRY_SIZE + TRAILER_SIZE);
+            for (int b = 0; b < blocks; b++) {
+                trailer.putLong(table[b * 2]);
+                trailer.putLong(table[b * 2 + 1]);
+            }
+            trailer.putInt(blocks);
+            trailer.putInt(MAGIC);
+            trailer.flip();
+            writeFully(channel, trailer);
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+        return seq - start;
+    }
+
+    /**
+     * 读取归档中序号在 [fromSeq, toSeq) 内的记录
+     *
+     * @return 读到的下一个序号
+     */
+    static long read(Path archive, long fromSeq, long toSeq, List<String> out) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw new IOException("归档文件损坏: " + archive);
+            }
+            ByteBuffer trailer = readAt(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            int blocks = trailer.getInt();
+            if (trailer.getInt() != MAGIC || blocks < 0 || (long) blocks * TABLE_ENTRY_SIZE > size - TRAILER_SIZE) {
+                throw new IOException("归档文件损坏: " + archive);
+            }
+            long tableOffset = size - TRAILER_SIZE - (long) blocks * TABLE_ENTRY_SIZE;
+            ByteBuffer table = readAt(channel, tableOffset, blocks * TABLE_ENTRY_SIZE);
+
+            // 第一条记录序号不超过 fromSeq 的最后一块
+            int low = 0;
+            int high = blocks - 1;
+            int first = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (table.getLong(mid * TABLE_ENTRY_SIZE) <= fromSeq) {
+                    first = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            Inflater inflater = new Inflater();
+            try {
+                long seq = fromSeq;
+                for (int b = first; b < blocks; b++) {
+                    long blockSeq = table.getLong(b * TABLE_ENTRY_SIZE);
+                    if (blockSeq >= toSeq) {
+                        break;
+                    }
+                    long position = table.getLong(b * TABLE_ENTRY_SIZE + 8);
+                    long end = b + 1 < blocks ? table.getLong((b + 1) * TABLE_ENTRY_SIZE + 8) : tableOffset;
+                    byte[] raw = inflate(inflater, readAt(channel, position, (int) (end - position)));
+                    seq = Math.max(seq, readLines(raw, blockSeq, fromSeq, toSeq, out));
+                }
+                return seq;
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static long readLines(byte[] raw, long seq, long fromSeq, long toSeq, List<String> out) {
+        int lineStart = 0;
+        for (int i = 0; i < raw.length && seq < toSeq; i++) {
+            if (raw[i] != '\n') {
+                continue;
+            }
+            if (seq >= fromSeq) {
+                int end = i > lineStart && raw[i - 1] == '\r' ? i - 1 : i;
+                out.add(new String(raw, lineStart, end - lineStart, StandardCharsets.UTF_8));
+            }
+            seq++;
+            lineStart = i + 1;
+        }
+        return seq;
+    }
+
+    private static byte[] inflate(Inflater inflater, ByteBuffer compressed) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed.array(), 0, compressed.limit());
+        byte[] raw = new byte[BLOCK_BYTES * 2];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == raw.length) {
+                    raw = Arrays.copyOf(raw, raw.length * 2);
+                }
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("归档块不完整");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("归档块损坏", e);
+        }
+        return Arrays.copyOf(raw, length);
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("归档文件长度不足");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int n = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,1039 @@
+package server.data;
+
+import server.ServerConfig;
+import util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 聊天记录的文件存储（ChatStore 的文件实现）
+ * <p>
+ * 每个会话（群聊或私聊）一个目录，目录下按段存放文本记录，每行一条消息，
+ * 段文件名是段内第一条消息的序号（会话内从 0 开始连续递增）。当前段超过大小上限或存在时间上限后切换到新段。
+ * 旧版本的单文件记录（&lt;id&gt;.txt）在第一次访问该会话时原样迁移为第 0 段。
+ * 每个段有一个稀疏索引文件（.idx），每隔固定条数记录一次“序号 -&gt; 字节位置”，
+ * 分页读取历史时二分查找索引直接定位，不需要从头读取整个会话。已经切换掉的旧段不再变化，
+ * 通过内存映射读取（见 MappedSegmentCache），只有仍在追加的最后一段使用流式读取。
+ * <p>
+ * 转发线程调用 append 只把记录放入队列就返回；写盘线程批量取出记录，按会话合并后写入长期打开的文件，
+ * 再按 fsync 策略刷盘（none：交给操作系统；batch：每批写完后刷盘；interval：按固定间隔刷盘）。
+ * 同时打开的文件数受 LRU 上限约束，最久未写的会话会被关闭文件句柄，下次写入时再打开。
+ * <p>
+ * 后台整理（compact）按保留策略（最长保留时间、最大占用空间，可按会话单独配置）删除最旧的已关闭段，
+ * 并把足够旧的已关闭段压缩为归档文件（见 ChatArchive），读取时按块解压，对调用方透明。
+ * 整理只在切换文件的瞬间持有段写锁，读取持有段读锁，不会读到正在被替换的段。
+ * <p>
+ * 搜索使用每个会话的倒排索引（见 ChatSearchIndex），第一次搜索某个会话时加载，之后写盘线程每写入一批记录就增量更新；
+ * 已加载的索引数同样受 LRU 上限约束。
+ */
+public final class ChatLogStore implements ChatStore {
+    public static final String FSYNC_NONE = "none";
+    public static final String FSYNC_BATCH = "batch";
+    public static final String FSYNC_INTERVAL = "interval";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    // 索引项：long 序号 + long 字节位置
+    private static final int INDEX_ENTRY_SIZE = 16;
+    // 每隔多少条记录建立一个索引项，定位后最多顺序跳过这么多行
+    private static final int INDEX_INTERVAL = Math.max(1, ServerConfig.CHATLOG_INDEX_INTERVAL);
+    // 写盘线程一次最多取出的记录数
+    private static final int MAX_BATCH = 1024;
+
+    private static volatile ChatLogStore instance = null;
+
+    // 获取唯一的聊天记录存储（线程安全的懒加载）
+    public static ChatLogStore getInstance() {
+        if (instance == null) {
+            synchronized (ChatLogStore.class) {
+                if (instance == null) {
+                    instance = new ChatLogStore();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 一条待写入的消息
+     */
+    private static final class ChatRecord {
+        final String conversationId;
+        final String content;
+
+        ChatRecord(String conversationId, String content) {
+            this.conversationId = conversationId;
+            this.content = content;
+        }
+    }
+
+    /**
+     * 一个会话的存储状态。目录在创建时确定（是否群聊只在这里判断一次），
+     * 文件句柄和段信息只由写盘线程访问。
+     */
+    private static final class Conversation {
+        final String id;
+        final Path dir;
+        // 以下字段仅写盘线程访问
+        FileChannel channel;
+        long segmentStart;
+        long segmentBytes;
+        long segmentCreatedMillis;
+        long nextSeq;
+        boolean initialized;
+        boolean dirty;
+        // 本批中属于该会话的记录数，仅写盘线程访问
+        int batchRecords;
+        // 已加载的搜索索引，未加载或已被淘汰时为 null
+        volatile ChatSearchIndex searchIndex;
+        // 该会话已放入队列、已写入文件（或写入失败放弃）的记录数，读取前只等待本会话的记录写完
+        final AtomicLong enqueued = new AtomicLong();
+        // 由 writtenLock 保护（不用 this：加载搜索索引时会长时间持有会话的锁，不能挡住写盘线程）
+        long written;
+        final Object writtenLock = new Object();
+
+        Conversation(String id, Path dir) {
+            this.id = id;
+            this.dir = dir;
+        }
+    }
+
+    // 只用于唤醒写盘线程的空记录
+    private static final ChatRecord WAKE_UP = new ChatRecord(null, null);
+
+    private final long segmentMaxBytes = ServerConfig.CHATLOG_SEGMENT_BYTES;
+    private final long segmentMaxMillis = TimeUnit.SECONDS.toMillis(ServerConfig.CHATLOG_SEGMENT_SECONDS);
+    private final String fsyncPolicy = ServerConfig.CHATLOG_FSYNC;
+    private final long fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.CHATLOG_FSYNC_INTERVAL_MILLIS);
+    private final int maxOpenFiles = Math.max(1, ServerConfig.CHATLOG_MAX_OPEN_FILES);
+
+    private final BlockingQueue<ChatRecord> queue = new ArrayBlockingQueue<>(ServerConfig.CHATLOG_QUEUE_CAPACITY);
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+    // 打开了文件句柄的会话，按最近写入排序，仅写盘线程访问
+    private final LinkedHashMap<Conversation, Boolean> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+    // 已加载搜索索引的会话，按最近搜索排序，由自身保护
+    private final LinkedHashMap<String, Conversation> searchIndexes = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxSearchIndexes = Math.max(1, ServerConfig.CHATLOG_SEARCH_INDEXES);
+    // 读取持有读锁，整理切换段文件时持有写锁
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    // 已关闭段的内存映射缓存，配置为 0 时不使用映射
+    private final MappedSegmentCache mappedSegments = ServerConfig.CHATLOG_MAPPED_SEGMENTS > 0
+            ? new MappedSegmentCache(ServerConfig.CHATLOG_MAPPED_SEGMENTS) : null;
+
+    // 已写入文件的记录总数，仅用于统计
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    // 统计，仅写盘线程更新
+    private volatile long batchCount;
+    private volatile long fsyncCount;
+    private volatile long evictCount;
+    private volatile long rollCount;
+    private volatile int openFileCount;
+    // 整理统计，仅整理线程更新
+    private volatile long compactCount;
+    private volatile long archivedSegments;
+    private volatile long deletedSegments;
+    private volatile long deferredSegments;
+    private volatile long reclaimedBytes;
+
+    private ChatLogStore() {
+        writer = new Thread(this::writeLoop, "chat-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 追加一条聊天记录。只放入写盘队列，队列满时阻塞等待（把压力传回转发线程）。
+     */
+    @Override
+    public void append(String conversationId, String content) {
+        if (conversationId == null || content == null) {
+            return;
+        }
+        Conversation conversation = conversation(conversationId);
+        conversation.enqueued.incrementAndGet();
+        try {
+            queue.put(new ChatRecord(conversationId, content));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("聊天记录写入被中断: " + conversationId);
+            markWritten(conversation, 1);
+        }
+    }
+
+    /**
+     * 读取某个会话的全部聊天记录。读取前等待已提交的记录写入文件。
+     *
+     * @return 历史消息列表，无内容/文件不存在返回空List，绝不返回null
+     */
+    public List<String> readAll(String conversationId) {
+        return readSince(conversationId, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 读取序号小于 beforeSeq 的最后 limit 条记录（beforeSeq 为 Long.MAX_VALUE 时即最新的 limit 条）。
+     * 通过稀疏索引直接定位，读取代价只与页大小有关，与记录总长度无关。
+     *
+     * @return 按序号升序的消息列表，绝不返回null
+     */
+    @Override
+    public List<String> readBefore(String conversationId, long beforeSeq, int limit) {
+        Conversation conversation = conversation(conversationId);
+        awaitWritten(conversation);
+        segmentLock.readLock().lock();
+        try {
+            List<Path> segments = listSegments(conversation.dir);
+            long end = Math.min(beforeSeq, messageCount(segments));
+            return readRange(segments, Math.max(0, end - Math.max(0, limit)), end);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 读取序号从 sinceSeq 开始的至多 limit 条记录
+     *
+     * @return 按序号升序的消息列表，绝不返回null
+     */
+    public List<String> readSince(String conversationId, long sinceSeq, int limit) {
+        Conversation conversation = conversation(conversationId);
+        awaitWritten(conversation);
+        segmentLock.readLock().lock();
+        try {
+            long from = Math.max(0, sinceSeq);
+            long to = limit >= Long.MAX_VALUE - from ? Long.MAX_VALUE : from + Math.max(0, limit);
+            return readRange(listSegments(conversation.dir), from, to);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 会话中的记录总数，也就是下一条记录的序号
+     */
+    @Override
+    public long messageCount(String conversationId) {
+        Conversation conversation = conversation(conversationId);
+        awaitWritten(conversation);
+        segmentLock.readLock().lock();
+        try {
+            return messageCount(listSegments(conversation.dir));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 会话中现存最早一条记录的序号，最旧的段被保留策略删除后大于 0
+     */
+    @Override
+    public long firstSeq(String conversationId) {
+        segmentLock.readLock().lock();
+        try {
+            List<Path> segments = listSegments(conversation(conversationId).dir);
+            return segments.isEmpty() ? 0 : segmentStart(segments.get(0));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在会话的聊天记录中搜索，返回相关度最高的至多 limit 条（同分时越新越靠前）
+     *
+     * @return 按相关度从高到低排列的命中，绝不返回null
+     */
+    @Override
+    public List<SearchHit> search(String conversationId, String query, int limit) {
+        Conversation conversation = conversation(conversationId);
+        awaitWritten(conversation);
+        List<SearchHit> result = new ArrayList<>();
+        segmentLock.readLock().lock();
+        try {
+            ChatSearchIndex index = searchIndex(conversation);
+            List<Path> segments;
+            synchronized (index) {
+                // 补上写盘线程没有赶上增量更新的记录（索引刚加载或被中途跳过时）
+                segments = listSegments(conversation.dir);
+                long count = messageCount(segments);
+                for (int i = 0; i < segments.size() && index.nextSeq() < count; i++) {
+                    long start = segmentStart(segments.get(i));
+                    long end = i + 1 < segments.size() ? segmentStart(segments.get(i + 1)) : count;
+                    long from = Math.max(index.nextSeq(), start);
+                    if (from < end) {
+                        index.append(start, from, readRange(segments, from, end));
+                    }
+                }
+            }
+            for (ChatSearchIndex.Hit hit : index.search(query, limit)) {
+                List<String> lines = readRange(segments, hit.seq, hit.seq + 1);
+                if (!lines.isEmpty()) {
+                    result.add(new SearchHit(hit.seq, hit.score, lines.get(0)));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * 写出队列中的全部记录并刷盘，服务器关闭时调用
+     */
+    @Override
+    public void close() {
+        running = false;
+        // 放入一个空记录唤醒写盘线程（不使用中断，避免中断正在进行的文件写入导致通道被关闭）
+        queue.offer(WAKE_UP);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        return "queued=" + queue.size() + ", written=" + written.get()
+                + ", batches=" + batchCount + ", fsyncs=" + fsyncCount
+                + ", conversations=" + conversations.size() + ", openFiles=" + openFileCount
+                + ", evictions=" + evictCount + ", segmentRolls=" + rollCount
+                + ", fsyncPolicy=" + fsyncPolicy
+                + (mappedSegments == null ? "" : ", " + mappedSegments.getStatus())
+                + ", searchIndexes=" + searchIndexCount()
+                + ", compactions=" + compactCount + ", archivedSegments=" + archivedSegments
+                + ", deletedSegments=" + deletedSegments + ", deferredSegments=" + deferredSegments
+                + ", reclaimedBytes=" + reclaimedBytes;
+    }
+
+    // ====================== 整理：保留策略与归档 ======================
+
+    /**
+     * 按保留策略整理所有会话的已关闭段，由服务端的定时任务调用，正在追加的最后一段不会被处理：
+     * 先从最旧的段开始删除超过最长保留时间或使会话超过最大占用空间的段，再把足够旧的段压缩为归档文件。
+     * 会话单独的保留策略写在 data/chat_retention.properties 中，每次整理时重新读取。
+     */
+    @Override
+    public void compact() {
+        Properties overrides = FileUtil.loadChatRetentionOverrides();
+        for (boolean isGroup : new boolean[]{true, false}) {
+            Path root = FileUtil.getChatLogRoot(isGroup);
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path dir : dirs) {
+                    String id = dir.getFileName().toString();
+                    long[] policy = retentionPolicy(overrides.getProperty(id));
+                    try {
+                        compact(id, dir, policy[0], policy[1]);
+                    } catch (IOException e) {
+                        System.err.println("整理聊天记录失败 (" + id + "): " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("列出聊天记录目录失败: " + e.getMessage());
+            }
+        }
+        compactCount++;
+    }
+
+    // 会话的保留策略 {最长保留毫秒数, 最大字节数}，格式为“最长保留秒数,最大字节数”，0 或缺省表示使用全局配置
+    private static long[] retentionPolicy(String override) {
+        long seconds = ServerConfig.CHATLOG_RETENTION_SECONDS;
+        long bytes = ServerConfig.CHATLOG_RETENTION_BYTES;
+        if (override != null) {
+            String[] parts = override.split(",");
+            try {
+                if (parts.length > 0 && !parts[0].trim().isEmpty()) {
+                    seconds = Long.parseLong(parts[0].trim());
+                }
+                if (parts.length > 1 && !parts[1].trim().isEmpty()) {
+                    bytes = Long.parseLong(parts[1].trim());
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("无效的聊天记录保留策略: " + override);
+            }
+        }
+        return new long[]{TimeUnit.SECONDS.toMillis(Math.max(0, seconds)), Math.max(0, bytes)};
+    }
+
+    private void compact(String id, Path dir, long maxAgeMillis, long maxBytes) throws IOException {
+        List<Path> segments = listSegments(dir);
+        if (segments.size() < 2) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (Path segment : segments) {
+            totalBytes += diskBytes(segment);
+        }
+
+        // 1. 保留策略：段按时间先后排列，从最旧的开始删，直到剩下的都满足策略
+        int first = 0;
+        while (first + 1 < segments.size()) {
+            Path segment = segments.get(first);
+            boolean expired = maxAgeMillis > 0 && now - Files.getLastModifiedTime(segment).toMillis() > maxAgeMillis;
+            boolean oversize = maxBytes > 0 && totalBytes > maxBytes;
+            if (!expired && !oversize) {
+                break;
+            }
+            long size = diskBytes(segment);
+            retireMapping(segment);
+            segmentLock.writeLock().lock();
+            try {
+                if (!deleteSegmentFile(segment)) {
+                    // 映射还没有释放，更新的段也先不删，保持按时间先后删除
+                    break;
+                }
+                Files.deleteIfExists(indexPath(segment));
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            Files.deleteIfExists(dir.resolve(baseName(segment) + ChatSearchIndex.INDEX_SUFFIX));
+            totalBytes -= size;
+            reclaimedBytes += size;
+            deletedSegments++;
+            first++;
+        }
+        if (first > 0) {
+            // 已加载的搜索索引还包含被删除的段，下次搜索时重新加载
+            dropSearchIndex(id);
+        }
+
+        // 2. 归档：足够旧的已关闭段压缩为 .arc，替换 .log 和 .idx
+        long archiveAfterMillis = TimeUnit.SECONDS.toMillis(ServerConfig.CHATLOG_ARCHIVE_AFTER_SECONDS);
+        if (archiveAfterMillis <= 0) {
+            return;
+        }
+        for (int i = first; i + 1 < segments.size(); i++) {
+            Path segment = segments.get(i);
+            FileTime modified = Files.getLastModifiedTime(segment);
+            if (!segment.toString().endsWith(SEGMENT_SUFFIX) || now - modified.toMillis() <= archiveAfterMillis) {
+                continue;
+            }
+            retireMapping(segment);
+            byte[] data = Files.readAllBytes(segment);
+            Path archive = dir.resolve(baseName(segment) + ChatArchive.ARCHIVE_SUFFIX);
+            Path tmp = dir.resolve(baseName(segment) + ChatArchive.ARCHIVE_SUFFIX + ".tmp");
+            // 压缩在锁外进行，只在替换文件时持有写锁
+            ChatArchive.write(data, segmentStart(segment), tmp);
+            segmentLock.writeLock().lock();
+            try {
+                Files.move(tmp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (!deleteSegmentFile(segment)) {
+                    // 映射还没有释放，撤销这次归档，不留下同时存在的 .log 和 .arc
+                    Files.delete(archive);
+                    continue;
+                }
+                // 归档保留原段的修改时间，保留策略按它计算
+                Files.setLastModifiedTime(archive, modified);
+                Files.deleteIfExists(indexPath(segment));
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            reclaimedBytes += data.length - Files.size(archive);
+            archivedSegments++;
+        }
+    }
+
+    // 段占用的磁盘空间：数据（或归档）、稀疏索引和搜索索引
+    private static long diskBytes(Path segment) throws IOException {
+        long bytes = Files.size(segment);
+        for (Path file : new Path[]{indexPath(segment),
+                segment.resolveSibling(baseName(segment) + ChatSearchIndex.INDEX_SUFFIX)}) {
+            if (Files.exists(file)) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+
+    // 段即将被删除或归档，不再为它建立内存映射
+    private void retireMapping(Path segment) {
+        if (mappedSegments != null) {
+            mappedSegments.retire(segment);
+        }
+    }
+
+    /**
+     * 在写锁内删除已关闭段的数据文件。Windows 上仍被内存映射的文件不能删除，而映射只能等 GC 回收，
+     * 这种情况下返回 false，由之后的整理重试；其他平台上删除映射中的文件总能成功
+     */
+    private boolean deleteSegmentFile(Path segment) throws IOException {
+        try {
+            Files.delete(segment);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (FileSystemException e) {
+            if (mappedSegments == null || !mappedSegments.wasMapped(segment)) {
+                throw e;
+            }
+            deferredSegments++;
+            return false;
+        }
+        if (mappedSegments != null) {
+            mappedSegments.forget(segment);
+        }
+        return true;
+    }
+
+    private void dropSearchIndex(String id) {
+        synchronized (searchIndexes) {
+            Conversation conversation = searchIndexes.remove(id);
+            if (conversation != null) {
+                conversation.searchIndex = null;
+            }
+        }
+    }
+
+    // ====================== 写盘线程 ======================
+
+    private void writeLoop() {
+        List<ChatRecord> batch = new ArrayList<>(MAX_BATCH);
+        // 本批写入的会话及其数据，保持首次出现的顺序
+        Map<Conversation, StringBuilder> chunks = new LinkedHashMap<>();
+        long nextSyncNanos = System.nanoTime() + fsyncIntervalNanos;
+        while (running || !queue.isEmpty()) {
+            try {
+                ChatRecord first = queue.poll(waitMillis(nextSyncNanos), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (!batch.isEmpty()) {
+                for (ChatRecord record : batch) {
+                    if (record == WAKE_UP) {
+                        continue;
+                    }
+                    Conversation conversation = conversation(record.conversationId);
+                    conversation.batchRecords++;
+                    chunks.computeIfAbsent(conversation, c -> new StringBuilder(256))
+                            .append(record.content).append('\n');
+                }
+                for (Map.Entry<Conversation, StringBuilder> entry : chunks.entrySet()) {
+                    write(entry.getKey(), entry.getValue());
+                }
+                if (FSYNC_BATCH.equals(fsyncPolicy)) {
+                    syncDirty();
+                }
+                batchCount++;
+                // 写入失败的记录也计入，等待中的读取不会一直阻塞
+                for (Conversation conversation : chunks.keySet()) {
+                    markWritten(conversation, conversation.batchRecords);
+                    conversation.batchRecords = 0;
+                }
+                batch.clear();
+                chunks.clear();
+            }
+
+            if (FSYNC_INTERVAL.equals(fsyncPolicy) && System.nanoTime() - nextSyncNanos >= 0) {
+                syncDirty();
+                nextSyncNanos = System.nanoTime() + fsyncIntervalNanos;
+            }
+        }
+        // 退出前刷盘并关闭所有文件
+        syncDirty();
+        for (Conversation conversation : openFiles.keySet()) {
+            closeChannel(conversation);
+        }
+        openFiles.clear();
+        openFileCount = 0;
+    }
+
+    private long waitMillis(long nextSyncNanos) {
+        if (!FSYNC_INTERVAL.equals(fsyncPolicy)) {
+            return 1000;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextSyncNanos - System.nanoTime()));
+    }
+
+    // 把一个会话本批的记录写入当前段，必要时先切换段，再为其中的记录补充稀疏索引
+    private void write(Conversation conversation, StringBuilder chunk) {
+        byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+        int lines = countLines(bytes, bytes.length);
+        try {
+            openForWrite(conversation);
+            if (conversation.segmentBytes > 0 && (conversation.segmentBytes + bytes.length > segmentMaxBytes
+                    || System.currentTimeMillis() - conversation.segmentCreatedMillis >= segmentMaxMillis)) {
+                rollSegment(conversation);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                conversation.channel.write(buffer);
+            }
+            byte[] entries = indexEntries(bytes, bytes.length, conversation.nextSeq,
+                    conversation.segmentStart, conversation.segmentBytes);
+            if (entries.length > 0) {
+                // 索引在数据之后写入：崩溃时索引可能落后，但不会指向不存在的数据
+                Files.write(indexPath(segmentPath(conversation.dir, conversation.segmentStart)), entries,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            ChatSearchIndex index = conversation.searchIndex;
+            if (index != null) {
+                index.append(conversation.segmentStart, conversation.nextSeq, splitLines(chunk));
+            }
+            conversation.segmentBytes += bytes.length;
+            conversation.nextSeq += lines;
+            conversation.dirty = true;
+        } catch (IOException e) {
+            System.err.println("写入聊天记录失败 (" + conversation.id + "): " + e.getMessage());
+            closeChannel(conversation);
+            openFiles.remove(conversation);
+            openFileCount = openFiles.size();
+        }
+    }
+
+    // 确保会话的当前段已打开，打开新文件时按 LRU 关闭最久未写的会话
+    private void openForWrite(Conversation conversation) throws IOException {
+        if (conversation.channel != null) {
+            openFiles.get(conversation);
+            return;
+        }
+        if (!conversation.initialized) {
+            Files.createDirectories(conversation.dir);
+            List<Path> segments = listSegments(conversation.dir);
+            if (segments.isEmpty()) {
+                conversation.segmentStart = 0;
+                conversation.nextSeq = 0;
+            } else {
+                Path last = segments.get(segments.size() - 1);
+                conversation.segmentStart = segmentStart(last);
+                byte[] data = Files.readAllBytes(last);
+                if (data.length > 0 && data[data.length - 1] != '\n') {
+                    // 上次写到一半的行补上换行，保证每行一条记录
+                    Files.write(last, new byte[]{'\n'}, StandardOpenOption.APPEND);
+                    data = Arrays.copyOf(data, data.length + 1);
+                    data[data.length - 1] = '\n';
+                }
+                conversation.nextSeq = conversation.segmentStart + countLines(data, data.length);
+                // 最后一段的索引可能因为崩溃而落后（或是刚迁移的旧文件没有索引），按数据重建
+                Files.write(indexPath(last), indexEntries(data, data.length, conversation.segmentStart,
+                        conversation.segmentStart, 0));
+            }
+            conversation.initialized = true;
+        }
+        Path path = segmentPath(conversation.dir, conversation.segmentStart);
+        conversation.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        conversation.segmentBytes = conversation.channel.size();
+        conversation.segmentCreatedMillis = createdMillis(path);
+
+        openFiles.put(conversation, Boolean.TRUE);
+        if (openFiles.size() > maxOpenFiles) {
+            Iterator<Conversation> it = openFiles.keySet().iterator();
+            Conversation eldest = it.next();
+            it.remove();
+            if (eldest.dirty) {
+                sync(eldest);
+            }
+            closeChannel(eldest);
+            evictCount++;
+        }
+        openFileCount = openFiles.size();
+    }
+
+    private void rollSegment(Conversation conversation) throws IOException {
+        if (conversation.dirty) {
+            sync(conversation);
+        }
+        closeChannel(conversation);
+        conversation.segmentStart = conversation.nextSeq;
+        Path path = segmentPath(conversation.dir, conversation.segmentStart);
+        conversation.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        conversation.segmentBytes = conversation.channel.size();
+        conversation.segmentCreatedMillis = System.currentTimeMillis();
+        rollCount++;
+    }
+
+    private void syncDirty() {
+        for (Conversation conversation : openFiles.keySet()) {
+            if (conversation.dirty) {
+                sync(conversation);
+            }
+        }
+    }
+
+    private void sync(Conversation conversation) {
+        if (FSYNC_NONE.equals(fsyncPolicy)) {
+            conversation.dirty = false;
+            return;
+        }
+        try {
+            conversation.channel.force(false);
+            fsyncCount++;
+        } catch (IOException e) {
+            System.err.println("聊天记录刷盘失败 (" + conversation.id + "): " + e.getMessage());
+        }
+        conversation.dirty = false;
+    }
+
+    private void closeChannel(Conversation conversation) {
+        if (conversation.channel == null) {
+            return;
+        }
+        try {
+            conversation.channel.close();
+        } catch (IOException e) {
+            System.err.println("关闭聊天记录文件失败: " + e.getMessage());
+        }
+        conversation.channel = null;
+    }
+
+    private void markWritten(Conversation conversation, int count) {
+        written.addAndGet(count);
+        synchronized (conversation.writtenLock) {
+            conversation.written += count;
+            conversation.writtenLock.notifyAll();
+        }
+    }
+
+    // 等待该会话在调用前已提交的记录写入文件，其他会话积压的记录不影响读取
+    private void awaitWritten(Conversation conversation) {
+        long target = conversation.enqueued.get();
+        synchronized (conversation.writtenLock) {
+            while (conversation.written < target && writer.isAlive()) {
+                try {
+                    conversation.writtenLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // ====================== 读取与索引 ======================
+
+    // 会话的搜索索引，未加载时读取已关闭段的 .sidx（没有则按数据重建），最后一段留给调用方补齐
+    private ChatSearchIndex searchIndex(Conversation conversation) throws IOException {
+        synchronized (searchIndexes) {
+            if (conversation.searchIndex != null) {
+                searchIndexes.get(conversation.id);
+                return conversation.searchIndex;
+            }
+        }
+        synchronized (conversation) {
+            ChatSearchIndex index = conversation.searchIndex;
+            if (index != null) {
+                return index;
+            }
+            index = new ChatSearchIndex(conversation.dir);
+            List<Path> segments = listSegments(conversation.dir);
+            if (!segments.isEmpty()) {
+                index.startAt(segmentStart(segments.get(0)));
+            }
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                long start = segmentStart(segments.get(i));
+                long end = segmentStart(segments.get(i + 1));
+                if (!index.loadClosedSegment(start, end)) {
+                    index.addClosedSegment(start, readRange(segments, start, end));
+                }
+            }
+            conversation.searchIndex = index;
+            synchronized (searchIndexes) {
+                searchIndexes.put(conversation.id, conversation);
+                if (searchIndexes.size() > maxSearchIndexes) {
+                    Iterator<Conversation> it = searchIndexes.values().iterator();
+                    Conversation eldest = it.next();
+                    it.remove();
+                    eldest.searchIndex = null;
+                }
+            }
+            return index;
+        }
+    }
+
+    private int searchIndexCount() {
+        synchronized (searchIndexes) {
+            return searchIndexes.size();
+        }
+    }
+
+    // 读取序号在 [fromSeq, toSeq) 内的记录，只打开与范围相交的段；不是最后一段的段已经关闭，走内存映射，归档按块解压
+    private List<String> readRange(List<Path> segments, long fromSeq, long toSeq) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < segments.size() && fromSeq < toSeq; i++) {
+            long end = i + 1 < segments.size() ? segmentStart(segments.get(i + 1)) : Long.MAX_VALUE;
+            if (end <= fromSeq) {
+                continue;
+            }
+            long start = segmentStart(segments.get(i));
+            if (start >= toSeq) {
+                break;
+            }
+            Path segment = segments.get(i);
+            if (segment.toString().endsWith(ChatArchive.ARCHIVE_SUFFIX)) {
+                fromSeq = ChatArchive.read(segment, Math.max(fromSeq, start), toSeq, lines);
+                continue;
+            }
+            long next = -1;
+            if (mappedSegments != null && i + 1 < segments.size()) {
+                next = mappedSegments.read(segment, indexPath(segment), start, Math.max(fromSeq, start), toSeq, lines);
+            }
+            fromSeq = next >= 0 ? next : readSegment(segment, start, Math.max(fromSeq, start), toSeq, lines);
+        }
+        return lines;
+    }
+
+    // 从索引中不超过 fromSeq 的最近位置开始读取一个段，返回读到的下一个序号
+    private static long readSegment(Path segment, long start, long fromSeq, long toSeq, List<String> out)
+            throws IOException {
+        long[] entry = floorEntry(segment, start, fromSeq);
+        long seq = entry[0];
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            channel.position(entry[1]);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 16 * 1024);
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while (seq < toSeq && (b = in.read()) != -1) {
+                if (b != '\n') {
+                    if (seq >= fromSeq) {
+                        line.write(b);
+                    }
+                    continue;
+                }
+                if (seq >= fromSeq) {
+                    out.add(decodeLine(line));
+                    line.reset();
+                }
+                seq++;
+            }
+        } catch (NoSuchFileException e) {
+            return fromSeq;
+        }
+        return Math.max(seq, fromSeq);
+    }
+
+    // 记录总数：最后一段的起始序号加上该段的行数，行数从该段最后一个索引项开始数
+    private static long messageCount(List<Path> segments) throws IOException {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Path last = segments.get(segments.size() - 1);
+        long[] entry = floorEntry(last, segmentStart(last), Long.MAX_VALUE);
+        long count = entry[0];
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ)) {
+            channel.position(entry[1]);
+            ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+            while (channel.read(buffer) > 0) {
+                count += countLines(buffer.array(), buffer.position());
+                buffer.clear();
+            }
+        } catch (NoSuchFileException e) {
+            return segmentStart(last);
+        }
+        return count;
+    }
+
+    /**
+     * 在段的稀疏索引中二分查找序号不超过 seq 的最后一项，返回 {序号, 字节位置}。
+     * 索引文件由固定 16 字节的项（long 序号, long 位置）组成，按序号递增；
+     * 索引缺失或落后时退回到段首或最后一项，从那里顺序扫描仍然正确。
+     */
+    private static long[] floorEntry(Path segment, long start, long seq) throws IOException {
+        long[] result = {start, 0};
+        try (FileChannel channel = FileChannel.open(indexPath(segment), StandardOpenOption.READ)) {
+            long low = 0;
+            long high = channel.size() / INDEX_ENTRY_SIZE - 1;
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                buffer.clear();
+                long position = mid * INDEX_ENTRY_SIZE;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        return result;
+                    }
+                }
+                long entrySeq = buffer.getLong(0);
+                if (entrySeq <= seq) {
+                    result[0] = entrySeq;
+                    result[1] = buffer.getLong(8);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // 没有索引：从段首扫描
+        }
+        return result;
+    }
+
+    // 为一段数据中的记录生成索引项：段首记录以及序号是索引间隔整数倍的记录
+    private static byte[] indexEntries(byte[] data, int length, long firstSeq, long segmentStart, long baseOffset) {
+        ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_SIZE * (length / INDEX_INTERVAL + 2));
+        long seq = firstSeq;
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (seq == segmentStart || seq % INDEX_INTERVAL == 0) {
+                if (entries.remaining() < INDEX_ENTRY_SIZE) {
+                    ByteBuffer bigger = ByteBuffer.allocate(entries.capacity() * 2);
+                    entries.flip();
+                    bigger.put(entries);
+                    entries = bigger;
+                }
+                entries.putLong(seq);
+                entries.putLong(baseOffset + lineStart);
+            }
+            seq++;
+            lineStart = i + 1;
+        }
+        return Arrays.copyOf(entries.array(), entries.position());
+    }
+
+    // 兼容旧文件中的 \r\n 换行
+    private static String decodeLine(ByteArrayOutputStream line) {
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    // ====================== 会话目录与段文件 ======================
+
+    // 第一次访问会话时确定目录，并把旧版本的单文件记录迁移为第 0 段
+    private Conversation conversation(String id) {
+        return conversations.computeIfAbsent(id, key -> {
+            boolean isGroup = ServerData.getInstance().containsGroup(key);
+            Path dir = FileUtil.getChatLogDir(key, isGroup);
+            Path legacy = FileUtil.getChatDataPath(key, isGroup);
+            if (Files.exists(legacy) && !Files.exists(dir)) {
+                try {
+                    Files.createDirectories(dir);
+                    Files.move(legacy, segmentPath(dir, 0), StandardCopyOption.ATOMIC_MOVE);
+                    System.out.println("聊天记录已迁移为分段存储: " + key);
+                } catch (IOException e) {
+                    System.err.println("迁移聊天记录失败 (" + key + "): " + e.getMessage());
+                }
+            }
+            return new Conversation(key, dir);
+        });
+    }
+
+    private static Path segmentPath(Path dir, long firstSeq) {
+        return dir.resolve(String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+    }
+
+    // 按起始序号排序的段文件列表（包括归档），目录不存在时返回空列表。
+    // 归档替换到一半时同一起始序号可能同时有 .log 和 .arc，此时以 .log 为准，下次整理会重新归档
+    static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+                "*{" + SEGMENT_SUFFIX + "," + ChatArchive.ARCHIVE_SUFFIX + "}")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> {
+            int c = Long.compare(segmentStart(a), segmentStart(b));
+            return c != 0 ? c : Boolean.compare(!a.toString().endsWith(SEGMENT_SUFFIX), !b.toString().endsWith(SEGMENT_SUFFIX));
+        });
+        for (int i = segments.size() - 1; i > 0; i--) {
+            if (segmentStart(segments.get(i)) == segmentStart(segments.get(i - 1))) {
+                segments.remove(i);
+            }
+        }
+        return segments;
+    }
+
+    private static Path indexPath(Path segment) {
+        return segment.resolveSibling(baseName(segment) + INDEX_SUFFIX);
+    }
+
+    // 去掉扩展名的段文件名，即起始序号
+    private static String baseName(Path segment) {
+        String name = segment.getFileName().toString();
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    static long segmentStart(Path segment) {
+        try {
+            return Long.parseLong(baseName(segment));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static long createdMillis(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).creationTime().toMillis();
+        } catch (IOException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    // 按换行拆分一批以换行结尾的记录
+    private static List<String> splitLines(CharSequence chunk) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < chunk.length(); i++) {
+            if (chunk.charAt(i) == '\n') {
+                lines.add(chunk.subSequence(start, i).toString());
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    private static int countLines(byte[] data, int length) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
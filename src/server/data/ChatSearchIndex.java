@@ -0,0 +1,379 @@
+package server.data;
+
+import util.ByteReader;
+import util.ByteWriter;
+import util.MsgUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * 一个会话的聊天记录倒排索引
+ * <p>
+ * 只索引消息正文：中日韩文字按相邻两字切分（单独一个字时取这个字），其他文字按连续的字母/数字切成小写单词。
+ * 倒排表按段划分，记录段内偏移（序号 - 段起始序号）。已关闭的段不再变化，其倒排表写入段旁边的 .sidx 文件，
+ * 再次加载时直接读取；最后一段在加载时按数据重建，之后随写盘线程写入的消息增量更新。
+ * <p>
+ * 查询按同样的规则切词，从最新的段开始对倒排表做多路归并：消息得分是其包含的查询词的 IDF 之和，
+ * 同分时越新越靠前，用小顶堆保留前 limit 条；前 limit 条都已满分时提前结束。代价不超过查询词的倒排表长度。
+ * <p>
+ * 所有方法由 this 保护。
+ */
+final class ChatSearchIndex {
+    static final String INDEX_SUFFIX = ".sidx";
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * 一条命中：消息序号和得分
+     */
+    static final class Hit {
+        final long seq;
+        final double score;
+
+        Hit(long seq, double score) {
+            this.seq = seq;
+            this.score = score;
+        }
+    }
+
+    /**
+     * 递增的 int 列表，避免装箱
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int last() {
+            return size == 0 ? -1 : values[size - 1];
+        }
+
+        void trim() {
+            if (values.length != size) {
+                values = Arrays.copyOf(values, size);
+            }
+        }
+    }
+
+    /**
+     * 一个段的倒排表
+     */
+    private static final class SegmentPostings {
+        final long start;
+        final Map<String, IntList> postings;
+        int messageCount;
+        // 段已关闭且 .sidx 已写出
+        boolean frozen;
+
+        SegmentPostings(long start, Map<String, IntList> postings, int messageCount) {
+            this.start = start;
+            this.postings = postings;
+            this.messageCount = messageCount;
+        }
+    }
+
+    private final Path dir;
+    private final List<SegmentPostings> segments = new ArrayList<>();
+    // 已经索引到的下一条消息的序号
+    private long nextSeq;
+    private long totalMessages;
+
+    ChatSearchIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * 最早的段已被保留策略删除时，索引从现存的第一条记录开始
+     */
+    synchronized void startAt(long seq) {
+        if (segments.isEmpty()) {
+            nextSeq = seq;
+        }
+    }
+
+    /**
+     * 加入一个已关闭段：优先读取段旁边的 .sidx 文件
+     *
+     * @return 是否读取成功；返回 false 时调用方读出该段的全部消息交给 addClosedSegment 重建
+     */
+    synchronized boolean loadClosedSegment(long start, long end) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(indexPath(start));
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            System.err.println("读取搜索索引失败: " + e.getMessage());
+            return false;
+        }
+        try {
+            ByteReader in = new ByteReader(bytes);
+            if (in.readVarint() != FORMAT_VERSION) {
+                return false;
+            }
+            int messageCount = in.readVarint();
+            if (messageCount != end - start) {
+                // 段的内容与索引不一致（例如索引来自崩溃前），重建
+                return false;
+            }
+            int termCount = in.readCount();
+            Map<String, IntList> postings = new HashMap<>(termCount * 2);
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readString();
+                IntList list = new IntList();
+                list.values = new int[in.readCount()];
+                int offset = 0;
+                for (int j = 0; j < list.values.length; j++) {
+                    offset += in.readVarint();
+                    list.values[j] = offset;
+                }
+                list.size = list.values.length;
+                postings.put(term, list);
+            }
+            SegmentPostings segment = new SegmentPostings(start, postings, messageCount);
+            segment.frozen = true;
+            segments.add(segment);
+            totalMessages += messageCount;
+            nextSeq = end;
+            return true;
+        } catch (IOException e) {
+            System.err.println("搜索索引损坏，重建: " + indexPath(start));
+            return false;
+        }
+    }
+
+    /**
+     * 由一个已关闭段的全部消息建立倒排表，并写出 .sidx 文件
+     */
+    synchronized void addClosedSegment(long start, List<String> lines) {
+        segments.add(new SegmentPostings(start, new HashMap<>(), 0));
+        nextSeq = start;
+        for (int i = 0; i < lines.size(); i++) {
+            add(start, start + i, lines.get(i));
+        }
+        freezeLast();
+    }
+
+    /**
+     * 追加一批连续的消息。firstSeq 与已索引的位置不衔接时忽略（下次查询前会按文件补齐）。
+     *
+     * @param segmentStart 这批消息所在段的起始序号，与上一批不同说明上一段已经关闭
+     */
+    synchronized void append(long segmentStart, long firstSeq, List<String> lines) {
+        if (firstSeq != nextSeq) {
+            return;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            add(segmentStart, firstSeq + i, lines.get(i));
+        }
+    }
+
+    /**
+     * 查询得分最高的至多 limit 条消息
+     */
+    synchronized List<Hit> search(String query, int limit) {
+        List<String> terms = tokenize(query);
+        List<Hit> result = new ArrayList<>();
+        if (terms.isEmpty() || limit <= 0) {
+            return result;
+        }
+        double[] idf = new double[terms.size()];
+        for (int t = 0; t < terms.size(); t++) {
+            long df = 0;
+            for (SegmentPostings segment : segments) {
+                IntList list = segment.postings.get(terms.get(t));
+                df += list == null ? 0 : list.size;
+            }
+            idf[t] = df == 0 ? 0 : Math.log(1 + (double) totalMessages / df);
+        }
+
+        // 全部查询词都命中时的得分，按同样的顺序累加，保证与实际得分完全相等
+        double maxScore = 0;
+        for (double weight : idf) {
+            maxScore += weight;
+        }
+
+        // 从最新的消息向前归并：同分时先遇到的更新，后遇到的不可能再进入结果；
+        // 堆满且堆顶已是满分时，剩下的消息都不可能更好，直接结束
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, ChatSearchIndex::compareHits);
+        IntList[] lists = new IntList[terms.size()];
+        int[] cursors = new int[terms.size()];
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            SegmentPostings segment = segments.get(s);
+            int active = 0;
+            for (int t = 0; t < terms.size(); t++) {
+                lists[t] = idf[t] == 0 ? null : segment.postings.get(terms.get(t));
+                cursors[t] = lists[t] == null ? -1 : lists[t].size - 1;
+                if (cursors[t] >= 0) {
+                    active++;
+                }
+            }
+            while (active > 0) {
+                if (top.size() == limit && top.peek().score >= maxScore) {
+                    break;
+                }
+                // 各倒排表当前位置中最大的偏移就是下一条候选消息
+                int offset = -1;
+                for (int t = 0; t < lists.length; t++) {
+                    if (cursors[t] >= 0) {
+                        offset = Math.max(offset, lists[t].values[cursors[t]]);
+                    }
+                }
+                double score = 0;
+                for (int t = 0; t < lists.length; t++) {
+                    if (cursors[t] >= 0 && lists[t].values[cursors[t]] == offset) {
+                        score += idf[t];
+                        if (--cursors[t] < 0) {
+                            active--;
+                        }
+                    }
+                }
+                if (top.size() < limit) {
+                    top.add(new Hit(segment.start + offset, score));
+                } else if (score > top.peek().score) {
+                    top.poll();
+                    top.add(new Hit(segment.start + offset, score));
+                }
+            }
+        }
+        while (!top.isEmpty()) {
+            result.add(top.poll());
+        }
+        // 从好到差
+        Collections.reverse(result);
+        return result;
+    }
+
+    synchronized String getStatus() {
+        int terms = 0;
+        for (SegmentPostings segment : segments) {
+            terms += segment.postings.size();
+        }
+        return "segments=" + segments.size() + ", messages=" + totalMessages + ", terms=" + terms;
+    }
+
+    // 得分高的更好，同分时序号大（更新）的更好
+    private static int compareHits(Hit a, Hit b) {
+        int c = Double.compare(a.score, b.score);
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    }
+
+    private void add(long segmentStart, long seq, String line) {
+        SegmentPostings segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.start != segmentStart) {
+            if (segment != null && !segment.frozen) {
+                // 写盘线程切换到了新段，上一段不会再变化
+                freezeLast();
+            }
+            segment = new SegmentPostings(segmentStart, new HashMap<>(), 0);
+            segments.add(segment);
+        }
+        int offset = (int) (seq - segmentStart);
+        String[] parts = MsgUtil.splitMsg(line);
+        for (String term : tokenize(parts.length == 0 ? "" : parts[parts.length - 1])) {
+            IntList list = segment.postings.computeIfAbsent(term, k -> new IntList());
+            if (list.last() != offset) {
+                list.add(offset);
+            }
+        }
+        segment.messageCount++;
+        totalMessages++;
+        nextSeq = seq + 1;
+    }
+
+    // 最后一段已经关闭：收紧数组并写出 .sidx 文件（先写临时文件再原子替换）
+    private void freezeLast() {
+        SegmentPostings segment = segments.get(segments.size() - 1);
+        segment.frozen = true;
+        ByteWriter out = new ByteWriter(64 * 1024);
+        out.writeVarint(FORMAT_VERSION);
+        out.writeVarint(segment.messageCount);
+        out.writeVarint(segment.postings.size());
+        for (Map.Entry<String, IntList> entry : segment.postings.entrySet()) {
+            IntList list = entry.getValue();
+            list.trim();
+            out.writeString(entry.getKey());
+            out.writeVarint(list.size);
+            int previous = 0;
+            for (int i = 0; i < list.size; i++) {
+                out.writeVarint(list.values[i] - previous);
+                previous = list.values[i];
+            }
+        }
+        Path path = indexPath(segment.start);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, out.toByteArray());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("写入搜索索引失败: " + e.getMessage());
+        }
+    }
+
+    private Path indexPath(long segmentStart) {
+        return dir.resolve(String.format("%020d", segmentStart) + INDEX_SUFFIX);
+    }
+
+    /**
+     * 切词：中日韩文字取相邻两字（连续只有一个字时取单字），其他字母/数字按单词切分并转小写，去重后保持出现顺序
+     */
+    static List<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int cp = text.codePointAt(i);
+            if (isCjk(cp)) {
+                int runStart = i;
+                int previous = -1;
+                while (i < length && isCjk(cp = text.codePointAt(i))) {
+                    if (previous >= 0) {
+                        terms.add(text.substring(previous, i + Character.charCount(cp)));
+                    }
+                    previous = i;
+                    i += Character.charCount(cp);
+                }
+                if (previous == runStart) {
+                    terms.add(text.substring(runStart, i));
+                }
+            } else if (Character.isLetterOrDigit(cp)) {
+                int wordStart = i;
+                while (i < length && Character.isLetterOrDigit(cp = text.codePointAt(i)) && !isCjk(cp)) {
+                    i += Character.charCount(cp);
+                }
+                terms.add(text.substring(wordStart, i).toLowerCase());
+            } else {
+                i += Character.charCount(cp);
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
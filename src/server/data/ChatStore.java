@@ -0,0 +1,67 @@
+package server.data;
+
+import java.util.List;
+
+/**
+ * 聊天记录的存储接口
+ * <p>
+ * 每个会话（群聊id或私聊id）的记录按追加顺序从 0 开始编号。实现必须是线程安全的，
+ * append 之后的读取要能看到这条记录。
+ */
+public interface ChatStore {
+    /**
+     * 一条搜索命中
+     */
+    final class SearchHit {
+        public final long seq;
+        public final double score;
+        public final String message;
+
+        SearchHit(long seq, double score, String message) {
+            this.seq = seq;
+            this.score = score;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 追加一条聊天记录
+     */
+    void append(String conversationId, String content);
+
+    /**
+     * 读取序号小于 beforeSeq 的最后 limit 条记录（beforeSeq 为 Long.MAX_VALUE 时即最新的 limit 条）
+     *
+     * @return 按序号升序的消息列表，绝不返回null
+     */
+    List<String> readBefore(String conversationId, long beforeSeq, int limit);
+
+    /**
+     * 会话中的记录总数，也就是下一条记录的序号
+     */
+    long messageCount(String conversationId);
+
+    /**
+     * 会话中现存最早一条记录的序号，旧记录被保留策略删除后大于 0
+     */
+    long firstSeq(String conversationId);
+
+    /**
+     * 在会话的聊天记录中搜索，返回相关度最高的至多 limit 条（同分时越新越靠前）
+     *
+     * @return 按相关度从高到低排列的命中，绝不返回null
+     */
+    List<SearchHit> search(String conversationId, String query, int limit);
+
+    /**
+     * 按保留策略整理旧记录，不支持时什么也不做
+     */
+    void compact();
+
+    /**
+     * 写出尚未保存的记录，服务器关闭时调用
+     */
+    void close();
+
+    String getStatus();
+}
@@ -1,6 +1,17 @@
 package server.data;
 
+import util.ByteReader;
+import util.ByteWriter;
+import util.IntBitmap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.TreeSet;
 
 /**
@@ -9,6 +20,14 @@ import java.util.TreeSet;
 public class GroupData implements Serializable {
     private static final long serialVersionUID = 4303981922076715842L;
 
+    // 序列化格式保持不变：成员仍以 TreeSet<GroupMember> 写出，内存中改为句柄位图
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("groupId", String.class),
+            new ObjectStreamField("groupName", String.class),
+            new ObjectStreamField("groupOwner", GroupMember.class),
+            new ObjectStreamField("members", TreeSet.class)
+    };
+
     public class GroupMember implements Comparable<GroupMember>, Serializable {
         private static final long serialVersionUID = 585007162886079570L;
 
@@ -26,17 +45,86 @@ public class GroupData implements Serializable {
         }
     }
 
+    /**
+     * 群成员的不可变快照，带版本号。成员保存为用户句柄（SymbolTable.USERS）的压缩位图，
+     * 成员变化时整体替换为新的快照（版本号加一，位图只复制被修改的一块），
+     * 转发消息时直接遍历位图或与在线用户位图求交，不需要加锁、不分配对象也不计算字符串哈希。
+     */
+    public static final class MemberArray {
+        static final MemberArray EMPTY = new MemberArray(0, IntBitmap.EMPTY);
+
+        private final long version;
+        private final IntBitmap handles;
+        // 按 id 升序的成员id，第一次按下标或列表访问时生成，只用于下发成员列表等非转发路径
+        private volatile String[] ids;
+
+        private MemberArray(long version, IntBitmap handles) {
+            this.version = version;
+            this.handles = handles;
+        }
+
+        // 每次成员变化加一，可用于判断缓存的派生数据是否过期
+        public long version() {
+            return version;
+        }
+
+        public int size() {
+            return handles.cardinality();
+        }
+
+        // 成员的用户句柄位图
+        public IntBitmap handles() {
+            return handles;
+        }
+
+        public boolean contains(String id) {
+            return handles.contains(SymbolTable.USERS.handleOf(id));
+        }
+
+        public boolean containsHandle(int handle) {
+            return handles.contains(handle);
+        }
+
+        // 按 id 升序的第 index 个成员
+        public String get(int index) {
+            return ids()[index];
+        }
+
+        // 按 id 升序的只读列表
+        public List<String> asList() {
+            return Collections.unmodifiableList(Arrays.asList(ids()));
+        }
+
+        private String[] ids() {
+            String[] sorted = ids;
+            if (sorted == null) {
+                int[] values = handles.toArray();
+                sorted = new String[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    sorted[i] = SymbolTable.USERS.nameOf(values[i]);
+                }
+                Arrays.sort(sorted);
+                ids = sorted;
+            }
+            return sorted;
+        }
+    }
+
     // 群聊id
     private String groupId;
     private String groupName;
     private GroupMember groupOwner;
-    private TreeSet<GroupMember> members;
+
+    // 写时复制版本号：与 ServerData 当前版本不同说明对象已被快照引用，修改前需要先复制一份
+    transient int cowEpoch;
+
+    // 当前成员快照，同时也是成员集合本身，只在修改锁内替换
+    private transient volatile MemberArray memberArray = MemberArray.EMPTY;
 
     public GroupData(String groupId, String groupName, String groupOwner) {
         this.groupName = groupName;
         this.groupId = groupId;
         this.groupOwner = new GroupMember(groupOwner);
-        members = new TreeSet<>();
     }
 
     public GroupData(String groupId) {
@@ -44,16 +132,112 @@ public class GroupData implements Serializable {
         this.groupName = "TEMP_TEST";
     }
 
+    // 获取完整副本，用于写时复制
+    GroupData copy() {
+        GroupData copy = new GroupData(groupId);
+        copy.groupName = groupName;
+        if (groupOwner != null) {
+            copy.groupOwner = copy.new GroupMember(groupOwner.id);
+            copy.groupOwner.isOut = groupOwner.isOut;
+        }
+        // 成员快照不可变，直接共享
+        copy.memberArray = memberArray;
+        return copy;
+    }
+
+    // 成员变化后发布新的成员快照
+    private void publishMembers(IntBitmap handles) {
+        memberArray = new MemberArray(memberArray.version + 1, handles);
+    }
+
+    /**
+     * 当前成员快照，转发消息等只读路径使用，不会看到修改到一半的成员集合
+     */
+    public MemberArray getMemberArray() {
+        return memberArray;
+    }
+
+    // 快照记录：群聊id | 群名 | byte 是否有群主 + 群主（id + byte isOut）| 成员句柄位图（句柄即快照 id 字典的下标）
+    void writeSnapshot(ByteWriter out) {
+        ServerSnapshot.writeNullableString(out, groupId);
+        ServerSnapshot.writeNullableString(out, groupName);
+        if (groupOwner == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            writeMember(out, groupOwner);
+        }
+        memberArray.handles().writeTo(out);
+    }
+
+    // 版本 3 的快照成员是位图；版本 2 是 varint 字典下标 + byte isOut 的列表；版本 1（symbols 为 null）是 id 字符串 + byte isOut
+    static GroupData readSnapshot(ByteReader in, ServerSnapshot.Symbols symbols) throws IOException {
+        GroupData group = new GroupData(ServerSnapshot.readNullableString(in));
+        group.groupName = ServerSnapshot.readNullableString(in);
+        if (in.readByte() != 0) {
+            group.groupOwner = group.readMember(in);
+        }
+        if (symbols != null && symbols.hasMemberBitmaps()) {
+            group.publishMembers(symbols.userBitmap(IntBitmap.readFrom(in)));
+            return group;
+        }
+        int count = in.readCount();
+        int[] handles = new int[count];
+        for (int i = 0; i < count; i++) {
+            handles[i] = symbols == null
+                    ? SymbolTable.USERS.intern(ServerSnapshot.readNullableString(in))
+                    : symbols.userHandle(in.readVarint());
+            // isOut 从未被使用，不再保存
+            in.readByte();
+        }
+        group.publishMembers(IntBitmap.of(handles));
+        return group;
+    }
+
+    private static void writeMember(ByteWriter out, GroupMember member) {
+        ServerSnapshot.writeNullableString(out, member.id);
+        out.writeByte(member.isOut ? 1 : 0);
+    }
+
+    private GroupMember readMember(ByteReader in) throws IOException {
+        GroupMember member = new GroupMember(ServerSnapshot.readNullableString(in));
+        member.isOut = in.readByte() != 0;
+        return member;
+    }
+
+    // 是否包含组员
+    public boolean hasMember(String id) {
+        return memberArray.contains(id);
+    }
+
     // 添加组员
     public void addMember(String id) {
-        members.add(new GroupMember(id));
+        IntBitmap current = memberArray.handles();
+        IntBitmap next = current.with(SymbolTable.USERS.intern(id));
+        if (next != current) {
+            publishMembers(next);
+        }
+    }
+
+    // 一次添加多个组员，只发布一次成员快照（逐个添加时每次都要复制位图中被修改的块）
+    public void addMembers(String[] ids) {
+        int[] current = memberArray.handles().toArray();
+        int[] handles = Arrays.copyOf(current, current.length + ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            handles[current.length + i] = SymbolTable.USERS.intern(ids[i]);
+        }
+        IntBitmap next = IntBitmap.of(handles);
+        if (next.cardinality() != current.length) {
+            publishMembers(next);
+        }
     }
 
     // 移除组员
     public boolean removeMember(String id) {
-        GroupMember temp = new GroupMember(id);
-        if (members.contains(temp)) {
-            members.remove(new GroupMember(id));
+        IntBitmap current = memberArray.handles();
+        IntBitmap next = current.without(SymbolTable.USERS.handleOf(id));
+        if (next != current) {
+            publishMembers(next);
             return true;
         } else {
             // System.out.println("组员移除失败. groupId: " + groupId);
@@ -62,7 +246,7 @@ public class GroupData implements Serializable {
     }
 
     public int getMemberCount() {
-        return members.size();
+        return memberArray.size();
     }
 
     // 获取群聊id
@@ -80,8 +264,12 @@ public class GroupData implements Serializable {
         return groupOwner;
     }
 
-    // 获取群成员
+    // 获取群成员（按 id 排序的新集合，修改不影响群聊）；只需要遍历或判断成员时使用 getMemberArray
     public TreeSet<GroupMember> getMembers() {
+        TreeSet<GroupMember> members = new TreeSet<>();
+        for (String id : memberArray.ids()) {
+            members.add(new GroupMember(id));
+        }
         return members;
     }
 
@@ -94,13 +282,41 @@ public class GroupData implements Serializable {
         this.groupName = groupName;
     }
 
+    // Java 序列化（旧版客户端协议、旧数据文件）仍写出 TreeSet<GroupMember>，内存中转换为成员位图
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("groupId", groupId);
+        fields.put("groupName", groupName);
+        fields.put("groupOwner", groupOwner);
+        fields.put("members", getMembers());
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        groupId = (String) fields.get("groupId", null);
+        groupName = (String) fields.get("groupName", null);
+        groupOwner = (GroupMember) fields.get("groupOwner", null);
+        TreeSet<GroupMember> members = (TreeSet<GroupMember>) fields.get("members", null);
+        int[] handles = new int[members == null ? 0 : members.size()];
+        int i = 0;
+        if (members != null) {
+            for (GroupMember member : members) {
+                handles[i++] = SymbolTable.USERS.intern(member.id);
+            }
+        }
+        memberArray = MemberArray.EMPTY;
+        publishMembers(IntBitmap.of(handles));
+    }
+
     @Override
     public String toString() {
         return "GroupData{" +
                 "groupId='" + groupId + '\'' +
                 ", groupName='" + groupName + '\'' +
                 ", groupOwner=" + groupOwner.id +
-                ", members count=" + members.size() +
+                ", members count=" + memberArray.size() +
                 '}';
     }
 }
\ No newline at end of file
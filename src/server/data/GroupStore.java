@@ -0,0 +1,34 @@
+package server.data;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 群聊表的存储接口，约定同 UserStore
+ */
+public interface GroupStore {
+    GroupData get(String groupId);
+
+    void put(String groupId, GroupData group);
+
+    GroupData remove(String groupId);
+
+    boolean contains(String groupId);
+
+    int size();
+
+    /**
+     * 全部群聊，遍历时不抛出并发修改异常，可能看不到遍历期间的修改
+     */
+    Collection<GroupData> values();
+
+    /**
+     * 群聊id到群聊的只读视图
+     */
+    Map<String, GroupData> asMap();
+
+    /**
+     * 当前内容的浅拷贝（Java 序列化写出时使用）
+     */
+    Map<String, GroupData> copy();
+}
@@ -0,0 +1,331 @@
+package server.data;
+
+import util.ByteReader;
+import util.ByteWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 服务器数据的追加式预写日志
+ * <p>
+ * 每次修改 ServerData 只追加一条很小的记录，不再重写整个快照。记录格式：
+ * <pre>
+ * int 载荷长度 | int CRC32 | long LSN | 载荷
+ * </pre>
+ * CRC32 覆盖 LSN 和载荷，LSN 从 1 开始连续递增。日志按段存放，段文件名是段内第一条记录的 LSN；
+ * 检查点写出快照后切换到新段，再删除快照已经覆盖的旧段。
+ * <p>
+ * 组提交：append 只把记录放入内存缓冲区并分配 LSN，由写盘线程把攒下的一批记录一次写入并 fsync，
+ * 然后唤醒等待这一批的所有调用方。并发修改越多，平摊到每条记录上的 fsync 越少。
+ */
+class Journal {
+    // 记录头：载荷长度 + CRC32 + LSN
+    private static final int RECORD_HEADER_SIZE = 16;
+    // 单条记录载荷上限，超过视为日志损坏
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * 重放时逐条处理记录
+     */
+    interface RecordHandler {
+        void apply(long lsn, byte[] payload) throws IOException;
+    }
+
+    private final Path dir;
+    private final boolean fsync;
+
+    // 以下字段由 this 保护
+    private FileChannel channel;
+    private long segmentBytes;
+    private long nextLsn;
+    private long durableLsn;
+    private final ByteWriter pending = new ByteWriter(4096);
+    private long pendingFirstLsn;
+    private long pendingLastLsn;
+    // 写盘线程正在写一批记录（此时 channel 只由写盘线程使用）
+    private boolean writing;
+    private IOException failure;
+
+    // 组提交统计
+    private long commitCount;
+    private long recordCount;
+
+    Journal(Path dir, boolean fsync) {
+        this.dir = dir;
+        this.fsync = fsync;
+    }
+
+    /**
+     * 重放日志中 LSN 大于 afterLsn 的记录，然后打开一个新段用于追加，并启动写盘线程。
+     * 最后一段末尾不完整或校验失败的记录（写到一半时进程退出）会被截掉。
+     *
+     * @return 重放后的最后一个 LSN
+     */
+    synchronized long open(long afterLsn, RecordHandler handler) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = listSegments();
+        long lastLsn = afterLsn;
+        int replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            byte[] data = Files.readAllBytes(segment);
+            ByteReader in = new ByteReader(data);
+            int validEnd = 0;
+            boolean corrupt = false;
+            while (in.remaining() > 0) {
+                if (in.remaining() < RECORD_HEADER_SIZE) {
+                    corrupt = true;
+                    break;
+                }
+                int length = in.readInt();
+                int crc = in.readInt();
+                long lsn = in.readLong();
+                if (length < 0 || length > MAX_RECORD_SIZE || length > in.remaining()) {
+                    corrupt = true;
+                    break;
+                }
+                byte[] payload = in.readBytes(length);
+                if (crc != checksum(lsn, payload)) {
+                    corrupt = true;
+                    break;
+                }
+                if (lsn > lastLsn) {
+                    if (lsn != lastLsn + 1) {
+                        System.err.println("日志 LSN 不连续: " + lastLsn + " -> " + lsn);
+                    }
+                    handler.apply(lsn, payload);
+                    lastLsn = lsn;
+                    replayed++;
+                }
+                validEnd = in.position();
+            }
+            if (corrupt) {
+                if (i != segments.size() - 1) {
+                    // 中间的段损坏时后面的记录无法保证顺序，停止重放
+                    System.err.println("日志段损坏，停止重放: " + segment);
+                    break;
+                }
+                System.out.println("截断日志末尾不完整的记录: " + segment + " (" + (data.length - validEnd) + " 字节)");
+                try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    ch.truncate(validEnd);
+                    ch.force(true);
+                }
+            }
+        }
+        if (replayed > 0) {
+            System.out.println("已重放日志记录 " + replayed + " 条，最后 LSN: " + lastLsn);
+        }
+
+        nextLsn = lastLsn + 1;
+        durableLsn = lastLsn;
+        openSegment(nextLsn);
+
+        Thread writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return lastLsn;
+    }
+
+    /**
+     * 追加一条记录，只放入内存缓冲区，返回分配的 LSN。
+     * 需要确认落盘时再调用 awaitDurable。
+     */
+    synchronized long append(byte[] payload) {
+        long lsn = nextLsn++;
+        if (pending.size() == 0) {
+            pendingFirstLsn = lsn;
+        }
+        pending.writeInt(payload.length);
+        pending.writeInt(checksum(lsn, payload));
+        pending.writeLong(lsn);
+        pending.writeBytes(payload);
+        pendingLastLsn = lsn;
+        notifyAll();
+        return lsn;
+    }
+
+    /**
+     * 等待指定 LSN 之前的记录全部写入磁盘
+     *
+     * @return 是否成功落盘；写盘出错时返回 false
+     */
+    synchronized boolean awaitDurable(long lsn) {
+        boolean interrupted = false;
+        while (durableLsn < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return durableLsn >= lsn;
+    }
+
+    /**
+     * 最后一个已分配的 LSN
+     */
+    synchronized long lastLsn() {
+        return nextLsn - 1;
+    }
+
+    /**
+     * 当前段已写入的字节数
+     */
+    synchronized long segmentBytes() {
+        return segmentBytes + pending.size();
+    }
+
+    /**
+     * 切换到新段，之后写出的记录写入新段。只等待正在进行的一次写盘完成，不阻塞追加：
+     * 缓冲区中尚未写出的记录直接进入新段，新段以其中第一条记录的 LSN 命名。
+     */
+    synchronized void rotate() throws IOException {
+        boolean interrupted = false;
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        openSegment(pending.size() > 0 ? pendingFirstLsn : nextLsn);
+    }
+
+    /**
+     * 删除记录全部不超过 lsn 的旧段（已经被快照覆盖），当前段不会被删除
+     */
+    synchronized void deleteSegmentsUpTo(long lsn) {
+        List<Path> segments;
+        try {
+            segments = listSegments();
+        } catch (IOException e) {
+            System.err.println("列出日志段失败: " + e.getMessage());
+            return;
+        }
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            // 下一段的起始 LSN 不超过 lsn + 1，说明本段的记录都不超过 lsn
+            if (segmentStart(segments.get(i + 1)) > lsn + 1) {
+                break;
+            }
+            try {
+                Files.delete(segments.get(i));
+            } catch (IOException e) {
+                System.err.println("删除日志段失败: " + e.getMessage());
+            }
+        }
+    }
+
+    synchronized String getStatus() {
+        return "lastLsn=" + (nextLsn - 1) + ", durableLsn=" + durableLsn
+                + ", segmentBytes=" + segmentBytes
+                + ", commits=" + commitCount + ", records=" + recordCount
+                + ", recordsPerCommit=" + (commitCount == 0 ? 0 : String.format("%.2f", (double) recordCount / commitCount))
+                + (failure == null ? "" : ", error=" + failure.getMessage());
+    }
+
+    // 写盘线程：每次取走缓冲区中的全部记录，一次写入并 fsync
+    private void writeLoop() {
+        while (true) {
+            byte[] batch;
+            long firstLsn;
+            long lastLsn;
+            FileChannel ch;
+            synchronized (this) {
+                while (pending.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                firstLsn = pendingFirstLsn;
+                lastLsn = pendingLastLsn;
+                ch = channel;
+                writing = true;
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    ch.write(buffer);
+                }
+                if (fsync) {
+                    ch.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+                System.err.println("写入日志失败: " + e.getMessage());
+            }
+
+            synchronized (this) {
+                writing = false;
+                if (error == null) {
+                    segmentBytes += batch.length;
+                    durableLsn = lastLsn;
+                    commitCount++;
+                    recordCount += lastLsn - firstLsn + 1;
+                } else {
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void openSegment(long firstLsn) throws IOException {
+        Path path = dir.resolve(String.format("%020d", firstLsn) + SEGMENT_SUFFIX);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segmentBytes = 0;
+    }
+
+    // 按起始 LSN 排序的段文件列表
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(segmentStart(a), segmentStart(b)));
+        return segments;
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static int checksum(long lsn, byte[] payload) {
+        CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (lsn >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
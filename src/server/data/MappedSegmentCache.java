@@ -0,0 +1,232 @@
+package server.data;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 已关闭聊天记录段的内存映射缓存
+ * <p>
+ * 切换到新段之后旧段不会再被追加，可以整段映射为只读缓冲区，稀疏索引也在映射时一次读入内存。
+ * 读取一页历史时先在内存索引中二分定位，再在映射区中只扫描换行符，落在请求范围内的行才解码成字符串，
+ * 不需要 read 系统调用，也不会把整段内容读进堆里。
+ * <p>
+ * 映射按 LRU 限制数量。Java 没有主动解除映射的公开接口，被淘汰的映射在没有读者引用后由 GC 回收。
+ * <p>
+ * Windows 上仍被映射的文件不能删除。整理前先调用 {@link #retire} 让该段不再建立新的映射（读取改为流式），
+ * 映射被 GC 回收之前删除会失败，整理用 {@link #wasMapped} 判断是否属于这种情况并推迟到之后的整理。
+ */
+final class MappedSegmentCache {
+    // 索引项：long 序号 + long 字节位置
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * 一个已映射的段：数据区和读入内存的稀疏索引
+     */
+    private static final class MappedSegment {
+        final MappedByteBuffer data;
+        final long[] indexSeqs;
+        final int[] indexOffsets;
+
+        MappedSegment(MappedByteBuffer data, long[] indexSeqs, int[] indexOffsets) {
+            this.data = data;
+            this.indexSeqs = indexSeqs;
+            this.indexOffsets = indexOffsets;
+        }
+    }
+
+    private final int capacity;
+    // 段文件 -> 映射，按最近访问排序，由 this 保护
+    private final LinkedHashMap<Path, MappedSegment> segments;
+    // 移出缓存后可能还没有被 GC 回收的映射，段文件删除成功后移除，由 this 保护
+    private final Map<Path, WeakReference<MappedByteBuffer>> released = new HashMap<>();
+    // 等待整理删除或归档的段，不再建立映射，由 this 保护
+    private final Set<Path> retiring = new HashSet<>();
+
+    // 统计，由 this 保护
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long mappedBytes;
+
+    MappedSegmentCache(int capacity) {
+        this.capacity = capacity;
+        this.segments = new LinkedHashMap<Path, MappedSegment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, MappedSegment> eldest) {
+                if (size() <= MappedSegmentCache.this.capacity) {
+                    return false;
+                }
+                evictions++;
+                release(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 读取一个已关闭段中序号在 [fromSeq, toSeq) 内的记录
+     *
+     * @param start 段的起始序号
+     * @return 读到的下一个序号；段超过 2GB 无法映射或正在整理时返回 -1，由调用方改用流式读取
+     */
+    long read(Path segment, Path index, long start, long fromSeq, long toSeq, List<String> out)
+            throws IOException {
+        MappedSegment mapped = get(segment, index, start);
+        if (mapped == null) {
+            return -1;
+        }
+        // 每次读取使用独立的位置，映射区本身被多个读者共享
+        ByteBuffer data = mapped.data.duplicate();
+        int limit = data.limit();
+
+        int slot = floorSlot(mapped.indexSeqs, fromSeq);
+        long seq = slot < 0 ? start : mapped.indexSeqs[slot];
+        int position = slot < 0 ? 0 : mapped.indexOffsets[slot];
+        while (seq < toSeq && position < limit) {
+            int end = position;
+            while (end < limit && data.get(end) != '\n') {
+                end++;
+            }
+            if (end == limit) {
+                // 末尾没有换行的半行不是完整记录
+                break;
+            }
+            if (seq >= fromSeq) {
+                out.add(decode(data, position, end));
+            }
+            seq++;
+            position = end + 1;
+        }
+        return Math.max(seq, fromSeq);
+    }
+
+    /**
+     * 段即将被归档或删除：移除其映射，之后的读取不再映射该段
+     */
+    synchronized void retire(Path segment) {
+        retiring.add(segment);
+        MappedSegment mapped = segments.remove(segment);
+        if (mapped != null) {
+            release(segment, mapped);
+        }
+    }
+
+    /**
+     * 段是否被映射过且还没有确认释放，删除失败时据此判断是否是映射未回收导致的
+     */
+    synchronized boolean wasMapped(Path segment) {
+        return segments.containsKey(segment) || released.containsKey(segment);
+    }
+
+    /**
+     * 段文件已经删除，清除它的记录
+     */
+    synchronized void forget(Path segment) {
+        retiring.remove(segment);
+        released.remove(segment);
+    }
+
+    private void release(Path segment, MappedSegment mapped) {
+        mappedBytes -= mapped.data.capacity();
+        released.put(segment, new WeakReference<>(mapped.data));
+    }
+
+    synchronized String getStatus() {
+        int unreclaimed = 0;
+        for (WeakReference<MappedByteBuffer> ref : released.values()) {
+            if (ref.get() != null) {
+                unreclaimed++;
+            }
+        }
+        return "mappedSegments=" + segments.size() + "/" + capacity + ", mappedBytes=" + mappedBytes
+                + ", unreclaimedMappings=" + unreclaimed
+                + ", mapHits=" + hits + ", mapMisses=" + misses + ", mapEvictions=" + evictions;
+    }
+
+    private synchronized MappedSegment get(Path segment, Path index, long start) throws IOException {
+        MappedSegment mapped = segments.get(segment);
+        if (mapped != null) {
+            hits++;
+            return mapped;
+        }
+        if (retiring.contains(segment)) {
+            return null;
+        }
+        misses++;
+        mapped = map(segment, index, start);
+        if (mapped != null) {
+            segments.put(segment, mapped);
+            mappedBytes += mapped.data.capacity();
+        }
+        return mapped;
+    }
+
+    private static MappedSegment map(Path segment, Path index, long start) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // 映射建立后即使关闭通道也保持有效
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(index);
+        } catch (NoSuchFileException e) {
+            bytes = new byte[0];
+        }
+        ByteBuffer entries = ByteBuffer.wrap(bytes);
+        int count = bytes.length / INDEX_ENTRY_SIZE;
+        long[] seqs = new long[count];
+        int[] offsets = new int[count];
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            long seq = entries.getLong();
+            long offset = entries.getLong();
+            // 只保留递增且落在数据范围内的索引项，其余的忽略（从上一项顺序扫描仍然正确）
+            if (seq < start || offset < 0 || offset >= data.capacity()
+                    || valid > 0 && (seq <= seqs[valid - 1] || offset <= offsets[valid - 1])) {
+                continue;
+            }
+            seqs[valid] = seq;
+            offsets[valid] = (int) offset;
+            valid++;
+        }
+        return new MappedSegment(data, Arrays.copyOf(seqs, valid), Arrays.copyOf(offsets, valid));
+    }
+
+    // 序号不超过 seq 的最后一个索引项的下标，没有时返回 -1
+    private static int floorSlot(long[] seqs, long seq) {
+        int slot = Arrays.binarySearch(seqs, seq);
+        return slot >= 0 ? slot : -slot - 2;
+    }
+
+    // 兼容旧文件中的 \r\n 换行
+    private static String decode(ByteBuffer data, int from, int to) {
+        if (to > from && data.get(to - 1) == '\r') {
+            to--;
+        }
+        byte[] bytes = new byte[to - from];
+        data.position(from);
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package server.data;
+
+import util.IntHashSet;
+
+import java.util.Arrays;
+
+/**
+ * 用户与群聊之间的双向成员索引
+ * <p>
+ * 群聊 -> 成员由 GroupData 的成员快照提供，这里维护反方向的用户 -> 所在群聊。
+ * 两个方向都只在 ServerData 的修改锁内、与群成员的修改一起更新（日志重放同样经过这里），因此始终一致。
+ * 删除用户时只需处理该用户所在的群，代价与群聊总数无关。
+ * <p>
+ * 按用户句柄直接下标访问，每个用户一个群聊句柄集合，不装箱也不计算字符串哈希。
+ * 索引只在修改锁内（或加载数据、尚未开始接受修改时）读写，不做额外同步。
+ */
+final class MembershipIndex {
+    private static final String[] NO_GROUPS = new String[0];
+    private static final int[] NO_HANDLES = new int[0];
+
+    // 下标为用户句柄，值为所在群聊的句柄集合，为 null 表示不在任何群聊中
+    private IntHashSet[] userGroups = new IntHashSet[1024];
+
+    /**
+     * 按群聊表重建索引，加载快照之后、重放日志之前调用
+     */
+    void rebuild(GroupStore groups) {
+        Arrays.fill(userGroups, null);
+        for (GroupData group : groups.values()) {
+            int groupHandle = SymbolTable.GROUPS.intern(group.getGroupId());
+            group.getMemberArray().handles().forEach(userHandle -> add(userHandle, groupHandle));
+        }
+    }
+
+    void add(String userId, String groupId) {
+        add(SymbolTable.USERS.intern(userId), SymbolTable.GROUPS.intern(groupId));
+    }
+
+    void add(int userHandle, int groupHandle) {
+        if (userHandle >= userGroups.length) {
+            userGroups = Arrays.copyOf(userGroups, Math.max(userGroups.length * 2, userHandle + 1));
+        }
+        IntHashSet groups = userGroups[userHandle];
+        if (groups == null) {
+            groups = new IntHashSet();
+            userGroups[userHandle] = groups;
+        }
+        groups.add(groupHandle);
+    }
+
+    void remove(int userHandle, int groupHandle) {
+        IntHashSet groups = groupsOf(userHandle);
+        if (groups != null) {
+            groups.remove(groupHandle);
+            if (groups.isEmpty()) {
+                userGroups[userHandle] = null;
+            }
+        }
+    }
+
+    /**
+     * 用户所在的全部群聊句柄（新数组），不在任何群聊中时返回空数组
+     */
+    int[] groupHandles(int userHandle) {
+        IntHashSet groups = groupsOf(userHandle);
+        return groups == null ? NO_HANDLES : groups.toArray();
+    }
+
+    /**
+     * 用户所在的全部群聊id（新数组），不在任何群聊中时返回空数组
+     */
+    String[] groupsOf(String userId) {
+        IntHashSet groups = groupsOf(SymbolTable.USERS.handleOf(userId));
+        if (groups == null) {
+            return NO_GROUPS;
+        }
+        int[] handles = groups.toArray();
+        String[] ids = new String[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+            ids[i] = SymbolTable.GROUPS.nameOf(handles[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * 两个用户共同所在的群聊id，逐个检查较小的一方
+     */
+    String[] commonGroups(String userId, String otherId) {
+        IntHashSet a = groupsOf(SymbolTable.USERS.handleOf(userId));
+        IntHashSet b = groupsOf(SymbolTable.USERS.handleOf(otherId));
+        if (a == null || b == null) {
+            return NO_GROUPS;
+        }
+        if (a.size() > b.size()) {
+            IntHashSet t = a;
+            a = b;
+            b = t;
+        }
+        int[] candidates = a.toArray();
+        String[] common = new String[candidates.length];
+        int n = 0;
+        for (int group : candidates) {
+            if (b.contains(group)) {
+                common[n++] = SymbolTable.GROUPS.nameOf(group);
+            }
+        }
+        return Arrays.copyOf(common, n);
+    }
+
+    private IntHashSet groupsOf(int userHandle) {
+        return userHandle >= 0 && userHandle < userGroups.length ? userGroups[userHandle] : null;
+    }
+}
@@ -0,0 +1,93 @@
+package server.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 只保存在内存中的聊天记录，用于内存存储模式、测试和基准。
+ * 每个会话一个消息列表和一个不落盘的搜索索引（全部消息算作同一段），进程退出后记录丢失。
+ */
+public class MemoryChatStore implements ChatStore {
+    /**
+     * 一个会话的消息，由自身保护
+     */
+    private static final class Conversation {
+        final List<String> messages = new ArrayList<>();
+        final ChatSearchIndex index = new ChatSearchIndex(null);
+    }
+
+    private final ConcurrentHashMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+
+    @Override
+    public void append(String conversationId, String content) {
+        if (conversationId == null || content == null) {
+            return;
+        }
+        Conversation conversation = conversation(conversationId);
+        synchronized (conversation) {
+            long seq = conversation.messages.size();
+            conversation.messages.add(content);
+            conversation.index.append(0, seq, Collections.singletonList(content));
+        }
+    }
+
+    @Override
+    public List<String> readBefore(String conversationId, long beforeSeq, int limit) {
+        Conversation conversation = conversation(conversationId);
+        synchronized (conversation) {
+            int end = (int) Math.min(beforeSeq, conversation.messages.size());
+            int start = Math.max(0, end - Math.max(0, limit));
+            return new ArrayList<>(conversation.messages.subList(start, end));
+        }
+    }
+
+    @Override
+    public long messageCount(String conversationId) {
+        Conversation conversation = conversation(conversationId);
+        synchronized (conversation) {
+            return conversation.messages.size();
+        }
+    }
+
+    @Override
+    public long firstSeq(String conversationId) {
+        return 0;
+    }
+
+    @Override
+    public List<SearchHit> search(String conversationId, String query, int limit) {
+        Conversation conversation = conversation(conversationId);
+        List<SearchHit> result = new ArrayList<>();
+        synchronized (conversation) {
+            for (ChatSearchIndex.Hit hit : conversation.index.search(query, limit)) {
+                result.add(new SearchHit(hit.seq, hit.score, conversation.messages.get((int) hit.seq)));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getStatus() {
+        long messages = 0;
+        for (Conversation conversation : conversations.values()) {
+            synchronized (conversation) {
+                messages += conversation.messages.size();
+            }
+        }
+        return "memory, conversations=" + conversations.size() + ", messages=" + messages;
+    }
+
+    private Conversation conversation(String id) {
+        return conversations.computeIfAbsent(id, k -> new Conversation());
+    }
+}
@@ -0,0 +1,65 @@
+package server.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 ConcurrentHashMap 的群聊表。
+ * 文件存储模式下同样使用这张表，由 ServerData 通过快照和日志持久化；内存存储模式下只保存在内存中。
+ */
+public class MemoryGroupStore implements GroupStore {
+    private final ConcurrentHashMap<String, GroupData> groups;
+
+    public MemoryGroupStore() {
+        this.groups = new ConcurrentHashMap<>();
+    }
+
+    // 直接使用传入的表（快照加载时已经按记录数分配好容量），不是 ConcurrentHashMap 时复制一份
+    public MemoryGroupStore(Map<String, GroupData> groups) {
+        this.groups = groups instanceof ConcurrentHashMap
+                ? (ConcurrentHashMap<String, GroupData>) groups
+                : new ConcurrentHashMap<>(groups);
+    }
+
+    @Override
+    public GroupData get(String groupId) {
+        return groups.get(groupId);
+    }
+
+    @Override
+    public void put(String groupId, GroupData user) {
+        groups.put(groupId, user);
+    }
+
+    @Override
+    public GroupData remove(String groupId) {
+        return groups.remove(groupId);
+    }
+
+    @Override
+    public boolean contains(String groupId) {
+        return groups.containsKey(groupId);
+    }
+
+    @Override
+    public int size() {
+        return groups.size();
+    }
+
+    @Override
+    public Collection<GroupData> values() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    @Override
+    public Map<String, GroupData> asMap() {
+        return Collections.unmodifiableMap(groups);
+    }
+
+    @Override
+    public Map<String, GroupData> copy() {
+        return new ConcurrentHashMap<>(groups);
+    }
+}
@@ -0,0 +1,65 @@
+package server.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 ConcurrentHashMap 的用户表。
+ * 文件存储模式下同样使用这张表，由 ServerData 通过快照和日志持久化；内存存储模式下只保存在内存中。
+ */
+public class MemoryUserStore implements UserStore {
+    private final ConcurrentHashMap<String, UserData> users;
+
+    public MemoryUserStore() {
+        this.users = new ConcurrentHashMap<>();
+    }
+
+    // 直接使用传入的表（快照加载时已经按记录数分配好容量），不是 ConcurrentHashMap 时复制一份
+    public MemoryUserStore(Map<String, UserData> users) {
+        this.users = users instanceof ConcurrentHashMap
+                ? (ConcurrentHashMap<String, UserData>) users
+                : new ConcurrentHashMap<>(users);
+    }
+
+    @Override
+    public UserData get(String userId) {
+        return users.get(userId);
+    }
+
+    @Override
+    public void put(String userId, UserData user) {
+        users.put(userId, user);
+    }
+
+    @Override
+    public UserData remove(String userId) {
+        return users.remove(userId);
+    }
+
+    @Override
+    public boolean contains(String userId) {
+        return users.containsKey(userId);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public Collection<UserData> values() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    @Override
+    public Map<String, UserData> asMap() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    @Override
+    public Map<String, UserData> copy() {
+        return new ConcurrentHashMap<>(users);
+    }
+}
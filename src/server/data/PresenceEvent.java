@@ -0,0 +1,42 @@
+package server.data;
+
+/**
+ * 一个用户在一个群聊中的在线状态变化：上线、下线，或者在线期间加入、离开群聊（包括群聊被删除）。
+ */
+public final class PresenceEvent {
+    private final String groupId;
+    private final String userId;
+    private final boolean online;
+    private final int onlineCount;
+
+    PresenceEvent(String groupId, String userId, boolean online, int onlineCount) {
+        this.groupId = groupId;
+        this.userId = userId;
+        this.online = online;
+        this.onlineCount = onlineCount;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    // 变化后该用户是否算作这个群聊的在线成员
+    public boolean isOnline() {
+        return online;
+    }
+
+    // 变化后群聊的在线成员数
+    public int getOnlineCount() {
+        return onlineCount;
+    }
+
+    @Override
+    public String toString() {
+        return "PresenceEvent{groupId='" + groupId + "', userId='" + userId + "', online=" + online
+                + ", onlineCount=" + onlineCount + '}';
+    }
+}
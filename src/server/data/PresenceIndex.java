@@ -0,0 +1,144 @@
+package server.data;
+
+import util.IntBitmap;
+import util.IntHashSet;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 每个群聊当前在线成员的索引
+ * <p>
+ * 下标为群聊句柄，值为在线成员句柄的位图（不可变，替换发布）。群发消息时只遍历在线成员，
+ * 代价与在线人数成正比，与群成员总数无关。
+ * <p>
+ * 用户上线、下线，以及在线用户加入、离开群聊时增量更新，这些修改都在 ServerData 的修改锁内进行，
+ * 与成员索引的修改顺序一致；读取不加锁。每次变化生成一个 PresenceEvent，有监听器时交给事件线程依次回调。
+ */
+final class PresenceIndex {
+    // 当前在线的用户句柄，只在修改锁内访问
+    private final IntHashSet onlineUsers = new IntHashSet();
+    private volatile AtomicReferenceArray<IntBitmap> groups = new AtomicReferenceArray<>(1024);
+
+    private final CopyOnWriteArrayList<PresenceListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile ExecutorService dispatcher;
+
+    /**
+     * 群聊当前的在线成员，群聊不存在或没有人在线时返回空位图
+     */
+    IntBitmap onlineMembers(int groupHandle) {
+        AtomicReferenceArray<IntBitmap> current = groups;
+        if (groupHandle < 0 || groupHandle >= current.length()) {
+            return IntBitmap.EMPTY;
+        }
+        IntBitmap members = current.get(groupHandle);
+        return members == null ? IntBitmap.EMPTY : members;
+    }
+
+    // 以下修改方法都在 ServerData 的修改锁内调用
+
+    /**
+     * 用户上线，加入其所在各群的在线成员；已经在线时不做任何事
+     */
+    void userOnline(int userHandle, int[] groupHandles) {
+        if (onlineUsers.add(userHandle)) {
+            for (int group : groupHandles) {
+                add(group, userHandle);
+            }
+        }
+    }
+
+    /**
+     * 用户下线，从其所在各群的在线成员中移除；已经下线时不做任何事
+     */
+    void userOffline(int userHandle, int[] groupHandles) {
+        if (onlineUsers.remove(userHandle)) {
+            for (int group : groupHandles) {
+                remove(group, userHandle);
+            }
+        }
+    }
+
+    /**
+     * 用户加入群聊，在线时计入该群的在线成员
+     */
+    void memberAdded(int userHandle, int groupHandle) {
+        if (onlineUsers.contains(userHandle)) {
+            add(groupHandle, userHandle);
+        }
+    }
+
+    /**
+     * 用户离开群聊（包括群聊被删除、用户被删除）
+     */
+    void memberRemoved(int userHandle, int groupHandle) {
+        remove(groupHandle, userHandle);
+    }
+
+    private void add(int groupHandle, int userHandle) {
+        AtomicReferenceArray<IntBitmap> current = groups;
+        if (groupHandle >= current.length()) {
+            AtomicReferenceArray<IntBitmap> grown =
+                    new AtomicReferenceArray<>(Math.max(current.length() * 2, groupHandle + 1));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            groups = grown;
+            current = grown;
+        }
+        IntBitmap members = onlineMembers(groupHandle);
+        IntBitmap next = members.with(userHandle);
+        if (next != members) {
+            current.set(groupHandle, next);
+            fire(groupHandle, userHandle, true, next.cardinality());
+        }
+    }
+
+    private void remove(int groupHandle, int userHandle) {
+        IntBitmap members = onlineMembers(groupHandle);
+        IntBitmap next = members.without(userHandle);
+        if (next != members) {
+            groups.set(groupHandle, next.isEmpty() ? null : next);
+            fire(groupHandle, userHandle, false, next.cardinality());
+        }
+    }
+
+    void addListener(PresenceListener listener) {
+        if (dispatcher == null) {
+            synchronized (this) {
+                if (dispatcher == null) {
+                    dispatcher = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "presence-events");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        listeners.add(listener);
+    }
+
+    void removeListener(PresenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    // 在修改锁内按发生顺序放入事件线程的队列，回调在锁外执行；没有监听器时不创建事件
+    private void fire(int groupHandle, int userHandle, boolean online, int onlineCount) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        PresenceEvent event = new PresenceEvent(SymbolTable.GROUPS.nameOf(groupHandle),
+                SymbolTable.USERS.nameOf(userHandle), online, onlineCount);
+        dispatcher.execute(() -> {
+            for (PresenceListener listener : listeners) {
+                try {
+                    listener.onPresenceChanged(event);
+                } catch (RuntimeException e) {
+                    System.err.println("在线状态监听器出错: " + e.getMessage());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,11 @@
+package server.data;
+
+/**
+ * 群聊在线状态变化的监听器，通过 ServerData.addPresenceListener 注册。
+ * <p>
+ * 回调在单独的事件线程中按发生顺序依次执行，不在登录、修改数据的线程里执行；
+ * 实现不应长时间阻塞，否则后面的事件会排队等待。
+ */
+public interface PresenceListener {
+    void onPresenceChanged(PresenceEvent event);
+}
@@ -1,26 +1,49 @@
 package server.data;
 
+import server.ServerConfig;
+import util.ByteReader;
+import util.ByteWriter;
 import util.FileUtil;
+import util.IntBitmap;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // 服务器数据,单个服务器仅对应一个服务器数据集合。
-// 允许存储，用于数据持久化
+// 用户、群聊和聊天记录分别保存在 UserStore、GroupStore、ChatStore 中，由 localchat.storage 选择实现
+// 文件存储模式下用于数据持久化：定期写完整快照（检查点），两次检查点之间的修改记录在追加式日志中
 // 辅助进行数据核验
 public class ServerData implements Serializable {
     private static final long serialVersionUID = 5016807647175865383L;
 
     private static volatile ServerData instance = null;
+    // 正在加载的对象，只在持有类锁时读写；加载过程中同一线程再次获取实例时返回它，避免递归加载
+    private static ServerData loading = null;
 
-    // 获取唯一的serverData对象（线程安全的懒加载）
+    // 获取唯一的serverData对象（线程安全的懒加载）。
+    // 快照读入、日志重放完成后才发布实例，加载期间其他线程在类锁上等待，不会拿到还没有数据的对象
     public static ServerData getInstance() {
         if (instance == null) {
             synchronized (ServerData.class) {
                 if (instance == null) {
-                    instance = new ServerData();
-                    instance.loadData();
+                    if (loading != null) {
+                        return loading;
+                    }
+                    ServerData data;
+                    if (ServerConfig.STORAGE_MEMORY.equals(ServerConfig.STORAGE_MODE)) {
+                        data = new ServerData(new MemoryUserStore(), new MemoryGroupStore(), new MemoryChatStore());
+                    } else {
+                        data = new ServerData(new MemoryUserStore(), new MemoryGroupStore(),
+                                ChatLogStore.getInstance(), true);
+                    }
+                    loading = data;
+                    try {
+                        data.loadData();
+                    } finally {
+                        loading = null;
+                    }
+                    instance = data;
                 }
             }
         }
@@ -34,15 +57,77 @@ public class ServerData implements Serializable {
         }
     }
 
-    private Map<String, UserData> serverUsers;
-    private Map<String, GroupData> serverGroups;
+    // ====================== 日志记录类型 ======================
+    private static final int M_ADD_USER = 1;          // 用户id, 昵称, 密码
+    private static final int M_REMOVE_USER = 2;       // 用户id
+    private static final int M_USER_NAME = 3;         // 用户id, 昵称
+    private static final int M_USER_PWD = 4;          // 用户id, 密码
+    private static final int M_USER_DETAIL = 5;       // 用户id, 邮箱, 生日, 地址, 签名
+    private static final int M_ADD_FRIEND = 6;        // 用户id, 好友id
+    private static final int M_ADD_GROUP = 7;         // 群聊id, 群名, 群主id, 成员id...
+    private static final int M_ADD_USER_GROUP = 8;    // 用户id, 群聊id
+    private static final int M_REMOVE_GROUP = 9;      // 群聊id
+    private static final int M_GROUP_NAME = 10;       // 群聊id, 群名
+    private static final int M_GROUP_OWNER = 11;      // 群聊id, 群主id
+    private static final int M_ADD_MEMBER = 12;       // 群聊id, 用户id
+    private static final int M_REMOVE_MEMBER = 13;    // 群聊id, 用户id
+    private static final int M_REMOVE_USER_GROUP = 14; // 用户id, 群聊id
+
+    // 兼容旧版本 Java 序列化的数据文件：序列化形式仍是两张表和检查点 LSN，见 readObject/writeObject
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("serverUsers", Map.class),
+            new ObjectStreamField("serverGroups", Map.class),
+            new ObjectStreamField("checkpointLsn", long.class)
+    };
+
+    private transient UserStore serverUsers;
+    private transient GroupStore serverGroups;
+    private transient ChatStore chatStore;
+    // 用户 -> 所在群聊的反向索引，与群成员一起在修改锁内更新
+    private final transient MembershipIndex membership = new MembershipIndex();
+    // 每个群聊当前在线的成员，随登录、下线和成员变化在修改锁内更新
+    private final transient PresenceIndex presence = new PresenceIndex();
+    // 是否读写快照和日志，内存存储模式和直接传入存储创建的实例不持久化
+    private transient boolean persistent;
+    // 快照对应的最后一个日志 LSN，加载时只重放之后的记录
+    private long checkpointLsn;
     private transient boolean dataLoaded = false;
 
-    // 处理服务器信息的主类
+    // 修改锁：保证内存修改顺序与日志记录顺序一致
+    private final transient Object mutationLock = new Object();
+    private final transient Object checkpointLock = new Object();
+    private final transient AtomicBoolean checkpointRequested = new AtomicBoolean(false);
+    private transient Journal journal;
+    // 写时复制版本号，每次检查点拍快照时加一，由修改锁保护
+    private transient int cowEpoch;
+    // 正在写的检查点用来还原冻结时刻表内容的记录，没有检查点时为 null，由修改锁保护
+    private transient SnapshotCapture<UserData> userCapture;
+    private transient SnapshotCapture<GroupData> groupCapture;
+    // 修改次数与上次检查点时的修改次数，用于跳过没有变化的检查点
+    private transient long mutationCount;
+    private transient long checkpointMutationCount;
+
+    // 处理服务器信息的主类，只作为加载和保存快照时的数据载体
     public ServerData() {
         // 初始化空数据
-        serverUsers = new ConcurrentHashMap<>();
-        serverGroups = new ConcurrentHashMap<>();
+        this(new MemoryUserStore(), new MemoryGroupStore(), null, false);
+    }
+
+    /**
+     * 使用指定的存储创建，数据只保存在这些存储中，不读写快照和日志（用于测试和基准）
+     */
+    public ServerData(UserStore userStore, GroupStore groupStore, ChatStore chatStore) {
+        this(userStore, groupStore, chatStore, false);
+        // 传入的存储中可能已有数据
+        membership.rebuild(groupStore);
+        dataLoaded = true;
+    }
+
+    private ServerData(UserStore userStore, GroupStore groupStore, ChatStore chatStore, boolean persistent) {
+        this.serverUsers = userStore;
+        this.serverGroups = groupStore;
+        this.chatStore = chatStore;
+        this.persistent = persistent;
     }
 
     // 显式加载数据的方法
@@ -50,123 +135,564 @@ public class ServerData implements Serializable {
         if (!dataLoaded) {
             synchronized (this) {
                 if (!dataLoaded) {
+                    if (!persistent) {
+                        // 数据载体不需要加载
+                        dataLoaded = true;
+                        return;
+                    }
+                    long startNanos = System.nanoTime();
                     ServerData loadedData = FileUtil.loadServerData();
 
                     if (loadedData != null) {
-                        // 如果加载到了数据，合并到当前实例
-                        if (loadedData.getServerUsers() != null) {
-                            this.serverUsers = loadedData.getServerUsers();
+                        // 如果加载到了数据，合并到当前实例（直接使用加载时建好的表，不再逐条复制）
+                        if (loadedData.serverUsers != null) {
+                            this.serverUsers = loadedData.serverUsers;
                         }
-                        if (loadedData.getServerGroups() != null) {
-                            this.serverGroups = loadedData.getServerGroups();
+                        if (loadedData.serverGroups != null) {
+                            this.serverGroups = loadedData.serverGroups;
                         }
 
+                        this.checkpointLsn = loadedData.checkpointLsn;
+
                         System.out.println("服务器数据加载成功，用户数: " +
                                 (serverUsers != null ? serverUsers.size() : 0) +
-                                ", 群组数: " + (serverGroups != null ? serverGroups.size() : 0));
+                                ", 群组数: " + (serverGroups != null ? serverGroups.size() : 0) +
+                                ", 耗时: " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
                     } else {
                         System.out.println("未找到数据文件或加载失败，使用初始化空数据");
                     }
 
+                    // 在快照之上重放日志，再打开日志接收新的修改
+                    validateData();
+                    membership.rebuild(serverGroups);
+                    Journal journal = new Journal(FileUtil.getJournalDir(), ServerConfig.JOURNAL_FSYNC);
+                    try {
+                        if (journal.open(checkpointLsn, this::replayMutation) > checkpointLsn) {
+                            // 重放了快照之后的修改，下一次检查点不能跳过
+                            checkpointMutationCount = -1;
+                        }
+                        this.journal = journal;
+                    } catch (IOException e) {
+                        System.err.println("打开数据日志失败，修改只能通过检查点保存: " + e.getMessage());
+                    }
+
                     dataLoaded = true;
+                    System.out.println("服务器数据就绪，总耗时: " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+                    if (ServerConfig.SNAPSHOT_BACKGROUND_HYDRATE) {
+                        startHydration();
+                    }
                 }
             }
         }
     }
 
+    // 在后台低优先级线程中解码快照里还没有解码的用户扩展信息，请求线程访问到的用户会先一步在访问时解码
+    private void startHydration() {
+        UserStore users = serverUsers;
+        Thread t = new Thread(() -> {
+            long startNanos = System.nanoTime();
+            int hydrated = 0;
+            for (UserData user : users.values()) {
+                if (!user.isHydrated()) {
+                    user.hydrate();
+                    hydrated++;
+                }
+            }
+            if (hydrated > 0) {
+                System.out.println("用户扩展信息解码完成: " + hydrated + " 个用户，耗时: "
+                        + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+            }
+        }, "user-detail-hydrator");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    // 旧版本数据文件中的两张表读入后放进内存表
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Map<String, UserData> users = (Map<String, UserData>) fields.get("serverUsers", null);
+        Map<String, GroupData> groups = (Map<String, GroupData>) fields.get("serverGroups", null);
+        serverUsers = users == null ? null : new MemoryUserStore(users);
+        serverGroups = groups == null ? null : new MemoryGroupStore(groups);
+        checkpointLsn = fields.get("checkpointLsn", 0L);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("serverUsers", serverUsers == null ? null : serverUsers.copy());
+        fields.put("serverGroups", serverGroups == null ? null : serverGroups.copy());
+        fields.put("checkpointLsn", checkpointLsn);
+        out.writeFields();
+    }
+
     // 验证数据是否已正确初始化
     private void validateData() {
         if (serverUsers == null) {
-            serverUsers = new ConcurrentHashMap<>();
+            serverUsers = new MemoryUserStore();
         }
         if (serverGroups == null) {
-            serverGroups = new ConcurrentHashMap<>();
+            serverGroups = new MemoryGroupStore();
         }
     }
 
-    // 保存服务器数据到本地
+    // 保存服务器数据到本地（写检查点）
     public void saveServerData() {
         validateData(); // 确保数据有效
         FileUtil.saveServerData();
     }
 
+    // ====================== 修改操作 ======================
+    // 所有修改都通过 mutate 执行：先修改内存，再向日志追加一条记录并等待组提交落盘。
+    // 重放日志时同样通过 applyMutation 执行，保证两条路径的效果一致。
+
     // 添加用户
     public void addUser(UserData userData) {
-        serverUsers.put(userData.getUserId(), userData);
+        mutate(M_ADD_USER, userData.getUserId(), userData.getNickname(), userData.getPassword());
     }
 
     // 移除用户
     public void removeUser(String userId) {
-        serverUsers.remove(userId);
-        serverGroups.values().forEach(groupData -> {
-            groupData.removeMember(userId);
-            if (groupData.getMemberCount() == 0) {
-                removeGroup(groupData.getGroupId());
-            }
-        });
+        mutate(M_REMOVE_USER, userId);
     }
 
     // 修改用户名字
     public void updateUserName(String userId, String newName) {
-        serverUsers.get(userId).setNikename(newName);
+        mutate(M_USER_NAME, userId, newName);
     }
 
     public void updateUserPwd(String userId, String newPwd) {
-        serverUsers.get(userId).setPassword(newPwd);
+        mutate(M_USER_PWD, userId, newPwd);
+    }
+
+    // 修改用户详细信息
+    public void updateUserDetail(String userId, String email, String birthday, String address, String signature) {
+        mutate(M_USER_DETAIL, userId, email, birthday, address, signature);
+    }
+
+    // 互相添加好友
+    public void addFriendship(String userId, String friendId) {
+        mutate(M_ADD_FRIEND, userId, friendId);
     }
 
     // 添加群聊
     public void addGroup(GroupData groupData) {
-        serverGroups.put(groupData.getGroupId(), groupData);
-        // 更新关联用户信息
-        groupData.getMembers().forEach(member -> {
-            addGroupToUser(member.id, groupData.getGroupId());
-        });
+        String owner = groupData.getGroupOwner() == null ? null : groupData.getGroupOwner().id;
+        List<String> args = new ArrayList<>();
+        args.add(groupData.getGroupId());
+        args.add(groupData.getGroupName());
+        args.add(owner);
+        args.addAll(groupData.getMemberArray().asList());
+        mutate(M_ADD_GROUP, args.toArray(new String[0]));
     }
 
     public void addGroupToUser(String userId, String groupId) {
-        serverUsers.get(userId).addGroupId(groupId);
+        mutate(M_ADD_USER_GROUP, userId, groupId);
     }
 
     // 移除群聊
     public void removeGroup(String groupId) {
-        GroupData groupData = serverGroups.remove(groupId);
-        groupData.getMembers().forEach(member -> {
-            serverUsers.get(member.id).removeGroup(groupData.getGroupId());
-        });
+        mutate(M_REMOVE_GROUP, groupId);
     }
 
     // 更新群聊信息
     public void updateGroupName(String groupId, String newName) {
-        serverGroups.get(groupId).setGroupName(newName);
+        mutate(M_GROUP_NAME, groupId, newName);
     }
 
     public void updateGroupOwner(String groupId, String newOwnerId) {
-        serverGroups.get(groupId).setGroupOwner(newOwnerId);
+        mutate(M_GROUP_OWNER, groupId, newOwnerId);
     }
 
     // 添加群聊成员
     public void addUserToGroup(String groupId, String userId) {
-        serverGroups.get(groupId).addMember(userId);
+        mutate(M_ADD_MEMBER, groupId, userId);
     }
 
     // 移除群聊成员
     public void removeUserFromGroup(String groupId, String userId) {
-        serverGroups.values().forEach(groupData -> {
-            if (groupData.getGroupId().equals(groupId)) {
-                groupData.removeMember(userId);
-            }
-        });
+        mutate(M_REMOVE_MEMBER, groupId, userId);
     }
 
     // 移除成员的群聊
     public void removeGroupFromUser(String userId, String groupId) {
-        serverUsers.get(userId).removeGroup(groupId);
+        mutate(M_REMOVE_USER_GROUP, userId, groupId);
+    }
+
+    /**
+     * 执行一次修改并写入日志。修改和追加在同一把锁内完成，日志顺序与内存中的修改顺序一致；
+     * 等待落盘在锁外进行，多个线程的修改由写盘线程合并成一次 fsync。
+     * 修改本身抛出异常（如用户不存在）时不会写入日志。
+     */
+    private void mutate(int type, String... args) {
+        long lsn;
+        Journal journal;
+        synchronized (mutationLock) {
+            applyMutation(type, args);
+            mutationCount++;
+            journal = this.journal;
+            if (journal == null) {
+                return;
+            }
+            lsn = journal.append(encodeMutation(type, args));
+        }
+        if (!journal.awaitDurable(lsn)) {
+            System.err.println("数据修改未能写入日志，LSN: " + lsn);
+        }
+        if (journal.segmentBytes() >= ServerConfig.JOURNAL_CHECKPOINT_BYTES
+                && checkpointRequested.compareAndSet(false, true)) {
+            // 日志过大时在后台写检查点，缩短重启时的重放时间
+            Thread t = new Thread(() -> {
+                try {
+                    checkpoint();
+                } finally {
+                    checkpointRequested.set(false);
+                }
+            }, "server-data-checkpoint");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // 按记录类型修改内存数据，正常修改和日志重放共用。
+    // 修改已有的用户/群聊对象前先通过 writableUser/writableGroup 取得可写对象，不直接修改快照引用的对象
+    private void applyMutation(int type, String[] args) {
+        switch (type) {
+            case M_ADD_USER: {
+                UserData user = new UserData(args[1], args[0], args[2]);
+                user.cowEpoch = cowEpoch;
+                putUser(args[0], user);
+                break;
+            }
+            case M_REMOVE_USER:
+                applyRemoveUser(args[0]);
+                break;
+            case M_USER_NAME:
+                writableUser(args[0]).setNikename(args[1]);
+                break;
+            case M_USER_PWD:
+                writableUser(args[0]).setPassword(args[1]);
+                break;
+            case M_USER_DETAIL: {
+                UserData user = writableUser(args[0]);
+                user.setEmail(args[1]);
+                user.setBirthday(args[2]);
+                user.setAddress(args[3]);
+                user.setSignature(args[4]);
+                break;
+            }
+            case M_ADD_FRIEND: {
+                UserData user = writableUser(args[0]);
+                UserData friend = writableUser(args[1]);
+                user.addFriend(args[1]);
+                friend.addFriend(args[0]);
+                break;
+            }
+            case M_ADD_GROUP: {
+                GroupData groupData = new GroupData(args[0], args[1], args[2]);
+                groupData.addMembers(Arrays.copyOfRange(args, 3, args.length));
+                groupData.cowEpoch = cowEpoch;
+                putGroup(groupData.getGroupId(), groupData);
+                // 更新关联用户信息
+                for (String member : groupData.getMemberArray().asList()) {
+                    writableUser(member).addGroupId(groupData.getGroupId());
+                    addMembership(member, groupData.getGroupId());
+                }
+                break;
+            }
+            case M_ADD_USER_GROUP:
+                writableUser(args[0]).addGroupId(args[1]);
+                break;
+            case M_REMOVE_GROUP:
+                applyRemoveGroup(args[0]);
+                break;
+            case M_GROUP_NAME:
+                writableGroup(args[0]).setGroupName(args[1]);
+                break;
+            case M_GROUP_OWNER:
+                writableGroup(args[0]).setGroupOwner(args[1]);
+                break;
+            case M_ADD_MEMBER:
+                writableGroup(args[0]).addMember(args[1]);
+                addMembership(args[1], args[0]);
+                break;
+            case M_REMOVE_MEMBER: {
+                GroupData groupData = serverGroups.get(args[0]);
+                if (groupData != null && groupData.hasMember(args[1])) {
+                    writableGroup(args[0]).removeMember(args[1]);
+                    removeMembership(args[1], args[0]);
+                }
+                break;
+            }
+            case M_REMOVE_USER_GROUP:
+                writableUser(args[0]).removeGroup(args[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("未知的数据修改类型: " + type);
+        }
+    }
+
+    // 只处理该用户所在的群（由反向索引给出），不遍历全部群聊
+    private void applyRemoveUser(String userId) {
+        removeUserEntry(userId);
+        for (String groupId : membership.groupsOf(userId)) {
+            GroupData writable = writableGroup(groupId);
+            writable.removeMember(userId);
+            removeMembership(userId, groupId);
+            if (writable.getMemberCount() == 0) {
+                applyRemoveGroup(groupId);
+            }
+        }
+    }
+
+    // 成员关系变化同时更新反向索引和在线成员索引
+    private void addMembership(String userId, String groupId) {
+        int userHandle = SymbolTable.USERS.intern(userId);
+        int groupHandle = SymbolTable.GROUPS.intern(groupId);
+        membership.add(userHandle, groupHandle);
+        presence.memberAdded(userHandle, groupHandle);
+    }
+
+    private void removeMembership(String userId, String groupId) {
+        int userHandle = SymbolTable.USERS.handleOf(userId);
+        int groupHandle = SymbolTable.GROUPS.handleOf(groupId);
+        membership.remove(userHandle, groupHandle);
+        presence.memberRemoved(userHandle, groupHandle);
+    }
+
+    private void applyRemoveGroup(String groupId) {
+        GroupData groupData = removeGroupEntry(groupId);
+        for (String member : groupData.getMemberArray().asList()) {
+            removeMembership(member, groupId);
+            if (serverUsers.contains(member)) {
+                writableUser(member).removeGroup(groupId);
+            }
+        }
+    }
+
+    // 写时复制：对象仍被上一次检查点的快照引用时，复制一份替换到表中再修改，快照看到的对象保持不变
+    private UserData writableUser(String userId) {
+        UserData user = serverUsers.get(userId);
+        if (user.cowEpoch != cowEpoch) {
+            user = user.copy();
+            user.cowEpoch = cowEpoch;
+            putUser(userId, user);
+        }
+        return user;
+    }
+
+    private GroupData writableGroup(String groupId) {
+        GroupData groupData = serverGroups.get(groupId);
+        if (groupData.cowEpoch != cowEpoch) {
+            groupData = groupData.copy();
+            groupData.cowEpoch = cowEpoch;
+            putGroup(groupId, groupData);
+        }
+        return groupData;
+    }
+
+    // 替换、添加、删除表项都经过这里，检查点进行中时先记下原值
+    private void putUser(String userId, UserData user) {
+        if (userCapture != null) {
+            userCapture.beforeChange(userId, serverUsers.get(userId));
+        }
+        serverUsers.put(userId, user);
     }
 
+    private void removeUserEntry(String userId) {
+        if (userCapture != null) {
+            userCapture.beforeChange(userId, serverUsers.get(userId));
+        }
+        serverUsers.remove(userId);
+    }
+
+    private void putGroup(String groupId, GroupData groupData) {
+        if (groupCapture != null) {
+            groupCapture.beforeChange(groupId, serverGroups.get(groupId));
+        }
+        serverGroups.put(groupId, groupData);
+    }
+
+    private GroupData removeGroupEntry(String groupId) {
+        if (groupCapture != null) {
+            groupCapture.beforeChange(groupId, serverGroups.get(groupId));
+        }
+        return serverGroups.remove(groupId);
+    }
+
+    // 日志记录载荷：byte 类型 | varint 参数个数 | 参数（可为 null 的字符串）
+    private static byte[] encodeMutation(int type, String[] args) {
+        ByteWriter out = new ByteWriter(64);
+        out.writeByte(type);
+        out.writeVarint(args.length);
+        for (String arg : args) {
+            if (arg == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(1);
+                out.writeString(arg);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // 重放一条日志记录
+    private void replayMutation(long lsn, byte[] payload) throws IOException {
+        ByteReader in = new ByteReader(payload);
+        int type = in.readByte();
+        String[] args = new String[in.readCount()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readByte() == 0 ? null : in.readString();
+        }
+        try {
+            applyMutation(type, args);
+        } catch (RuntimeException e) {
+            System.err.println("重放日志记录失败，LSN: " + lsn + ", 类型: " + type + ", " + e);
+        }
+    }
+
+    /**
+     * 写检查点。修改锁内只推进写时复制版本号并开始记录表项的原值（常数时间），之后任何修改都会先复制对象，
+     * 表中原有的对象不会再被改动。锁外遍历实时的表、用记录的原值还原出冻结时刻的内容（见 SnapshotCapture），
+     * 编码（见 ServerSnapshot）和写盘也都在锁外、在调用线程（定时任务、日志过大时的后台线程或服务器关闭流程）中完成，
+     * 请求处理线程不会等待表的复制或磁盘。上次检查点之后没有任何修改时直接跳过。
+     */
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            SnapshotCapture<UserData> users;
+            SnapshotCapture<GroupData> groups;
+            long lsn;
+            synchronized (mutationLock) {
+                validateData();
+                if (!persistent) {
+                    return;
+                }
+                if (mutationCount == checkpointMutationCount && FileUtil.isServerDataSnapshotExists()) {
+                    System.out.println("数据自上次检查点以来没有修改，跳过保存");
+                    return;
+                }
+                lsn = journal == null ? 0 : journal.lastLsn();
+                cowEpoch++;
+                checkpointMutationCount = mutationCount;
+                users = new SnapshotCapture<>();
+                groups = new SnapshotCapture<>();
+                userCapture = users;
+                groupCapture = groups;
+            }
+
+            ServerData snapshot = new ServerData();
+            try {
+                snapshot.serverUsers = new MemoryUserStore(users.collect(serverUsers.asMap()));
+                snapshot.serverGroups = new MemoryGroupStore(groups.collect(serverGroups.asMap()));
+                snapshot.checkpointLsn = lsn;
+            } finally {
+                synchronized (mutationLock) {
+                    userCapture = null;
+                    groupCapture = null;
+                }
+            }
+
+            List<byte[]> parts;
+            try {
+                parts = ServerSnapshot.encode(snapshot);
+                if (journal != null) {
+                    // 切换日志段，快照覆盖的旧段可以在快照落盘后删除
+                    journal.rotate();
+                }
+            } catch (IOException e) {
+                System.err.println("写检查点失败: " + e.getMessage());
+                checkpointMutationCount = -1;
+                return;
+            }
+            if (FileUtil.writeServerDataSnapshot(parts)) {
+                checkpointLsn = lsn;
+                if (journal != null) {
+                    journal.deleteSegmentsUpTo(lsn);
+                }
+            } else {
+                // 写盘失败，下次检查点不能跳过
+                checkpointMutationCount = -1;
+            }
+        }
+    }
+
+    // 快照对应的最后一个日志 LSN
+    long getCheckpointLsn() {
+        return checkpointLsn;
+    }
+
+    void setCheckpointLsn(long checkpointLsn) {
+        this.checkpointLsn = checkpointLsn;
+    }
+
+    /**
+     * 日志状态，供服务端控制台查看
+     */
+    public String getJournalStatus() {
+        Journal journal = this.journal;
+        return journal == null ? "日志未启用" : "checkpointLsn=" + checkpointLsn + ", " + journal.getStatus();
+    }
+
+    // ====================== 聊天记录 ======================
+
+    public ChatStore getChatStore() {
+        return chatStore;
+    }
+
+    // 追加一条聊天记录，调用方不等待写盘
+    public void addChatMessage(String conversationId, String content) {
+        chatStore.append(conversationId, content);
+    }
+
+    /**
+     * 读取某个群登录时下发的聊天记录：最新的 localchat.chatlog.initialHistory 条，配置为 0 时读取全部
+     *
+     * @return 一页历史消息，格式同 loadChatHistoryPage
+     */
+    public String[] loadGroupChatMsg(String groupId) {
+        int limit = ServerConfig.CHATLOG_INITIAL_HISTORY;
+        return loadChatHistoryPage(groupId, Long.MAX_VALUE, limit <= 0 ? Integer.MAX_VALUE : limit);
+    }
+
+    /**
+     * 读取序号小于 beforeSeq 的最后 limit 条聊天记录
+     *
+     * @return 数组第 0 项是本页第一条消息的序号（即下一次翻页的游标，0 表示没有更早的消息），其余是消息
+     */
+    public String[] loadChatHistoryPage(String groupId, long beforeSeq, int limit) {
+        long end = Math.min(beforeSeq, chatStore.messageCount(groupId));
+        List<String> lines = chatStore.readBefore(groupId, end, limit);
+        String[] page = new String[lines.size() + 1];
+        // 更早的记录可能已被保留策略删除，此时同样告诉客户端没有更早的消息
+        long first = end - lines.size();
+        page[0] = String.valueOf(first <= chatStore.firstSeq(groupId) ? 0 : first);
+        for (int i = 0; i < lines.size(); i++) {
+            page[i + 1] = lines.get(i);
+        }
+        return page;
+    }
+
+    /**
+     * 在某个群的聊天记录中搜索
+     *
+     * @return 按相关度从高到低，依次是每条命中的序号和消息
+     */
+    public String[] searchGroupChatMsg(String groupId, String query, int limit) {
+        List<ChatStore.SearchHit> hits = chatStore.search(groupId, query, limit);
+        String[] result = new String[hits.size() * 2];
+        for (int i = 0; i < hits.size(); i++) {
+            result[i * 2] = String.valueOf(hits.get(i).seq);
+            result[i * 2 + 1] = hits.get(i).message;
+        }
+        return result;
+    }
+
+    // ====================== 查询 ======================
+
     // 获取用户名字，不存在就回复id本身
     public String getUserName(String userId) {
-        if (serverUsers.containsKey(userId))
+        if (serverUsers.contains(userId))
             return serverUsers.get(userId).getNickname();
         else
             return userId;
@@ -184,10 +710,10 @@ public class ServerData implements Serializable {
 
     // 判断群聊是否存在
     public boolean containsGroup(String groupId) {
-        return serverGroups.containsKey(groupId);
+        return serverGroups.contains(groupId);
     }
 
-    // 获取用户群聊id组
+    // 获取用户群聊id组（新建的副本）
     public TreeSet<String> getUserGroups(String userId) {
         if (userId == null) {
             return new TreeSet<>();
@@ -196,18 +722,88 @@ public class ServerData implements Serializable {
         }
     }
 
+    /**
+     * 两个用户共同所在的群聊id（按 id 排序）
+     */
+    public TreeSet<String> getCommonGroups(String userId, String otherId) {
+        String[] common;
+        synchronized (mutationLock) {
+            common = membership.commonGroups(userId, otherId);
+        }
+        return new TreeSet<>(Arrays.asList(common));
+    }
+
+    // 用户是否在群聊中（按句柄判断，不复制群聊id组）
+    public boolean isUserInGroup(String userId, String groupId) {
+        UserData user = userId == null ? null : serverUsers.get(userId);
+        return user != null && user.isInGroup(groupId);
+    }
+
+    /**
+     * 用户上线：计入其所在各群的在线成员。由在线用户表在登记会话时调用，重复调用不产生变化
+     */
+    public void userOnline(String userId) {
+        int userHandle = SymbolTable.USERS.intern(userId);
+        synchronized (mutationLock) {
+            presence.userOnline(userHandle, membership.groupHandles(userHandle));
+        }
+    }
+
+    /**
+     * 用户下线（退出登录或连接断开）：从其所在各群的在线成员中移除
+     */
+    public void userOffline(String userId) {
+        int userHandle = SymbolTable.USERS.handleOf(userId);
+        if (userHandle == SymbolTable.NONE) {
+            return;
+        }
+        synchronized (mutationLock) {
+            presence.userOffline(userHandle, membership.groupHandles(userHandle));
+        }
+    }
+
+    /**
+     * 群聊当前在线成员的句柄位图（不可变快照），群发消息时使用，不加锁
+     */
+    public IntBitmap getGroupOnlineMembers(String groupId) {
+        return presence.onlineMembers(SymbolTable.GROUPS.handleOf(groupId));
+    }
+
+    // 获取群聊当前在线成员的id组（按句柄顺序）
+    public List<String> getGroupOnlineMemberIds(String groupId) {
+        IntBitmap online = getGroupOnlineMembers(groupId);
+        List<String> ids = new ArrayList<>(online.cardinality());
+        online.forEach(handle -> ids.add(SymbolTable.USERS.nameOf(handle)));
+        return ids;
+    }
+
+    /**
+     * 注册群聊在线状态变化的监听器，事件在单独的线程中按顺序回调
+     */
+    public void addPresenceListener(PresenceListener listener) {
+        presence.addListener(listener);
+    }
+
+    public void removePresenceListener(PresenceListener listener) {
+        presence.removeListener(listener);
+    }
+
     // 获取群聊的成员组
     public TreeSet<GroupData.GroupMember> getGroupUsers(String groupId) {
         return serverGroups.get(groupId).getMembers();
     }
 
-    // 获取群聊的成员id组
+    // 获取群聊的成员id组（只读，成员变化后不会随之改变）
     public List<String> getGroupMembersId(String groupId) {
-        List<String> members = new ArrayList<>();
-        serverGroups.get(groupId).getMembers().forEach(groupMember -> {
-            members.add(groupMember.id);
-        });
-        return members;
+        return getGroupMemberArray(groupId).asList();
+    }
+
+    /**
+     * 获取群聊当前的成员快照，群聊不存在时返回空快照。转发消息时使用，不加锁也不复制成员列表
+     */
+    public GroupData.MemberArray getGroupMemberArray(String groupId) {
+        GroupData groupData = serverGroups.get(groupId);
+        return groupData == null ? GroupData.MemberArray.EMPTY : groupData.getMemberArray();
     }
 
     /**
@@ -217,7 +813,7 @@ public class ServerData implements Serializable {
      * @return true:存在 false：不存在
      */
     public boolean IsAccountExist(String userId) {
-        return serverUsers.containsKey(userId);
+        return serverUsers.contains(userId);
     }
 
     /**
@@ -240,7 +836,7 @@ public class ServerData implements Serializable {
      * @param serverUsers 服务器用户数据映射表
      */
     public void setServerUsers(Map<String, UserData> serverUsers) {
-        this.serverUsers = serverUsers;
+        this.serverUsers = new MemoryUserStore(serverUsers);
     }
 
     /**
@@ -249,16 +845,16 @@ public class ServerData implements Serializable {
      * @param serverGroups 服务器群聊数据映射表
      */
     public void setServerGroups(Map<String, GroupData> serverGroups) {
-        this.serverGroups = serverGroups;
+        this.serverGroups = new MemoryGroupStore(serverGroups);
     }
 
     /**
      * 获取服务器用户数据映射表
      *
-     * @return 服务器用户数据映射表
+     * @return 服务器用户数据映射表（只读视图）
      */
     public Map<String, UserData> getServerUsers() {
-        return serverUsers;
+        return serverUsers.asMap();
     }
 
     /**
@@ -280,7 +876,7 @@ public class ServerData implements Serializable {
      * @return 服务器群聊数据映射表
      */
     public Map<String, GroupData> getServerGroups() {
-        return serverGroups;
+        return serverGroups.asMap();
     }
 
     /**
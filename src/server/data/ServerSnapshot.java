@@ -0,0 +1,417 @@
+package server.data;
+
+import server.ServerConfig;
+import util.ByteReader;
+import util.ByteWriter;
+import util.IntBitmap;
+import util.IntHashSet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * 服务器数据快照的二进制格式
+ * <p>
+ * 取代原来用 ObjectOutputStream 序列化整个 ServerData 对象图的做法。用户和群聊按固定条数切成互相独立的块，
+ * 文件头之后是一张块表，加载时由 fork-join 线程池并行解码各块：
+ * <pre>
+ * int MAGIC | int 版本 | long 检查点 LSN | int 块数
+ * 块表：每块 byte 类型 | int 记录数 | long 块在文件中的位置 | int 块长度 | int CRC32
+ * 块...
+ * </pre>
+ * 用户记录只解码登录、好友和群聊转发需要的字段，邮箱、生日等扩展信息保留原始字节，第一次访问时再解码（见 UserData）。
+ * <p>
+ * 版本 2 起最后一块是 id 字典（用户 id 表和群聊 id 表），用户的群聊/好友集合和群成员只写字典下标。
+ * 加载时先解码字典、为每个 id 分配一次句柄（SymbolTable），各块按下标直接取句柄，
+ * 不再为每条关系解码字符串、查找符号表。版本 3 起群成员直接写句柄位图（IntBitmap），
+ * 字典下标与本进程句柄一致时（新启动的进程总是如此）读入后直接使用，不逐个转换。版本 1、2 的快照仍可读取。
+ * 写出时块按顺序逐个写入文件，不需要先拼成一个完整的字节数组。
+ */
+public final class ServerSnapshot {
+    private static final int MAGIC = 0x4C435353; // "LCSS"
+    // 格式版本，只在不兼容的改动时增加；读到更新的版本时拒绝加载
+    private static final int VERSION = 3;
+    // 关系集合直接写 id 字符串、没有字典块的旧版本
+    private static final int VERSION_STRING_IDS = 1;
+    // 有字典块、群成员是下标列表的旧版本
+    private static final int VERSION_MEMBER_LIST = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int TABLE_ENTRY_SIZE = 21;
+    private static final int KIND_USERS = 1;
+    private static final int KIND_GROUPS = 2;
+    private static final int KIND_SYMBOLS = 3;
+
+    /**
+     * 快照的 id 字典：字典下标 -> id 字符串和本进程中的句柄。
+     * 写出时字典就是符号表本身（下标即句柄），读入时按下标映射到新分配的句柄。
+     */
+    static final class Symbols {
+        private final int version;
+        private final int[] userHandles;
+        private final int[] groupHandles;
+        // 用户字典下标是否与本进程的句柄一致
+        private final boolean userIdentity;
+
+        private Symbols(int version, String[] userIds, String[] groupIds) {
+            this.version = version;
+            this.userHandles = intern(userIds, SymbolTable.USERS);
+            this.groupHandles = intern(groupIds, SymbolTable.GROUPS);
+            boolean identity = true;
+            for (int i = 0; i < userHandles.length && identity; i++) {
+                identity = userHandles[i] == i;
+            }
+            this.userIdentity = identity;
+        }
+
+        private static int[] intern(String[] ids, SymbolTable table) {
+            int[] handles = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                handles[i] = table.intern(ids[i]);
+            }
+            return handles;
+        }
+
+        int userHandle(int index) throws IOException {
+            return userHandles[check(index, userHandles.length)];
+        }
+
+        // 群成员是否以位图保存
+        boolean hasMemberBitmaps() {
+            return version >= 3;
+        }
+
+        /**
+         * 把按字典下标保存的用户位图转换为本进程句柄的位图
+         */
+        IntBitmap userBitmap(IntBitmap indexes) throws IOException {
+            if (indexes.isEmpty()) {
+                return IntBitmap.EMPTY;
+            }
+            check(indexes.last(), userHandles.length);
+            if (userIdentity) {
+                return indexes;
+            }
+            int[] values = indexes.toArray();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = userHandles[values[i]];
+            }
+            return IntBitmap.of(values);
+        }
+
+        private int[] handles(SymbolTable table) {
+            return table == SymbolTable.USERS ? userHandles : groupHandles;
+        }
+
+        private static int check(int index, int length) throws IOException {
+            if (index < 0 || index >= length) {
+                throw new IOException("快照 id 字典下标越界: " + index);
+            }
+            return index;
+        }
+    }
+
+    private ServerSnapshot() {
+    }
+
+    /**
+     * 把服务器数据编码为快照，返回按写出顺序排列的各部分（文件头和块表在前，之后每块一项）
+     */
+    public static List<byte[]> encode(ServerData data) throws IOException {
+        return encode(data.getServerUsers(), data.getServerGroups(), data.getCheckpointLsn(),
+                ServerConfig.SNAPSHOT_THREADS);
+    }
+
+    static List<byte[]> encode(Map<String, UserData> users, Map<String, GroupData> groups, long checkpointLsn,
+                               int parallelism) throws IOException {
+        int chunkRecords = Math.max(1, ServerConfig.SNAPSHOT_CHUNK_RECORDS);
+        UserData[] userArray = users.values().toArray(new UserData[0]);
+        GroupData[] groupArray = groups.values().toArray(new GroupData[0]);
+        int userChunks = (userArray.length + chunkRecords - 1) / chunkRecords;
+        int groupChunks = (groupArray.length + chunkRecords - 1) / chunkRecords;
+        int recordChunks = userChunks + groupChunks;
+        int chunkCount = recordChunks + 1;
+
+        byte[][] chunks = new byte[chunkCount][];
+        runChunks(recordChunks, parallelism, chunk -> {
+            ByteWriter out = new ByteWriter(64 * 1024);
+            if (chunk < userChunks) {
+                int from = chunk * chunkRecords;
+                int to = Math.min(userArray.length, from + chunkRecords);
+                for (int i = from; i < to; i++) {
+                    userArray[i].writeSnapshot(out);
+                }
+            } else {
+                int from = (chunk - userChunks) * chunkRecords;
+                int to = Math.min(groupArray.length, from + chunkRecords);
+                for (int i = from; i < to; i++) {
+                    groupArray[i].writeSnapshot(out);
+                }
+            }
+            chunks[chunk] = out.toByteArray();
+        });
+        // 记录中的句柄都已分配，此时的符号表覆盖全部下标
+        chunks[recordChunks] = encodeSymbols();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + chunkCount * TABLE_ENTRY_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(checkpointLsn);
+        header.putInt(chunkCount);
+        long offset = header.capacity();
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (chunk == recordChunks) {
+                header.put((byte) KIND_SYMBOLS);
+                header.putInt(1);
+            } else {
+                boolean userChunk = chunk < userChunks;
+                int total = userChunk ? userArray.length : groupArray.length;
+                int first = (userChunk ? chunk : chunk - userChunks) * chunkRecords;
+                header.put((byte) (userChunk ? KIND_USERS : KIND_GROUPS));
+                header.putInt(Math.min(chunkRecords, total - first));
+            }
+            header.putLong(offset);
+            header.putInt(chunks[chunk].length);
+            header.putInt(checksum(chunks[chunk], 0, chunks[chunk].length));
+            offset += chunks[chunk].length;
+        }
+
+        List<byte[]> parts = new ArrayList<>(chunkCount + 1);
+        parts.add(header.array());
+        for (byte[] chunk : chunks) {
+            parts.add(chunk);
+        }
+        return parts;
+    }
+
+    // id 字典：varint 用户 id 数 + 用户 id（按句柄顺序）| varint 群聊 id 数 + 群聊 id
+    private static byte[] encodeSymbols() {
+        ByteWriter out = new ByteWriter(64 * 1024);
+        for (SymbolTable table : new SymbolTable[]{SymbolTable.USERS, SymbolTable.GROUPS}) {
+            int size = table.size();
+            out.writeVarint(size);
+            for (int handle = 0; handle < size; handle++) {
+                out.writeString(table.nameOf(handle));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static Symbols decodeSymbols(ByteReader in, int version) throws IOException {
+        String[][] ids = new String[2][];
+        for (int t = 0; t < 2; t++) {
+            ids[t] = new String[in.readCount()];
+            for (int i = 0; i < ids[t].length; i++) {
+                ids[t][i] = in.readString();
+            }
+        }
+        return new Symbols(version, ids[0], ids[1]);
+    }
+
+    /**
+     * 解码快照。各块互相独立，由 fork-join 线程池并行解码后直接放入预先分配好容量的并发表。
+     *
+     * @throws IOException 文件不是快照、版本不支持或任意一块校验失败
+     */
+    public static ServerData decode(byte[] data) throws IOException {
+        return decode(data, ServerConfig.SNAPSHOT_THREADS);
+    }
+
+    static ServerData decode(byte[] data, int parallelism) throws IOException {
+        ByteReader header = new ByteReader(data);
+        if (data.length < HEADER_SIZE || header.readInt() != MAGIC) {
+            throw new IOException("不是服务器数据快照");
+        }
+        int version = header.readInt();
+        if (version != VERSION && version != VERSION_MEMBER_LIST && version != VERSION_STRING_IDS) {
+            throw new IOException("不支持的快照版本: " + version);
+        }
+        long checkpointLsn = header.readLong();
+        int chunkCount = header.readInt();
+        if (chunkCount < 0 || (long) chunkCount * TABLE_ENTRY_SIZE > header.remaining()) {
+            throw new IOException("快照块表损坏");
+        }
+
+        int[] kinds = new int[chunkCount];
+        int[] counts = new int[chunkCount];
+        int[] offsets = new int[chunkCount];
+        int[] lengths = new int[chunkCount];
+        int[] crcs = new int[chunkCount];
+        long userCount = 0;
+        long groupCount = 0;
+        int symbolChunk = -1;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            kinds[chunk] = header.readByte();
+            counts[chunk] = header.readInt();
+            long offset = header.readLong();
+            lengths[chunk] = header.readInt();
+            crcs[chunk] = header.readInt();
+            if (counts[chunk] < 0 || lengths[chunk] < 0 || offset < 0 || offset + lengths[chunk] > data.length) {
+                throw new IOException("快照块表损坏");
+            }
+            offsets[chunk] = (int) offset;
+            if (kinds[chunk] == KIND_USERS) {
+                userCount += counts[chunk];
+            } else if (kinds[chunk] == KIND_GROUPS) {
+                groupCount += counts[chunk];
+            } else if (kinds[chunk] == KIND_SYMBOLS && version != VERSION_STRING_IDS && symbolChunk < 0) {
+                symbolChunk = chunk;
+            } else {
+                throw new IOException("未知的快照块类型: " + kinds[chunk]);
+            }
+        }
+        if (version != VERSION_STRING_IDS && symbolChunk < 0) {
+            throw new IOException("快照缺少 id 字典");
+        }
+
+        // 先解码字典，其余各块共用；版本 1 没有字典，关系集合按字符串读取
+        Symbols symbols = null;
+        if (symbolChunk >= 0) {
+            if (checksum(data, offsets[symbolChunk], lengths[symbolChunk]) != crcs[symbolChunk]) {
+                throw new IOException("快照块校验失败: " + symbolChunk);
+            }
+            symbols = decodeSymbols(new ByteReader(data, offsets[symbolChunk], lengths[symbolChunk]), version);
+        }
+        Symbols dictionary = symbols;
+        int skipChunk = symbolChunk;
+
+        // 预先按记录总数分配容量，并行放入时不会扩容
+        Map<String, UserData> users = new ConcurrentHashMap<>((int) Math.min(userCount, Integer.MAX_VALUE / 2));
+        Map<String, GroupData> groups = new ConcurrentHashMap<>((int) Math.min(groupCount, Integer.MAX_VALUE / 2));
+        runChunks(chunkCount, parallelism, chunk -> {
+            if (chunk == skipChunk) {
+                return;
+            }
+            if (checksum(data, offsets[chunk], lengths[chunk]) != crcs[chunk]) {
+                throw new IOException("快照块校验失败: " + chunk);
+            }
+            ByteReader in = new ByteReader(data, offsets[chunk], lengths[chunk]);
+            for (int i = 0; i < counts[chunk]; i++) {
+                if (kinds[chunk] == KIND_USERS) {
+                    UserData user = UserData.readSnapshot(in, dictionary);
+                    users.put(user.getUserId(), user);
+                } else {
+                    GroupData group = GroupData.readSnapshot(in, dictionary);
+                    groups.put(group.getGroupId(), group);
+                }
+            }
+        });
+
+        ServerData serverData = new ServerData();
+        serverData.setServerUsers(users);
+        serverData.setServerGroups(groups);
+        serverData.setCheckpointLsn(checkpointLsn);
+        return serverData;
+    }
+
+    // 可为 null 的字符串：先写一个标记字节
+    static void writeNullableString(ByteWriter out, String s) {
+        if (s == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.writeString(s);
+        }
+    }
+
+    static String readNullableString(ByteReader in) throws IOException {
+        return in.readByte() == 0 ? null : in.readString();
+    }
+
+    // 句柄集合：varint 个数 + 各句柄（即写出时的字典下标）
+    static void writeHandleSet(ByteWriter out, IntHashSet set) {
+        if (set == null) {
+            out.writeVarint(0);
+            return;
+        }
+        out.writeVarint(set.size());
+        set.forEach(out::writeVarint);
+    }
+
+    // 按字典把下标映射为本进程的句柄；版本 1 的快照（symbols 为 null）写的是 id 字符串。空集合返回 null
+    static IntHashSet readHandleSet(ByteReader in, Symbols symbols, SymbolTable table) throws IOException {
+        int count = in.readCount();
+        if (count == 0) {
+            return null;
+        }
+        IntHashSet set = new IntHashSet(count);
+        int[] handles = symbols == null ? null : symbols.handles(table);
+        for (int i = 0; i < count; i++) {
+            if (handles == null) {
+                set.add(table.intern(in.readString()));
+            } else {
+                set.add(handles[Symbols.check(in.readVarint(), handles.length)]);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * 处理一块数据
+     */
+    private interface ChunkHandler {
+        void handle(int chunk) throws IOException;
+    }
+
+    // 把块区间不断二分，交给 fork-join 线程池并行处理
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final transient ChunkHandler handler;
+
+        ChunkTask(int from, int to, ChunkHandler handler) {
+            this.from = from;
+            this.to = to;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    handler.handle(from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(from, mid, handler), new ChunkTask(mid, to, handler));
+        }
+    }
+
+    private static void runChunks(int chunkCount, int parallelism, ChunkHandler handler) throws IOException {
+        if (chunkCount == 0) {
+            return;
+        }
+        if (parallelism <= 1 || chunkCount == 1) {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                handler.handle(chunk);
+            }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, chunkCount));
+        try {
+            pool.invoke(new ChunkTask(0, chunkCount, handler));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,48 @@
+package server.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 写检查点时还原某一时刻的表内容，不在修改锁内复制整张表
+ * <p>
+ * 检查点在修改锁内推进写时复制版本号并创建本对象，之后表中的对象都不会再被原地修改；
+ * 修改线程替换、添加或删除表项之前（同样在修改锁内）调用 {@link #beforeChange} 记下该键原来的值。
+ * 检查点线程在锁外遍历实时的表：没有被改过的键直接使用表中的值，改过的键使用记下的原值，
+ * 这样得到的就是创建本对象那一刻的内容，代价只与检查点期间修改过的键数有关。
+ */
+final class SnapshotCapture<V> {
+    // 键在冻结时不存在
+    private static final Object ABSENT = new Object();
+
+    private final ConcurrentHashMap<String, Object> preImages = new ConcurrentHashMap<>();
+
+    /**
+     * 表项被替换、添加或删除之前调用，只记录每个键第一次修改前的值
+     *
+     * @param current 修改前的值，键不存在时为 null
+     */
+    void beforeChange(String key, V current) {
+        preImages.putIfAbsent(key, current == null ? ABSENT : current);
+    }
+
+    /**
+     * 在锁外遍历实时的表，还原出冻结时刻的内容（新表）
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentHashMap<String, V> collect(Map<String, V> live) {
+        ConcurrentHashMap<String, V> frozen = new ConcurrentHashMap<>(Math.max(16, live.size() * 4 / 3 + 1));
+        for (Map.Entry<String, V> entry : live.entrySet()) {
+            // 先读到表项再检查：修改线程记录原值发生在写入新值之前，读到新值时一定能看到原值记录
+            if (!preImages.containsKey(entry.getKey())) {
+                frozen.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Object> entry : preImages.entrySet()) {
+            if (entry.getValue() != ABSENT) {
+                frozen.put(entry.getKey(), (V) entry.getValue());
+            }
+        }
+        return frozen;
+    }
+}
@@ -0,0 +1,96 @@
+package server.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字符串 id 与紧凑整数句柄之间的映射表。
+ * <p>
+ * 同一个 id 在进程内始终对应同一个句柄，句柄从 0 开始连续分配、不回收，可以直接作为数组下标。
+ * 转发、成员关系、在线表等热点结构只保存句柄，字符串 id 只在协议边界（收发消息、持久化）处转换。
+ * 句柄不落盘：快照和日志仍然保存字符串 id，重启后按加载顺序重新分配。
+ * <p>
+ * 线程安全：查找不加锁；新 id 在 ConcurrentHashMap 的桶锁内分配句柄并写入反向表，
+ * 反向表按页扩容，只有分配新页时才加锁。
+ */
+public final class SymbolTable {
+    // 不存在的 id 对应的句柄
+    public static final int NONE = -1;
+
+    // 用户 id 表
+    public static final SymbolTable USERS = new SymbolTable();
+    // 群聊 id 表
+    public static final SymbolTable GROUPS = new SymbolTable();
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+    // 句柄 -> id，按页保存，扩容时只复制页数组
+    private volatile String[][] pages = new String[16][];
+    private int nextHandle;
+
+    private SymbolTable() {
+    }
+
+    /**
+     * 取得 id 对应的句柄，第一次出现时分配新句柄
+     */
+    public int intern(String id) {
+        Integer handle = handles.get(id);
+        if (handle != null) {
+            return handle;
+        }
+        return handles.computeIfAbsent(id, this::allocate);
+    }
+
+    /**
+     * 已分配的句柄，id 从未出现过时返回 NONE，不分配
+     */
+    public int handleOf(String id) {
+        if (id == null) {
+            return NONE;
+        }
+        Integer handle = handles.get(id);
+        return handle == null ? NONE : handle;
+    }
+
+    /**
+     * 句柄对应的 id，句柄无效时返回 null
+     */
+    public String nameOf(int handle) {
+        if (handle < 0) {
+            return null;
+        }
+        String[][] current = pages;
+        int page = handle >>> PAGE_SHIFT;
+        if (page >= current.length || current[page] == null) {
+            return null;
+        }
+        return current[page][handle & (PAGE_SIZE - 1)];
+    }
+
+    /**
+     * 已分配的句柄数，所有句柄都小于这个值
+     */
+    public synchronized int size() {
+        return nextHandle;
+    }
+
+    // 在 computeIfAbsent 的桶锁内调用：先写反向表再返回句柄，拿到句柄的线程一定能查到 id
+    private synchronized Integer allocate(String id) {
+        int handle = nextHandle++;
+        int page = handle >>> PAGE_SHIFT;
+        String[][] current = pages;
+        if (page >= current.length) {
+            String[][] grown = new String[current.length * 2][];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        if (current[page] == null) {
+            current[page] = new String[PAGE_SIZE];
+        }
+        current[page][handle & (PAGE_SIZE - 1)] = id;
+        pages = current;
+        return handle;
+    }
+}
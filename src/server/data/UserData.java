@@ -1,5 +1,13 @@
 package server.data;
 
+import util.ByteReader;
+import util.ByteWriter;
+import util.IntHashSet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.TreeSet;
 
@@ -10,16 +18,30 @@ public class UserData implements Serializable, Comparable<UserData> {
     // 序列化版本号，用于版本控制
     private static final long serialVersionUID = 2809761558436195616L;
 
+    // 序列化格式保持不变：群聊、好友仍以 TreeSet<String> 写出，内存中改为句柄集合
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("nikename", String.class),
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("password", String.class),
+            new ObjectStreamField("groupIds", TreeSet.class),
+            new ObjectStreamField("friendIds", TreeSet.class),
+            new ObjectStreamField("email", String.class),
+            new ObjectStreamField("birthday", String.class),
+            new ObjectStreamField("address", String.class),
+            new ObjectStreamField("signature", String.class)
+    };
+
     // 用户昵称
     private String nikename;
     // 用户ID
     private String id;
     // 用户密码
     private String password;
-    // 所属群聊ID集合
-    private TreeSet<String> groupIds;
-    // 好友ID集合
-    private TreeSet<String> friendIds;
+    // 所属群聊的句柄集合（SymbolTable.GROUPS），为 null 表示空。
+    // 两个集合发布后不再原地修改：修改时复制一份改完再替换，读取方不加锁
+    private volatile IntHashSet groupHandles;
+    // 好友的句柄集合（SymbolTable.USERS），为 null 表示空
+    private volatile IntHashSet friendHandles;
     // 用户邮箱
     private String email;
     // 用户生日
@@ -29,12 +51,17 @@ public class UserData implements Serializable, Comparable<UserData> {
     // 用户签名 
     private String signature;
 
+    // 写时复制版本号：与 ServerData 当前版本不同说明对象已被快照引用，修改前需要先复制一份
+    transient int cowEpoch;
+
+    // 快照中尚未解码的扩展信息（邮箱、生日、地址、签名）。启动时只解码登录和转发需要的字段，
+    // 扩展信息保留原始字节，第一次访问时再解码；为 null 表示已经解码
+    private transient volatile byte[] pendingDetail;
+
     public UserData(String nikename, String id, String password) {
         this.nikename = nikename;
         this.id = id;
         this.password = password;
-        this.groupIds = new TreeSet<>();
-        this.friendIds = new TreeSet<>();
         // 初始化扩展信息为空字符串，避免 null
         this.email = "";
         this.birthday = "";
@@ -45,15 +72,152 @@ public class UserData implements Serializable, Comparable<UserData> {
     // 获取安全的副本（不包含密码），用于网络传输
     public UserData getSafeCopy() {
         UserData copy = new UserData(this.nikename, this.id, null);
-        copy.setGroupIds(new TreeSet<>(this.groupIds));
-        copy.setFriendIds(new TreeSet<>(this.friendIds));
-        copy.setEmail(this.email);
-        copy.setBirthday(this.birthday);
-        copy.setAddress(this.address);
-        copy.setSignature(this.signature);
+        copyRelationsTo(copy);
+        copyDetailTo(copy);
+        return copy;
+    }
+
+    // 获取完整副本（包含密码），用于写时复制
+    UserData copy() {
+        UserData copy = new UserData(this.nikename, this.id, this.password);
+        copyRelationsTo(copy);
+        copyDetailTo(copy);
         return copy;
     }
 
+    // 句柄集合不会被原地修改，副本直接共享
+    private void copyRelationsTo(UserData copy) {
+        copy.groupHandles = groupHandles;
+        copy.friendHandles = friendHandles;
+    }
+
+    // 复制扩展信息：还没有解码时直接共享原始字节（不会被修改），由副本在需要时自己解码
+    private void copyDetailTo(UserData copy) {
+        byte[] raw = pendingDetail;
+        if (raw != null) {
+            copy.pendingDetail = raw;
+            return;
+        }
+        copy.email = this.email;
+        copy.birthday = this.birthday;
+        copy.address = this.address;
+        copy.signature = this.signature;
+    }
+
+    /**
+     * 解码快照中保留的扩展信息。先写字段再清空 pendingDetail（volatile），
+     * 其他线程看到 pendingDetail 为 null 时一定能看到解码后的字段
+     */
+    void hydrate() {
+        if (pendingDetail == null) {
+            return;
+        }
+        synchronized (this) {
+            byte[] raw = pendingDetail;
+            if (raw == null) {
+                return;
+            }
+            try {
+                ByteReader in = new ByteReader(raw);
+                email = ServerSnapshot.readNullableString(in);
+                birthday = ServerSnapshot.readNullableString(in);
+                address = ServerSnapshot.readNullableString(in);
+                signature = ServerSnapshot.readNullableString(in);
+            } catch (IOException e) {
+                System.err.println("用户扩展信息损坏: " + id);
+            }
+            pendingDetail = null;
+        }
+    }
+
+    // 扩展信息是否已经解码
+    boolean isHydrated() {
+        return pendingDetail == null;
+    }
+
+    // 快照记录：id | 昵称 | 密码 | 群聊句柄集合 | 好友句柄集合 | varint 长度 + 扩展信息（句柄即快照 id 字典的下标）
+    void writeSnapshot(ByteWriter out) {
+        ServerSnapshot.writeNullableString(out, id);
+        ServerSnapshot.writeNullableString(out, nikename);
+        ServerSnapshot.writeNullableString(out, password);
+        ServerSnapshot.writeHandleSet(out, groupHandles);
+        ServerSnapshot.writeHandleSet(out, friendHandles);
+        byte[] raw = pendingDetail;
+        if (raw == null) {
+            // 扩展信息已经解码（或被修改过），重新编码
+            ByteWriter detail = new ByteWriter(64);
+            ServerSnapshot.writeNullableString(detail, email);
+            ServerSnapshot.writeNullableString(detail, birthday);
+            ServerSnapshot.writeNullableString(detail, address);
+            ServerSnapshot.writeNullableString(detail, signature);
+            raw = detail.toByteArray();
+        }
+        out.writeVarint(raw.length);
+        out.writeBytes(raw);
+    }
+
+    // 读取一条快照记录，扩展信息只复制原始字节，不解码
+    static UserData readSnapshot(ByteReader in, ServerSnapshot.Symbols symbols) throws IOException {
+        String id = ServerSnapshot.readNullableString(in);
+        String nikename = ServerSnapshot.readNullableString(in);
+        String password = ServerSnapshot.readNullableString(in);
+        UserData user = new UserData(nikename, id, password);
+        user.groupHandles = ServerSnapshot.readHandleSet(in, symbols, SymbolTable.GROUPS);
+        user.friendHandles = ServerSnapshot.readHandleSet(in, symbols, SymbolTable.USERS);
+        user.pendingDetail = in.readBytes(in.readCount());
+        return user;
+    }
+
+    // Java 序列化（旧版客户端协议、旧数据文件）前先解码扩展信息，句柄集合转换回 id 集合
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        hydrate();
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("nikename", nikename);
+        fields.put("id", id);
+        fields.put("password", password);
+        fields.put("groupIds", getGroupIds());
+        fields.put("friendIds", getFriendIds());
+        fields.put("email", email);
+        fields.put("birthday", birthday);
+        fields.put("address", address);
+        fields.put("signature", signature);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        nikename = (String) fields.get("nikename", null);
+        id = (String) fields.get("id", null);
+        password = (String) fields.get("password", null);
+        setGroupIds((TreeSet<String>) fields.get("groupIds", null));
+        setFriendIds((TreeSet<String>) fields.get("friendIds", null));
+        email = (String) fields.get("email", null);
+        birthday = (String) fields.get("birthday", null);
+        address = (String) fields.get("address", null);
+        signature = (String) fields.get("signature", null);
+    }
+
+    // 句柄集合转换为按 id 排序的集合
+    private static TreeSet<String> toIds(IntHashSet handles, SymbolTable table) {
+        TreeSet<String> ids = new TreeSet<>();
+        if (handles != null) {
+            handles.forEach(handle -> ids.add(table.nameOf(handle)));
+        }
+        return ids;
+    }
+
+    private static IntHashSet toHandles(TreeSet<String> ids, SymbolTable table) {
+        if (ids == null || ids.isEmpty()) {
+            return null;
+        }
+        IntHashSet handles = new IntHashSet(ids.size());
+        for (String id : ids) {
+            handles.add(table.intern(id));
+        }
+        return handles;
+    }
+
     public String getNickname() {
         return nikename;
     }
@@ -82,36 +246,74 @@ public class UserData implements Serializable, Comparable<UserData> {
         this.password = password;
     }
 
+    // 所属群聊id（新建的有序副本，修改不影响用户数据），用于下发给客户端；判断成员关系用 isInGroup
     public TreeSet<String> getGroupIds() {
-        return groupIds;
+        return toIds(groupHandles, SymbolTable.GROUPS);
     }
 
     public void setGroupIds(TreeSet<String> groupIds) {
-        this.groupIds = groupIds;
+        this.groupHandles = toHandles(groupIds, SymbolTable.GROUPS);
     }
 
+    // 好友id（新建的有序副本），判断好友关系用 hasFriend
     public TreeSet<String> getFriendIds() {
-        return friendIds;
+        return toIds(friendHandles, SymbolTable.USERS);
     }
 
     public void setFriendIds(TreeSet<String> friendIds) {
-        this.friendIds = friendIds;
+        this.friendHandles = toHandles(friendIds, SymbolTable.USERS);
+    }
+
+    public boolean isInGroup(String groupId) {
+        IntHashSet handles = groupHandles;
+        return handles != null && handles.contains(SymbolTable.GROUPS.handleOf(groupId));
+    }
+
+    public boolean hasFriend(String friendId) {
+        IntHashSet handles = friendHandles;
+        return handles != null && handles.contains(SymbolTable.USERS.handleOf(friendId));
     }
 
     public void addFriend(String friendId) {
-        this.friendIds.add(friendId);
+        IntHashSet next = withHandle(friendHandles, SymbolTable.USERS.intern(friendId));
+        if (next != null) {
+            friendHandles = next;
+        }
     }
 
     public boolean addGroupId(String groupId) {
-        return this.groupIds.add(groupId);
+        IntHashSet next = withHandle(groupHandles, SymbolTable.GROUPS.intern(groupId));
+        if (next == null) {
+            return false;
+        }
+        groupHandles = next;
+        return true;
     }
 
     public boolean removeGroupId(Long groupId) {
-        if (groupIds.contains(groupId.toString())) {
-            groupIds.remove(groupId.toString());
-            return true;
+        return removeGroupHandle(SymbolTable.GROUPS.handleOf(groupId.toString()));
+    }
+
+    // 加入一个句柄后的新集合，已经包含时返回 null（原集合保持不变）
+    private static IntHashSet withHandle(IntHashSet handles, int handle) {
+        if (handles != null && handles.contains(handle)) {
+            return null;
+        }
+        IntHashSet next = handles == null ? new IntHashSet() : handles.copy();
+        next.add(handle);
+        return next;
+    }
+
+    // 复制一份去掉该句柄后替换发布，不包含时不做任何事
+    private boolean removeGroupHandle(int handle) {
+        IntHashSet handles = groupHandles;
+        if (handles == null || !handles.contains(handle)) {
+            return false;
         }
-        return false;
+        IntHashSet next = handles.copy();
+        next.remove(handle);
+        groupHandles = next.isEmpty() ? null : next;
+        return true;
     }
 
     @Override
@@ -120,39 +322,47 @@ public class UserData implements Serializable, Comparable<UserData> {
     }
 
     public void removeGroup(String groupId) {
-        this.groupIds.remove(groupId);
+        removeGroupHandle(SymbolTable.GROUPS.handleOf(groupId));
     }
 
     // 扩展信息的 Getter 和 Setter
     public String getEmail() {
+        hydrate();
         return email;
     }
 
     public void setEmail(String email) {
+        hydrate();
         this.email = email;
     }
 
     public String getBirthday() {
+        hydrate();
         return birthday;
     }
 
     public void setBirthday(String birthday) {
+        hydrate();
         this.birthday = birthday;
     }
 
     public String getAddress() {
+        hydrate();
         return address;
     }
 
     public void setAddress(String address) {
+        hydrate();
         this.address = address;
     }
 
     public String getSignature() {
+        hydrate();
         return signature;
     }
 
     public void setSignature(String signature) {
+        hydrate();
         this.signature = signature;
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package server.data;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 用户表的存储接口
+ * <p>
+ * ServerData 只通过这个接口读写用户，修改顺序、写时复制和日志仍由 ServerData 负责。
+ * 实现必须是线程安全的：请求线程随时读取，修改在 ServerData 的修改锁内进行。
+ */
+public interface UserStore {
+    UserData get(String userId);
+
+    void put(String userId, UserData user);
+
+    UserData remove(String userId);
+
+    boolean contains(String userId);
+
+    int size();
+
+    /**
+     * 全部用户，遍历时不抛出并发修改异常，可能看不到遍历期间的修改
+     */
+    Collection<UserData> values();
+
+    /**
+     * 用户id到用户的只读视图
+     */
+    Map<String, UserData> asMap();
+
+    /**
+     * 当前内容的浅拷贝（Java 序列化写出时使用）
+     */
+    Map<String, UserData> copy();
+}
@@ -1,14 +1,14 @@
 package server.serveice;
 
+import server.ServerConfig;
 import server.ServerMainThread;
-import server.data.*;
+import util.EncodedMessage;
+import util.WireCodec;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.Map;
-import java.util.List;
-import java.util.TreeSet;
 import java.util.concurrent.*;
 
 /**
@@ -17,27 +17,19 @@ import java.util.concurrent.*;
  * 线程启动后，会进入一个循环，等待服务端发送的消息。
  * 收到消息后，调用 ServerRequestHandler 进行处理。
  */
-public class ClientChatThread implements Runnable, ServerRequestHandler.ResponseSender {
-    // 群在线用户存储：全局静态、线程安全
-    // key：用户id value：用户在线输出流
-    private static final Map<String, ObjectOutputStream> USER_ONLINE_MAP = new ConcurrentHashMap<>();
+public class ClientChatThread extends ClientSession implements Runnable {
+    // 关闭信号：接收线程发现连接断开时放入队列，唤醒阻塞在 take() 上的处理线程
+    static final Wrapper CLOSE_SIGNAL = new Wrapper(null, null, null, Integer.MIN_VALUE);
 
     // 与客户端相连的套接字
     private final Socket clientSocket;
-    // 是否登录
-    private boolean isLogin = false;
-    // 用户的账户
-    private String userId;
     // 阻塞队列，用于进行线程的信息交流
     private BlockingQueue<Wrapper> messageQueue;
 
-    private ObjectOutputStream oos;
+    private final DataOutputStream out;
 
     private volatile boolean isRunning = true;
 
-    // 业务逻辑处理器
-    private final ServerRequestHandler requestHandler;
-
     /**
      * 创建一个数据发送线程，并且附带创建一个信息接收线程。
      * 由于两个线程总是同步创建和销毁的，因此不进行单独创建。
@@ -47,25 +39,23 @@ public class ClientChatThread implements Runnable, ServerRequestHandler.Response
     public ClientChatThread(Socket clientSocket, BlockingQueue<Wrapper> threadQueue)
             throws IOException {
         this.clientSocket = clientSocket;
-        this.userId = null;
         this.isLogin = false;
 
         messageQueue = threadQueue;
-        this.requestHandler = new ServerRequestHandler(this);
+        // 缓冲区要能容纳一批合并写出的数据
+        out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(),
+                Math.max(8192, ServerConfig.FLUSH_MAX_BYTES)));
     }
 
     // 线程核心：聊天业务主流程
     @Override
     public void run() {
-        try {
-            oos = new ObjectOutputStream(clientSocket.getOutputStream());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
         while (ServerMainThread.isRunning() && this.isRunning) {
             try {
                 Wrapper msg = messageQueue.take();
+                if (msg == CLOSE_SIGNAL) {
+                    break;
+                }
                 // 委托给 RequestHandler 处理
                 requestHandler.handleRequest(msg);
             } catch (InterruptedException e) {
@@ -79,22 +69,23 @@ public class ClientChatThread implements Runnable, ServerRequestHandler.Response
     /**
      * 关闭当前用户链接，关闭这个线程(接受线程在接收关闭信息时已经结束了）
      */
-    private void closeClient() {
-        // 优先结束阻塞队列
-        ServerMainThread.dropMsgQueue(this.clientSocket);
-
-        if (!isRunning) {
-            return;
-        }
-
-        isRunning = false;
-        if (oos != null) {
-            try {
-                oos.close();
-            } catch (IOException e) {
-                System.err.println("关闭输出流异常: " + e.getMessage());
+    @Override
+    public void closeClient() {
+        // 接收线程和处理线程都可能触发关闭，只允许执行一次
+        synchronized (this) {
+            if (!isRunning) {
+                return;
             }
+            isRunning = false;
         }
+        // 优先结束阻塞队列
+        ServerMainThread.dropMsgQueue(this.clientSocket);
+        unregisterOnline();
+        // 唤醒可能阻塞在 take() 上的处理线程和写出线程
+        messageQueue.offer(CLOSE_SIGNAL);
+        outboundQueue.close();
+        // 先关闭 socket：写出线程可能持有 out 锁阻塞在向慢速或失效对端的 flush 上，
+        // socket 关闭后这次写入立即失败并释放锁。关闭可能发生在群发消息的发送方线程上，不能等待 out 锁
         if (clientSocket != null && !clientSocket.isClosed()) {
             try {
                 clientSocket.close();
@@ -102,109 +93,58 @@ public class ClientChatThread implements Runnable, ServerRequestHandler.Response
                 System.err.println("关闭socket异常: " + e.getMessage());
             }
         }
-    }
-
-    // --- ResponseSender 接口实现 ---
-
-    @Override
-    public void sendToSelf(Wrapper o) {
         try {
-            synchronized (oos) {
-                oos.writeObject(o);
-                oos.flush();
-                oos.reset();
-            }
+            out.close();
         } catch (IOException e) {
-            // Thread.currentThread().interrupt(); // 这里不需要 interrupt，可能是暂时的网络波动
-            System.out.println("send error");
+            // socket 已关闭，缓冲区中未写出的数据直接丢弃
         }
     }
 
     @Override
-    public void sendToUser(Wrapper wrapper, String userId) {
-        try {
-            ObjectOutputStream userOos = USER_ONLINE_MAP.get(userId);
-            if (userOos != null) {
-                synchronized (userOos) {
-                    userOos.writeObject(wrapper);
-                    userOos.flush();
-                    userOos.reset();
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("send error: " + userId);
-        }
+    protected void onOutboundReady() {
+        // 写出线程阻塞在出站队列上，入队时已被唤醒
     }
 
-    @Override
-    public void sendToGroup(Wrapper wrapper, String groupId) {
-        List<String> members = ServerData.getInstance().getGroupMembersId(groupId);
-        for (String member : members) {
-            sendToUser(wrapper, member);
+    /**
+     * 编码一条出站消息并写入输出缓冲区（不 flush），只由本会话的 ClientSendThread 调用
+     *
+     * @return 写入的字节数，消息被丢弃时为 0
+     * @throws IOException 写入套接字失败
+     */
+    int writeMessage(EncodedMessage message) throws IOException {
+        WireCodec codec = this.codec;
+        if (codec == null) {
+            System.out.println("握手未完成，丢弃消息: " + message.getWrapper().getOperation());
+            return 0;
         }
-    }
-
-    @Override
-    public void sendToGroupExceptSelf(Wrapper wrapper, String groupId) {
-        List<String> members = ServerData.getInstance().getGroupMembersId(groupId);
-        for (String member : members) {
-            if (!member.equals(userId)) {
-                sendToUser(wrapper, member);
+        synchronized (out) {
+            byte[][] frame;
+            try {
+                frame = codec.frame(message);
+            } catch (IOException e) {
+                System.err.println("消息编码失败: " + e.getMessage());
+                return 0;
             }
+            out.write(frame[0]);
+            out.write(frame[1]);
+            return frame[0].length + frame[1].length;
         }
     }
 
-    @Override
-    public String getCurrentUserId() {
-        return this.userId;
-    }
-
-    @Override
-    public void setCurrentUserId(String userId) {
-        this.userId = userId;
-    }
-
-    @Override
-    public void setLogin(boolean isLogin) {
-        this.isLogin = isLogin;
-    }
-
-    @Override
-    public void registerOnlineUser(String userId, ObjectOutputStream ignored) {
-        // 使用当前的 oos
-        USER_ONLINE_MAP.put(userId, this.oos);
-    }
-
-    @Override
-    public void removeOnlineUser(String userId) {
-        USER_ONLINE_MAP.remove(userId);
-        // 如果是自己登出，也触发清理
-        if (userId.equals(this.userId)) {
-            closeClient();
+    /**
+     * 将输出缓冲区中的数据写入套接字
+     */
+    void flushOutput() throws IOException {
+        synchronized (out) {
+            out.flush();
         }
     }
 
     @Override
-    public void sentToConnectedGroups(Wrapper wrapper, String userId) {
-        TreeSet<String> groups = ServerData.getInstance().getUserGroups(userId);
-        groups.forEach(groupId -> sendToGroup(wrapper, groupId));
-    }
-
-    // 保留静态方法供其他地方使用（如果有的话）
-    public static void broadcastMsg(String[] userIds, Wrapper wrapper) {
-        for (String userId : userIds) {
-            ObjectOutputStream oos = USER_ONLINE_MAP.get(userId);
-            if (oos == null)
-                continue;
-            try {
-                synchronized (oos) {
-                    oos.writeObject(wrapper);
-                    oos.flush();
-                    oos.reset();
-                }
-            } catch (IOException e) {
-                System.err.println("broadcast send error");
-            }
+    protected void writeHandshakeReply(byte[] reply) throws IOException {
+        synchronized (out) {
+            out.write(reply);
+            out.flush();
         }
     }
 }
@@ -2,9 +2,12 @@ package server.serveice;
 
 import global.Global;
 import server.ServerMainThread;
+import util.WireCodec;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.concurrent.BlockingQueue;
@@ -15,15 +18,19 @@ public class ClientReceiveThread implements Runnable {
 
     // 接收线程专属资源：构造器传入，仅用于接收消息
     private final Socket clientSocket;
-    ObjectInputStream ois;
+    DataInputStream in;
+    // 与之配对的会话，连接断开时由接收线程通知其关闭
+    private final ClientSession session;
 
     // 构造器：初始化套接字资源
     public ClientReceiveThread(
             Socket clientSocket,
-            BlockingQueue<Wrapper> messageQueue) throws IOException {
+            BlockingQueue<Wrapper> messageQueue,
+            ClientSession session) throws IOException {
 
         this.messageQueue = messageQueue;
         this.clientSocket = clientSocket;
+        this.session = session;
 
         isRunning = true;
     }
@@ -32,24 +39,44 @@ public class ClientReceiveThread implements Runnable {
     @Override
     public void run() {
         try {
-            ois = new ObjectInputStream(clientSocket.getInputStream());
+            in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
         } catch (IOException e) {
+            session.closeClient();
             throw new RuntimeException(e);
         }
 
+        // 握手：读取客户端 HELLO，协商编解码器
+        WireCodec codec;
+        try {
+            byte[] hello = new byte[WireCodec.HELLO_SIZE];
+            in.readFully(hello);
+            session.handshake(hello);
+            codec = session.codec;
+        } catch (IOException e) {
+            System.out.println(clientSocket.getPort() + ": " + e.getMessage());
+            session.closeClient();
+            return;
+        }
+
         // 当主线程和自身都在跑的时候
         while (ServerMainThread.isRunning() && this.isRunning) {
             // 接收服务端消息
             // 接收到后将其添加到阻塞队列中
             try {
-                Wrapper msg = (Wrapper) ois.readObject();
+                Wrapper msg = codec.read(in);
+                // 心跳帧只用于刷新活跃时间
+                if (!session.onInboundFrame(msg)) {
+                    continue;
+                }
                 // 如果收到的是关闭信息，则这个循环结束后关闭自身
                 if (msg.getOperation() == Global.OPT_LOGOUT) {
                     isRunning = false;
                     System.out.println("接受线程已结束");
                 }
-                // 添加信息到阻塞队列。
-                messageQueue.put(msg);
+                // 添加信息到阻塞队列，队列满时按入站策略处理
+                if (!messageQueue.offer(msg) && InboundPolicy.onQueueFull(session, msg)) {
+                    messageQueue.put(msg);
+                }
             } catch (InterruptedException e) {
                 System.out.println("消息队列被中断");
                 Thread.currentThread().interrupt();
@@ -57,25 +84,23 @@ public class ClientReceiveThread implements Runnable {
             } catch (IOException e) {
                 if (isConnectionClosed(e)) {
                     // 链接断开则结束链接
-                    // isRunning =false;
                     System.out.println(clientSocket.getPort() + ": 连接已断开");
-                    break;
                 } else {
-                    System.out.println("发送消息时发生IO异常: " + e.getMessage());
-                    e.printStackTrace();
+                    // 帧格式错误时流已经无法继续对齐，只能断开
+                    System.out.println("接收消息时发生IO异常: " + e.getMessage());
                 }
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
+                session.closeClient();
+                break;
             }
         }
     }
 
     private boolean isConnectionClosed(IOException e) {
         // 根据异常类型判断连接是否断开
-        return e instanceof SocketException ||
+        return e instanceof SocketException || e instanceof EOFException ||
                 e.getMessage() != null && (e.getMessage().contains("Connection reset") ||
                         e.getMessage().contains("Broken pipe") ||
                         e.getMessage().contains("Connection refused") ||
                         e.getMessage().contains("Software caused connection abort"));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package server.serveice;
+
+import server.ServerConfig;
+import util.EncodedMessage;
+import util.WriteBatcher;
+
+import java.io.IOException;
+
+/**
+ * 阻塞模式下每个连接的写出线程。
+ * 从会话的出站队列中按顺序取出消息，编码后写入套接字。
+ * 写入阻塞（客户端接收缓慢、TCP 窗口已满）时只会阻塞这个线程，不影响发送方。
+ * 连续的消息先写入缓冲区，按 WriteBatcher 的规则合并 flush；队列空闲时立即 flush。
+ */
+public class ClientSendThread implements Runnable {
+    // 与之配对的会话
+    private final ClientChatThread session;
+
+    public ClientSendThread(ClientChatThread session) {
+        this.session = session;
+    }
+
+    // 线程核心：循环写出出站队列中的消息，队列关闭后退出
+    @Override
+    public void run() {
+        WriteBatcher batcher = ServerConfig.newWriteBatcher();
+        OutboundQueue queue = session.outboundQueue;
+        try {
+            EncodedMessage message;
+            while ((message = queue.take()) != null) {
+                int bytes = session.writeMessage(message);
+                boolean idle = queue.isEmpty();
+                boolean flush = bytes > 0
+                        ? batcher.add(bytes, message.getCreatedNanos(), idle)
+                        : idle && !batcher.isEmpty();
+                if (flush) {
+                    session.flushOutput();
+                    OutboundStats.recordFlush(batcher);
+                    batcher.reset();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // 这里不需要打印堆栈，通常是客户端已经断开
+            System.out.println("send error: " + session.getCurrentUserId());
+            session.closeClient();
+        }
+    }
+}
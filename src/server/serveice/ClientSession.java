@@ -0,0 +1,261 @@
+package server.serveice;
+
+import global.Global;
+import server.ServerConfig;
+import server.data.ServerData;
+import server.data.SymbolTable;
+import util.EncodedMessage;
+import util.WireCodec;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个客户端连接在服务端的会话。
+ * 不管底层是每连接两个线程（ClientChatThread）还是 NIO 事件循环（NioClientSession），
+ * 业务层都只通过 ServerRequestHandler.ResponseSender 和会话打交道，
+ * 因此在线用户表与各种发送逻辑统一放在这里，子类只需要负责“把出站队列里的消息编码后写给自己的客户端”和“关闭连接”。
+ * <p>
+ * 发送消息只会放入接收方会话的出站队列，真正的写出由接收方自己的写出者完成，
+ * 一个接收缓慢的客户端不会阻塞发送方的处理线程。
+ */
+public abstract class ClientSession implements ServerRequestHandler.ResponseSender {
+    // 在线用户存储：全局静态、线程安全
+    // 下标：用户句柄 值：用户所在的会话
+    private static final OnlineTable ONLINE_USERS = new OnlineTable();
+
+    // 是否登录
+    protected boolean isLogin = false;
+    // 用户的账户
+    protected String userId;
+    // 用户账户对应的句柄，群发时用来排除自己
+    protected int userHandle = SymbolTable.NONE;
+
+    // 业务逻辑处理器
+    protected final ServerRequestHandler requestHandler;
+
+    // 握手协商出的编解码器，握手完成前为 null
+    protected volatile WireCodec codec;
+
+    // 出站队列，任意线程写入，由会话的写出者取出
+    protected final OutboundQueue outboundQueue = new OutboundQueue();
+
+    // 最后一次收到数据的时间（System.nanoTime），用于心跳检测
+    volatile long lastActivityNanos = System.nanoTime();
+
+    // 入站队列满时被拒绝、丢弃的请求数
+    final AtomicLong rejectedCount = new AtomicLong();
+    final AtomicLong droppedCount = new AtomicLong();
+
+    protected ClientSession() {
+        this.userId = null;
+        this.requestHandler = new ServerRequestHandler(this);
+    }
+
+    /**
+     * 将消息放入本会话的出站队列，可以被任意线程调用，不会阻塞。
+     * 同一个 EncodedMessage 可以发给多个会话，帧体只会编码一次。
+     * 队列溢出且策略要求断开时关闭本会话。
+     */
+    protected void send(EncodedMessage message) {
+        if (outboundQueue.offer(message)) {
+            onOutboundReady();
+        } else if (!outboundQueue.isClosed()) {
+            System.out.println("出站队列已满，断开客户端: " + userId);
+            closeClient();
+        }
+    }
+
+    /**
+     * 出站队列中有新消息时调用，由子类通知自己的写出者
+     */
+    protected abstract void onOutboundReady();
+
+    protected void send(Wrapper wrapper) {
+        send(new EncodedMessage(wrapper));
+    }
+
+    /**
+     * 写出握手回复（原始字节，不加帧长度）
+     */
+    protected abstract void writeHandshakeReply(byte[] reply) throws IOException;
+
+    /**
+     * 关闭当前用户链接，释放会话占用的资源。需要保证可以被重复调用。
+     */
+    public abstract void closeClient();
+
+    /**
+     * 会话是否已关闭
+     */
+    boolean isClosed() {
+        return outboundQueue.isClosed();
+    }
+
+    /**
+     * 刷新最后活跃时间
+     */
+    void touch() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * 接收线程/事件循环每读到一帧都先交给这里：刷新活跃时间，并直接处理心跳帧
+     *
+     * @return 是否需要放入入站队列交给业务处理
+     */
+    boolean onInboundFrame(Wrapper msg) {
+        touch();
+        switch (msg.getOperation()) {
+            case Global.OPT_PING:
+                send(new Wrapper(Global.OPT_PONG));
+                return false;
+            case Global.OPT_PONG:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 会话关闭时的公共清理：如果在线表中登记的仍是本会话，则将其移除
+     */
+    protected void unregisterOnline() {
+        if (userId != null) {
+            ONLINE_USERS.remove(userHandle, this);
+        }
+    }
+
+    /**
+     * 处理客户端的 HELLO：按服务端偏好选择双方都支持的编解码器和特性（如压缩）并回复
+     *
+     * @throws IOException 协议不匹配或没有可用的编解码器
+     */
+    protected void handshake(byte[] hello) throws IOException {
+        int[] fields = WireCodec.parseHandshake(hello, 0);
+        int codecId = WireCodec.chooseCodec(fields[1], ServerConfig.WIRE_CODEC);
+        if (codecId == 0) {
+            writeHandshakeReply(WireCodec.helloReply(WireCodec.STATUS_UNSUPPORTED, 0, 0));
+            throw new IOException("握手失败：客户端不支持可用的编解码器");
+        }
+        WireCodec codec = WireCodec.create(codecId);
+        // 特性位取双方都支持的部分
+        int features = fields[2] & (ServerConfig.COMPRESS_ENABLED ? WireCodec.FEATURE_DEFLATE : 0);
+        if ((features & WireCodec.FEATURE_DEFLATE) != 0) {
+            codec.enableCompression(ServerConfig.COMPRESS_THRESHOLD);
+        }
+        this.codec = codec;
+        writeHandshakeReply(WireCodec.helloReply(WireCodec.STATUS_OK, codecId, features));
+    }
+
+    // --- ResponseSender 接口实现 ---
+
+    @Override
+    public void sendToSelf(Wrapper o) {
+        send(o);
+    }
+
+    @Override
+    public void sendToUser(Wrapper wrapper, String userId) {
+        ClientSession session = ONLINE_USERS.get(SymbolTable.USERS.handleOf(userId));
+        if (session != null) {
+            session.send(wrapper);
+        }
+    }
+
+    @Override
+    public void sendToGroup(Wrapper wrapper, String groupId) {
+        sendToGroup(new EncodedMessage(wrapper), groupId, SymbolTable.NONE);
+    }
+
+    @Override
+    public void sendToGroupExceptSelf(Wrapper wrapper, String groupId) {
+        sendToGroup(new EncodedMessage(wrapper), groupId, userHandle);
+    }
+
+    // 群发：同一个 EncodedMessage 发给所有在线成员，帧体只编码一次；
+    // 直接遍历该群的在线成员索引，代价与在线人数成正比，不访问离线成员、不复制、不比较字符串
+    private static void sendToGroup(EncodedMessage message, String groupId, int exceptHandle) {
+        ServerData.getInstance().getGroupOnlineMembers(groupId).forEach(member -> {
+            if (member == exceptHandle) {
+                return;
+            }
+            ClientSession session = ONLINE_USERS.get(member);
+            if (session != null) {
+                session.send(message);
+            }
+        });
+    }
+
+    @Override
+    public String getCurrentUserId() {
+        return this.userId;
+    }
+
+    @Override
+    public void setCurrentUserId(String userId) {
+        this.userId = userId;
+        this.userHandle = userId == null ? SymbolTable.NONE : SymbolTable.USERS.intern(userId);
+    }
+
+    @Override
+    public void setLogin(boolean isLogin) {
+        this.isLogin = isLogin;
+    }
+
+    @Override
+    public void registerOnlineUser(String userId, ObjectOutputStream ignored) {
+        // 使用当前的会话
+        ONLINE_USERS.put(SymbolTable.USERS.intern(userId), this);
+    }
+
+    @Override
+    public void removeOnlineUser(String userId) {
+        ONLINE_USERS.remove(SymbolTable.USERS.handleOf(userId));
+        // 如果是自己登出，也触发清理
+        if (userId.equals(this.userId)) {
+            closeClient();
+        }
+    }
+
+    @Override
+    public void sentToConnectedGroups(Wrapper wrapper, String userId) {
+        TreeSet<String> groups = ServerData.getInstance().getUserGroups(userId);
+        EncodedMessage message = new EncodedMessage(wrapper);
+        groups.forEach(groupId -> sendToGroup(message, groupId, SymbolTable.NONE));
+    }
+
+    /**
+     * 各在线用户的入站拒绝/丢弃计数和出站队列状态，供服务端控制台查看
+     */
+    public static List<String> getSessionQueueStatus() {
+        List<String> status = new ArrayList<>();
+        ONLINE_USERS.forEach((id, session) -> status.add(id
+                + ": inbound(rejected=" + session.rejectedCount.get() + ", dropped=" + session.droppedCount.get()
+                + ") outbound(" + session.outboundQueue.describe() + ")"));
+        return status;
+    }
+
+    /**
+     * 发给全部在线用户（如服务器关闭通知），只放入各会话的出站队列
+     */
+    public static void broadcastToOnline(Wrapper wrapper) {
+        EncodedMessage message = new EncodedMessage(wrapper);
+        ONLINE_USERS.forEach((id, session) -> session.send(message));
+    }
+
+    // 保留静态方法供其他地方使用（如果有的话）
+    public static void broadcastMsg(String[] userIds, Wrapper wrapper) {
+        EncodedMessage message = new EncodedMessage(wrapper);
+        for (String userId : userIds) {
+            ClientSession session = ONLINE_USERS.get(SymbolTable.USERS.handleOf(userId));
+            if (session != null) {
+                session.send(message);
+            }
+        }
+    }
+}
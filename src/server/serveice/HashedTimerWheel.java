@@ -0,0 +1,138 @@
+package server.serveice;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮：用一个线程管理大量低精度的定时任务。
+ * <p>
+ * 时间被划分为固定长度的刻度，轮盘上每个槽位存放到期刻度落在该槽位的任务，
+ * 超过一圈的任务记录剩余圈数。添加和取消都是 O(1)，每个刻度只检查一个槽位，
+ * 几万个连接各自一个超时任务也不需要几万个 ScheduledFuture。
+ * 到期精度为一个刻度，任务在时间轮线程中执行，必须足够短小。
+ */
+public class HashedTimerWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<Timeout>[] wheel;
+    // 其他线程添加的任务先放在这里，由时间轮线程在每个刻度开始时放入槽位
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * @param name      时间轮线程名
+     * @param tick      刻度长度
+     * @param unit      刻度长度的单位
+     * @param wheelSize 槽位数，会向上取整为 2 的幂
+     */
+    public HashedTimerWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        // 不能直接创建泛型数组，槽位只放 Timeout
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Timeout>[] slots = new ArrayDeque[size];
+        this.wheel = slots;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 添加一个定时任务，可以被任意线程调用
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    // 把新添加的任务放入对应的槽位
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // 已经过期的任务放到当前刻度，马上执行
+            long expireTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (expireTick - tick) / wheel.length;
+            wheel[(int) (expireTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("定时任务执行异常: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * 已添加的定时任务，可以取消
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        // 相对时间轮启动时刻的到期时间
+        private final long deadline;
+        // 剩余圈数，仅时间轮线程访问
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
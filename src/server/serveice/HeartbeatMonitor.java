@@ -0,0 +1,122 @@
+package server.serveice;
+
+import global.Global;
+import server.ServerConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 心跳检测与空闲连接清理。
+ * <p>
+ * 会话每收到一帧数据就刷新最后活跃时间（只写一个 volatile 字段）。
+ * 每个会话在时间轮上只有一个检查任务，到期时根据最后活跃时间决定：
+ * 空闲超过心跳间隔则发送 OPT_PING，超过超时时间则按 closeClient() 的正常流程关闭会话，
+ * 否则按剩余时间重新安排下一次检查。活跃的连接不会产生任何定时任务的增删。
+ * 超时会话的关闭交给单独的清理线程执行，关闭一个卡住的连接不会阻塞时间轮上其他会话的检查。
+ */
+public final class HeartbeatMonitor {
+    // 时间轮刻度：心跳是秒级的，半秒的精度足够
+    private static final long TICK_MILLIS = 500;
+    private static final int WHEEL_SIZE = 512;
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(ServerConfig.HEARTBEAT_INTERVAL_SECONDS);
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(
+            Math.max(ServerConfig.HEARTBEAT_TIMEOUT_SECONDS, ServerConfig.HEARTBEAT_INTERVAL_SECONDS));
+    private static final boolean ENABLED = ServerConfig.HEARTBEAT_INTERVAL_SECONDS > 0;
+
+    private static volatile HashedTimerWheel wheel;
+
+    // 关闭超时会话的线程，时间轮线程只负责判断，不执行可能阻塞的关闭操作
+    private static final ExecutorService REAPER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "heartbeat-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 统计
+    private static final AtomicInteger WATCHED = new AtomicInteger();
+    private static final AtomicLong PINGS = new AtomicLong();
+    private static final AtomicLong REAPED = new AtomicLong();
+
+    private HeartbeatMonitor() {
+    }
+
+    /**
+     * 开始监视一个新建的会话
+     */
+    public static void watch(ClientSession session) {
+        if (!ENABLED) {
+            return;
+        }
+        session.touch();
+        WATCHED.incrementAndGet();
+        schedule(session, INTERVAL_NANOS);
+    }
+
+    private static void schedule(ClientSession session, long delayNanos) {
+        HashedTimerWheel w = wheel;
+        if (w == null) {
+            synchronized (HeartbeatMonitor.class) {
+                if (wheel == null) {
+                    wheel = new HashedTimerWheel("heartbeat-wheel", TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+                }
+                w = wheel;
+            }
+        }
+        w.schedule(() -> check(session), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // 在时间轮线程中执行
+    private static void check(ClientSession session) {
+        if (session.isClosed()) {
+            WATCHED.decrementAndGet();
+            return;
+        }
+        long idle = System.nanoTime() - session.lastActivityNanos;
+        if (idle >= TIMEOUT_NANOS) {
+            REAPED.incrementAndGet();
+            WATCHED.decrementAndGet();
+            System.out.println("连接空闲超时，关闭会话: " + session.getCurrentUserId());
+            REAPER.execute(session::closeClient);
+            return;
+        }
+        long next;
+        if (idle >= INTERVAL_NANOS) {
+            // 对端一直没有数据，发送心跳，直到超时前每个间隔发一次
+            PINGS.incrementAndGet();
+            session.send(new Wrapper(Global.OPT_PING));
+            next = Math.min(INTERVAL_NANOS, TIMEOUT_NANOS - idle);
+        } else {
+            next = INTERVAL_NANOS - idle;
+        }
+        schedule(session, next);
+    }
+
+    /**
+     * 心跳统计，供服务端控制台查看
+     */
+    public static Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", ENABLED);
+        status.put("intervalSeconds", ServerConfig.HEARTBEAT_INTERVAL_SECONDS);
+        status.put("timeoutSeconds", TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS));
+        status.put("watchedSessions", WATCHED.get());
+        status.put("pingsSent", PINGS.get());
+        status.put("reaped", REAPED.get());
+        return status;
+    }
+
+    public static void shutdown() {
+        HashedTimerWheel w = wheel;
+        if (w != null) {
+            w.stop();
+        }
+        REAPER.shutdown();
+    }
+}
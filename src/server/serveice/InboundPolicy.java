@@ -0,0 +1,81 @@
+package server.serveice;
+
+import global.Global;
+import server.ServerConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 入站流量控制：连接的入站队列满时，按操作码决定如何处理新读到的请求。
+ * <ul>
+ * <li>block：停止读取该连接，等处理线程腾出空间（压力通过 TCP 窗口传回客户端）</li>
+ * <li>reject：不处理该请求，立即回复 OPT_REQUEST_REJECTED，继续读取后续请求</li>
+ * <li>drop：直接丢弃该请求，继续读取后续请求</li>
+ * </ul>
+ * 登出请求总是按 block 处理，保证连接能被正常关闭。
+ * 被拒绝和丢弃的请求数记在会话上，可通过服务端控制台 blockingQueueStatus 查看。
+ */
+public final class InboundPolicy {
+    private static final String DEFAULT_POLICY = parsePolicy(ServerConfig.INBOUND_DEFAULT_POLICY);
+    private static final Map<Integer, String> POLICIES = parsePolicies(ServerConfig.INBOUND_POLICY);
+
+    private InboundPolicy() {
+    }
+
+    /**
+     * 获取操作码对应的策略
+     */
+    static String policyOf(int operation) {
+        if (operation == Global.OPT_LOGOUT) {
+            return ServerConfig.INBOUND_BLOCK;
+        }
+        return POLICIES.getOrDefault(operation, DEFAULT_POLICY);
+    }
+
+    /**
+     * 入站队列已满时调用（接收线程或事件循环线程）
+     *
+     * @return true 表示按 block 策略处理，由调用方阻塞等待或暂停读取；false 表示请求已被拒绝或丢弃
+     */
+    static boolean onQueueFull(ClientSession session, Wrapper msg) {
+        switch (policyOf(msg.getOperation())) {
+            case ServerConfig.INBOUND_REJECT:
+                session.rejectedCount.incrementAndGet();
+                session.sendToSelf(Wrapper.serverResponse(Global.OPT_REQUEST_REJECTED, Global.MSG_SERVER_BUSY));
+                return false;
+            case ServerConfig.INBOUND_DROP:
+                session.droppedCount.incrementAndGet();
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static String parsePolicy(String policy) {
+        String p = policy.trim().toLowerCase();
+        if (ServerConfig.INBOUND_REJECT.equals(p) || ServerConfig.INBOUND_DROP.equals(p)) {
+            return p;
+        }
+        if (!ServerConfig.INBOUND_BLOCK.equals(p)) {
+            System.err.println("未知的入站策略: " + policy + "，按 block 处理");
+        }
+        return ServerConfig.INBOUND_BLOCK;
+    }
+
+    private static Map<Integer, String> parsePolicies(String config) {
+        Map<Integer, String> policies = new HashMap<>();
+        for (String item : config.split(",")) {
+            if (item.isBlank()) {
+                continue;
+            }
+            String[] pair = item.split(":");
+            try {
+                policies.put(Integer.parseInt(pair[0].trim()), parsePolicy(pair.length > 1 ? pair[1] : ""));
+            } catch (NumberFormatException e) {
+                System.err.println("无法解析的入站策略配置: " + item);
+            }
+        }
+        return policies;
+    }
+}
@@ -0,0 +1,353 @@
+package server.serveice;
+
+import global.Global;
+import server.ServerConfig;
+import server.ServerMainThread;
+import util.EncodedMessage;
+import util.WireCodec;
+import util.WriteBatcher;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO 模式下的客户端会话。
+ * 读写都由所属的 NioEventLoop 线程完成，业务处理交给工作线程池：
+ * 同一个会话同一时刻最多只有一个工作线程在处理它的入站队列，保证消息按到达顺序处理。
+ * 入站队列满时按 InboundPolicy 处理：block 策略下暂停读取该连接（不再关注 OP_READ），
+ * 由 TCP 窗口把压力传回客户端；reject/drop 策略下跳过该请求继续读取。
+ * 出站消息由发送方放入出站队列，事件循环线程取出后编码并写出，编码顺序即写出顺序。
+ */
+public class NioClientSession extends ClientSession {
+    // 一次调度中最多连续处理的消息数，避免单个连接长期占用工作线程
+    private static final int MAX_BATCH = 32;
+
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final NioEventLoop loop;
+    private final ExecutorService workerPool;
+    private SelectionKey key;
+
+    // 读缓冲区（写模式），仅事件循环线程访问
+    private ByteBuffer readBuffer;
+    // 入站队列，事件循环写入，工作线程消费
+    private final BlockingQueue<Wrapper> inboundQueue;
+    // 入站队列已满时暂存的消息，仅事件循环线程访问
+    private Wrapper pendingInbound;
+    private volatile boolean readPaused = false;
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean(false);
+    // 是否已有工作线程在处理入站队列
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // 已编码、等待写出的缓冲区（帧头、帧体交替），仅事件循环线程访问
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    // 是否已安排（或正在等待可写事件）写出出站队列
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // 聚集写使用的缓冲区数组，仅事件循环线程访问
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[64];
+    // 已编码但尚未完全写出的帧，用于统计，仅事件循环线程访问
+    private final WriteBatcher batcher = ServerConfig.newWriteBatcher();
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private boolean released = false;
+
+    NioClientSession(SocketChannel channel, BlockingQueue<Wrapper> inboundQueue,
+                     NioEventLoop loop, ExecutorService workerPool) {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.inboundQueue = inboundQueue;
+        this.loop = loop;
+        this.workerPool = workerPool;
+        this.readBuffer = ByteBuffer.allocate(ServerConfig.NIO_READ_BUFFER_SIZE);
+    }
+
+    void attachKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // ====================== 入站：事件循环线程 ======================
+
+    void onReadable() {
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            System.out.println(socket.getPort() + ": 连接已断开");
+            closeClient();
+            return;
+        }
+        if (n < 0) {
+            System.out.println(socket.getPort() + ": 连接已断开");
+            closeClient();
+            return;
+        }
+        parseBuffered();
+    }
+
+    // 从读缓冲区中切出所有完整的帧，放入入站队列
+    private void parseBuffered() {
+        readBuffer.flip();
+        int required = 0;
+        try {
+            // 握手：连接上的第一条数据是客户端 HELLO
+            if (codec == null) {
+                if (readBuffer.remaining() < WireCodec.HELLO_SIZE) {
+                    readBuffer.compact();
+                    return;
+                }
+                byte[] hello = new byte[WireCodec.HELLO_SIZE];
+                readBuffer.get(hello);
+                handshake(hello);
+            }
+            WireCodec codec = this.codec;
+            while (readBuffer.remaining() >= WireCodec.LENGTH_FIELD_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                WireCodec.checkFrameLength(length);
+                int frameSize = WireCodec.LENGTH_FIELD_SIZE + length;
+                if (readBuffer.remaining() < frameSize) {
+                    required = frameSize;
+                    break;
+                }
+                int start = readBuffer.arrayOffset() + readBuffer.position() + WireCodec.LENGTH_FIELD_SIZE;
+                Wrapper msg = codec.decode(readBuffer.array(), start, length);
+                readBuffer.position(readBuffer.position() + frameSize);
+                // 心跳帧只用于刷新活跃时间
+                if (!onInboundFrame(msg)) {
+                    continue;
+                }
+
+                if (msg.getOperation() == Global.OPT_LOGOUT) {
+                    System.out.println("接受线程已结束");
+                }
+                if (!inboundQueue.offer(msg) && InboundPolicy.onQueueFull(this, msg)) {
+                    pendingInbound = msg;
+                    pauseRead();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("接收消息时发生IO异常: " + e.getMessage());
+            readBuffer.compact();
+            closeClient();
+            return;
+        }
+        readBuffer.compact();
+
+        // 当前帧比缓冲区还大时扩容
+        if (required > readBuffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(required);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        // 暂停读取之前工作线程可能已经取空了队列（当时 readPaused 还是 false，不会安排恢复），
+        // 这里再检查一次，避免没有人恢复读取
+        if (readPaused && inboundQueue.remainingCapacity() > 0 && resumeScheduled.compareAndSet(false, true)) {
+            loop.execute(this::resumeRead);
+        }
+        scheduleDrain();
+    }
+
+    private void pauseRead() {
+        readPaused = true;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // 入站队列腾出空间后恢复读取
+    private void resumeRead() {
+        resumeScheduled.set(false);
+        if (closed.get() || !readPaused) {
+            return;
+        }
+        if (pendingInbound != null) {
+            if (!inboundQueue.offer(pendingInbound)) {
+                return;
+            }
+            pendingInbound = null;
+        }
+        readPaused = false;
+        // 缓冲区里可能还有已经收到但尚未入队的帧
+        parseBuffered();
+        if (!readPaused && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // ====================== 业务处理：工作线程 ======================
+
+    private void scheduleDrain() {
+        if (!inboundQueue.isEmpty() && draining.compareAndSet(false, true)) {
+            workerPool.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        int handled = 0;
+        while (!closed.get()) {
+            Wrapper msg = inboundQueue.poll();
+            if (msg == null) {
+                break;
+            }
+            if (readPaused && resumeScheduled.compareAndSet(false, true)) {
+                loop.execute(this::resumeRead);
+            }
+            try {
+                // 委托给 RequestHandler 处理
+                requestHandler.handleRequest(msg);
+            } catch (RuntimeException e) {
+                System.err.println("处理请求时发生异常: " + e.getMessage());
+                e.printStackTrace();
+            }
+            if (++handled >= MAX_BATCH) {
+                // 让出工作线程，剩余消息重新排队处理（draining 标记保持不变）
+                workerPool.execute(this::drain);
+                return;
+            }
+        }
+        draining.set(false);
+        if (!closed.get()) {
+            scheduleDrain();
+        }
+    }
+
+    // ====================== 出站 ======================
+
+    @Override
+    protected void onOutboundReady() {
+        scheduleFlush();
+    }
+
+    @Override
+    protected void writeHandshakeReply(byte[] reply) {
+        // 握手在事件循环线程中完成
+        pendingWrites.add(ByteBuffer.wrap(reply));
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOutbound);
+        }
+    }
+
+    void onWritable() {
+        flushOutbound();
+    }
+
+    // 在事件循环线程中尽可能多地写出出站数据，写不完则等待可写事件
+    private void flushOutbound() {
+        if (closed.get() || !key.isValid()) {
+            return;
+        }
+        try {
+            while (fillPendingWrites()) {
+                // 帧头和帧体是分开的缓冲区，用聚集写一次系统调用写出多段
+                int count = 0;
+                for (ByteBuffer buffer : pendingWrites) {
+                    gatherBuffers[count++] = buffer;
+                    if (count == gatherBuffers.length) {
+                        break;
+                    }
+                }
+                channel.write(gatherBuffers, 0, count);
+                Arrays.fill(gatherBuffers, 0, count, null);
+                while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().hasRemaining()) {
+                    pendingWrites.pollFirst();
+                }
+                if (!pendingWrites.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                OutboundStats.recordFlush(batcher);
+                batcher.reset();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+            // 清除标记期间可能有新的数据入队
+            if (!outboundQueue.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flushOutbound);
+            }
+        } catch (IOException e) {
+            System.out.println("send error: " + userId);
+            closeClient();
+        }
+    }
+
+    // 从出站队列取出消息编码为待写缓冲区，返回是否有数据待写。
+    // 队列里连续的多条消息会合并到同一次聚集写中，直到达到合并上限
+    private boolean fillPendingWrites() {
+        WireCodec codec = this.codec;
+        boolean full = false;
+        while (!full && pendingWrites.size() < gatherBuffers.length && codec != null) {
+            EncodedMessage message = outboundQueue.poll();
+            if (message == null) {
+                break;
+            }
+            byte[][] frame;
+            try {
+                frame = codec.frame(message);
+            } catch (IOException e) {
+                System.err.println("消息编码失败: " + e.getMessage());
+                continue;
+            }
+            // 帧体是多个连接共享的数组，只包装不复制
+            pendingWrites.add(ByteBuffer.wrap(frame[0]));
+            pendingWrites.add(ByteBuffer.wrap(frame[1]));
+            full = batcher.add(frame[0].length + frame[1].length, message.getCreatedNanos(), false);
+        }
+        return !pendingWrites.isEmpty();
+    }
+
+    // ====================== 关闭 ======================
+
+    @Override
+    public void closeClient() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        // 优先结束阻塞队列
+        ServerMainThread.dropMsgQueue(socket);
+        unregisterOnline();
+        outboundQueue.close();
+        loop.execute(this::closeNow);
+    }
+
+    // 在事件循环线程中释放通道
+    void closeNow() {
+        closed.set(true);
+        if (released) {
+            return;
+        }
+        released = true;
+        // 尽量写出已经编码的数据（例如握手失败的回复），写不完就放弃，不等待可写事件
+        try {
+            for (ByteBuffer buffer : pendingWrites) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        pendingWrites.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("关闭socket异常: " + e.getMessage());
+        }
+        loop.channelClosed();
+    }
+}
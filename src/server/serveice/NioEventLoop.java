@@ -0,0 +1,156 @@
+package server.serveice;
+
+import server.ServerMainThread;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NIO 事件循环线程。
+ * 每个事件循环持有一个 Selector，负责其名下所有连接的读写事件：
+ * 读到完整的帧后解码并交给会话的入站队列，由工作线程池执行业务逻辑；
+ * 会话要发送的数据由事件循环在通道可写时写出。
+ * 所有对 SelectionKey / SocketChannel 的操作都只在本线程中进行，其他线程通过 execute() 投递任务。
+ */
+public class NioEventLoop extends Thread {
+    private final Selector selector;
+    // 其他线程投递过来的任务（注册通道、修改关注事件、关闭连接等）
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    // 业务处理线程池
+    private final ExecutorService workerPool;
+    // 当前事件循环上的连接数
+    private final AtomicInteger channelCount = new AtomicInteger();
+
+    private volatile boolean isRunning = true;
+
+    public NioEventLoop(String name, ExecutorService workerPool) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * 将新接受的连接交给本事件循环管理，可以被任意线程调用
+     *
+     * @param channel      新接受的连接
+     * @param inboundQueue 该连接的入站消息队列
+     */
+    public void register(SocketChannel channel, BlockingQueue<Wrapper> inboundQueue) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioClientSession session = new NioClientSession(channel, inboundQueue, this, workerPool);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+                session.attachKey(key);
+                channelCount.incrementAndGet();
+                HeartbeatMonitor.watch(session);
+            } catch (IOException e) {
+                System.err.println("注册连接失败: " + e.getMessage());
+                ServerMainThread.dropMsgQueue(channel.socket());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * 投递任务到事件循环线程执行
+     */
+    public void execute(Runnable task) {
+        taskQueue.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    // 连接关闭时由会话回调
+    void channelClosed() {
+        channelCount.decrementAndGet();
+    }
+
+    public int getChannelCount() {
+        return channelCount.get();
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (ServerMainThread.isRunning() && isRunning) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Selector 异常: " + e.getMessage());
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                NioClientSession session = (NioClientSession) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                } catch (CancelledKeyException e) {
+                    session.closeClient();
+                }
+            }
+
+            // 处理读写事件期间本线程投递的任务（execute() 在本线程中调用时不会唤醒 Selector）
+            runTasks();
+        }
+
+        // 退出时关闭名下所有连接：先尽量写出出站队列（如服务器关闭通知），
+        // 再走完整的关闭流程释放消息队列和在线登记，最后执行关闭时投递的任务释放通道
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioClientSession) {
+                NioClientSession session = (NioClientSession) attachment;
+                if (key.isValid()) {
+                    session.onWritable();
+                }
+                session.closeClient();
+            }
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("事件循环任务执行异常: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server.serveice;
+
+import server.data.ServerData;
+import server.data.SymbolTable;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * 在线用户表：下标为用户句柄（SymbolTable.USERS），值为该用户当前的会话。
+ * <p>
+ * 转发消息时按句柄直接取数组元素，不计算字符串哈希也不装箱。
+ * 读取不加锁；登记、移除和扩容在表的锁内进行，扩容时先复制再发布新数组，之后的写入都落在新数组上。
+ * <p>
+ * 用户上线、下线时通知 ServerData 更新各群聊的在线成员索引（群发只遍历在线成员）。
+ * 通知在表的锁内发出，保证同一用户的上线、下线按登记顺序到达，不会因为并发的登录和断开而错位。
+ */
+final class OnlineTable {
+    private volatile AtomicReferenceArray<ClientSession> sessions = new AtomicReferenceArray<>(1024);
+
+    /**
+     * 句柄对应的在线会话，不在线或句柄无效时返回 null
+     */
+    ClientSession get(int handle) {
+        AtomicReferenceArray<ClientSession> current = sessions;
+        return handle >= 0 && handle < current.length() ? current.get(handle) : null;
+    }
+
+    synchronized void put(int handle, ClientSession session) {
+        AtomicReferenceArray<ClientSession> current = sessions;
+        if (handle >= current.length()) {
+            AtomicReferenceArray<ClientSession> grown =
+                    new AtomicReferenceArray<>(Math.max(current.length() * 2, handle + 1));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            sessions = grown;
+            current = grown;
+        }
+        // 同一账号重复登录时替换会话，在线状态不变
+        if (current.getAndSet(handle, session) == null) {
+            ServerData.getInstance().userOnline(SymbolTable.USERS.nameOf(handle));
+        }
+    }
+
+    synchronized void remove(int handle) {
+        if (handle >= 0 && handle < sessions.length() && sessions.getAndSet(handle, null) != null) {
+            ServerData.getInstance().userOffline(SymbolTable.USERS.nameOf(handle));
+        }
+    }
+
+    /**
+     * 只有登记的仍是指定会话时才移除，避免旧连接关闭时把同一账号的新连接移除
+     */
+    synchronized void remove(int handle, ClientSession expected) {
+        if (handle >= 0 && handle < sessions.length() && sessions.compareAndSet(handle, expected, null)) {
+            ServerData.getInstance().userOffline(SymbolTable.USERS.nameOf(handle));
+        }
+    }
+
+    /**
+     * 遍历全部在线用户（用户id, 会话），用于状态查看，不用于转发
+     */
+    void forEach(BiConsumer<String, ClientSession> action) {
+        AtomicReferenceArray<ClientSession> current = sessions;
+        for (int i = 0; i < current.length(); i++) {
+            ClientSession session = current.get(i);
+            if (session != null) {
+                action.accept(SymbolTable.USERS.nameOf(i), session);
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package server.serveice;
+
+import server.ServerConfig;
+import util.EncodedMessage;
+import util.FileUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 会话的出站队列。
+ * <p>
+ * 业务线程发送消息时只把消息放进接收方的出站队列，由该会话专属的写出者（classic 模式下的
+ * ClientSendThread，NIO 模式下的事件循环）按顺序取出、编码并写入套接字。
+ * 这样某个客户端接收过慢时只会让它自己的队列变长，不会卡住发送方和其他接收者。
+ * <p>
+ * 消息在取出时才编码：编解码器带有连接级的 ID 驻留表，丢弃尚未编码的消息不会破坏后续帧。
+ * 队列满时按 {@link ServerConfig#OUTBOUND_OVERFLOW_POLICY} 处理：丢弃最旧的消息、
+ * 拒绝入队（由调用方断开客户端），或者把超出部分按顺序暂存到磁盘。
+ * 暂存时入队只把消息放进内存中的待暂存队列，序列化和写文件由后台暂存线程完成，读回在写出者线程的锁外进行，
+ * 发送方和控制台查看都不会因为磁盘 IO 而等待。
+ */
+public class OutboundQueue {
+    private static final File SPILL_DIR = new File(FileUtil.DATA_FILE, "spill");
+    // 所有会话共用的暂存线程：序列化和写文件都在这里完成，发送方入队时不做磁盘 IO
+    private static final ExecutorService SPILL_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "outbound-spill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ArrayDeque<EncodedMessage> memory = new ArrayDeque<>();
+    private final int capacity;
+    private final String policy;
+
+    // 消息顺序：memory 在前，其次是磁盘上的暂存记录，最后是等待暂存线程写入磁盘的 overflow
+    private final ArrayDeque<EncodedMessage> overflow = new ArrayDeque<>();
+    // overflow 最多容纳的消息数：暂存线程暂时跟不上时先在内存中排队，超过后断开客户端
+    private final int overflowLimit;
+    private boolean spillScheduled = false;
+    // 暂存线程正在写入 overflow 队头时为 true，此时不能重置写入位置
+    private boolean spillWriting = false;
+    private boolean spillFailed = false;
+
+    // 暂存文件：只追加，按写入顺序读回；用按位置读写的 FileChannel，读写都可以在锁外进行
+    private RandomAccessFile spillFile;
+    private FileChannel spillChannel;
+    private File spillPath;
+    private long spillReadPos = 0;
+    private long spillWritePos = 0;
+    private int spilledCount = 0;
+
+    // 统计
+    private long droppedCount = 0;
+    private long totalSpilled = 0;
+    private boolean closed = false;
+
+    public OutboundQueue() {
+        this(ServerConfig.OUTBOUND_QUEUE_CAPACITY, ServerConfig.OUTBOUND_OVERFLOW_POLICY);
+    }
+
+    public OutboundQueue(int capacity, String policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        // 群发时各队列里是同一个消息对象，待暂存的消息大多只占一个引用，下限放宽到 1024 条
+        this.overflowLimit = Math.max(this.capacity, 1024);
+    }
+
+    /**
+     * 放入一条待发送的消息，不会阻塞，也不做磁盘 IO（暂存由后台线程完成）
+     *
+     * @return false 表示队列已满且策略要求断开客户端（或队列已关闭）
+     */
+    public synchronized boolean offer(EncodedMessage message) {
+        if (closed) {
+            return false;
+        }
+        // 已经有消息暂存（或等待暂存）时，新消息也必须排在后面，保证顺序
+        if (spilledCount > 0 || !overflow.isEmpty()) {
+            return spill(message);
+        }
+        if (memory.size() >= capacity) {
+            switch (policy) {
+                case ServerConfig.OVERFLOW_DISCONNECT:
+                    return false;
+                case ServerConfig.OVERFLOW_SPILL:
+                    return spill(message);
+                default:
+                    memory.pollFirst();
+                    droppedCount++;
+                    break;
+            }
+        }
+        memory.addLast(message);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 取出下一条消息，队列为空时返回 null。只能由该会话的写出者调用（单一消费者），
+     * 读回暂存记录时在锁外读文件，不阻塞发送方
+     */
+    public EncodedMessage poll() {
+        long position;
+        synchronized (this) {
+            if (!memory.isEmpty()) {
+                return memory.pollFirst();
+            }
+            if (spilledCount == 0) {
+                // 磁盘上没有记录时直接取还没写入磁盘的消息，暂存线程提交时会发现队头已被取走
+                return overflow.pollFirst();
+            }
+            position = spillReadPos;
+        }
+        return unspill(position);
+    }
+
+    /**
+     * 取出下一条消息，队列为空时等待
+     *
+     * @return 队列关闭后返回 null
+     */
+    public EncodedMessage take() throws InterruptedException {
+        while (true) {
+            EncodedMessage message = poll();
+            if (message != null) {
+                return message;
+            }
+            synchronized (this) {
+                while (!closed && isEmpty()) {
+                    wait();
+                }
+                if (closed) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isEmpty() {
+        return memory.isEmpty() && spilledCount == 0 && overflow.isEmpty();
+    }
+
+    public synchronized int size() {
+        return memory.size() + spilledCount + overflow.size();
+    }
+
+    /**
+     * 关闭队列：丢弃未发送的消息，唤醒等待中的写出者，删除暂存文件
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        memory.clear();
+        overflow.clear();
+        spilledCount = 0;
+        releaseSpillFile();
+        notifyAll();
+    }
+
+    /**
+     * 状态描述，供服务端控制台查看
+     */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("depth=").append(memory.size()).append('/').append(capacity);
+        if (spilledCount > 0 || totalSpilled > 0 || !overflow.isEmpty()) {
+            sb.append(", spilled=").append(spilledCount).append(" (").append(spillWritePos - spillReadPos).append(" bytes)");
+            sb.append(", spillPending=").append(overflow.size());
+        }
+        if (droppedCount > 0) {
+            sb.append(", dropped=").append(droppedCount);
+        }
+        return sb.toString();
+    }
+
+    // ====================== 磁盘暂存 ======================
+
+    // 在锁内调用：放入 overflow 并安排暂存线程。暂存线程跟不上（overflow 也满）或写文件失败时返回 false
+    private boolean spill(EncodedMessage message) {
+        if (spillFailed) {
+            return false;
+        }
+        if (overflow.size() >= overflowLimit) {
+            System.out.println("出站暂存跟不上发送速度，断开客户端");
+            return false;
+        }
+        overflow.addLast(message);
+        if (!spillScheduled) {
+            spillScheduled = true;
+            SPILL_EXECUTOR.execute(this::spillPending);
+        }
+        notifyAll();
+        return true;
+    }
+
+    // 暂存线程：逐条把 overflow 队头序列化写入文件，序列化和写文件都在锁外进行
+    private void spillPending() {
+        while (true) {
+            EncodedMessage head;
+            long position;
+            synchronized (this) {
+                head = overflow.peekFirst();
+                if (closed || head == null || spillFailed) {
+                    spillScheduled = false;
+                    return;
+                }
+                position = spillWritePos;
+                spillWriting = true;
+            }
+            boolean written = false;
+            int recordSize = 0;
+            try {
+                byte[] record = serialize(head.getWrapper());
+                recordSize = 4 + record.length;
+                synchronized (this) {
+                    if (spillWritePos - spillReadPos + recordSize > ServerConfig.OUTBOUND_SPILL_LIMIT) {
+                        // 超出上限后不再写入，消息留在 overflow 中，overflow 满时 offer 返回 false 断开客户端
+                        System.out.println("出站暂存文件超出上限，停止暂存");
+                        spillFailed = true;
+                        spillWriting = false;
+                        spillScheduled = false;
+                        return;
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+                buffer.putInt(record.length).put(record).flip();
+                FileChannel channel = openSpillChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                written = true;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!closed) {
+                        System.err.println("写入出站暂存文件失败: " + e.getMessage());
+                        spillFailed = true;
+                    }
+                }
+            }
+            synchronized (this) {
+                spillWriting = false;
+                // 写入期间写出者可能已经直接取走了这条消息，此时写入的记录作废，下次从同一位置覆盖
+                if (written && !closed && overflow.peekFirst() == head) {
+                    overflow.pollFirst();
+                    spillWritePos = position + recordSize;
+                    spilledCount++;
+                    totalSpilled++;
+                }
+                if (spilledCount == 0) {
+                    spillReadPos = 0;
+                    spillWritePos = 0;
+                }
+            }
+        }
+    }
+
+    private synchronized FileChannel openSpillChannel() throws IOException {
+        if (closed) {
+            throw new IOException("出站队列已关闭");
+        }
+        if (spillChannel == null) {
+            SPILL_DIR.mkdirs();
+            spillPath = File.createTempFile("session-", ".spill", SPILL_DIR);
+            spillPath.deleteOnExit();
+            spillFile = new RandomAccessFile(spillPath, "rw");
+            spillChannel = spillFile.getChannel();
+        }
+        return spillChannel;
+    }
+
+    // 写出者线程：在锁外读回指定位置的记录，再在锁内推进读取位置
+    private EncodedMessage unspill(long position) {
+        FileChannel channel;
+        synchronized (this) {
+            channel = spillChannel;
+        }
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(channel, length, position);
+            ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+            readFully(channel, record, position + 4);
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                spillReadPos = position + 4 + record.capacity();
+                spilledCount--;
+                if (spilledCount == 0 && !spillWriting) {
+                    // 全部读回后从头复用文件
+                    spillReadPos = 0;
+                    spillWritePos = 0;
+                }
+            }
+            return new EncodedMessage(deserialize(record.array()));
+        } catch (IOException | ClassNotFoundException e) {
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                System.err.println("读取出站暂存文件失败，丢弃暂存的消息: " + e.getMessage());
+                droppedCount += spilledCount;
+                spilledCount = 0;
+                if (!spillWriting) {
+                    spillReadPos = 0;
+                    spillWritePos = 0;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("出站暂存文件不完整");
+            }
+        }
+    }
+
+    private void releaseSpillFile() {
+        if (spillFile == null) {
+            return;
+        }
+        try {
+            spillFile.close();
+        } catch (IOException e) {
+            System.err.println("关闭出站暂存文件失败: " + e.getMessage());
+        }
+        if (!spillPath.delete()) {
+            System.err.println("删除出站暂存文件失败: " + spillPath);
+        }
+        spillFile = null;
+        spillChannel = null;
+    }
+
+    private static byte[] serialize(Wrapper wrapper) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(wrapper);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Wrapper deserialize(byte[] record) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            return (Wrapper) ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package server.serveice;
+
+import util.WriteBatcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 出站写出的全局统计：flush 次数、帧数、字节数，以及消息从发出到写出的延迟分布。
+ * 延迟按微秒记录在对数分桶的直方图中（每个 2 的幂区间再分 4 档，误差不超过 25%），
+ * 用于在服务端控制台对比开启/关闭写合并时的吞吐与 p99 延迟。
+ */
+public final class OutboundStats {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private static final LongAdder FLUSHES = new LongAdder();
+    private static final LongAdder FRAMES = new LongAdder();
+    private static final LongAdder BYTES = new LongAdder();
+    private static final AtomicLongArray LATENCY = new AtomicLongArray(64 * SUB_COUNT);
+    private static volatile long since = System.nanoTime();
+
+    private OutboundStats() {
+    }
+
+    /**
+     * 记录一次 flush，batcher 中为这一批的帧
+     */
+    static void recordFlush(WriteBatcher batcher) {
+        int frames = batcher.getPendingFrames();
+        if (frames == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        FLUSHES.increment();
+        FRAMES.add(frames);
+        BYTES.add(batcher.getPendingBytes());
+        for (int i = 0; i < frames; i++) {
+            LATENCY.incrementAndGet(bucketOf((now - batcher.getPendingCreated(i)) / 1000));
+        }
+    }
+
+    // 微秒数对应的桶：前 SUB_COUNT 个值各占一桶，之后按最高位所在的 2 的幂区间 + 次高 SUB_BITS 位分桶
+    private static int bucketOf(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) Math.max(0, micros);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // 桶的上界（微秒）
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    private static long percentile(long[] counts, long total, double p) {
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 当前统计，供服务端控制台查看
+     */
+    public static Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        long flushes = FLUSHES.sum();
+        long frames = FRAMES.sum();
+        double seconds = (System.nanoTime() - since) / 1e9;
+        status.put("flushes", flushes);
+        status.put("frames", frames);
+        status.put("bytes", BYTES.sum());
+        status.put("framesPerFlush", flushes == 0 ? 0 : String.format("%.2f", (double) frames / flushes));
+        status.put("framesPerSecond", String.format("%.1f", frames / Math.max(seconds, 1e-3)));
+
+        long[] counts = new long[LATENCY.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = LATENCY.get(i);
+            total += counts[i];
+        }
+        if (total > 0) {
+            status.put("latencyP50Micros", percentile(counts, total, 0.50));
+            status.put("latencyP99Micros", percentile(counts, total, 0.99));
+            status.put("latencyMaxMicros", percentile(counts, total, 1.0));
+        }
+        return status;
+    }
+
+    /**
+     * 清空统计，便于分段测量
+     */
+    public static void reset() {
+        FLUSHES.reset();
+        FRAMES.reset();
+        BYTES.reset();
+        for (int i = 0; i < LATENCY.length(); i++) {
+            LATENCY.set(i, 0);
+        }
+        since = System.nanoTime();
+    }
+}
@@ -1,10 +1,10 @@
 package server.serveice;
 
 import global.Global;
+import server.ServerConfig;
 import server.data.GroupData;
 import server.data.ServerData;
 import server.data.UserData;
-import util.FileUtil;
 
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
@@ -91,7 +91,8 @@ public class ServerRequestHandler {
                 break;
             case Global.OPT_CHAT:
                 sender.sendToGroupExceptSelf(msg, msg.getGroupId());
-                FileUtil.addChatMessage(msg.getGroupId(), (String) msg.getData());
+                // 只把记录交给聊天记录存储的写盘线程，不等待磁盘
+                ServerData.getInstance().addChatMessage(msg.getGroupId(), (String) msg.getData());
                 break;
             case Global.OPT_PRIVATE_CHAT:
                 handlePrivateChatRequest(msg);
@@ -105,6 +106,12 @@ public class ServerRequestHandler {
             case Global.OPT_INIT_CHAT:
                 handleInitChatRequest();
                 break;
+            case Global.OPT_HISTORY_PAGE:
+                handleHistoryPageRequest(msg);
+                break;
+            case Global.OPT_CHAT_SEARCH:
+                handleChatSearchRequest(msg);
+                break;
             case Global.OPT_INIT_GROUP:
                 handleInitGroupRequest();
                 break;
@@ -144,10 +151,9 @@ public class ServerRequestHandler {
             return;
         }
 
+        // 注册只向日志追加一条记录，返回时已经落盘
         ServerData.getInstance().addUser(new UserData(nikname, userId, password));
         sender.sendToSelf(Wrapper.serverResponse(Global.OPT_REGISTER_SUCCESS));
-        
-        FileUtil.saveServerData();
     }
 
     private void handleLogInRequest(Wrapper msg) {
@@ -186,7 +192,6 @@ public class ServerRequestHandler {
         sender.setLogin(false);
         sender.removeOnlineUser(userId);
         sender.sendToSelf(Wrapper.serverResponse(Global.OPT_DELETE_ACCOUNT));
-        FileUtil.saveServerData();
     }
 
     private void handleUpdateUserNameRequest(Wrapper wrapper) {
@@ -223,7 +228,7 @@ public class ServerRequestHandler {
         ServerData.getInstance().addUserToGroup(groupId, userId);
 
         sender.sendToSelf(Wrapper.serverResponse(Global.OPT_GROUP_CREATE_SUCCESS));
-        sender.sendToSelf(Wrapper.initResponse(groupData));
+        sender.sendToSelf(Wrapper.initResponse(ServerData.getInstance().getGroupById(groupId)));
     }
 
     private void handleInviteRequest(Wrapper inviteMsg) {
@@ -236,7 +241,7 @@ public class ServerRequestHandler {
             return;
         }
 
-        if (ServerData.getInstance().getGroupMembersId(theGroupId).contains(inviteId)) {
+        if (ServerData.getInstance().getGroupMemberArray(theGroupId).contains(inviteId)) {
             sender.sendToSelf(Wrapper.serverResponse(Global.SERVER_MESSAGE, "该用户已在群聊中"));
             return;
         }
@@ -261,16 +266,18 @@ public class ServerRequestHandler {
             return;
         }
 
-        if (group.getMembers().contains(group.new GroupMember(userId))) {
+        if (group.hasMember(userId)) {
             sender.sendToSelf(Wrapper.initResponse(group));
             return;
         }
 
-        group.addMember(userId);
-        ServerData.getInstance().getUserData(userId).addGroupId(groupId);
+        ServerData.getInstance().addUserToGroup(groupId, userId);
+        ServerData.getInstance().addGroupToUser(userId, groupId);
 
-        sender.sendToSelf(Wrapper.initResponse(group));
-        sender.sendToGroupExceptSelf(Wrapper.initResponse(group), groupId);
+        // 修改后重新读取：写时复制可能已用副本替换了表中的群聊，之前取到的对象不含新成员
+        Wrapper wrapper = Wrapper.initResponse(ServerData.getInstance().getGroupById(groupId));
+        sender.sendToSelf(wrapper);
+        sender.sendToGroupExceptSelf(wrapper, groupId);
     }
 
     private void handleFriendAddRequest(Wrapper msg) {
@@ -289,7 +296,7 @@ public class ServerRequestHandler {
         }
 
         UserData myData = ServerData.getInstance().getUserData(userId);
-        if (myData.getFriendIds().contains(friendId)) {
+        if (myData.hasFriend(friendId)) {
             sender.sendToSelf(Wrapper.serverResponse(Global.SERVER_MESSAGE, "你们已经是好友了"));
             return;
         }
@@ -307,8 +314,7 @@ public class ServerRequestHandler {
 
         if (friendData == null) return;
 
-        myData.addFriend(friendId);
-        friendData.addFriend(myId);
+        ServerData.getInstance().addFriendship(myId, friendId);
 
         Map<String, String> friendInfo = new HashMap<>();
         friendInfo.put(friendId, friendData.getNickname());
@@ -371,13 +377,63 @@ public class ServerRequestHandler {
         sender.sendToGroup(groupUpdateMsg, groupUpdateMsg.getGroupId());
     }
 
+    // 登录时每个群聊只下发最新的一页，更早的消息由客户端翻页时再请求
     private void handleInitChatRequest() {
         for (String groupId : ServerData.getInstance().getUserGroups(sender.getCurrentUserId())) {
-            Wrapper wrapper = Wrapper.initResponse(FileUtil.loadGroupChatMsg(groupId), groupId);
+            Wrapper wrapper = Wrapper.historyPageResponse(ServerData.getInstance().loadGroupChatMsg(groupId), groupId);
             sender.sendToSelf(wrapper);
         }
     }
 
+    private void handleHistoryPageRequest(Wrapper msg) {
+        String groupId = msg.getGroupId();
+        if (groupId == null || !ServerData.getInstance().isUserInGroup(sender.getCurrentUserId(), groupId)) {
+            sender.sendToSelf(Wrapper.serverResponse(Global.OPT_QUEST_WRONG));
+            return;
+        }
+
+        long beforeSeq;
+        int limit;
+        try {
+            String[] cursor = (String[]) msg.getData();
+            beforeSeq = Long.parseLong(cursor[0]);
+            limit = Integer.parseInt(cursor[1]);
+        } catch (RuntimeException e) {
+            sender.sendToSelf(Wrapper.serverResponse(Global.OPT_QUEST_WRONG));
+            return;
+        }
+
+        limit = Math.max(1, Math.min(limit, ServerConfig.CHATLOG_MAX_PAGE));
+        sender.sendToSelf(Wrapper.historyPageResponse(ServerData.getInstance().loadChatHistoryPage(groupId, beforeSeq, limit), groupId));
+    }
+
+    // 只能搜索自己所在群聊的记录
+    private void handleChatSearchRequest(Wrapper msg) {
+        String groupId = msg.getGroupId();
+        if (groupId == null || !ServerData.getInstance().isUserInGroup(sender.getCurrentUserId(), groupId)) {
+            sender.sendToSelf(Wrapper.serverResponse(Global.OPT_QUEST_WRONG));
+            return;
+        }
+
+        String query;
+        int limit;
+        try {
+            String[] request = (String[]) msg.getData();
+            query = request[0];
+            limit = Integer.parseInt(request[1]);
+        } catch (RuntimeException e) {
+            sender.sendToSelf(Wrapper.serverResponse(Global.OPT_QUEST_WRONG));
+            return;
+        }
+        if (query == null) {
+            sender.sendToSelf(Wrapper.serverResponse(Global.OPT_QUEST_WRONG));
+            return;
+        }
+
+        limit = Math.max(1, Math.min(limit, ServerConfig.CHATLOG_SEARCH_MAX_HITS));
+        sender.sendToSelf(Wrapper.chatSearchResponse(ServerData.getInstance().searchGroupChatMsg(groupId, query, limit), groupId));
+    }
+
     private void handleInitGroupRequest() {
         for (String groupId : ServerData.getInstance().getUserGroups(sender.getCurrentUserId())) {
             Wrapper wrapper = Wrapper.initResponse(ServerData.getInstance().getGroupById(groupId));
@@ -406,10 +462,8 @@ public class ServerRequestHandler {
 
         UserData serverData = ServerData.getInstance().getUserData(currentUserId);
         if (serverData != null) {
-            serverData.setEmail(updatedData.getEmail());
-            serverData.setBirthday(updatedData.getBirthday());
-            serverData.setAddress(updatedData.getAddress());
-            serverData.setSignature(updatedData.getSignature());
+            ServerData.getInstance().updateUserDetail(currentUserId, updatedData.getEmail(),
+                    updatedData.getBirthday(), updatedData.getAddress(), updatedData.getSignature());
 
             // UserData safeCopy = serverData.getSafeCopy();
             // Wrapper updateMsg = Wrapper.updateUserDetailResponse(safeCopy);
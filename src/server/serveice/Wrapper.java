@@ -5,7 +5,6 @@ import server.data.GroupData;
 import server.data.UserData;
 
 import java.io.Serializable;
-import java.util.List;
 import java.util.Map;
 
 // 打包类，用于将数据打包传输
@@ -100,9 +99,25 @@ public class Wrapper implements Serializable {
         return new Wrapper(groupData, Global.SERVER_ACCOUNT, null, Global.OPT_INIT_GROUP);
     }
 
-    // 初始化回复，将聊天记录回复给客户端
-    public static Wrapper initResponse(List<String> chatRecords, String groupId) {
-        return new Wrapper(chatRecords, Global.SERVER_ACCOUNT, groupId, Global.OPT_INIT_CHAT);
+    // 聊天历史分页请求：获取序号小于 beforeSeq 的最后 limit 条消息
+    public static Wrapper historyPageRequest(String senderId, String groupId, long beforeSeq, int limit) {
+        return new Wrapper(new String[]{String.valueOf(beforeSeq), String.valueOf(limit)}, senderId, groupId,
+                Global.OPT_HISTORY_PAGE);
+    }
+
+    // 聊天历史分页回复，page[0] 是本页第一条消息的序号，其余是消息
+    public static Wrapper historyPageResponse(String[] page, String groupId) {
+        return new Wrapper(page, Global.SERVER_ACCOUNT, groupId, Global.OPT_HISTORY_PAGE_RESULT);
+    }
+
+    // 聊天记录搜索请求
+    public static Wrapper chatSearchRequest(String senderId, String groupId, String query, int limit) {
+        return new Wrapper(new String[]{query, String.valueOf(limit)}, senderId, groupId, Global.OPT_CHAT_SEARCH);
+    }
+
+    // 聊天记录搜索回复，hits 依次是每条命中的序号和消息
+    public static Wrapper chatSearchResponse(String[] hits, String groupId) {
+        return new Wrapper(hits, Global.SERVER_ACCOUNT, groupId, Global.OPT_CHAT_SEARCH_RESULT);
     }
 
     // 将用户id/名字回复给客户端。
@@ -0,0 +1,64 @@
+package server.data;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * 各基准程序共用的工具：命令行参数、id 生成、测试数据和堆内存测量。
+ * 基准程序放在 src/test 下，只参与 test-compile，不打进服务端的 jar。
+ */
+final class BenchSupport {
+    private BenchSupport() {
+    }
+
+    // 第 index 个命令行参数，没有时使用默认值
+    static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    static String userId(int i) {
+        return String.valueOf(100000 + i);
+    }
+
+    static String groupId(int g) {
+        return String.valueOf(900000 + g);
+    }
+
+    /**
+     * 内存存储的 ServerData，含 userCount 个用户（id 见 {@link #userId}），不读写快照和日志
+     */
+    static ServerData memoryData(int userCount) {
+        ServerData data = new ServerData(new MemoryUserStore(), new MemoryGroupStore(), new MemoryChatStore());
+        for (int i = 0; i < userCount; i++) {
+            data.addUser(new UserData("用户" + i, userId(i), "password"));
+        }
+        return data;
+    }
+
+    /**
+     * 从 userCount 个用户中随机抽取 size 个不同的用户id（按 id 排序）
+     */
+    static String[] sampleUserIds(int userCount, int size, Random random) {
+        TreeSet<String> ids = new TreeSet<>();
+        while (ids.size() < size) {
+            ids.add(userId(random.nextInt(userCount)));
+        }
+        return ids.toArray(new String[0]);
+    }
+
+    /**
+     * 多次 GC 之后的已用堆内存，用两次调用的差值估算一批对象的大小
+     */
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
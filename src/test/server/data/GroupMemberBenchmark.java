@@ -0,0 +1,121 @@
+package server.data;
+
+import util.IntBitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 大群成员保存方式的基准：比较旧的 TreeSet&lt;GroupMember&gt; 与句柄位图的内存占用和群发目标计算耗时。
+ * <p>
+ * 用法：java server.data.GroupMemberBenchmark [用户数] [在线比例%] [每种规模的成员关系总数]
+ * <p>
+ * 群成员数依次取 100、1000、10000、50000，从全部用户中随机抽取；每种规模的群数按成员关系总数（默认 200 万）计算，
+ * 保证堆内存的变化远大于测量误差。
+ * 群发目标计算只统计“找出在线成员”的耗时：旧实现逐个成员查在线表（按用户id），
+ * 新实现用成员位图与在线用户位图求交。
+ */
+public class GroupMemberBenchmark {
+    private static final int[] GROUP_SIZES = {100, 1_000, 10_000, 50_000};
+
+    public static void main(String[] args) {
+        int userCount = BenchSupport.intArg(args, 0, 200_000);
+        int onlinePercent = BenchSupport.intArg(args, 1, 10);
+        int membershipsPerSize = BenchSupport.intArg(args, 2, 2_000_000);
+        System.out.println("用户数: " + userCount + ", 在线比例: " + onlinePercent + "%, 每种规模的成员关系总数: " + membershipsPerSize);
+
+        String[] userIds = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            userIds[i] = BenchSupport.userId(i);
+            SymbolTable.USERS.intern(userIds[i]);
+        }
+        Random random = new Random(42);
+        ConcurrentHashMap<String, Object> onlineMap = new ConcurrentHashMap<>();
+        int[] onlineHandles = new int[userCount * onlinePercent / 100];
+        for (int i = 0; i < onlineHandles.length; i++) {
+            int user = random.nextInt(userCount);
+            onlineMap.put(userIds[user], Boolean.TRUE);
+            onlineHandles[i] = SymbolTable.USERS.handleOf(userIds[user]);
+        }
+        IntBitmap online = IntBitmap.of(onlineHandles);
+
+        for (int size : GROUP_SIZES) {
+            if (size > userCount) {
+                break;
+            }
+            run(size, Math.max(4, membershipsPerSize / size), userIds, onlineMap, online, random);
+        }
+    }
+
+    private static void run(int size, int groupCount, String[] userIds, ConcurrentHashMap<String, Object> onlineMap,
+                            IntBitmap online, Random random) {
+        String[][] memberIds = new String[groupCount][];
+        for (int g = 0; g < groupCount; g++) {
+            memberIds[g] = BenchSupport.sampleUserIds(userIds.length, size, random);
+        }
+
+        // 旧实现：每个成员一个 GroupMember 对象和一个 TreeSet 节点
+        long base = BenchSupport.usedHeap();
+        GroupData owner = new GroupData("0");
+        List<TreeSet<GroupData.GroupMember>> oldGroups = new ArrayList<>(groupCount);
+        for (int g = 0; g < groupCount; g++) {
+            TreeSet<GroupData.GroupMember> members = new TreeSet<>();
+            for (String id : memberIds[g]) {
+                members.add(owner.new GroupMember(id));
+            }
+            oldGroups.add(members);
+        }
+        long oldBytes = BenchSupport.usedHeap() - base;
+
+        base = BenchSupport.usedHeap();
+        GroupData[] newGroups = new GroupData[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            newGroups[g] = new GroupData(String.valueOf(g), "群聊" + g, memberIds[g][0]);
+            newGroups[g].addMembers(memberIds[g]);
+        }
+        long newBytes = BenchSupport.usedHeap() - base;
+
+        // 群发目标计算，重复多次取平均
+        int rounds = Math.max(3, 20_000_000 / size / groupCount);
+        long oldNanos = Long.MAX_VALUE;
+        long newNanos = Long.MAX_VALUE;
+        long oldTargets = 0;
+        long newTargets = 0;
+        for (int repeat = 0; repeat < 3; repeat++) {
+            long start = System.nanoTime();
+            oldTargets = 0;
+            for (int r = 0; r < rounds; r++) {
+                for (TreeSet<GroupData.GroupMember> members : oldGroups) {
+                    for (GroupData.GroupMember member : members) {
+                        if (onlineMap.get(member.id) != null) {
+                            oldTargets++;
+                        }
+                    }
+                }
+            }
+            oldNanos = Math.min(oldNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            newTargets = 0;
+            for (int r = 0; r < rounds; r++) {
+                for (GroupData group : newGroups) {
+                    newTargets += group.getMemberArray().handles().andCardinality(online);
+                }
+            }
+            newNanos = Math.min(newNanos, System.nanoTime() - start);
+        }
+        // 同时保证成员id数组在测量内存期间不会被回收
+        if (oldTargets != newTargets || newGroups[0].getMemberCount() != memberIds[0].length) {
+            throw new IllegalStateException("在线成员数不一致: " + oldTargets + " / " + newTargets);
+        }
+
+        long messages = (long) rounds * groupCount;
+        System.out.printf("群成员 %,6d: 内存 TreeSet %,9d 字节/群, 位图 %,8d 字节/群 (%.1f 倍); "
+                        + "群发目标 TreeSet %8.2f us/条, 位图 %7.2f us/条, 在线成员 %d%n",
+                size, oldBytes / groupCount, newBytes / groupCount, (double) oldBytes / Math.max(1, newBytes),
+                oldNanos / 1000.0 / messages, newNanos / 1000.0 / messages, newTargets / messages);
+    }
+}
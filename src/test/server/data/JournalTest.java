@@ -0,0 +1,242 @@
+package server.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 数据日志的重放、段切换和末尾不完整记录的截断
+ */
+class JournalTest {
+    // 记录头：载荷长度 + CRC32 + LSN
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * 重放时收到的记录
+     */
+    private static final class Replayed {
+        final List<Long> lsns = new ArrayList<>();
+        final List<String> payloads = new ArrayList<>();
+
+        void add(long lsn, byte[] payload) {
+            lsns.add(lsn);
+            payloads.add(new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void appendedRecordsAreReplayedInOrder() throws IOException {
+        Journal journal = open(new Replayed());
+        assertEquals(1, append(journal, "a"));
+        assertEquals(2, append(journal, "b"));
+        long last = append(journal, "c");
+        assertTrue(journal.awaitDurable(last));
+
+        Replayed replayed = new Replayed();
+        assertEquals(3, new Journal(dir, false).open(0, replayed::add));
+        assertEquals(List.of(1L, 2L, 3L), replayed.lsns);
+        assertEquals(List.of("a", "b", "c"), replayed.payloads);
+    }
+
+    @Test
+    void recordsCoveredBySnapshotAreSkipped() throws IOException {
+        Journal journal = open(new Replayed());
+        for (String payload : new String[]{"a", "b", "c", "d"}) {
+            append(journal, payload);
+        }
+        assertTrue(journal.awaitDurable(4));
+
+        Replayed replayed = new Replayed();
+        assertEquals(4, new Journal(dir, false).open(2, replayed::add));
+        assertEquals(List.of(3L, 4L), replayed.lsns);
+        assertEquals(List.of("c", "d"), replayed.payloads);
+    }
+
+    @Test
+    void lsnsContinueAcrossReopen() throws IOException {
+        Journal first = open(new Replayed());
+        append(first, "a");
+        assertTrue(first.awaitDurable(append(first, "b")));
+
+        Journal second = open(new Replayed());
+        assertEquals(2, second.lastLsn());
+        assertEquals(3, append(second, "c"));
+        assertTrue(second.awaitDurable(3));
+
+        Replayed replayed = new Replayed();
+        new Journal(dir, false).open(0, replayed::add);
+        assertEquals(List.of(1L, 2L, 3L), replayed.lsns);
+        assertEquals(List.of("a", "b", "c"), replayed.payloads);
+    }
+
+    @Test
+    void tornPayloadAtTailIsTruncated() throws IOException {
+        Path segment = writeRecords("a", "b", "ccc");
+        long size = Files.size(segment);
+        truncate(segment, size - 2);
+
+        assertReplays("a", "b");
+        // 不完整的记录已从文件中截掉
+        assertEquals(size - (RECORD_HEADER_SIZE + 3), Files.size(segment));
+    }
+
+    @Test
+    void partialHeaderAtTailIsTruncated() throws IOException {
+        Path segment = writeRecords("a", "b");
+        long size = Files.size(segment);
+        byte[] garbage = {0, 0, 0, 1, 7, 7};
+        Files.write(segment, garbage, java.nio.file.StandardOpenOption.APPEND);
+
+        assertReplays("a", "b");
+        assertEquals(size, Files.size(segment));
+    }
+
+    @Test
+    void checksumMismatchAtTailIsTruncated() throws IOException {
+        Path segment = writeRecords("a", "b", "c");
+        byte[] data = Files.readAllBytes(segment);
+        // 最后一条记录的载荷
+        data[data.length - 1] ^= 0x55;
+        Files.write(segment, data);
+
+        assertReplays("a", "b");
+        assertEquals(data.length - (RECORD_HEADER_SIZE + 1), Files.size(segment));
+    }
+
+    @Test
+    void appendsAfterTruncationGetNextLsn() throws IOException {
+        Path segment = writeRecords("a", "b", "c");
+        truncate(segment, Files.size(segment) - 1);
+
+        Journal journal = open(new Replayed());
+        assertEquals(2, journal.lastLsn());
+        assertTrue(journal.awaitDurable(append(journal, "d")));
+
+        Replayed replayed = new Replayed();
+        new Journal(dir, false).open(0, replayed::add);
+        assertEquals(List.of(1L, 2L, 3L), replayed.lsns);
+        assertEquals(List.of("a", "b", "d"), replayed.payloads);
+    }
+
+    @Test
+    void corruptMiddleSegmentStopsReplay() throws IOException {
+        Journal journal = open(new Replayed());
+        append(journal, "a");
+        append(journal, "b");
+        assertTrue(journal.awaitDurable(2));
+        journal.rotate();
+        append(journal, "c");
+        assertTrue(journal.awaitDurable(3));
+
+        Path first = segments().get(0);
+        byte[] data = Files.readAllBytes(first);
+        data[data.length - 1] ^= 0x55;
+        Files.write(first, data);
+
+        Replayed replayed = new Replayed();
+        assertEquals(1, new Journal(dir, false).open(0, replayed::add));
+        assertEquals(List.of(1L), replayed.lsns);
+    }
+
+    @Test
+    void rotateAndDeleteCoveredSegments() throws IOException {
+        Journal journal = open(new Replayed());
+        append(journal, "a");
+        append(journal, "b");
+        assertTrue(journal.awaitDurable(2));
+        journal.rotate();
+        append(journal, "c");
+        assertTrue(journal.awaitDurable(3));
+        assertEquals(2, segments().size());
+
+        // 第一段包含 LSN 1、2，快照只覆盖到 1 时不能删除
+        journal.deleteSegmentsUpTo(1);
+        assertEquals(2, segments().size());
+        journal.deleteSegmentsUpTo(2);
+        List<Path> remaining = segments();
+        assertEquals(1, remaining.size());
+        assertFalse(remaining.get(0).getFileName().toString().startsWith("00000000000000000001"));
+
+        Replayed replayed = new Replayed();
+        assertEquals(3, new Journal(dir, false).open(2, replayed::add));
+        assertEquals(List.of(3L), replayed.lsns);
+        assertEquals(List.of("c"), replayed.payloads);
+    }
+
+    @Test
+    void recordsAppendedDuringRotateGoToNewSegment() throws IOException {
+        Journal journal = open(new Replayed());
+        append(journal, "a");
+        assertTrue(journal.awaitDurable(1));
+        long lsn = append(journal, "b");
+        journal.rotate();
+        assertTrue(journal.awaitDurable(lsn));
+
+        assertReplays("a", "b");
+    }
+
+    private Journal open(Replayed replayed) throws IOException {
+        Journal journal = new Journal(dir, false);
+        journal.open(0, replayed::add);
+        return journal;
+    }
+
+    private static long append(Journal journal, String payload) {
+        return journal.append(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 写入若干条记录并返回所在的段（新目录中只有一段有数据）
+    private Path writeRecords(String... payloads) throws IOException {
+        Journal journal = open(new Replayed());
+        long last = 0;
+        for (String payload : payloads) {
+            last = append(journal, payload);
+        }
+        assertTrue(journal.awaitDurable(last));
+        for (Path segment : segments()) {
+            if (Files.size(segment) > 0) {
+                return segment;
+            }
+        }
+        throw new AssertionError("没有写入数据的日志段");
+    }
+
+    private void assertReplays(String... payloads) throws IOException {
+        Replayed replayed = new Replayed();
+        long last = new Journal(dir, false).open(0, replayed::add);
+        assertEquals(payloads.length, last);
+        assertEquals(List.of(payloads), replayed.payloads);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        byte[] kept = new byte[(int) size];
+        System.arraycopy(data, 0, kept, 0, kept.length);
+        Files.write(file, kept);
+    }
+}
@@ -0,0 +1,184 @@
+package server.data;
+
+import util.IntHashSet;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 删除用户、退群耗时随群聊总数变化的基准。
+ * <p>
+ * 用法：java server.data.MembershipBenchmark [每群成员数] [每人所在群数] [删除次数]
+ * <p>
+ * 群聊数依次取 1000、10000、100000，用户数按“每人所在群数”相应增加，每个用户所在的群数保持不变。
+ * 同时给出旧实现（删除一个用户时遍历全部群聊查找成员）的遍历耗时作为对比。
+ * <p>
+ * 最后比较成员关系和好友关系占用的堆内存：旧的字符串集合（用户 -> TreeSet 群聊id/好友id、
+ * ConcurrentHashMap 反向索引）与句柄集合（UserData 中的 IntHashSet、MembershipIndex）。
+ * id 字符串本身两种方式都需要，不计入；句柄方式另外给出符号表每个 id 的开销。
+ */
+public class MembershipBenchmark {
+    private static final int[] GROUP_COUNTS = {1_000, 10_000, 100_000};
+
+    public static void main(String[] args) {
+        int membersPerGroup = BenchSupport.intArg(args, 0, 10);
+        int groupsPerUser = BenchSupport.intArg(args, 1, 4);
+        int removals = BenchSupport.intArg(args, 2, 500);
+        System.out.println("每群成员: " + membersPerGroup + ", 每人所在群数: " + groupsPerUser + ", 删除次数: " + removals);
+
+        for (int round = 0; round < 2; round++) {
+            // 第一轮用于预热，只输出第二轮
+            for (int groupCount : GROUP_COUNTS) {
+                run(groupCount, membersPerGroup, groupsPerUser, removals, round == 1);
+            }
+        }
+        heap(200_000, membersPerGroup, groupsPerUser, 10);
+    }
+
+    private static void run(int groupCount, int membersPerGroup, int groupsPerUser, int removals, boolean print) {
+        int userCount = Math.max(removals * 2, groupCount * membersPerGroup / groupsPerUser);
+        ServerData data = BenchSupport.memoryData(userCount);
+        Random random = new Random(42);
+        for (int g = 0; g < groupCount; g++) {
+            String owner = BenchSupport.userId(random.nextInt(userCount));
+            GroupData group = new GroupData(BenchSupport.groupId(g), "群聊" + g, owner);
+            group.addMember(owner);
+            while (group.getMemberCount() < membersPerGroup) {
+                group.addMember(BenchSupport.userId(random.nextInt(userCount)));
+            }
+            data.addGroup(group);
+        }
+
+        // 旧实现：每删除一个用户都要遍历全部群聊判断成员关系
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < removals; i++) {
+            String userId = BenchSupport.userId(i * 2);
+            for (GroupData group : data.getServerGroups().values()) {
+                if (group.hasMember(userId)) {
+                    found++;
+                }
+            }
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        // 退群：用户所在的第一个群
+        start = System.nanoTime();
+        int quits = 0;
+        for (int i = 0; i < removals; i++) {
+            String userId = BenchSupport.userId(i * 2 + 1);
+            for (String groupId : data.getUserGroups(userId)) {
+                data.removeUserFromGroup(groupId, userId);
+                data.removeGroupFromUser(userId, groupId);
+                quits++;
+                break;
+            }
+        }
+        long quitNanos = System.nanoTime() - start;
+
+        // 删除用户：只处理该用户所在的群
+        start = System.nanoTime();
+        for (int i = 0; i < removals; i++) {
+            data.removeUser(BenchSupport.userId(i * 2));
+        }
+        long removeNanos = System.nanoTime() - start;
+
+        if (print) {
+            System.out.printf("群聊数 %,7d, 用户数 %,7d: 删除用户 %6.2f us/次, 退群 %6.2f us/次, 旧实现遍历 %9.2f us/次 (命中 %d)%n",
+                    groupCount, userCount, removeNanos / 1000.0 / removals,
+                    quits == 0 ? 0 : quitNanos / 1000.0 / quits, scanNanos / 1000.0 / removals, found);
+        }
+    }
+
+    private static void heap(int userCount, int membersPerGroup, int groupsPerUser, int friendsPerUser) {
+        int groupCount = userCount * groupsPerUser / membersPerGroup;
+        String[] userIds = new String[userCount];
+        String[] groupIds = new String[groupCount];
+        for (int i = 0; i < userCount; i++) {
+            userIds[i] = "heap-" + BenchSupport.userId(i);
+        }
+        for (int g = 0; g < groupCount; g++) {
+            groupIds[g] = "heap-" + BenchSupport.groupId(g);
+        }
+        Random random = new Random(7);
+        int[][] groupsOf = new int[userCount][groupsPerUser];
+        int[][] friendsOf = new int[userCount][friendsPerUser];
+        for (int i = 0; i < userCount; i++) {
+            for (int k = 0; k < groupsPerUser; k++) {
+                groupsOf[i][k] = random.nextInt(groupCount);
+            }
+            for (int k = 0; k < friendsPerUser; k++) {
+                friendsOf[i][k] = random.nextInt(userCount);
+            }
+        }
+        // 保存的关系条数：用户的群聊集合 + 反向索引各一条，好友集合一条
+        long entries = (long) userCount * (groupsPerUser * 2 + friendsPerUser);
+
+        long base = BenchSupport.usedHeap();
+        for (String id : userIds) {
+            SymbolTable.USERS.intern(id);
+        }
+        for (String id : groupIds) {
+            SymbolTable.GROUPS.intern(id);
+        }
+        long symbols = BenchSupport.usedHeap() - base;
+
+        // 旧实现：每个用户两个 TreeSet<String>，反向索引是 ConcurrentHashMap<String, Set<String>>
+        base = BenchSupport.usedHeap();
+        TreeSet<?>[] oldGroups = new TreeSet<?>[userCount];
+        TreeSet<?>[] oldFriends = new TreeSet<?>[userCount];
+        ConcurrentHashMap<String, Set<String>> oldIndex = new ConcurrentHashMap<>();
+        for (int i = 0; i < userCount; i++) {
+            TreeSet<String> groups = new TreeSet<>();
+            TreeSet<String> friends = new TreeSet<>();
+            for (int g : groupsOf[i]) {
+                groups.add(groupIds[g]);
+                oldIndex.computeIfAbsent(userIds[i], k -> ConcurrentHashMap.newKeySet()).add(groupIds[g]);
+            }
+            for (int f : friendsOf[i]) {
+                friends.add(userIds[f]);
+            }
+            oldGroups[i] = groups;
+            oldFriends[i] = friends;
+        }
+        long oldBytes = BenchSupport.usedHeap() - base;
+        if (oldGroups.length + oldFriends.length + oldIndex.size() == 0) {
+            return;
+        }
+        oldGroups = null;
+        oldFriends = null;
+        oldIndex = null;
+
+        // 句柄：每个用户两个 IntHashSet，反向索引是 MembershipIndex
+        base = BenchSupport.usedHeap();
+        IntHashSet[] newGroups = new IntHashSet[userCount];
+        IntHashSet[] newFriends = new IntHashSet[userCount];
+        MembershipIndex newIndex = new MembershipIndex();
+        for (int i = 0; i < userCount; i++) {
+            IntHashSet groups = new IntHashSet();
+            IntHashSet friends = new IntHashSet();
+            for (int g : groupsOf[i]) {
+                groups.add(SymbolTable.GROUPS.handleOf(groupIds[g]));
+                newIndex.add(userIds[i], groupIds[g]);
+            }
+            for (int f : friendsOf[i]) {
+                friends.add(SymbolTable.USERS.handleOf(userIds[f]));
+            }
+            newGroups[i] = groups;
+            newFriends[i] = friends;
+        }
+        long newBytes = BenchSupport.usedHeap() - base;
+
+        System.out.printf("堆内存（%,d 用户, 每人 %d 个群、%d 个好友）: 字符串集合 %.1f 字节/用户, 句柄集合 %.1f 字节/用户 (%.1f 倍)%n",
+                userCount, groupsPerUser, friendsPerUser, (double) oldBytes / userCount, (double) newBytes / userCount,
+                (double) oldBytes / Math.max(1, newBytes));
+        System.out.printf("每条关系: 字符串集合 %.1f 字节, 句柄集合 %.1f 字节; 符号表另需 %.1f 字节/id%n",
+                (double) oldBytes / entries, (double) newBytes / entries, (double) symbols / (userCount + groupCount));
+        // 保持引用直到测量结束
+        if (newGroups.length + newFriends.length == 0) {
+            System.out.println(newIndex.groupsOf(userIds[0]).length);
+        }
+    }
+}
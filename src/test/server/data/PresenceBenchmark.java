@@ -0,0 +1,132 @@
+package server.data;
+
+import util.IntBitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * 群聊在线成员索引的基准：比较“成员位图与在线用户位图求交”和“直接遍历在线成员索引”找出群发目标的耗时，
+ * 以及上线、下线时更新索引的代价。
+ * <p>
+ * 用法：java server.data.PresenceBenchmark [用户数] [每个用户所在的群数]
+ * <p>
+ * 群成员数依次取 1000、10000、50000（每种规模 4 个群），另有一批 100 人的小群，使每个用户平均在指定数量的群中；
+ * 在线比例依次取 1% 和 10%。
+ */
+public class PresenceBenchmark {
+    private static final int[] GROUP_SIZES = {1_000, 10_000, 50_000};
+    private static final int GROUPS_PER_SIZE = 4;
+    private static final int[] ONLINE_PERCENTS = {1, 10};
+
+    public static void main(String[] args) {
+        int userCount = BenchSupport.intArg(args, 0, 200_000);
+        int groupsPerUser = BenchSupport.intArg(args, 1, 5);
+        System.out.println("用户数: " + userCount + ", 每个用户所在的群数: " + groupsPerUser);
+
+        ServerData data = BenchSupport.memoryData(userCount);
+        String[] userIds = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            userIds[i] = BenchSupport.userId(i);
+        }
+
+        Random random = new Random(42);
+        List<String> largeGroups = new ArrayList<>();
+        long memberships = 0;
+        for (int size : GROUP_SIZES) {
+            if (size > userCount) {
+                break;
+            }
+            for (int g = 0; g < GROUPS_PER_SIZE; g++) {
+                String groupId = "p" + size + "_" + g;
+                addGroup(data, groupId, size, userCount, random);
+                largeGroups.add(groupId);
+                memberships += size;
+            }
+        }
+        // 其余的成员关系放在小群里，使上线时需要更新的群数接近实际
+        int smallGroups = (int) Math.max(0, ((long) userCount * groupsPerUser - memberships) / 100);
+        for (int g = 0; g < smallGroups; g++) {
+            addGroup(data, "s" + g, 100, userCount, random);
+        }
+        System.out.println("大群: " + largeGroups.size() + ", 100 人的小群: " + smallGroups);
+
+        for (int percent : ONLINE_PERCENTS) {
+            run(data, percent, userIds, largeGroups, random);
+        }
+    }
+
+    private static void addGroup(ServerData data, String groupId, int size, int userCount, Random random) {
+        String[] members = BenchSupport.sampleUserIds(userCount, size, random);
+        GroupData group = new GroupData(groupId, groupId, members[0]);
+        group.addMembers(members);
+        data.addGroup(group);
+    }
+
+    private static void run(ServerData data, int percent, String[] userIds, List<String> groups, Random random) {
+        TreeSet<Integer> picked = new TreeSet<>();
+        int onlineCount = userIds.length * percent / 100;
+        while (picked.size() < onlineCount) {
+            picked.add(random.nextInt(userIds.length));
+        }
+        int[] onlineHandles = new int[onlineCount];
+
+        long start = System.nanoTime();
+        int n = 0;
+        for (int user : picked) {
+            data.userOnline(userIds[user]);
+            onlineHandles[n++] = SymbolTable.USERS.handleOf(userIds[user]);
+        }
+        long loginNanos = System.nanoTime() - start;
+        // 原来的做法：群发时用成员位图与全部在线用户的位图求交
+        IntBitmap online = IntBitmap.of(onlineHandles);
+
+        System.out.printf("在线 %d%%（%,d 人）: 上线更新索引 %.2f us/人%n", percent, onlineCount,
+                loginNanos / 1000.0 / onlineCount);
+        // 同一规模的群合计，每种做法重复 5 次取最快的一次
+        for (int i = 0; i < groups.size(); i += GROUPS_PER_SIZE) {
+            GroupData.MemberArray[] members = new GroupData.MemberArray[GROUPS_PER_SIZE];
+            for (int g = 0; g < GROUPS_PER_SIZE; g++) {
+                members[g] = data.getGroupMemberArray(groups.get(i + g));
+            }
+            long[] counts = new long[2];
+            int rounds = Math.max(50, 5_000_000 / members[0].size());
+            long intersectNanos = Long.MAX_VALUE;
+            long presenceNanos = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < 5; repeat++) {
+                counts[0] = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    for (GroupData.MemberArray group : members) {
+                        IntBitmap.forEachAnd(group.handles(), online, member -> counts[0]++);
+                    }
+                }
+                intersectNanos = Math.min(intersectNanos, System.nanoTime() - start);
+
+                counts[1] = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    for (int g = 0; g < GROUPS_PER_SIZE; g++) {
+                        data.getGroupOnlineMembers(groups.get(i + g)).forEach(member -> counts[1]++);
+                    }
+                }
+                presenceNanos = Math.min(presenceNanos, System.nanoTime() - start);
+            }
+            if (counts[0] != counts[1]) {
+                throw new IllegalStateException("在线成员数不一致: " + counts[0] + " / " + counts[1]);
+            }
+            long messages = (long) rounds * GROUPS_PER_SIZE;
+            System.out.printf("  群成员 %,6d, 平均在线 %,5d: 求交 %8.2f us/条, 在线索引 %7.2f us/条%n",
+                    members[0].size(), counts[1] / messages,
+                    intersectNanos / 1000.0 / messages, presenceNanos / 1000.0 / messages);
+        }
+
+        start = System.nanoTime();
+        for (int user : picked) {
+            data.userOffline(userIds[user]);
+        }
+        System.out.printf("  下线更新索引 %.2f us/人%n", (System.nanoTime() - start) / 1000.0 / onlineCount);
+    }
+}
@@ -0,0 +1,486 @@
+package server.data;
+
+import org.junit.jupiter.api.Test;
+import util.ByteWriter;
+import util.IntBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 服务器数据快照的编解码：当前版本的往返、旧版本（1、2）和损坏文件的处理
+ */
+class ServerSnapshotTest {
+    private static final int MAGIC = 0x4C435353;
+    private static final int KIND_USERS = 1;
+    private static final int KIND_GROUPS = 2;
+    private static final int KIND_SYMBOLS = 3;
+
+    // 符号表是全局的，各测试使用不同前缀的 id 互不影响
+    private static int prefixCounter;
+
+    private static synchronized String prefix() {
+        return "snapshot-test-" + (prefixCounter++) + "-";
+    }
+
+    /**
+     * 手工构造快照时的一块
+     */
+    private static final class Chunk {
+        final int kind;
+        final int count;
+        final byte[] data;
+
+        Chunk(int kind, int count, byte[] data) {
+            this.kind = kind;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    @Test
+    void roundTripKeepsUsersGroupsAndLsn() throws IOException {
+        String p = prefix();
+        // 超过一块的记录数，群成员超过位图数组容器的上限
+        int userCount = 5000;
+        Map<String, UserData> users = new HashMap<>();
+        String[] ids = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            ids[i] = p + "u" + i;
+            users.put(ids[i], new UserData("nick" + i, ids[i], "pw" + i));
+        }
+        UserData first = users.get(ids[0]);
+        first.addFriend(ids[1]);
+        first.addFriend(ids[2]);
+        first.addGroupId(p + "g0");
+        first.addGroupId(p + "g1");
+        first.setEmail("a@example.com");
+        first.setSignature("签名");
+
+        Map<String, GroupData> groups = new HashMap<>();
+        GroupData big = new GroupData(p + "g0", "大群", ids[0]);
+        big.addMembers(ids);
+        groups.put(big.getGroupId(), big);
+        GroupData small = new GroupData(p + "g1", "小群", ids[3]);
+        small.addMember(ids[0]);
+        small.addMember(ids[3]);
+        groups.put(small.getGroupId(), small);
+
+        List<byte[]> parts = ServerSnapshot.encode(users, groups, 42, 4);
+        byte[] data = concat(parts);
+        // 2 块用户 + 1 块群聊 + 字典
+        assertEquals(4, ByteBuffer.wrap(data).getInt(16));
+
+        ServerData decoded = ServerSnapshot.decode(data, 4);
+        assertEquals(42, decoded.getCheckpointLsn());
+        Map<String, UserData> decodedUsers = decoded.getServerUsers();
+        assertEquals(userCount, decodedUsers.size());
+        for (int i = 0; i < userCount; i += 997) {
+            UserData user = decodedUsers.get(ids[i]);
+            assertEquals("nick" + i, user.getNickname());
+            assertEquals("pw" + i, user.getPassword());
+        }
+
+        UserData user = decodedUsers.get(ids[0]);
+        assertEquals(new TreeSet<>(List.of(ids[1], ids[2])), user.getFriendIds());
+        assertEquals(new TreeSet<>(List.of(p + "g0", p + "g1")), user.getGroupIds());
+        assertTrue(user.hasFriend(ids[1]));
+        assertTrue(user.isInGroup(p + "g1"));
+        // 扩展信息在第一次访问时解码
+        assertFalse(user.isHydrated());
+        assertEquals("a@example.com", user.getEmail());
+        assertEquals("签名", user.getSignature());
+        assertEquals("", user.getAddress());
+        assertTrue(decodedUsers.get(ids[1]).getFriendIds().isEmpty());
+
+        Map<String, GroupData> decodedGroups = decoded.getServerGroups();
+        assertEquals(2, decodedGroups.size());
+        GroupData decodedBig = decodedGroups.get(p + "g0");
+        assertEquals("大群", decodedBig.getGroupName());
+        assertEquals(ids[0], decodedBig.getGroupOwner().id);
+        assertTrue(decodedBig.getGroupOwner().isOut);
+        assertEquals(userCount, decodedBig.getMemberCount());
+        for (String id : ids) {
+            assertTrue(decodedBig.hasMember(id));
+        }
+        GroupData decodedSmall = decodedGroups.get(p + "g1");
+        assertEquals(ids[3], decodedSmall.getGroupOwner().id);
+        assertEquals(List.of(ids[0], ids[3]), decodedSmall.getMemberArray().asList());
+    }
+
+    @Test
+    void roundTripEmptyData() throws IOException {
+        byte[] data = concat(ServerSnapshot.encode(new HashMap<>(), new HashMap<>(), 0, 1));
+        ServerData decoded = ServerSnapshot.decode(data, 1);
+        assertTrue(decoded.getServerUsers().isEmpty());
+        assertTrue(decoded.getServerGroups().isEmpty());
+        assertEquals(0, decoded.getCheckpointLsn());
+    }
+
+    @Test
+    void roundTripKeepsNullFields() throws IOException {
+        String p = prefix();
+        Map<String, UserData> users = new HashMap<>();
+        UserData user = new UserData(null, p + "u", null);
+        user.setEmail(null);
+        users.put(p + "u", user);
+        Map<String, GroupData> groups = new HashMap<>();
+        // 没有群主的群聊
+        groups.put(p + "g", new GroupData(p + "g"));
+
+        ServerData decoded = ServerSnapshot.decode(concat(ServerSnapshot.encode(users, groups, 7, 1)), 1);
+        UserData decodedUser = decoded.getServerUsers().get(p + "u");
+        assertNull(decodedUser.getNickname());
+        assertNull(decodedUser.getPassword());
+        assertNull(decodedUser.getEmail());
+        GroupData decodedGroup = decoded.getServerGroups().get(p + "g");
+        assertNull(decodedGroup.getGroupOwner());
+        assertEquals(0, decodedGroup.getMemberCount());
+    }
+
+    @Test
+    void readsVersion1WithStringIds() throws IOException {
+        String p = prefix();
+        ByteWriter users = new ByteWriter(256);
+        writeUserHeader(users, p + "u0", "nick0", "pw0");
+        // 群聊、好友集合是 id 字符串
+        users.writeVarint(1);
+        users.writeString(p + "g0");
+        users.writeVarint(1);
+        users.writeString(p + "u1");
+        writeDetail(users, "v1@example.com");
+        writeUserHeader(users, p + "u1", "nick1", "pw1");
+        users.writeVarint(0);
+        users.writeVarint(1);
+        users.writeString(p + "u0");
+        writeDetail(users, null);
+
+        ByteWriter groups = new ByteWriter(256);
+        writeGroupHeader(groups, p + "g0", "旧群", p + "u0");
+        // 成员是可为 null 的 id 字符串 + isOut
+        groups.writeVarint(2);
+        for (String id : new String[]{p + "u0", p + "u1"}) {
+            ServerSnapshot.writeNullableString(groups, id);
+            groups.writeByte(1);
+        }
+
+        byte[] data = snapshot(1, 9,
+                new Chunk(KIND_USERS, 2, users.toByteArray()),
+                new Chunk(KIND_GROUPS, 1, groups.toByteArray()));
+        assertLegacyData(p, ServerSnapshot.decode(data, 1), "v1@example.com");
+    }
+
+    @Test
+    void readsVersion2WithMemberList() throws IOException {
+        String p = prefix();
+        // 字典顺序故意与 id 顺序不同
+        String[] userIds = {p + "u1", p + "u0"};
+        String[] groupIds = {p + "g0"};
+
+        ByteWriter users = new ByteWriter(256);
+        writeUserHeader(users, p + "u0", "nick0", "pw0");
+        users.writeVarint(1);
+        users.writeVarint(0);
+        users.writeVarint(1);
+        users.writeVarint(0);
+        writeDetail(users, "v2@example.com");
+        writeUserHeader(users, p + "u1", "nick1", "pw1");
+        users.writeVarint(0);
+        users.writeVarint(1);
+        users.writeVarint(1);
+        writeDetail(users, null);
+
+        ByteWriter groups = new ByteWriter(256);
+        writeGroupHeader(groups, p + "g0", "旧群", p + "u0");
+        // 成员是字典下标 + isOut
+        groups.writeVarint(2);
+        groups.writeVarint(1);
+        groups.writeByte(1);
+        groups.writeVarint(0);
+        groups.writeByte(0);
+
+        byte[] data = snapshot(2, 9,
+                new Chunk(KIND_USERS, 2, users.toByteArray()),
+                new Chunk(KIND_GROUPS, 1, groups.toByteArray()),
+                new Chunk(KIND_SYMBOLS, 1, dictionary(userIds, groupIds)));
+        assertLegacyData(p, ServerSnapshot.decode(data, 4), "v2@example.com");
+    }
+
+    @Test
+    void readsVersion3WhenDictionaryDiffersFromHandles() throws IOException {
+        String p = prefix();
+        // 先占用一个句柄，保证字典下标与本进程的句柄不一致
+        SymbolTable.USERS.intern(p + "pad");
+        String[] userIds = {p + "u1", p + "u0"};
+        String[] groupIds = {p + "g0"};
+
+        ByteWriter users = new ByteWriter(256);
+        writeUserHeader(users, p + "u0", "nick0", "pw0");
+        users.writeVarint(1);
+        users.writeVarint(0);
+        users.writeVarint(1);
+        users.writeVarint(0);
+        writeDetail(users, "v3@example.com");
+        writeUserHeader(users, p + "u1", "nick1", "pw1");
+        users.writeVarint(0);
+        users.writeVarint(1);
+        users.writeVarint(1);
+        writeDetail(users, null);
+
+        ByteWriter groups = new ByteWriter(256);
+        writeGroupHeader(groups, p + "g0", "旧群", p + "u0");
+        // 成员是字典下标的位图
+        IntBitmap.of(new int[]{0, 1}).writeTo(groups);
+
+        byte[] data = snapshot(3, 9,
+                new Chunk(KIND_SYMBOLS, 1, dictionary(userIds, groupIds)),
+                new Chunk(KIND_USERS, 2, users.toByteArray()),
+                new Chunk(KIND_GROUPS, 1, groups.toByteArray()));
+        assertLegacyData(p, ServerSnapshot.decode(data, 4), "v3@example.com");
+    }
+
+    @Test
+    void rejectsFlippedChunkByte() throws IOException {
+        String p = prefix();
+        Map<String, UserData> users = new HashMap<>();
+        users.put(p + "u", new UserData("nick", p + "u", "pw"));
+        byte[] data = concat(ServerSnapshot.encode(users, new HashMap<>(), 1, 1));
+        data[data.length - 1] ^= 0x01;
+        IOException e = assertThrows(IOException.class, () -> ServerSnapshot.decode(data, 1));
+        assertTrue(e.getMessage().contains("校验失败"));
+
+        byte[] userChunk = concat(ServerSnapshot.encode(users, new HashMap<>(), 1, 1));
+        // 第一块（用户）紧跟在文件头和块表之后
+        userChunk[20 + 2 * 21] ^= 0x01;
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(userChunk, 1));
+    }
+
+    @Test
+    void rejectsTruncatedFile() throws IOException {
+        String p = prefix();
+        Map<String, UserData> users = new HashMap<>();
+        users.put(p + "u", new UserData("nick", p + "u", "pw"));
+        byte[] data = concat(ServerSnapshot.encode(users, new HashMap<>(), 1, 1));
+        for (int length : new int[]{0, 10, 19, 30, data.length - 1}) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(data, 0, truncated, 0, length);
+            assertThrows(IOException.class, () -> ServerSnapshot.decode(truncated, 1), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsBadMagicAndUnknownVersion() throws IOException {
+        byte[] data = concat(ServerSnapshot.encode(new HashMap<>(), new HashMap<>(), 0, 1));
+        byte[] badMagic = data.clone();
+        badMagic[0] ^= 0x01;
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(badMagic, 1));
+
+        byte[] newer = data.clone();
+        ByteBuffer.wrap(newer).putInt(4, 4);
+        IOException e = assertThrows(IOException.class, () -> ServerSnapshot.decode(newer, 1));
+        assertTrue(e.getMessage().contains("版本"));
+
+        // 旧的 Java 序列化文件
+        byte[] serialized = {(byte) 0xAC, (byte) 0xED, 0, 5, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(serialized, 1));
+    }
+
+    @Test
+    void rejectsChunkOutsideFile() {
+        byte[] data = snapshot(3, 0, new Chunk(KIND_SYMBOLS, 1, dictionary(new String[0], new String[0])));
+        // 块表中第一块的位置（文件头 20 字节 + byte 类型 + int 记录数）
+        ByteBuffer.wrap(data).putLong(25, data.length);
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(data, 1));
+
+        byte[] negative = snapshot(3, 0, new Chunk(KIND_SYMBOLS, 1, dictionary(new String[0], new String[0])));
+        ByteBuffer.wrap(negative).putLong(25, -1);
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(negative, 1));
+
+        // 块数超过块表实际的大小
+        byte[] tooMany = snapshot(3, 0, new Chunk(KIND_SYMBOLS, 1, dictionary(new String[0], new String[0])));
+        ByteBuffer.wrap(tooMany).putInt(16, 1000);
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(tooMany, 1));
+    }
+
+    @Test
+    void rejectsUnknownChunkKind() {
+        byte[] data = snapshot(3, 0,
+                new Chunk(KIND_SYMBOLS, 1, dictionary(new String[0], new String[0])),
+                new Chunk(9, 0, new byte[0]));
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(data, 1));
+
+        // 版本 1 没有字典块
+        byte[] v1 = snapshot(1, 0, new Chunk(KIND_SYMBOLS, 1, dictionary(new String[0], new String[0])));
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(v1, 1));
+    }
+
+    @Test
+    void rejectsMissingDictionary() {
+        for (int version : new int[]{2, 3}) {
+            byte[] data = snapshot(version, 0, new Chunk(KIND_USERS, 0, new byte[0]));
+            IOException e = assertThrows(IOException.class, () -> ServerSnapshot.decode(data, 1));
+            assertTrue(e.getMessage().contains("字典"));
+        }
+    }
+
+    @Test
+    void rejectsDictionaryIndexOutOfRange() {
+        String p = prefix();
+        String[] userIds = {p + "u0"};
+
+        ByteWriter users = new ByteWriter(64);
+        writeUserHeader(users, p + "u0", "nick0", "pw0");
+        users.writeVarint(0);
+        // 好友下标超出字典
+        users.writeVarint(1);
+        users.writeVarint(5);
+        writeDetail(users, null);
+        byte[] badFriend = snapshot(3, 0,
+                new Chunk(KIND_USERS, 1, users.toByteArray()),
+                new Chunk(KIND_SYMBOLS, 1, dictionary(userIds, new String[0])));
+        IOException e = assertThrows(IOException.class, () -> ServerSnapshot.decode(badFriend, 1));
+        assertTrue(e.getMessage().contains("越界"));
+
+        ByteWriter bitmapGroup = new ByteWriter(64);
+        writeGroupHeader(bitmapGroup, p + "g0", "群", p + "u0");
+        IntBitmap.of(new int[]{0, 3}).writeTo(bitmapGroup);
+        byte[] badBitmap = snapshot(3, 0,
+                new Chunk(KIND_GROUPS, 1, bitmapGroup.toByteArray()),
+                new Chunk(KIND_SYMBOLS, 1, dictionary(userIds, new String[0])));
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(badBitmap, 1));
+
+        ByteWriter listGroup = new ByteWriter(64);
+        writeGroupHeader(listGroup, p + "g0", "群", p + "u0");
+        listGroup.writeVarint(1);
+        listGroup.writeVarint(1);
+        listGroup.writeByte(0);
+        byte[] badList = snapshot(2, 0,
+                new Chunk(KIND_GROUPS, 1, listGroup.toByteArray()),
+                new Chunk(KIND_SYMBOLS, 1, dictionary(userIds, new String[0])));
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(badList, 1));
+    }
+
+    @Test
+    void rejectsRecordCountBeyondChunk() {
+        String p = prefix();
+        ByteWriter users = new ByteWriter(64);
+        writeUserHeader(users, p + "u0", "nick0", "pw0");
+        users.writeVarint(0);
+        users.writeVarint(0);
+        writeDetail(users, null);
+        // 块表记录数比块中实际的记录多
+        byte[] data = snapshot(3, 0,
+                new Chunk(KIND_USERS, 2, users.toByteArray()),
+                new Chunk(KIND_SYMBOLS, 1, dictionary(new String[0], new String[0])));
+        assertThrows(IOException.class, () -> ServerSnapshot.decode(data, 1));
+    }
+
+    // 旧版本测试共用的数据：u0（好友 u1，群聊 g0）、u1（好友 u0），群聊 g0（群主 u0，成员 u0、u1）
+    private static void assertLegacyData(String p, ServerData decoded, String email) {
+        assertEquals(9, decoded.getCheckpointLsn());
+        Map<String, UserData> users = decoded.getServerUsers();
+        assertEquals(2, users.size());
+        UserData u0 = users.get(p + "u0");
+        assertEquals("nick0", u0.getNickname());
+        assertEquals("pw0", u0.getPassword());
+        assertEquals(new TreeSet<>(List.of(p + "u1")), u0.getFriendIds());
+        assertEquals(new TreeSet<>(List.of(p + "g0")), u0.getGroupIds());
+        assertEquals(email, u0.getEmail());
+        UserData u1 = users.get(p + "u1");
+        assertEquals(new TreeSet<>(List.of(p + "u0")), u1.getFriendIds());
+        assertTrue(u1.getGroupIds().isEmpty());
+        assertNull(u1.getEmail());
+
+        GroupData group = decoded.getServerGroups().get(p + "g0");
+        assertEquals("旧群", group.getGroupName());
+        assertEquals(p + "u0", group.getGroupOwner().id);
+        assertTrue(group.getGroupOwner().isOut);
+        assertEquals(List.of(p + "u0", p + "u1"), group.getMemberArray().asList());
+        assertTrue(group.hasMember(p + "u1"));
+    }
+
+    private static void writeUserHeader(ByteWriter out, String id, String nickname, String password) {
+        ServerSnapshot.writeNullableString(out, id);
+        ServerSnapshot.writeNullableString(out, nickname);
+        ServerSnapshot.writeNullableString(out, password);
+    }
+
+    // 扩展信息：varint 长度 + 邮箱、生日、地址、签名
+    private static void writeDetail(ByteWriter out, String email) {
+        ByteWriter detail = new ByteWriter(32);
+        ServerSnapshot.writeNullableString(detail, email);
+        for (int i = 0; i < 3; i++) {
+            ServerSnapshot.writeNullableString(detail, "");
+        }
+        byte[] raw = detail.toByteArray();
+        out.writeVarint(raw.length);
+        out.writeBytes(raw);
+    }
+
+    private static void writeGroupHeader(ByteWriter out, String id, String name, String owner) {
+        ServerSnapshot.writeNullableString(out, id);
+        ServerSnapshot.writeNullableString(out, name);
+        out.writeByte(1);
+        ServerSnapshot.writeNullableString(out, owner);
+        out.writeByte(1);
+    }
+
+    private static byte[] dictionary(String[] userIds, String[] groupIds) {
+        ByteWriter out = new ByteWriter(64);
+        for (String[] ids : new String[][]{userIds, groupIds}) {
+            out.writeVarint(ids.length);
+            for (String id : ids) {
+                out.writeString(id);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // 按快照格式拼出文件：文件头 | 块表 | 各块
+    private static byte[] snapshot(int version, long lsn, Chunk... chunks) {
+        ByteBuffer header = ByteBuffer.allocate(20 + chunks.length * 21);
+        header.putInt(MAGIC);
+        header.putInt(version);
+        header.putLong(lsn);
+        header.putInt(chunks.length);
+        long offset = header.capacity();
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(header.array());
+        for (Chunk chunk : chunks) {
+            CRC32 crc = new CRC32();
+            crc.update(chunk.data);
+            header.put((byte) chunk.kind);
+            header.putInt(chunk.count);
+            header.putLong(offset);
+            header.putInt(chunk.data.length);
+            header.putInt((int) crc.getValue());
+            offset += chunk.data.length;
+            parts.add(chunk.data);
+        }
+        return concat(parts);
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            out.put(part);
+        }
+        return out.array();
+    }
+}
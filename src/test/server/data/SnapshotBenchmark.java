@@ -0,0 +1,141 @@
+package server.data;
+
+import server.ServerConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务器启动耗时基准：比较旧的 Java 序列化快照和二进制快照的加载时间。
+ * <p>
+ * 用法：java server.data.SnapshotBenchmark [用户数] [群聊数] [每群成员数] [每人好友数]
+ * <p>
+ * 每项测量重复若干次取最短时间。“可以接受连接”指快照解码完成、表可用的时间；
+ * 用户扩展信息此时还没有解码，单独统计全部解码所需的时间（启动后由后台线程或第一次访问完成）。
+ */
+public class SnapshotBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int userCount = BenchSupport.intArg(args, 0, 200_000);
+        int groupCount = BenchSupport.intArg(args, 1, 20_000);
+        int membersPerGroup = BenchSupport.intArg(args, 2, 20);
+        int friendsPerUser = BenchSupport.intArg(args, 3, 10);
+        int threads = ServerConfig.SNAPSHOT_THREADS;
+
+        ServerData data = generate(userCount, groupCount, membersPerGroup, friendsPerUser);
+        System.out.println("用户数: " + userCount + ", 群聊数: " + groupCount + ", 每群成员: " + membersPerGroup
+                + ", 每人好友: " + friendsPerUser + ", 线程数: " + threads);
+
+        // 旧格式：ObjectOutputStream 序列化整个对象图
+        long start = System.nanoTime();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * 1024);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(data);
+        }
+        byte[] legacy = bos.toByteArray();
+        long legacyWrite = System.nanoTime() - start;
+        long legacyLoad = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(legacy))) {
+                check((ServerData) ois.readObject(), userCount, groupCount);
+            }
+            legacyLoad = Math.min(legacyLoad, System.nanoTime() - start);
+        }
+
+        // 二进制快照
+        start = System.nanoTime();
+        List<byte[]> parts = ServerSnapshot.encode(data.getServerUsers(), data.getServerGroups(), 0, threads);
+        long snapshotWrite = System.nanoTime() - start;
+        byte[] snapshot = concat(parts);
+        long serialLoad = Long.MAX_VALUE;
+        long parallelLoad = Long.MAX_VALUE;
+        long hydrate = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            check(ServerSnapshot.decode(snapshot, 1), userCount, groupCount);
+            serialLoad = Math.min(serialLoad, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ServerData loaded = ServerSnapshot.decode(snapshot, threads);
+            parallelLoad = Math.min(parallelLoad, System.nanoTime() - start);
+            check(loaded, userCount, groupCount);
+
+            start = System.nanoTime();
+            for (UserData user : loaded.getServerUsers().values()) {
+                user.hydrate();
+            }
+            hydrate = Math.min(hydrate, System.nanoTime() - start);
+        }
+
+        System.out.printf("Java 序列化: %,d 字节, 写出 %d ms, 加载 %d ms%n",
+                legacy.length, legacyWrite / 1_000_000, legacyLoad / 1_000_000);
+        System.out.printf("二进制快照: %,d 字节, %d 块, 写出 %d ms, 单线程加载 %d ms, 并行加载 %d ms%n",
+                snapshot.length, parts.size() - 1, snapshotWrite / 1_000_000,
+                serialLoad / 1_000_000, parallelLoad / 1_000_000);
+        System.out.printf("可以接受连接: %d ms (旧格式 %d ms), 扩展信息全部解码另需 %d ms%n",
+                parallelLoad / 1_000_000, legacyLoad / 1_000_000, hydrate / 1_000_000);
+    }
+
+    private static ServerData generate(int userCount, int groupCount, int membersPerGroup, int friendsPerUser) {
+        Random random = new Random(42);
+        Map<String, UserData> users = new ConcurrentHashMap<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            String id = BenchSupport.userId(i);
+            UserData user = new UserData("用户" + i, id, "password" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setBirthday("2000-01-01");
+            user.setAddress("某市某区某街道 " + i + " 号");
+            user.setSignature("这是用户 " + i + " 的个性签名");
+            users.put(id, user);
+        }
+        for (UserData user : users.values()) {
+            for (int f = 0; f < friendsPerUser; f++) {
+                user.addFriend(BenchSupport.userId(random.nextInt(userCount)));
+            }
+        }
+        Map<String, GroupData> groups = new ConcurrentHashMap<>(groupCount);
+        for (int g = 0; g < groupCount; g++) {
+            String groupId = BenchSupport.groupId(g);
+            String owner = BenchSupport.userId(random.nextInt(userCount));
+            GroupData group = new GroupData(groupId, "群聊" + g, owner);
+            group.addMember(owner);
+            for (int m = 1; m < membersPerGroup; m++) {
+                group.addMember(BenchSupport.userId(random.nextInt(userCount)));
+            }
+            group.getMembers().forEach(member -> users.get(member.id).addGroupId(groupId));
+            groups.put(groupId, group);
+        }
+        ServerData data = new ServerData();
+        data.setServerUsers(users);
+        data.setServerGroups(groups);
+        return data;
+    }
+
+    private static void check(ServerData data, int userCount, int groupCount) {
+        if (data.getServerUsers().size() != userCount || data.getServerGroups().size() != groupCount) {
+            throw new IllegalStateException("加载结果不一致");
+        }
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, position, part.length);
+            position += part.length;
+        }
+        return out;
+    }
+}
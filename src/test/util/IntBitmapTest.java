@@ -0,0 +1,318 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * IntBitmap 与 TreeSet&lt;Integer&gt; 的等价性，重点覆盖数组块与位图块的转换（4096 个元素）和高 16 位分块的边界
+ */
+class IntBitmapTest {
+    // 数组块的元素上限，与 IntBitmap.ARRAY_MAX 一致
+    private static final int ARRAY_MAX = 4096;
+    private static final int BLOCK = 1 << 16;
+    private static final int TYPE_ARRAY = 0;
+    private static final int TYPE_BITMAP = 1;
+
+    @Test
+    void randomWithAndWithoutMatchTreeSet() {
+        Random random = new Random(42);
+        IntBitmap bitmap = IntBitmap.EMPTY;
+        TreeSet<Integer> expected = new TreeSet<>();
+        // 值集中在块 0 的前 8192 个和块边界附近，使块内元素数反复越过 4096，其余分散在 64 个块中
+        for (int step = 0; step < 60000; step++) {
+            int value = randomValue(random);
+            if (random.nextInt(100) < 60) {
+                bitmap = bitmap.with(value);
+                expected.add(value);
+            } else {
+                bitmap = bitmap.without(value);
+                expected.remove(value);
+            }
+            if (step % 5000 == 0) {
+                assertSameContent(expected, bitmap);
+            }
+        }
+        assertSameContent(expected, bitmap);
+        // 再全部删除，每删空一块都要去掉这一块
+        for (Integer value : new ArrayList<>(expected)) {
+            bitmap = bitmap.without(value);
+        }
+        assertTrue(bitmap.isEmpty());
+        assertEquals(-1, bitmap.last());
+        assertEquals(0, blockCount(bitmap));
+    }
+
+    @Test
+    void ofMatchesTreeSet() {
+        Random random = new Random(7);
+        int[] values = new int[20000];
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomValue(random);
+            expected.add(values[i]);
+        }
+        assertSameContent(expected, IntBitmap.of(values));
+    }
+
+    @Test
+    void arrayBlockBecomesBitmapAfter4096AndBackAfterRemoval() {
+        IntBitmap bitmap = IntBitmap.EMPTY;
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            bitmap = bitmap.with(i * 2);
+        }
+        assertEquals(TYPE_ARRAY, firstBlockType(bitmap));
+
+        IntBitmap grown = bitmap.with(1);
+        assertEquals(TYPE_BITMAP, firstBlockType(grown));
+        assertEquals(ARRAY_MAX + 1, grown.cardinality());
+        assertTrue(grown.contains(1));
+
+        IntBitmap shrunk = grown.without(0);
+        assertEquals(TYPE_ARRAY, firstBlockType(shrunk));
+        assertEquals(ARRAY_MAX, shrunk.cardinality());
+        assertFalse(shrunk.contains(0));
+        assertTrue(shrunk.contains(1));
+        assertTrue(shrunk.contains(2));
+    }
+
+    @Test
+    void ofChoosesContainerByBlockSize() {
+        int[] small = new int[ARRAY_MAX];
+        int[] large = new int[ARRAY_MAX + 1];
+        for (int i = 0; i < large.length; i++) {
+            if (i < small.length) {
+                small[i] = i;
+            }
+            large[i] = i;
+        }
+        assertEquals(TYPE_ARRAY, firstBlockType(IntBitmap.of(small)));
+        assertEquals(TYPE_BITMAP, firstBlockType(IntBitmap.of(large)));
+    }
+
+    @Test
+    void valuesAcross16BitBoundaries() {
+        int[] values = {0, BLOCK - 1, BLOCK, BLOCK + 1, 2 * BLOCK - 1, 5 * BLOCK, Integer.MAX_VALUE};
+        IntBitmap bitmap = IntBitmap.of(values);
+        assertArrayEquals(values, bitmap.toArray());
+        // 块 0、1、5 和最后一块
+        assertEquals(4, blockCount(bitmap));
+        assertEquals(Integer.MAX_VALUE, bitmap.last());
+        assertFalse(bitmap.contains(BLOCK + 2));
+        assertFalse(bitmap.contains(-1));
+
+        // 删空中间一块后块数减少，其余块不变
+        IntBitmap removed = bitmap.without(BLOCK).without(BLOCK + 1).without(2 * BLOCK - 1);
+        assertEquals(3, blockCount(removed));
+        assertArrayEquals(new int[]{0, BLOCK - 1, 5 * BLOCK, Integer.MAX_VALUE}, removed.toArray());
+        // 删空最后一块后 last 来自前一块
+        assertEquals(5 * BLOCK, removed.without(Integer.MAX_VALUE).last());
+    }
+
+    @Test
+    void unchangedOperationsReturnSameInstance() {
+        IntBitmap bitmap = IntBitmap.of(new int[]{3, BLOCK + 3});
+        assertSame(bitmap, bitmap.with(3));
+        assertSame(bitmap, bitmap.without(4));
+        assertSame(bitmap, bitmap.without(2 * BLOCK));
+        assertSame(bitmap, bitmap.without(-1));
+    }
+
+    @Test
+    void modificationsDoNotChangeOriginal() {
+        IntBitmap original = IntBitmap.of(new int[]{1, 2, BLOCK});
+        IntBitmap added = original.with(3);
+        IntBitmap removed = original.without(BLOCK);
+        assertArrayEquals(new int[]{1, 2, BLOCK}, original.toArray());
+        assertArrayEquals(new int[]{1, 2, 3, BLOCK}, added.toArray());
+        assertArrayEquals(new int[]{1, 2}, removed.toArray());
+    }
+
+    @Test
+    void negativeValuesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> IntBitmap.of(new int[]{1, -5}));
+        assertThrows(IllegalArgumentException.class, () -> IntBitmap.EMPTY.with(-1));
+    }
+
+    @Test
+    void andMatchesTreeSetForEveryContainerPair() {
+        Random random = new Random(3);
+        // 块 0：位图 × 位图；块 1：数组 × 位图；块 2：数组 × 数组；块 3、4 只在一边
+        TreeSet<Integer> a = new TreeSet<>();
+        TreeSet<Integer> b = new TreeSet<>();
+        fill(a, random, 0, 20000, 6000);
+        fill(b, random, 0, 20000, 9000);
+        fill(a, random, BLOCK, 30000, 1000);
+        fill(b, random, BLOCK, 30000, 5000);
+        fill(a, random, 2 * BLOCK, 3000, 800);
+        fill(b, random, 2 * BLOCK, 3000, 800);
+        fill(a, random, 3 * BLOCK, 100, 50);
+        fill(b, random, 4 * BLOCK, 100, 50);
+        // 位图 × 位图且交集很小时结果应转回数组块
+        a.add(5 * BLOCK + 1);
+        b.add(5 * BLOCK + 1);
+        fill(a, random, 5 * BLOCK + 10000, 10000, 5000);
+        fill(b, random, 5 * BLOCK + 30000, 10000, 5000);
+
+        IntBitmap x = IntBitmap.of(toArray(a));
+        IntBitmap y = IntBitmap.of(toArray(b));
+        TreeSet<Integer> expected = new TreeSet<>(a);
+        expected.retainAll(b);
+
+        assertSameContent(expected, x.and(y));
+        assertSameContent(expected, y.and(x));
+        assertEquals(expected.size(), x.andCardinality(y));
+
+        List<Integer> visited = new ArrayList<>();
+        IntBitmap.forEachAnd(x, y, visited::add);
+        assertEquals(new ArrayList<>(expected), visited);
+
+        assertTrue(x.and(IntBitmap.EMPTY).isEmpty());
+        assertEquals(0, IntBitmap.of(new int[]{1}).andCardinality(IntBitmap.of(new int[]{BLOCK + 1})));
+    }
+
+    @Test
+    void writeAndReadRoundTrip() throws IOException {
+        Random random = new Random(11);
+        TreeSet<Integer> expected = new TreeSet<>();
+        fill(expected, random, 0, 10000, 6000);
+        fill(expected, random, 3 * BLOCK, 500, 100);
+        expected.add(Integer.MAX_VALUE);
+        IntBitmap bitmap = IntBitmap.of(toArray(expected));
+
+        ByteWriter out = new ByteWriter(64);
+        bitmap.writeTo(out);
+        IntBitmap.EMPTY.writeTo(out);
+        ByteReader in = new ByteReader(out.toByteArray());
+        assertSameContent(expected, IntBitmap.readFrom(in));
+        assertSame(IntBitmap.EMPTY, IntBitmap.readFrom(in));
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    void readRejectsMalformedData() {
+        // 块数 | 高 16 位 | 类型 | 数组块：个数 + 每个元素 2 字节
+        assertRejected(bytes(1, 0, 7));                            // 未知类型
+        assertRejected(bytes(2, 5, TYPE_ARRAY, 1, 0, 1, 5, TYPE_ARRAY, 1, 0, 2)); // 高 16 位重复
+        assertRejected(bytes(2, 5, TYPE_ARRAY, 1, 0, 1, 4, TYPE_ARRAY, 1, 0, 2)); // 高 16 位逆序
+        assertRejected(bytes(1, 0x80, 0x80, 0x04, TYPE_ARRAY, 1, 0, 1)); // 高 16 位超过 0xFFFF
+        assertRejected(bytes(1, 0, TYPE_ARRAY, 0));                 // 空数组块
+        assertRejected(bytes(1, 0, TYPE_ARRAY, 2, 0, 9, 0, 3));     // 数组块无序
+        assertRejected(bytes(1, 0, TYPE_ARRAY, 2, 0, 3, 0, 3));     // 数组块重复
+        assertRejected(bytes(1, 0, TYPE_ARRAY, 3, 0, 1, 0, 2));     // 数组块被截断
+
+        ByteWriter emptyBitmap = new ByteWriter(8200);
+        emptyBitmap.writeVarint(1);
+        emptyBitmap.writeVarint(0);
+        emptyBitmap.writeByte(TYPE_BITMAP);
+        for (int i = 0; i < 1024; i++) {
+            emptyBitmap.writeLong(0);
+        }
+        assertRejected(emptyBitmap.toByteArray());                  // 空位图块
+
+        ByteWriter full = new ByteWriter(64);
+        IntBitmap.of(range(0, ARRAY_MAX + 1)).writeTo(full);
+        byte[] data = full.toByteArray();
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertRejected(truncated);                                  // 位图块被截断
+    }
+
+    private static int randomValue(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(8192);
+            case 1:
+                return BLOCK - 2000 + random.nextInt(4000);
+            case 2:
+                return 3 * BLOCK + random.nextInt(6000);
+            default:
+                return random.nextInt(64) * BLOCK + random.nextInt(BLOCK);
+        }
+    }
+
+    private static void fill(TreeSet<Integer> set, Random random, int base, int range, int count) {
+        int target = set.size() + count;
+        while (set.size() < target) {
+            set.add(base + random.nextInt(range));
+        }
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] values = new int[set.size()];
+        int i = 0;
+        for (int value : set) {
+            values[i++] = value;
+        }
+        return values;
+    }
+
+    private static int[] range(int from, int to) {
+        int[] values = new int[to - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = from + i;
+        }
+        return values;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static void assertRejected(byte[] data) {
+        assertThrows(IOException.class, () -> IntBitmap.readFrom(new ByteReader(data)));
+    }
+
+    private static void assertSameContent(TreeSet<Integer> expected, IntBitmap bitmap) {
+        assertEquals(expected.size(), bitmap.cardinality());
+        assertEquals(expected.isEmpty(), bitmap.isEmpty());
+        assertArrayEquals(toArray(expected), bitmap.toArray());
+        assertEquals(expected.isEmpty() ? -1 : expected.last(), bitmap.last());
+        for (int value : expected) {
+            assertTrue(bitmap.contains(value), "缺少 " + value);
+            if (value < Integer.MAX_VALUE && !expected.contains(value + 1)) {
+                assertFalse(bitmap.contains(value + 1), "多出 " + (value + 1));
+            }
+        }
+    }
+
+    // 序列化后的块数（第一个 varint）
+    private static int blockCount(IntBitmap bitmap) {
+        ByteWriter out = new ByteWriter(64);
+        bitmap.writeTo(out);
+        try {
+            return new ByteReader(out.toByteArray()).readVarint();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // 第一块的容器类型：序列化格式中块数、高 16 位之后的类型字节
+    private static int firstBlockType(IntBitmap bitmap) {
+        ByteWriter out = new ByteWriter(64);
+        bitmap.writeTo(out);
+        try {
+            ByteReader in = new ByteReader(out.toByteArray());
+            in.readVarint();
+            in.readVarint();
+            return in.readByte();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package util;
+
+import server.data.GroupData;
+import server.data.UserData;
+import server.serveice.Wrapper;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 紧凑二进制编解码器
+ * <p>
+ * 帧格式：
+ * <pre>
+ * 帧头：varint 操作码 | byte 标志位 | ID 发送者 | ID 群聊/接收者
+ * 帧体：载荷
+ * </pre>
+ * 帧头依赖连接的 ID 驻留表，每个连接单独生成；载荷与连接无关，群发时只编码一次。
+ * 标志位第 0 位表示载荷经过 Deflate 压缩（仅在握手协商了压缩时使用），其余位保留，必须为 0。
+ * ID 字段在连接内驻留：某个 ID 第一次出现时随帧定义一个编号，之后只发送编号。
+ * ID 字段以一个 varint 标签开头，低两位表示类型：
+ * 0 = null（标签为 0），1 = 不驻留的字面量，2 = 定义编号 (标签 >> 2) 并附带字面量，3 = 引用编号 (标签 >> 2)。
+ * <p>
+ * 载荷以一个类型字节开头，覆盖协议中出现的全部数据类型（文本、账号密码数组、聊天记录、
+ * id-昵称表、群聊信息、用户信息等），不使用 Java 反序列化，未知类型直接视为协议错误。
+ */
+public class BinaryCodec extends WireCodec {
+    // ====================== 载荷类型 ======================
+    static final int T_NULL = 0;
+    static final int T_STRING = 1;
+    static final int T_STRING_ARRAY = 2;
+    static final int T_STRING_LIST = 3;
+    static final int T_STRING_MAP = 4;
+    static final int T_GROUP = 5;
+    static final int T_USER = 6;
+    static final int T_USER_MAP = 7;
+
+    // ====================== ID 字段标签 ======================
+    private static final int ID_NULL = 0;
+    private static final int ID_LITERAL = 1;
+    private static final int ID_DEFINE = 2;
+    private static final int ID_REF = 3;
+
+    // 单个连接每个方向最多驻留的 ID 数，超过后以字面量发送
+    private static final int MAX_INTERNED = 4096;
+
+    // 编码端驻留表：ID -> 编号（编号从 1 开始）
+    private final Map<String, Integer> encodeTable = new HashMap<>();
+    // 解码端驻留表：编号 -> ID（下标 0 不使用）
+    private final List<String> decodeTable = new ArrayList<>();
+
+    public BinaryCodec() {
+        decodeTable.add(null);
+    }
+
+    @Override
+    public int getCodecId() {
+        return CODEC_BINARY;
+    }
+
+    @Override
+    public byte[][] frame(EncodedMessage message) throws IOException {
+        byte[] raw = message.sharedBody(this);
+        byte[] body = selectBody(message);
+        Wrapper wrapper = message.getWrapper();
+
+        ByteWriter out = new ByteWriter(32);
+        // 预留长度前缀
+        out.writeInt(0);
+        out.writeVarint(wrapper.getOperation());
+        out.writeByte(body == raw ? 0 : FLAG_DEFLATE);
+        writeId(out, wrapper.getSenderId());
+        writeId(out, wrapper.getGroupId());
+        byte[] head = out.toByteArray();
+        writeLength(head, head.length - LENGTH_FIELD_SIZE + body.length);
+        return new byte[][]{head, body};
+    }
+
+    @Override
+    protected byte[] encodeBody(Wrapper wrapper) throws IOException {
+        ByteWriter out = new ByteWriter(64);
+        writeValue(out, wrapper.getData());
+        return out.toByteArray();
+    }
+
+    @Override
+    public Wrapper decode(byte[] frame, int offset, int length) throws IOException {
+        ByteReader in = new ByteReader(frame, offset, length);
+        int operation = in.readVarint();
+        int flags = in.readByte();
+        if ((flags & ~FLAG_DEFLATE) != 0 || (flags & FLAG_DEFLATE) != 0 && !compression) {
+            throw new IOException("非法的帧标志位: " + flags);
+        }
+        String senderId = readId(in);
+        String groupId = readId(in);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            // 载荷经过压缩：解压后单独解析
+            in = new ByteReader(decompress(frame, in.position(), in.remaining()));
+        }
+        Object data = readValue(in);
+        if (in.remaining() != 0) {
+            throw new IOException("帧末尾存在多余数据");
+        }
+        return new Wrapper(data, senderId, groupId, operation);
+    }
+
+    // ====================== ID 驻留 ======================
+
+    private void writeId(ByteWriter out, String id) {
+        if (id == null) {
+            out.writeVarint(ID_NULL);
+            return;
+        }
+        Integer index = encodeTable.get(id);
+        if (index != null) {
+            out.writeVarint((index << 2) | ID_REF);
+        } else if (encodeTable.size() < MAX_INTERNED) {
+            index = encodeTable.size() + 1;
+            encodeTable.put(id, index);
+            out.writeVarint((index << 2) | ID_DEFINE);
+            out.writeString(id);
+        } else {
+            out.writeVarint(ID_LITERAL);
+            out.writeString(id);
+        }
+    }
+
+    private String readId(ByteReader in) throws IOException {
+        int tag = in.readVarint();
+        switch (tag & 3) {
+            case ID_NULL:
+                if (tag != ID_NULL) {
+                    throw new IOException("非法的 ID 标签: " + tag);
+                }
+                return null;
+            case ID_LITERAL:
+                return in.readString();
+            case ID_DEFINE: {
+                int index = tag >>> 2;
+                if (index != decodeTable.size() || index > MAX_INTERNED) {
+                    throw new IOException("ID 驻留编号不连续: " + index);
+                }
+                String id = in.readString();
+                decodeTable.add(id);
+                return id;
+            }
+            default: {
+                int index = tag >>> 2;
+                if (index <= 0 || index >= decodeTable.size()) {
+                    throw new IOException("引用了未定义的 ID 编号: " + index);
+                }
+                return decodeTable.get(index);
+            }
+        }
+    }
+
+    // ====================== 载荷 ======================
+
+    @SuppressWarnings("unchecked")
+    static void writeValue(ByteWriter out, Object data) throws IOException {
+        if (data == null) {
+            out.writeByte(T_NULL);
+        } else if (data instanceof String) {
+            out.writeByte(T_STRING);
+            out.writeString((String) data);
+        } else if (data instanceof String[]) {
+            out.writeByte(T_STRING_ARRAY);
+            String[] array = (String[]) data;
+            out.writeVarint(array.length);
+            for (String s : array) {
+                writeNullableString(out, s);
+            }
+        } else if (data instanceof List) {
+            out.writeByte(T_STRING_LIST);
+            List<String> list = (List<String>) data;
+            out.writeVarint(list.size());
+            for (String s : list) {
+                writeNullableString(out, s);
+            }
+        } else if (data instanceof GroupData) {
+            out.writeByte(T_GROUP);
+            writeGroup(out, (GroupData) data);
+        } else if (data instanceof UserData) {
+            out.writeByte(T_USER);
+            writeUser(out, (UserData) data);
+        } else if (data instanceof Map) {
+            writeMap(out, (Map<String, ?>) data);
+        } else {
+            throw new IOException("二进制编解码器不支持的数据类型: " + data.getClass().getName());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeMap(ByteWriter out, Map<String, ?> map) throws IOException {
+        // 空表无法从值判断类型，按 id-昵称表处理（客户端两种用法都只做遍历）
+        boolean userMap = false;
+        for (Object value : map.values()) {
+            if (value instanceof UserData) {
+                userMap = true;
+            } else if (value != null && !(value instanceof String)) {
+                throw new IOException("二进制编解码器不支持的表类型: " + value.getClass().getName());
+            }
+            break;
+        }
+        out.writeByte(userMap ? T_USER_MAP : T_STRING_MAP);
+        out.writeVarint(map.size());
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            writeNullableString(out, entry.getKey());
+            if (userMap) {
+                writeUser(out, (UserData) entry.getValue());
+            } else {
+                writeNullableString(out, (String) entry.getValue());
+            }
+        }
+    }
+
+    static Object readValue(ByteReader in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return in.readString();
+            case T_STRING_ARRAY: {
+                String[] array = new String[in.readCount()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readNullableString(in);
+                }
+                return array;
+            }
+            case T_STRING_LIST: {
+                int count = in.readCount();
+                List<String> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readNullableString(in));
+                }
+                return list;
+            }
+            case T_STRING_MAP: {
+                int count = in.readCount();
+                Map<String, String> map = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    map.put(readNullableString(in), readNullableString(in));
+                }
+                return map;
+            }
+            case T_GROUP:
+                return readGroup(in);
+            case T_USER:
+                return readUser(in);
+            case T_USER_MAP: {
+                int count = in.readCount();
+                Map<String, UserData> map = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    map.put(readNullableString(in), readUser(in));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("未知的载荷类型: " + type);
+        }
+    }
+
+    // 可为 null 的字符串：先写一个标记字节
+    private static void writeNullableString(ByteWriter out, String s) {
+        if (s == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.writeString(s);
+        }
+    }
+
+    private static String readNullableString(ByteReader in) throws IOException {
+        return in.readByte() == 0 ? null : in.readString();
+    }
+
+    private static void writeStringSet(ByteWriter out, Collection<String> set) {
+        if (set == null) {
+            out.writeVarint(0);
+            return;
+        }
+        out.writeVarint(set.size());
+        for (String s : set) {
+            out.writeString(s);
+        }
+    }
+
+    private static TreeSet<String> readStringSet(ByteReader in) throws IOException {
+        int count = in.readCount();
+        TreeSet<String> set = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            set.add(in.readString());
+        }
+        return set;
+    }
+
+    private static void writeGroup(ByteWriter out, GroupData group) {
+        writeNullableString(out, group.getGroupId());
+        writeNullableString(out, group.getGroupName());
+        writeNullableString(out, group.getGroupOwner() == null ? null : group.getGroupOwner().id);
+        // 使用不可变的成员快照，编码时群成员被并发修改也不会出错
+        List<String> members = group.getMemberArray().asList();
+        out.writeVarint(members.size());
+        for (String member : members) {
+            out.writeString(member);
+        }
+    }
+
+    private static GroupData readGroup(ByteReader in) throws IOException {
+        String groupId = readNullableString(in);
+        String groupName = readNullableString(in);
+        String ownerId = readNullableString(in);
+        GroupData group = new GroupData(groupId, groupName, ownerId);
+        int count = in.readCount();
+        for (int i = 0; i < count; i++) {
+            group.addMember(in.readString());
+        }
+        return group;
+    }
+
+    private static void writeUser(ByteWriter out, UserData user) {
+        writeNullableString(out, user.getNickname());
+        writeNullableString(out, user.getUserId());
+        writeNullableString(out, user.getPassword());
+        writeStringSet(out, user.getGroupIds());
+        writeStringSet(out, user.getFriendIds());
+        writeNullableString(out, user.getEmail());
+        writeNullableString(out, user.getBirthday());
+        writeNullableString(out, user.getAddress());
+        writeNullableString(out, user.getSignature());
+    }
+
+    private static UserData readUser(ByteReader in) throws IOException {
+        UserData user = new UserData(readNullableString(in), readNullableString(in), readNullableString(in));
+        user.setGroupIds(readStringSet(in));
+        user.setFriendIds(readStringSet(in));
+        user.setEmail(readNullableString(in));
+        user.setBirthday(readNullableString(in));
+        user.setAddress(readNullableString(in));
+        user.setSignature(readNullableString(in));
+        return user;
+    }
+}
@@ -0,0 +1,114 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 字节读取器，与 ByteWriter 对应，用于解析二进制格式。
+ * 所有越界读取都会抛出 IOException，调用方可以把它当作“数据损坏”处理。
+ */
+public class ByteReader {
+    private final byte[] buf;
+    private int pos;
+    private final int limit;
+
+    public ByteReader(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    public ByteReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    private void require(int n) throws IOException {
+        if (n < 0 || pos + n > limit) {
+            throw new EOFException("数据长度不足");
+        }
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buf[pos++] & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+                | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        return v;
+    }
+
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public int readVarint() throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+
+    public long readVarlong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+
+    public byte[] readBytes(int length) throws IOException {
+        require(length);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buf, pos, bytes, 0, length);
+        pos += length;
+        return bytes;
+    }
+
+    public String readString() throws IOException {
+        int length = readVarint();
+        require(length);
+        String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    /**
+     * 读取一个长度/数量字段，并确认剩余数据至少还有这么多字节（每个元素至少一字节），防止恶意的超大数量
+     */
+    public int readCount() throws IOException {
+        int count = readVarint();
+        require(count);
+        return count;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public void skip(int n) throws IOException {
+        require(n);
+        pos += n;
+    }
+
+    public int remaining() {
+        return limit - pos;
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+}
@@ -0,0 +1,66 @@
+package util;
+
+import server.serveice.Wrapper;
+
+import java.io.IOException;
+
+/**
+ * 一条待发送的消息及其编码结果的缓存。
+ * <p>
+ * 群发时同一条消息要写给很多连接：与连接无关的部分（帧体）只在第一次需要时编码一次，
+ * 之后所有连接直接复用同一个不可变的字节数组；每个连接只需要再生成几个字节的帧头。
+ * 不同连接可能协商了不同的编解码器，因此按编解码器编号分别缓存；
+ * 协商了压缩的连接使用压缩后的帧体，同样只压缩一次。
+ */
+public final class EncodedMessage {
+    private final Wrapper wrapper;
+    // 压缩后不比原文小时的占位，表示该帧体不值得压缩
+    private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+
+    // 按编解码器编号缓存的共享帧体，数组元素一旦写入就不再修改
+    private final byte[][] sharedBodies = new byte[3][];
+    // 按编解码器编号缓存的压缩帧体
+    private final byte[][] compressedBodies = new byte[3][];
+    // 创建时间（System.nanoTime），用于统计从发出到写出的延迟
+    private final long createdNanos = System.nanoTime();
+
+    public EncodedMessage(Wrapper wrapper) {
+        this.wrapper = wrapper;
+    }
+
+    public Wrapper getWrapper() {
+        return wrapper;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * 获取指定编解码器的共享帧体，首次调用时编码
+     */
+    synchronized byte[] sharedBody(WireCodec codec) throws IOException {
+        int codecId = codec.getCodecId();
+        byte[] body = sharedBodies[codecId];
+        if (body == null) {
+            body = codec.encodeBody(wrapper);
+            sharedBodies[codecId] = body;
+        }
+        return body;
+    }
+
+    /**
+     * 获取指定编解码器压缩后的共享帧体，首次调用时压缩
+     *
+     * @return 压缩后不比原文小时返回 null
+     */
+    synchronized byte[] sharedCompressedBody(WireCodec codec) throws IOException {
+        int codecId = codec.getCodecId();
+        byte[] body = compressedBodies[codecId];
+        if (body == null) {
+            body = codec.compress(sharedBody(codec));
+            compressedBodies[codecId] = body == null ? NOT_COMPRESSIBLE : body;
+        }
+        return body == NOT_COMPRESSIBLE ? null : body;
+    }
+}
@@ -1,12 +1,14 @@
 package util;
 
 import server.data.ServerData;
+import server.data.ServerSnapshot;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /*
@@ -24,17 +26,36 @@ public class FileUtil {
     // 旧的服务器数据文件名 (保留用于兼容旧数据)
     // public static final String SERVER_DATA_FILENAME = "server_data.data";
 
-    // 新的统一服务器数据文件名
+    // Java 序列化格式的统一服务器数据文件名 (保留用于迁移到二进制快照)
     public static final String SERVER_FULL_DATA_FILENAME = "server_data_full.data";
 
+    // 二进制快照文件名
+    public static final String SERVER_SNAPSHOT_FILENAME = "server_data.snap";
+
+    // 服务器数据修改日志文件夹名
+    public static final String JOURNAL_DIRNAME = "journal";
+
     // 聊天历史消息存储文件夹名
     public static final String CHAT_DATA_DIRNAME = "chat_data";
 
-    // 辅助方法：获取新的统一数据文件路径
+    // 按会话单独配置的聊天记录保留策略
+    public static final String CHAT_RETENTION_FILENAME = "chat_retention.properties";
+
+    // 辅助方法：获取 Java 序列化格式的统一数据文件路径
     private static Path getServerFullDataPath() {
         return Paths.get(DATA_FILE, SERVER_FULL_DATA_FILENAME);
     }
 
+    // 辅助方法：获取二进制快照文件路径
+    private static Path getServerSnapshotPath() {
+        return Paths.get(DATA_FILE, SERVER_SNAPSHOT_FILENAME);
+    }
+
+    // 辅助方法：获取服务器数据修改日志目录
+    public static Path getJournalDir() {
+        return Paths.get(DATA_FILE, JOURNAL_DIRNAME);
+    }
+
     // 辅助方法：获取旧的 Group ServerData路径
     private static Path getOldGroupServerDataPath() {
         return Paths.get(DATA_FILE, GROUPS_DIR, "server_data.data");
@@ -45,27 +66,78 @@ public class FileUtil {
         return Paths.get(DATA_FILE, FRIENDS_DIR, "server_data.data");
     }
 
-    // 辅助方法：获取Chat Data路径
-    private static Path getChatDataPath(String id, boolean isGroup) {
+    // 辅助方法：获取旧版本单文件 Chat Data路径
+    public static Path getChatDataPath(String id, boolean isGroup) {
         String subDir = isGroup ? GROUPS_DIR : FRIENDS_DIR;
         return Paths.get(DATA_FILE, subDir, CHAT_DATA_DIRNAME, id + ".txt");
     }
 
+    // 辅助方法：获取分段存储的 Chat Data目录
+    public static Path getChatLogDir(String id, boolean isGroup) {
+        return getChatLogRoot(isGroup).resolve(id);
+    }
+
+    // 辅助方法：获取群聊/私聊的聊天记录根目录，每个会话一个子目录
+    public static Path getChatLogRoot(boolean isGroup) {
+        String subDir = isGroup ? GROUPS_DIR : FRIENDS_DIR;
+        return Paths.get(DATA_FILE, subDir, CHAT_DATA_DIRNAME);
+    }
+
+    /**
+     * 读取按会话单独配置的聊天记录保留策略，每行格式为：会话id=最长保留秒数,最大字节数
+     *
+     * @return 文件不存在或读取失败时返回空配置，绝不返回null
+     */
+    public static Properties loadChatRetentionOverrides() {
+        Properties properties = new Properties();
+        Path path = Paths.get(DATA_FILE, CHAT_RETENTION_FILENAME);
+        if (!Files.exists(path)) {
+            return properties;
+        }
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            System.err.println("读取聊天记录保留策略失败: " + e.getMessage());
+        }
+        return properties;
+    }
+
     /**
      * 读取文件中的serverData信息，返回ServerData对象
-     * 优先读取新的统一文件，如果不存在则尝试读取旧文件并合并
+     * 优先读取二进制快照；快照不存在时才依次尝试旧的统一文件和更早的分开存放的旧文件，并立即转换为二进制快照，
+     * 之后的启动不会再访问旧文件
      */
     public static ServerData loadServerData() {
-        // 1. 尝试加载新的统一数据文件
+        // 1. 二进制快照，按块并行解码
+        Path snapshotPath = getServerSnapshotPath();
+        if (Files.exists(snapshotPath)) {
+            try {
+                ServerData snapshot = ServerSnapshot.decode(Files.readAllBytes(snapshotPath));
+                System.out.println("成功加载服务器数据快照");
+                return snapshot;
+            } catch (IOException e) {
+                System.err.println("加载数据失败 (" + snapshotPath + "): " + e.getMessage());
+                return null;
+            }
+        }
+
+        // 2. Java 序列化格式的统一数据文件，转换成快照后删除
         ServerData fullData = loadDataFromFile(getServerFullDataPath());
         if (fullData != null) {
-            System.out.println("成功加载统一服务器数据文件");
+            System.out.println("成功加载统一服务器数据文件，将保存为二进制快照...");
+            if (saveDataToFile(fullData)) {
+                try {
+                    Files.deleteIfExists(getServerFullDataPath());
+                } catch (IOException e) {
+                    System.err.println("删除旧数据文件失败: " + e.getMessage());
+                }
+            }
             return fullData;
         }
 
         System.out.println("统一数据文件不存在，尝试加载旧版本数据并合并...");
 
-        // 2. 如果不存在，尝试加载旧数据并合并
+        // 3. 如果不存在，尝试加载旧数据并合并
         ServerData finalData = new ServerData();
         boolean loadedAny = false;
 
@@ -93,7 +165,7 @@ public class FileUtil {
             // 注意：这里不能直接调用 saveServerData()，因为它依赖 ServerData.getInstance()，而此时可能正在初始化
             // getInstance
             // 所以我们直接调用内部保存逻辑
-            saveDataToFile(getServerFullDataPath(), finalData);
+            saveDataToFile(finalData);
             return finalData;
         }
 
@@ -113,38 +185,69 @@ public class FileUtil {
     }
 
     /**
-     * 使用静态方法获取serverData对象，将serverData中的信息写入文件中
-     * 直接序列化整个 ServerData 对象
+     * 使用静态方法获取serverData对象，写一次检查点：
+     * 序列化整个 ServerData 对象作为快照，并清理快照已经覆盖的修改日志
      */
     public static void saveServerData() {
-        ServerData data = ServerData.getInstance();
-        saveDataToFile(getServerFullDataPath(), data);
-        System.out.println("服务器数据保存成功 (统一格式)");
+        ServerData.getInstance().checkpoint();
     }
 
-    private static void saveDataToFile(Path path, ServerData data) {
-        File file = path.toFile();
-        if (!file.getParentFile().exists()) {
-            file.getParentFile().mkdirs();
+    /**
+     * 将编码好的 ServerData 快照写入快照文件，各部分按顺序逐个写出（见 ServerSnapshot）。
+     * 先写临时文件并刷盘，再原子替换旧文件，写到一半时进程退出不会损坏已有快照。
+     *
+     * @return 是否写入成功
+     */
+    public static boolean writeServerDataSnapshot(List<byte[]> parts) {
+        Path path = getServerSnapshotPath();
+        Path tmp = Paths.get(DATA_FILE, SERVER_SNAPSHOT_FILENAME + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+                for (byte[] part : parts) {
+                    fos.write(part);
+                }
+                fos.getFD().sync();
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            System.out.println("服务器数据保存成功 (二进制快照)");
+            return true;
+        } catch (IOException e) {
+            System.err.println("保存数据失败: " + e.getMessage());
+            return false;
         }
+    }
 
-        // 确保 ServerData 本身是可序列化的，并且所有字段（serverUsers, serverGroups 等）也是可序列化的
-        synchronized (ServerData.class) {
-            try (ObjectOutputStream oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(file)))) {
-                oos.writeObject(data);
-            } catch (IOException e) {
-                System.err.println("保存数据失败: " + e.getMessage());
-                e.printStackTrace();
-            }
+    // 转换后的旧数据还没有被其他线程使用，直接编码后按快照方式写入
+    private static boolean saveDataToFile(ServerData data) {
+        List<byte[]> parts;
+        try {
+            parts = ServerSnapshot.encode(data);
+        } catch (IOException e) {
+            System.err.println("保存数据失败: " + e.getMessage());
+            e.printStackTrace();
+            return false;
         }
+        return writeServerDataSnapshot(parts);
+    }
+
+    /**
+     * 检查二进制快照（检查点）是否存在
+     */
+    public static boolean isServerDataSnapshotExists() {
+        return Files.exists(getServerSnapshotPath());
     }
 
     /**
      * 检查数据文件是否存在 (任意一个存在即认为存在)
      */
     public static boolean isDataFileExists() {
-        return Files.exists(getServerFullDataPath()) ||
+        return Files.exists(getServerSnapshotPath()) ||
+                Files.exists(getServerFullDataPath()) ||
                 Files.exists(getOldGroupServerDataPath()) ||
                 Files.exists(getOldFriendServerDataPath());
     }
@@ -154,6 +257,10 @@ public class FileUtil {
      */
     public static long getDataFileSize() {
         long size = 0;
+        File snapshotFile = getServerSnapshotPath().toFile();
+        if (snapshotFile.exists())
+            size += snapshotFile.length();
+
         File fullFile = getServerFullDataPath().toFile();
         if (fullFile.exists())
             size += fullFile.length();
@@ -168,80 +275,4 @@ public class FileUtil {
 
         return size;
     }
-
-    // ===================================聊天信息=======================
-
-    /**
-     * 将聊天信息追加写入文件
-     *
-     * @param groupId    群聊id 或 用户id
-     * @param senderId   发送者id
-     * @param senderName 发送者名字
-     * @param content    发送内容
-     */
-    public static void addChatMessage(String groupId, String senderId, String senderName, String content) {
-        String msg = MsgUtil.combineMsg(senderId, senderName, content);
-        writeChatMsg(groupId, msg);
-    }
-
-    public static void addChatMessage(String groupId, String contentFromWrapper) {
-        writeChatMsg(groupId, contentFromWrapper);
-    }
-
-    private static void writeChatMsg(String id, String content) {
-        // 判断是群聊还是私聊
-        // 通过 ServerGroups 来判断，如果在群组Map中，则是群聊，否则认为是私聊
-        boolean isGroup = false;
-        if (ServerData.getInstance().getServerGroups() != null) {
-            isGroup = ServerData.getInstance().getServerGroups().containsKey(id);
-        }
-
-        Path path = getChatDataPath(id, isGroup);
-        File file = path.toFile();
-
-        if (!file.getParentFile().exists()) {
-            file.getParentFile().mkdirs();
-        }
-
-        try (FileWriter fw = new FileWriter(file, true);
-                BufferedWriter bw = new BufferedWriter(fw)) {
-            // 写入文本并换行
-            bw.write(content);
-            bw.newLine(); // 跨平台换行
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * 读取某个群的所有聊天记录
-     *
-     * @return 历史消息列表，无内容/文件不存在返回空List，绝不返回null
-     */
-    public static List<String> loadGroupChatMsg(String groupId) {
-        // 判断是群聊还是私聊
-        boolean isGroup = false;
-        if (ServerData.getInstance().getServerGroups() != null) {
-            isGroup = ServerData.getInstance().getServerGroups().containsKey(groupId);
-        }
-
-        Path path = getChatDataPath(groupId, isGroup);
-
-        // 尝试从新路径读取，如果不存在，且是群聊，尝试旧路径（为了简单，这里暂时不处理旧聊天记录的迁移，因为聊天记录是文本文件，相对独立）
-        // 如果需要，可以在这里增加 fallback 逻辑
-
-        List<String> lines;
-        try {
-            lines = Files.readAllLines(path);
-        } catch (NoSuchFileException e) {
-            lines = new ArrayList<>();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        if (lines == null) {
-            lines = new ArrayList<>();
-        }
-        return lines;
-    }
 }
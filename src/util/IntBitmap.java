@@ -0,0 +1,598 @@
+package util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 不可变的压缩位图（Roaring 风格），保存非负 int，用于按用户句柄保存群成员、在线用户等集合。
+ * <p>
+ * 按高 16 位分块，每块一个容器：元素不超过 4096 个时是有序 char 数组，超过后是 65536 位的位图（1024 个 long）。
+ * 句柄连续分配，大群的成员集中在少数几块里，比逐个保存对象省得多；求交集时位图块按 long 逐字相与，
+ * 数组块按有序归并，不需要逐个查找。
+ * <p>
+ * 对象不可变，with/without 返回新对象，只复制被修改的那一块，其余块与原对象共享，
+ * 因此可以直接用 volatile 发布给读线程，读取不加锁。
+ */
+public final class IntBitmap {
+    // 数组容器的元素上限，超过后转换为位图容器（与位图容器的 8KB 大小相当）
+    private static final int ARRAY_MAX = 4096;
+    private static final int TYPE_ARRAY = 0;
+    private static final int TYPE_BITMAP = 1;
+
+    public static final IntBitmap EMPTY = new IntBitmap(new char[0], new Container[0], 0);
+
+    // 各块的高 16 位，升序
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private IntBitmap(char[] keys, Container[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * 由任意顺序的非负整数创建，重复的只保留一个
+     */
+    public static IntBitmap of(int[] values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        if (sorted.length > 0 && sorted[0] < 0) {
+            throw new IllegalArgumentException("只能保存非负整数: " + sorted[0]);
+        }
+        char[] keys = new char[sorted.length];
+        Container[] containers = new Container[sorted.length];
+        int blocks = 0;
+        int total = 0;
+        int i = 0;
+        char[] buffer = new char[Math.min(65536, sorted.length)];
+        while (i < sorted.length) {
+            int high = sorted[i] >>> 16;
+            int n = 0;
+            while (i < sorted.length && sorted[i] >>> 16 == high) {
+                char low = (char) sorted[i];
+                if (n == 0 || buffer[n - 1] != low) {
+                    buffer[n++] = low;
+                }
+                i++;
+            }
+            keys[blocks] = (char) high;
+            containers[blocks++] = n > ARRAY_MAX
+                    ? BitmapContainer.of(buffer, n)
+                    : new ArrayContainer(Arrays.copyOf(buffer, n));
+            total += n;
+        }
+        return new IntBitmap(Arrays.copyOf(keys, blocks), Arrays.copyOf(containers, blocks), total);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * 最大的元素，为空时返回 -1
+     */
+    public int last() {
+        if (keys.length == 0) {
+            return -1;
+        }
+        int i = keys.length - 1;
+        return (keys[i] << 16) | containers[i].last();
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(keys, (char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * 加入一个元素后的位图，已存在时返回自身
+     */
+    public IntBitmap with(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("只能保存非负整数: " + value);
+        }
+        char high = (char) (value >>> 16);
+        int index = Arrays.binarySearch(keys, high);
+        if (index >= 0) {
+            Container updated = containers[index].add((char) value);
+            if (updated == containers[index]) {
+                return this;
+            }
+            Container[] nextContainers = containers.clone();
+            nextContainers[index] = updated;
+            return new IntBitmap(keys, nextContainers, cardinality + 1);
+        }
+        int insert = -index - 1;
+        char[] nextKeys = new char[keys.length + 1];
+        Container[] nextContainers = new Container[containers.length + 1];
+        System.arraycopy(keys, 0, nextKeys, 0, insert);
+        System.arraycopy(containers, 0, nextContainers, 0, insert);
+        nextKeys[insert] = high;
+        nextContainers[insert] = new ArrayContainer(new char[]{(char) value});
+        System.arraycopy(keys, insert, nextKeys, insert + 1, keys.length - insert);
+        System.arraycopy(containers, insert, nextContainers, insert + 1, containers.length - insert);
+        return new IntBitmap(nextKeys, nextContainers, cardinality + 1);
+    }
+
+    /**
+     * 去掉一个元素后的位图，不存在时返回自身
+     */
+    public IntBitmap without(int value) {
+        if (value < 0) {
+            return this;
+        }
+        int index = Arrays.binarySearch(keys, (char) (value >>> 16));
+        if (index < 0) {
+            return this;
+        }
+        Container updated = containers[index].remove((char) value);
+        if (updated == containers[index]) {
+            return this;
+        }
+        if (updated != null) {
+            Container[] nextContainers = containers.clone();
+            nextContainers[index] = updated;
+            return new IntBitmap(keys, nextContainers, cardinality - 1);
+        }
+        // 整块变空，去掉这一块
+        char[] nextKeys = new char[keys.length - 1];
+        Container[] nextContainers = new Container[containers.length - 1];
+        System.arraycopy(keys, 0, nextKeys, 0, index);
+        System.arraycopy(containers, 0, nextContainers, 0, index);
+        System.arraycopy(keys, index + 1, nextKeys, index, keys.length - index - 1);
+        System.arraycopy(containers, index + 1, nextContainers, index, containers.length - index - 1);
+        return new IntBitmap(nextKeys, nextContainers, cardinality - 1);
+    }
+
+    /**
+     * 按升序遍历全部元素
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * 全部元素，升序
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality];
+        int[] n = {0};
+        forEach(value -> values[n[0]++] = value);
+        return values;
+    }
+
+    /**
+     * 交集
+     */
+    public IntBitmap and(IntBitmap other) {
+        char[] nextKeys = new char[Math.min(keys.length, other.keys.length)];
+        Container[] nextContainers = new Container[nextKeys.length];
+        int blocks = 0;
+        int total = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container c = containers[i].and(other.containers[j]);
+                if (c != null) {
+                    nextKeys[blocks] = keys[i];
+                    nextContainers[blocks++] = c;
+                    total += c.cardinality();
+                }
+                i++;
+                j++;
+            }
+        }
+        return new IntBitmap(Arrays.copyOf(nextKeys, blocks), Arrays.copyOf(nextContainers, blocks), total);
+    }
+
+    /**
+     * 交集的元素个数，不创建结果位图
+     */
+    public int andCardinality(IntBitmap other) {
+        int[] count = {0};
+        forEachAnd(this, other, value -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * 按升序遍历两个位图的交集，不创建结果位图。转发消息时用成员位图与在线位图求交
+     */
+    public static void forEachAnd(IntBitmap a, IntBitmap b, IntConsumer action) {
+        int i = 0;
+        int j = 0;
+        while (i < a.keys.length && j < b.keys.length) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                a.containers[i].forEachAnd(b.containers[j], a.keys[i] << 16, action);
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * 序列化：varint 块数，每块 varint 高 16 位 | byte 类型 | 数组块：varint 个数 + 每个元素 2 字节；位图块：1024 个 long
+     */
+    public void writeTo(ByteWriter out) {
+        out.writeVarint(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeVarint(keys[i]);
+            containers[i].write(out);
+        }
+    }
+
+    public static IntBitmap readFrom(ByteReader in) throws IOException {
+        int blocks = in.readCount();
+        if (blocks == 0) {
+            return EMPTY;
+        }
+        char[] keys = new char[blocks];
+        Container[] containers = new Container[blocks];
+        int total = 0;
+        for (int i = 0; i < blocks; i++) {
+            int key = in.readVarint();
+            if (key > 0xFFFF || (i > 0 && key <= keys[i - 1])) {
+                throw new IOException("位图块顺序错误");
+            }
+            keys[i] = (char) key;
+            int type = in.readByte();
+            if (type == TYPE_ARRAY) {
+                containers[i] = ArrayContainer.read(in);
+            } else if (type == TYPE_BITMAP) {
+                containers[i] = BitmapContainer.read(in);
+            } else {
+                throw new IOException("未知的位图块类型: " + type);
+            }
+            total += containers[i].cardinality();
+        }
+        return new IntBitmap(keys, containers, total);
+    }
+
+    /**
+     * 粗略估计占用的堆内存（字节），用于统计和基准
+     */
+    public long estimatedBytes() {
+        long bytes = 32 + 16 + keys.length * 2L + 16 + containers.length * 4L;
+        for (Container container : containers) {
+            bytes += container.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 一块（低 16 位）的元素集合，不可变
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract int last();
+
+        // 已存在时返回自身
+        abstract Container add(char value);
+
+        // 不存在时返回自身，删除后为空时返回 null
+        abstract Container remove(char value);
+
+        abstract void forEach(int base, IntConsumer action);
+
+        // 交集为空时返回 null
+        abstract Container and(Container other);
+
+        abstract void forEachAnd(Container other, int base, IntConsumer action);
+
+        abstract void write(ByteWriter out);
+
+        abstract long estimatedBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+        private final char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        static ArrayContainer read(ByteReader in) throws IOException {
+            int n = in.readCount();
+            if (n == 0 || n > ARRAY_MAX) {
+                throw new IOException("位图数组块长度错误: " + n);
+            }
+            char[] values = new char[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = (char) ((in.readByte() << 8) | in.readByte());
+                if (i > 0 && values[i] <= values[i - 1]) {
+                    throw new IOException("位图数组块顺序错误");
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+
+        @Override
+        int last() {
+            return values[values.length - 1];
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (values.length >= ARRAY_MAX) {
+                return BitmapContainer.of(values, values.length).add(value);
+            }
+            int insert = -index - 1;
+            char[] next = new char[values.length + 1];
+            System.arraycopy(values, 0, next, 0, insert);
+            next[insert] = value;
+            System.arraycopy(values, insert, next, insert + 1, values.length - insert);
+            return new ArrayContainer(next);
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, value);
+            if (index < 0) {
+                return this;
+            }
+            if (values.length == 1) {
+                return null;
+            }
+            char[] next = new char[values.length - 1];
+            System.arraycopy(values, 0, next, 0, index);
+            System.arraycopy(values, index + 1, next, index, values.length - index - 1);
+            return new ArrayContainer(next);
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (char value : values) {
+                action.accept(base | value);
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[values.length];
+            int n = 0;
+            if (other instanceof ArrayContainer) {
+                char[] b = ((ArrayContainer) other).values;
+                int i = 0;
+                int j = 0;
+                while (i < values.length && j < b.length) {
+                    if (values[i] < b[j]) {
+                        i++;
+                    } else if (values[i] > b[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (char value : values) {
+                    if (other.contains(value)) {
+                        result[n++] = value;
+                    }
+                }
+            }
+            return n == 0 ? null : new ArrayContainer(Arrays.copyOf(result, n));
+        }
+
+        @Override
+        void forEachAnd(Container other, int base, IntConsumer action) {
+            if (other instanceof ArrayContainer) {
+                char[] b = ((ArrayContainer) other).values;
+                int i = 0;
+                int j = 0;
+                while (i < values.length && j < b.length) {
+                    if (values[i] < b[j]) {
+                        i++;
+                    } else if (values[i] > b[j]) {
+                        j++;
+                    } else {
+                        action.accept(base | values[i]);
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (char value : values) {
+                    if (other.contains(value)) {
+                        action.accept(base | value);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void write(ByteWriter out) {
+            out.writeByte(TYPE_ARRAY);
+            out.writeVarint(values.length);
+            for (char value : values) {
+                out.writeByte(value >>> 8);
+                out.writeByte(value);
+            }
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 16 + 16 + values.length * 2L;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static BitmapContainer of(char[] values, int n) {
+            long[] words = new long[1024];
+            for (int i = 0; i < n; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, n);
+        }
+
+        static BitmapContainer read(ByteReader in) throws IOException {
+            long[] words = new long[1024];
+            int cardinality = 0;
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+                cardinality += Long.bitCount(words[i]);
+            }
+            if (cardinality == 0) {
+                throw new IOException("位图块为空");
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int last() {
+            for (int i = words.length - 1; ; i--) {
+                if (words[i] != 0) {
+                    return (i << 6) + 63 - Long.numberOfLeadingZeros(words[i]);
+                }
+            }
+        }
+
+        @Override
+        Container add(char value) {
+            if (contains(value)) {
+                return this;
+            }
+            long[] next = words.clone();
+            next[value >>> 6] |= 1L << value;
+            return new BitmapContainer(next, cardinality + 1);
+        }
+
+        @Override
+        Container remove(char value) {
+            if (!contains(value)) {
+                return this;
+            }
+            long[] next = words.clone();
+            next[value >>> 6] &= ~(1L << value);
+            return cardinality - 1 <= ARRAY_MAX ? toArrayContainer(next, cardinality - 1)
+                    : new BitmapContainer(next, cardinality - 1);
+        }
+
+        private static ArrayContainer toArrayContainer(long[] words, int cardinality) {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(base | ((i << 6) + Long.numberOfTrailingZeros(word)));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] b = ((BitmapContainer) other).words;
+            long[] result = new long[1024];
+            int count = 0;
+            for (int i = 0; i < result.length; i++) {
+                result[i] = words[i] & b[i];
+                count += Long.bitCount(result[i]);
+            }
+            if (count == 0) {
+                return null;
+            }
+            return count <= ARRAY_MAX ? toArrayContainer(result, count) : new BitmapContainer(result, count);
+        }
+
+        @Override
+        void forEachAnd(Container other, int base, IntConsumer action) {
+            if (other instanceof ArrayContainer) {
+                other.forEachAnd(this, base, action);
+                return;
+            }
+            long[] b = ((BitmapContainer) other).words;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i] & b[i];
+                while (word != 0) {
+                    action.accept(base | ((i << 6) + Long.numberOfTrailingZeros(word)));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        void write(ByteWriter out) {
+            out.writeByte(TYPE_BITMAP);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 24 + 16 + words.length * 8L;
+        }
+    }
+}
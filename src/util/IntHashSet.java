@@ -0,0 +1,155 @@
+package util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 只保存非负 int 的开放寻址哈希集合，不装箱，用于保存用户/群聊句柄。
+ * 线性探测，负载不超过一半；删除时把后面的元素前移，不留删除标记。
+ * 非线程安全，由调用方加锁或只在单线程内使用。
+ */
+public class IntHashSet {
+    // 空槽位
+    private static final int FREE = -1;
+
+    private int[] table;
+    private int size;
+
+    public IntHashSet() {
+        this(4);
+    }
+
+    public IntHashSet(int expectedSize) {
+        int capacity = 8;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        Arrays.fill(table, FREE);
+    }
+
+    // 打散连续的句柄，避免线性探测时聚集
+    private static int slot(int value, int mask) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("只能保存非负整数: " + value);
+        }
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != FREE) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != FREE) {
+            if (table[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != value) {
+            if (table[i] == FREE) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = FREE;
+        size--;
+        // 把同一探测链上后面的元素前移到空出的位置，保证查找不会提前遇到空槽
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == FREE) {
+                return true;
+            }
+            int home = slot(table[j], mask);
+            // home 不在 (i, j] 区间内（考虑回绕）时，元素可以移动到 i
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                table[i] = table[j];
+                table[j] = FREE;
+                i = j;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // 复制一份独立的集合
+    public IntHashSet copy() {
+        IntHashSet copy = new IntHashSet(0);
+        copy.table = table.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    // 全部元素，顺序不固定
+    public int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for (int value : table) {
+            if (value != FREE) {
+                values[n++] = value;
+            }
+        }
+        return values;
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int value : table) {
+            if (value != FREE) {
+                action.accept(value);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        Arrays.fill(table, FREE);
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != FREE) {
+                int i = slot(value, mask);
+                while (table[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package util;
+
+import server.serveice.Wrapper;
+
+import java.io.*;
+
+/**
+ * Java 对象序列化编解码器
+ * 每帧是单个 Wrapper 的独立序列化结果（每帧自带类描述，不依赖前后帧），
+ * 作为二进制编解码器之外的兼容选项保留。没有连接级状态，帧头只有长度前缀；
+ * 协商了压缩时帧头再加一个标志字节，说明帧体是否经过压缩。
+ */
+public class SerialCodec extends WireCodec {
+
+    @Override
+    public int getCodecId() {
+        return CODEC_SERIAL;
+    }
+
+    @Override
+    public byte[][] frame(EncodedMessage message) throws IOException {
+        if (!compression) {
+            byte[] body = message.sharedBody(this);
+            byte[] head = new byte[LENGTH_FIELD_SIZE];
+            writeLength(head, body.length);
+            return new byte[][]{head, body};
+        }
+        byte[] raw = message.sharedBody(this);
+        byte[] body = selectBody(message);
+        byte[] head = new byte[LENGTH_FIELD_SIZE + 1];
+        writeLength(head, 1 + body.length);
+        head[LENGTH_FIELD_SIZE] = (byte) (body == raw ? 0 : FLAG_DEFLATE);
+        return new byte[][]{head, body};
+    }
+
+    @Override
+    protected byte[] encodeBody(Wrapper wrapper) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(wrapper);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Wrapper decode(byte[] frame, int offset, int length) throws IOException {
+        if (compression) {
+            if (length < 1) {
+                throw new IOException("帧长度不足");
+            }
+            int flags = frame[offset] & 0xFF;
+            if ((flags & ~FLAG_DEFLATE) != 0) {
+                throw new IOException("非法的帧标志位: " + flags);
+            }
+            if ((flags & FLAG_DEFLATE) != 0) {
+                frame = decompress(frame, offset + 1, length - 1);
+                offset = 0;
+                length = frame.length;
+            } else {
+                offset++;
+                length--;
+            }
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(frame, offset, length))) {
+            Object obj = ois.readObject();
+            if (!(obj instanceof Wrapper)) {
+                throw new IOException("帧内容不是 Wrapper: " + (obj == null ? "null" : obj.getClass().getName()));
+            }
+            return (Wrapper) obj;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("无法解析的帧内容", e);
+        }
+    }
+}
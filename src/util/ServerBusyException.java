@@ -0,0 +1,22 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * 握手时服务端回复繁忙：连接数已满，或者同一地址新建连接过于频繁
+ */
+public class ServerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // 服务端建议的重试等待时间（毫秒）
+    private final int retryAfterMillis;
+
+    public ServerBusyException(int retryAfterMillis) {
+        super("服务器繁忙，请在 " + retryAfterMillis + " 毫秒后重试");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,342 @@
+package util;
+
+import server.serveice.Wrapper;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 网络帧编解码器
+ * <p>
+ * 客户端与服务端之间的每条消息都以“帧”的形式传输：4 字节大端长度 + 帧内容。
+ * 有了明确的帧边界，服务端既可以用阻塞线程逐帧读取，也可以在 NIO 事件循环中
+ * 从缓冲区里切出完整的帧。
+ * <p>
+ * 帧内容的格式由连接建立时的握手协商决定：
+ * <ul>
+ * <li>{@link #CODEC_SERIAL}：Java 对象序列化，兼容任意可序列化的数据；服务端只在明确配置时接受</li>
+ * <li>{@link #CODEC_BINARY}：紧凑的二进制格式，见 {@link BinaryCodec}</li>
+ * </ul>
+ * 握手：客户端先发送 HELLO（魔数 + 版本 + 支持的编解码器位图 + 特性位），
+ * 服务端回复 HELLO_REPLY（魔数 + 状态 + 选定的编解码器 + 特性位），之后双方按帧通信。
+ * <p>
+ * 编解码器实例与连接一一对应，可能带有连接级的状态（如 ID 驻留表）：
+ * 编码端必须按实际写出的顺序调用 frame，解码端必须按收到的顺序调用 decode。
+ * <p>
+ * 每一帧由两段组成：本连接专属的帧头（含长度前缀，通常只有几个字节）和与连接无关的帧体。
+ * 帧体缓存在 {@link EncodedMessage} 中，群发时只编码一次，所有连接写出同一份字节。
+ * <p>
+ * 握手时双方都声明了 {@link #FEATURE_DEFLATE} 时启用压缩：超过阈值的帧体用 Deflater 压缩，
+ * 帧中的标志位说明该帧是否压缩，聊天消息这样的小帧保持原样。
+ */
+public abstract class WireCodec {
+    // 帧长度前缀的字节数
+    public static final int LENGTH_FIELD_SIZE = 4;
+    // 单帧最大长度，超过视为协议错误（防止恶意长度导致内存耗尽）
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // ====================== 握手 ======================
+    // 握手魔数 "LCHT"
+    public static final int HANDSHAKE_MAGIC = 0x4C434854;
+    // 协议版本
+    public static final int PROTOCOL_VERSION = 1;
+    // 握手消息长度：魔数(4) + 版本/状态(1) + 编解码器(1) + 特性位(1)
+    public static final int HELLO_SIZE = 7;
+
+    // 编解码器编号
+    public static final int CODEC_SERIAL = 1;
+    public static final int CODEC_BINARY = 2;
+
+    // 特性位：支持按帧 Deflate 压缩
+    public static final int FEATURE_DEFLATE = 1;
+    // 帧标志位：帧体经过 Deflate 压缩（varint 原始长度 + 压缩数据）
+    protected static final int FLAG_DEFLATE = 1;
+    // 客户端默认的压缩阈值（字节）
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+    // 握手状态
+    public static final int STATUS_OK = 0;
+    // 服务器繁忙：HELLO_REPLY 之后再跟 4 字节的建议重试等待时间（毫秒），随后服务端关闭连接
+    public static final int STATUS_BUSY = 1;
+    public static final int STATUS_UNSUPPORTED = 2;
+
+    /**
+     * 根据编号创建编解码器
+     */
+    public static WireCodec create(int codecId) {
+        switch (codecId) {
+            case CODEC_SERIAL:
+                return new SerialCodec();
+            case CODEC_BINARY:
+                return new BinaryCodec();
+            default:
+                throw new IllegalArgumentException("未知的编解码器: " + codecId);
+        }
+    }
+
+    // 是否已协商压缩（协商后帧中带有标志位）
+    protected boolean compression = false;
+    // 帧体达到该字节数才尝试压缩
+    protected int compressThreshold = Integer.MAX_VALUE;
+    // 压缩/解压器，分别只在编码端、解码端使用，按需创建
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /**
+     * 编码器编号
+     */
+    public abstract int getCodecId();
+
+    /**
+     * 启用压缩，必须在握手完成、收发第一帧之前调用
+     *
+     * @param threshold 帧体达到该字节数才尝试压缩
+     */
+    public void enableCompression(int threshold) {
+        this.compression = true;
+        this.compressThreshold = Math.max(1, threshold);
+    }
+
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    /**
+     * 选择本连接要写出的帧体：启用压缩且帧体超过阈值时使用压缩后的共享帧体
+     */
+    protected byte[] selectBody(EncodedMessage message) throws IOException {
+        byte[] body = message.sharedBody(this);
+        if (compression && body.length >= compressThreshold) {
+            byte[] compressed = message.sharedCompressedBody(this);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        return body;
+    }
+
+    /**
+     * 压缩帧体：varint 原始长度 + Deflate 数据
+     *
+     * @return 压缩后不比原文小时返回 null
+     */
+    byte[] compress(byte[] raw) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        ByteWriter out = new ByteWriter(raw.length / 2 + 16);
+        out.writeVarint(raw.length);
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.writeBytes(chunk, 0, n);
+            if (out.size() >= raw.length) {
+                deflater.reset();
+                return null;
+            }
+        }
+        deflater.reset();
+        return out.toByteArray();
+    }
+
+    /**
+     * 解压帧体
+     *
+     * @return 原始帧体
+     */
+    protected byte[] decompress(byte[] frame, int offset, int length) throws IOException {
+        ByteReader in = new ByteReader(frame, offset, length);
+        int rawLength = in.readVarint();
+        checkFrameLength(rawLength);
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        byte[] raw = new byte[rawLength];
+        inflater.setInput(frame, in.position(), in.remaining());
+        try {
+            int n = 0;
+            while (n < rawLength) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawLength) {
+                throw new IOException("压缩帧长度不符");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("无法解压的帧内容", e);
+        } finally {
+            inflater.reset();
+        }
+        return raw;
+    }
+
+    /**
+     * 编码与连接无关的帧体，由 EncodedMessage 调用并缓存
+     */
+    protected abstract byte[] encodeBody(Wrapper wrapper) throws IOException;
+
+    /**
+     * 生成这条消息在本连接上的帧：返回 {帧头, 帧体} 两段，依次写出即为完整的一帧。
+     * 帧头包含 4 字节长度前缀和本连接专属的部分；帧体为所有连接共享的只读数组，调用方不得修改。
+     */
+    public abstract byte[][] frame(EncodedMessage message) throws IOException;
+
+    /**
+     * 将一帧的内容解码为 Wrapper
+     */
+    public abstract Wrapper decode(byte[] frame, int offset, int length) throws IOException;
+
+    /**
+     * 向阻塞输出流写入一帧（长度前缀 + 内容），不负责 flush
+     */
+    public void write(DataOutputStream out, Wrapper wrapper) throws IOException {
+        byte[][] frame = frame(new EncodedMessage(wrapper));
+        out.write(frame[0]);
+        out.write(frame[1]);
+    }
+
+    /**
+     * 从阻塞输入流读取一帧并解码
+     *
+     * @throws EOFException 对端正常关闭连接
+     */
+    public Wrapper read(DataInputStream in) throws IOException {
+        byte[] frame = readFrame(in);
+        return decode(frame, 0, frame.length);
+    }
+
+    /**
+     * 从阻塞输入流读取一帧原始内容
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkFrameLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * 写入 4 字节大端帧长度
+     */
+    protected static void writeLength(byte[] dest, int length) {
+        dest[0] = (byte) (length >>> 24);
+        dest[1] = (byte) (length >>> 16);
+        dest[2] = (byte) (length >>> 8);
+        dest[3] = (byte) length;
+    }
+
+    /**
+     * 校验帧长度是否合法
+     */
+    public static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("非法的帧长度: " + length);
+        }
+    }
+
+    // ====================== 握手实现 ======================
+
+    /**
+     * 构造客户端 HELLO
+     *
+     * @param codecMask 支持的编解码器位图（第 n 位表示支持编号为 n 的编解码器）
+     * @param features  特性位
+     */
+    public static byte[] hello(int codecMask, int features) {
+        return handshakeMessage(PROTOCOL_VERSION, codecMask, features);
+    }
+
+    /**
+     * 构造服务端 HELLO_REPLY
+     */
+    public static byte[] helloReply(int status, int codecId, int features) {
+        return handshakeMessage(status, codecId, features);
+    }
+
+    /**
+     * 构造服务器繁忙的回复：HELLO_REPLY + 4 字节重试等待时间
+     */
+    public static byte[] busyReply(int retryAfterMillis) {
+        byte[] reply = new byte[HELLO_SIZE + 4];
+        System.arraycopy(helloReply(STATUS_BUSY, 0, 0), 0, reply, 0, HELLO_SIZE);
+        reply[HELLO_SIZE] = (byte) (retryAfterMillis >>> 24);
+        reply[HELLO_SIZE + 1] = (byte) (retryAfterMillis >>> 16);
+        reply[HELLO_SIZE + 2] = (byte) (retryAfterMillis >>> 8);
+        reply[HELLO_SIZE + 3] = (byte) retryAfterMillis;
+        return reply;
+    }
+
+    private static byte[] handshakeMessage(int first, int second, int third) {
+        return new byte[]{
+                (byte) (HANDSHAKE_MAGIC >>> 24), (byte) (HANDSHAKE_MAGIC >>> 16),
+                (byte) (HANDSHAKE_MAGIC >>> 8), (byte) HANDSHAKE_MAGIC,
+                (byte) first, (byte) second, (byte) third
+        };
+    }
+
+    /**
+     * 校验握手消息的魔数，返回其后的三个字节（版本/状态、编解码器、特性位）
+     */
+    public static int[] parseHandshake(byte[] message, int offset) throws IOException {
+        int magic = ((message[offset] & 0xFF) << 24) | ((message[offset + 1] & 0xFF) << 16)
+                | ((message[offset + 2] & 0xFF) << 8) | (message[offset + 3] & 0xFF);
+        if (magic != HANDSHAKE_MAGIC) {
+            throw new IOException("握手失败：对端协议不匹配");
+        }
+        return new int[]{message[offset + 4] & 0xFF, message[offset + 5] & 0xFF, message[offset + 6] & 0xFF};
+    }
+
+    /**
+     * 服务端根据客户端支持的编解码器位图选择编解码器，优先使用 preferred。
+     * Java 序列化会反序列化客户端发来的任意对象，只有服务端明确配置为 serial 时才使用，
+     * 否则只支持 serial 的客户端会被拒绝。
+     *
+     * @return 选定的编解码器编号，没有可用的返回 0
+     */
+    public static int chooseCodec(int codecMask, int preferred) {
+        if ((codecMask & (1 << preferred)) != 0) {
+            return preferred;
+        }
+        if ((codecMask & (1 << CODEC_BINARY)) != 0) {
+            return CODEC_BINARY;
+        }
+        return 0;
+    }
+
+    /**
+     * 客户端握手：发送 HELLO 并等待服务端选定编解码器
+     * 直接读写 socket 的原始流，不经过缓冲，保证不会多读走后续的帧数据。
+     *
+     * @throws ServerBusyException 服务端已满或连接过于频繁，应在建议的时间后重试
+     */
+    public static WireCodec clientHandshake(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(hello((1 << CODEC_SERIAL) | (1 << CODEC_BINARY), FEATURE_DEFLATE));
+        out.flush();
+
+        byte[] reply = new byte[HELLO_SIZE];
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        in.readFully(reply);
+        int[] fields = parseHandshake(reply, 0);
+        if (fields[0] == STATUS_BUSY) {
+            throw new ServerBusyException(in.readInt());
+        }
+        if (fields[0] != STATUS_OK) {
+            throw new IOException("握手失败：服务端拒绝连接，状态码 " + fields[0]);
+        }
+        WireCodec codec = create(fields[1]);
+        if ((fields[2] & FEATURE_DEFLATE) != 0) {
+            codec.enableCompression(DEFAULT_COMPRESS_THRESHOLD);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,81 @@
+package util;
+
+/**
+ * 写合并策略：决定一批已写入缓冲流的帧什么时候 flush。
+ * <p>
+ * 每帧都 flush 意味着每条消息一次系统调用、通常也是一个 TCP 报文段。这里的规则是：
+ * 发送队列已经空了就立即 flush（单条消息的延迟不变）；队列里还有消息时继续写入缓冲区，
+ * 直到累计字节数达到上限，或者这一批的第一帧已经等待超过时间窗口。
+ * <p>
+ * 同时记录这一批里每一帧的创建时间，供调用方在 flush 后统计延迟。非线程安全，每个写出者一个实例。
+ */
+public final class WriteBatcher {
+    // 客户端默认参数
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024;
+    public static final long DEFAULT_MAX_DELAY_NANOS = 2_000_000L;
+
+    private final int maxBytes;
+    private final long maxDelayNanos;
+
+    private int pendingBytes = 0;
+    private int pendingFrames = 0;
+    private long[] pendingCreated = new long[16];
+
+    public WriteBatcher() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY_NANOS);
+    }
+
+    /**
+     * @param maxBytes      累计多少字节后必须 flush，0 表示每帧都 flush（关闭合并）
+     * @param maxDelayNanos 一批中第一帧最多等待多久
+     */
+    public WriteBatcher(int maxBytes, long maxDelayNanos) {
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * 记录一帧已写入缓冲区
+     *
+     * @param bytes        帧的字节数
+     * @param createdNanos 消息的创建时间（System.nanoTime）
+     * @param idle         发送队列中是否已经没有待写的消息
+     * @return 是否应该立即 flush
+     */
+    public boolean add(int bytes, long createdNanos, boolean idle) {
+        if (pendingFrames == pendingCreated.length) {
+            long[] bigger = new long[pendingCreated.length * 2];
+            System.arraycopy(pendingCreated, 0, bigger, 0, pendingFrames);
+            pendingCreated = bigger;
+        }
+        pendingCreated[pendingFrames++] = createdNanos;
+        pendingBytes += bytes;
+        return idle
+                || pendingBytes >= maxBytes
+                || System.nanoTime() - pendingCreated[0] >= maxDelayNanos;
+    }
+
+    public boolean isEmpty() {
+        return pendingFrames == 0;
+    }
+
+    public int getPendingFrames() {
+        return pendingFrames;
+    }
+
+    public int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public long getPendingCreated(int index) {
+        return pendingCreated[index];
+    }
+
+    /**
+     * flush 完成后清空这一批的记录
+     */
+    public void reset() {
+        pendingBytes = 0;
+        pendingFrames = 0;
+    }
+}